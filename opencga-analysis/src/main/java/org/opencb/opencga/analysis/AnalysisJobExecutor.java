@@ -286,7 +286,7 @@ public class AnalysisJobExecutor {
 
     private static QueryResult<Job> executeLocal(CatalogManager catalogManager, Job job, String sessionId) throws CatalogException {
 
-        Command com = new Command(job.getCommandLine());
+        Command com = setLocalOutputFiles(job, new Command(job.getCommandLine()));
         final int jobId = job.getId();
         Thread hook = new Thread(() -> {
             try {
@@ -317,13 +317,22 @@ public class AnalysisJobExecutor {
         return postExecuteLocal(catalogManager, job, sessionId, com);
     }
 
-    private static QueryResult<Job> postExecuteLocal(CatalogManager catalogManager, Job job, String sessionId, Command com)
+    static Command setLocalOutputFiles(Job job, Command com) {
+        if ("file".equals(job.getTmpOutDirUri().getScheme())) {
+            // Stream the full output to the log files. Only the last bytes are kept in memory
+            com.setOutputFile(Paths.get(getStdOutUri(job)));
+            com.setErrorFile(Paths.get(getStdErrUri(job)));
+        }
+        return com;
+    }
+
+    static QueryResult<Job> postExecuteLocal(CatalogManager catalogManager, Job job, String sessionId, Command com)
             throws CatalogException {
         /** Write output to file **/
         CatalogIOManager ioManager = catalogManager.getCatalogIOManagerFactory().get(job.getTmpOutDirUri());
         try {
-            URI sout = job.getTmpOutDirUri().resolve(job.getName() + "." + job.getId() + ".out.txt");
-            if (com.getOutput() != null) {
+            URI sout = getStdOutUri(job);
+            if (com.getOutput() != null && !ioManager.exists(sout)) {
                 ioManager.createFile(sout, new ByteArrayInputStream(com.getOutput().getBytes()));
                 com.setOutput(null);
             }
@@ -331,8 +340,8 @@ public class AnalysisJobExecutor {
             e.printStackTrace();
         }
         try {
-            URI serr = job.getTmpOutDirUri().resolve(job.getName() + "." + job.getId() + ".err.txt");
-            if (com.getError() != null) {
+            URI serr = getStdErrUri(job);
+            if (com.getError() != null && !ioManager.exists(serr)) {
                 ioManager.createFile(serr, new ByteArrayInputStream(com.getError().getBytes()));
                 com.setError(null);
             }
@@ -365,6 +374,14 @@ public class AnalysisJobExecutor {
         return catalogManager.getJob(job.getId(), new QueryOptions(), sessionId);
     }
 
+    private static URI getStdOutUri(Job job) {
+        return job.getTmpOutDirUri().resolve(job.getName() + "." + job.getId() + ".out.txt");
+    }
+
+    private static URI getStdErrUri(Job job) {
+        return job.getTmpOutDirUri().resolve(job.getName() + "." + job.getId() + ".err.txt");
+    }
+
     private static void executeCommandLine(String commandLine, String jobName, int jobId, String jobFolder, String analysisName)
             throws AnalysisExecutionException, IOException {
         // read execution param
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2015 OpenCB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opencb.opencga.analysis;
+
+import org.opencb.datastore.core.ObjectMap;
+import org.opencb.opencga.catalog.CatalogManager;
+import org.opencb.opencga.catalog.exceptions.CatalogException;
+import org.opencb.opencga.catalog.models.Job;
+import org.opencb.opencga.core.JobScheduler;
+import org.opencb.opencga.core.SgeManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+
+/**
+ * Tracks the status of the QUEUED and RUNNING jobs sent to a {@link JobScheduler}.
+ *
+ * Each call to {@link #update} queries the scheduler once for all the jobs, and compares the result with the
+ * scheduler status of the previous call. Only the jobs with a new status are written to catalog, in a single batch.
+ */
+public class JobStatusTracker {
+
+    protected static Logger logger = LoggerFactory.getLogger(JobStatusTracker.class);
+
+    private final CatalogManager catalogManager;
+    private final String sessionId;
+    private final JobScheduler scheduler;
+    private final Map<Integer, String> snapshot = new HashMap<>();
+
+    public JobStatusTracker(CatalogManager catalogManager, String sessionId, JobScheduler scheduler) {
+        this.catalogManager = catalogManager;
+        this.sessionId = sessionId;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Updates the status of the jobs from the scheduler. The given jobs are modified with the new status.
+     *
+     * @param jobs  Unfinished jobs
+     * @return      Number of jobs modified
+     * @throws CatalogException if the modifications can not be written
+     */
+    public int update(List<Job> jobs) throws CatalogException {
+        // Job id to the name of the job in the scheduler. Jobs without a name can not be tracked
+        Map<Integer, String> schedulerNames = new HashMap<>();
+        Map<Integer, Job> trackedJobs = new HashMap<>();
+        for (Job job : jobs) {
+            if ((Job.Status.QUEUED.equals(job.getStatus()) || Job.Status.RUNNING.equals(job.getStatus()))
+                    && job.getResourceManagerAttributes() != null) {
+                Object schedulerName = job.getResourceManagerAttributes().get(Job.JOB_SCHEDULER_NAME);
+                if (schedulerName != null && !schedulerName.toString().isEmpty()) {
+                    schedulerNames.put(job.getId(), schedulerName.toString());
+                    trackedJobs.put(job.getId(), job);
+                }
+            }
+        }
+        snapshot.keySet().retainAll(trackedJobs.keySet());
+        if (trackedJobs.isEmpty()) {
+            return 0;
+        }
+
+        Map<String, String> statusMap;
+        try {
+            statusMap = scheduler.status(new HashSet<>(schedulerNames.values()));
+        } catch (Exception e) {
+            logger.warn("Unable to get the status of {} jobs: {}", trackedJobs.size(), e.getMessage());
+            return 0;
+        }
+
+        Map<Integer, ObjectMap> changes = new HashMap<>();
+        for (Job job : trackedJobs.values()) {
+            String status = statusMap.get(schedulerNames.get(job.getId()));
+            if (status == null || status.equals(snapshot.put(job.getId(), status))) {
+                continue;
+            }
+            ObjectMap parameters = getChanges(job, status);
+            if (!parameters.isEmpty()) {
+                changes.put(job.getId(), parameters);
+            }
+        }
+        if (changes.isEmpty()) {
+            return 0;
+        }
+
+        try {
+            catalogManager.modifyJobs(changes, sessionId);
+        } catch (CatalogException e) {
+            // Not written. Check again in the next update
+            snapshot.keySet().removeAll(changes.keySet());
+            throw e;
+        }
+        for (Job job : trackedJobs.values()) {
+            ObjectMap parameters = changes.get(job.getId());
+            if (parameters != null) {
+                job.setStatus((Job.Status) parameters.get("status"));
+                if (parameters.containsKey("error")) {
+                    job.setError(parameters.getString("error"));
+                }
+            }
+        }
+        logger.info("Modified the status of {} jobs", changes.size());
+        return changes.size();
+    }
+
+    private static ObjectMap getChanges(Job job, String status) {
+        ObjectMap parameters = new ObjectMap();
+        switch (status) {
+            case SgeManager.FINISHED:
+                if (!Job.Status.DONE.equals(job.getStatus())) {
+                    parameters.put("status", Job.Status.DONE);
+                }
+                break;
+            case SgeManager.ERROR:
+            case SgeManager.EXECUTION_ERROR:
+                if (!Job.Status.DONE.equals(job.getStatus())) {
+                    parameters.put("status", Job.Status.DONE);
+                    String error = Job.ERRNO_FINISH_ERROR;
+                    parameters.put("error", error);
+                    parameters.put("errorDescription", Job.errorDescriptions.get(error));
+                }
+                break;
+            case SgeManager.QUEUED:
+                if (!Job.Status.QUEUED.equals(job.getStatus())) {
+                    parameters.put("status", Job.Status.QUEUED);
+                }
+                break;
+            case SgeManager.RUNNING:
+                if (!Job.Status.RUNNING.equals(job.getStatus())) {
+                    parameters.put("status", Job.Status.RUNNING);
+                }
+                break;
+            case SgeManager.TRANSFERRED:
+            case SgeManager.UNKNOWN:
+            default:
+                break;
+        }
+        return parameters;
+    }
+}
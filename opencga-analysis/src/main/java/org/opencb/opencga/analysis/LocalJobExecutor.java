@@ -0,0 +1,348 @@
+/*
+ * Copyright 2015 OpenCB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opencb.opencga.analysis;
+
+import org.apache.tools.ant.types.Commandline;
+import org.opencb.datastore.core.ObjectMap;
+import org.opencb.opencga.catalog.CatalogManager;
+import org.opencb.opencga.catalog.exceptions.CatalogException;
+import org.opencb.opencga.catalog.models.Job;
+import org.opencb.opencga.core.exec.Command;
+import org.opencb.opencga.core.exec.RunnableProcess;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs local jobs concurrently in a bounded pool of worker threads, without SGE.
+ *
+ * The pool size is given by {@link #THREADS}, or by the number of cores and the physical memory divided by the
+ * expected memory of a job ({@link #JOB_MEMORY}). Each job may be limited in memory (ulimit -v) and time with the
+ * resourceManagerAttributes {@link #JOB_MEMORY_LIMIT} and {@link #JOB_TIME_LIMIT}.
+ *
+ * Status changes are written to catalog from the worker threads, so {@link #submit} never waits for a job.
+ * Submitted jobs are QUEUED until a worker is free, and RUNNING while executing. When finished, the job is
+ * post-processed like {@link AnalysisJobExecutor} local jobs.
+ *
+ * On {@link #shutdown}, the status of the unfinished jobs is owned by the abort: workers do not modify the status of
+ * an aborted job.
+ */
+public class LocalJobExecutor {
+
+    public static final String THREADS = "OPENCGA.ANALYSIS.JOB.EXECUTOR.LOCAL.THREADS";
+    public static final String JOB_MEMORY = "OPENCGA.ANALYSIS.JOB.EXECUTOR.LOCAL.JOB_MEMORY";       // MB
+    public static final String MEMORY_LIMIT = "OPENCGA.ANALYSIS.JOB.EXECUTOR.LOCAL.MEMORY_LIMIT";   // MB
+    public static final String TIME_LIMIT = "OPENCGA.ANALYSIS.JOB.EXECUTOR.LOCAL.TIME_LIMIT";       // Seconds
+
+    // Job resourceManagerAttributes. Override the default limits
+    public static final String JOB_MEMORY_LIMIT = "memoryLimit";
+    public static final String JOB_TIME_LIMIT = "timeLimit";
+
+    protected static Logger logger = LoggerFactory.getLogger(LocalJobExecutor.class);
+
+    private final CatalogManager catalogManager;
+    private final String sessionId;
+    private final int numThreads;
+    private final long memoryLimit;
+    private final long timeLimit;
+    private final ThreadPoolExecutor executor;
+    private final ExecutorService statusReporter;
+    private final ScheduledExecutorService timeoutScheduler;
+    private final Map<Integer, LocalJob> jobs = new ConcurrentHashMap<>();
+    private final Thread shutdownHook;
+    private volatile boolean shutdown = false;
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong finished = new AtomicLong();
+    private final AtomicLong totalWaitTime = new AtomicLong();
+    private final AtomicLong maxWaitTime = new AtomicLong();
+    private final AtomicLong totalRunTime = new AtomicLong();
+
+    public LocalJobExecutor(CatalogManager catalogManager, String sessionId, Properties analysisProperties) {
+        this.catalogManager = catalogManager;
+        this.sessionId = sessionId;
+        numThreads = getNumThreads(analysisProperties);
+        memoryLimit = Long.parseLong(analysisProperties.getProperty(MEMORY_LIMIT, "0").trim());
+        timeLimit = Long.parseLong(analysisProperties.getProperty(TIME_LIMIT, "0").trim());
+
+        AtomicInteger threadCount = new AtomicInteger();
+        executor = new ThreadPoolExecutor(numThreads, numThreads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+                r -> new Thread(r, "local_job_" + threadCount.incrementAndGet()));
+        statusReporter = Executors.newSingleThreadExecutor(r -> new Thread(r, "local_job_status"));
+        timeoutScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "local_job_timeout");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        // One hook for all the jobs
+        shutdownHook = new Thread(this::abort, "local_job_shutdown");
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+        logger.info("Local job executor with {} threads. Memory limit: {}MB, time limit: {}s", numThreads,
+                memoryLimit > 0 ? memoryLimit : "none", timeLimit > 0 ? timeLimit : "none");
+    }
+
+    /**
+     * @param analysisProperties    Analysis properties
+     * @return If the jobs are executed locally, without SGE
+     */
+    public static boolean isLocalExecutor(Properties analysisProperties) {
+        String jobExecutor = analysisProperties.getProperty(AnalysisJobExecutor.OPENCGA_ANALYSIS_JOB_EXECUTOR);
+        return jobExecutor == null || jobExecutor.trim().equalsIgnoreCase("LOCAL");
+    }
+
+    static int getNumThreads(Properties analysisProperties) {
+        if (analysisProperties.containsKey(THREADS)) {
+            return Math.max(1, Integer.parseInt(analysisProperties.getProperty(THREADS).trim()));
+        }
+        int cores = Runtime.getRuntime().availableProcessors();
+        long jobMemory = Long.parseLong(analysisProperties.getProperty(JOB_MEMORY, "2048").trim());
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (jobMemory > 0 && os instanceof com.sun.management.OperatingSystemMXBean) {
+            long memory = ((com.sun.management.OperatingSystemMXBean) os).getTotalPhysicalMemorySize() / 1024 / 1024;
+            return (int) Math.max(1, Math.min(cores, memory / jobMemory));
+        }
+        return cores;
+    }
+
+    /**
+     * Queues a job. Returns without waiting for the job or for catalog.
+     *
+     * @param job   PREPARED job
+     * @return      False if the job was already submitted or the executor is shut down
+     */
+    public synchronized boolean submit(Job job) {
+        if (shutdown || jobs.containsKey(job.getId())) {
+            return false;
+        }
+        LocalJob localJob = new LocalJob(job);
+        jobs.put(job.getId(), localJob);
+        submitted.incrementAndGet();
+        localJob.queued = statusReporter.submit(() -> modifyStatus(job, Job.Status.QUEUED));
+        executor.execute(() -> run(localJob));
+        return true;
+    }
+
+    /**
+     * @param jobId Job id
+     * @return If the job is queued, running or finished but not purged from this executor
+     */
+    public boolean isActive(int jobId) {
+        return jobs.containsKey(jobId);
+    }
+
+    /**
+     * Forgets the finished jobs. Call before reading the job statuses from catalog, so jobs finishing
+     * in the middle of a read are still reported as active.
+     */
+    public void purgeFinished() {
+        jobs.values().removeIf(localJob -> localJob.finished);
+    }
+
+    private void run(LocalJob localJob) {
+        Job job = localJob.job;
+        try {
+            long waitTime = System.currentTimeMillis() - localJob.submitTime;
+            totalWaitTime.addAndGet(waitTime);
+            maxWaitTime.accumulateAndGet(waitTime, Math::max);
+            localJob.queued.get();
+
+            Command com = buildCommand(job);
+            synchronized (localJob) {
+                if (localJob.aborted) {
+                    return;
+                }
+                modifyStatus(job, Job.Status.RUNNING);
+                localJob.command = com;
+            }
+            if (localJob.aborted) {
+                // Aborted before starting the command
+                return;
+            }
+            long jobTimeLimit = getLimit(job, JOB_TIME_LIMIT, timeLimit);
+            ScheduledFuture<?> timeout = null;
+            if (jobTimeLimit > 0) {
+                timeout = timeoutScheduler.schedule(() -> {
+                    logger.warn("Job {id: {}} exceeded the time limit of {}s. Killing", job.getId(), jobTimeLimit);
+                    com.setStatus(RunnableProcess.Status.TIMEOUT);
+                    com.destroy();
+                }, jobTimeLimit, TimeUnit.SECONDS);
+            }
+
+            logger.info("Executing job {}({}) after {}ms queued", job.getName(), job.getId(), waitTime);
+            long start = System.currentTimeMillis();
+            com.run();
+            long runTime = System.currentTimeMillis() - start;
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+            totalRunTime.addAndGet(runTime);
+            logger.info("Finished job {}({}) in {}ms with exit value {}", job.getName(), job.getId(), runTime, com.getExitValue());
+
+            synchronized (localJob) {
+                if (localJob.aborted) {
+                    return;
+                }
+                localJob.postProcessing = true;
+            }
+            AnalysisJobExecutor.postExecuteLocal(catalogManager, job, sessionId, com);
+        } catch (InterruptedException | ExecutionException | CatalogException | RuntimeException e) {
+            if (localJob.aborted) {
+                logger.debug("Job {id: {}} aborted: {}", job.getId(), e.toString());
+            } else {
+                logger.error("Error executing job {id: " + job.getId() + "}", e);
+            }
+        } finally {
+            localJob.finished = true;
+            finished.incrementAndGet();
+        }
+    }
+
+    private Command buildCommand(Job job) {
+        long jobMemoryLimit = getLimit(job, JOB_MEMORY_LIMIT, memoryLimit);
+        Command com;
+        if (jobMemoryLimit > 0) {
+            // The command line is passed as arguments of the shell, split as Command(String) does, never inside the script
+            String[] args = Commandline.translateCommandline(job.getCommandLine());
+            String[] cmdArray = new String[args.length + 5];
+            cmdArray[0] = "sh";
+            cmdArray[1] = "-c";
+            cmdArray[2] = "ulimit -v \"$1\" || exit; shift; exec \"$@\"";
+            cmdArray[3] = "sh";
+            cmdArray[4] = Long.toString(jobMemoryLimit * 1024);
+            System.arraycopy(args, 0, cmdArray, 5, args.length);
+            com = new Command(cmdArray, null);
+        } else {
+            com = new Command(job.getCommandLine());
+        }
+        return AnalysisJobExecutor.setLocalOutputFiles(job, com);
+    }
+
+    private static long getLimit(Job job, String key, long defaultValue) {
+        if (job.getResourceManagerAttributes() == null || job.getResourceManagerAttributes().get(key) == null) {
+            return defaultValue;
+        }
+        return Long.parseLong(job.getResourceManagerAttributes().get(key).toString());
+    }
+
+    private Void modifyStatus(Job job, Job.Status status) throws CatalogException {
+        catalogManager.modifyJob(job.getId(), new ObjectMap("status", status), sessionId);
+        return null;
+    }
+
+    /**
+     * @return Metrics: threads, queued and running jobs, submitted and finished jobs, wait and run times in ms
+     */
+    public ObjectMap getMetrics() {
+        long finished = this.finished.get();
+        ObjectMap metrics = new ObjectMap();
+        metrics.put("threads", numThreads);
+        metrics.put("queued", executor.getQueue().size());
+        metrics.put("running", executor.getActiveCount());
+        metrics.put("submitted", submitted.get());
+        metrics.put("finished", finished);
+        metrics.put("avgWaitTime", finished == 0 ? 0 : totalWaitTime.get() / finished);
+        metrics.put("maxWaitTime", maxWaitTime.get());
+        metrics.put("avgRunTime", finished == 0 ? 0 : totalRunTime.get() / finished);
+        return metrics;
+    }
+
+    /**
+     * Stops the executor. Running jobs are killed and finished as KILLED. Queued jobs are set back to PREPARED,
+     * to be executed again.
+     */
+    public void shutdown() {
+        abort();
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException ignore) {
+            // Already shutting down
+        }
+    }
+
+    private void abort() {
+        synchronized (this) {
+            if (shutdown) {
+                return;
+            }
+            shutdown = true;
+        }
+        // Do not interrupt the workers. The running commands are destroyed below, and the queued jobs never start
+        executor.shutdown();
+        executor.getQueue().clear();
+        for (LocalJob localJob : jobs.values()) {
+            Job job = localJob.job;
+            Command com;
+            synchronized (localJob) {
+                if (localJob.finished || localJob.postProcessing) {
+                    continue;
+                }
+                localJob.aborted = true;
+                com = localJob.command;
+            }
+            try {
+                if (com == null) {
+                    // Wait for the QUEUED status, so it does not overwrite the PREPARED status
+                    try {
+                        localJob.queued.get();
+                    } catch (ExecutionException ignore) {
+                        // QUEUED not written. Restore anyway
+                    }
+                    logger.info("Job {id: {}} not started. Restoring status {}", job.getId(), Job.Status.PREPARED);
+                    modifyStatus(job, Job.Status.PREPARED);
+                } else {
+                    logger.info("Job {id: {}} has being aborted.", job.getId());
+                    com.setStatus(RunnableProcess.Status.KILLED);
+                    com.destroy();
+                    com.setExitValue(-2);
+                    AnalysisJobExecutor.postExecuteLocal(catalogManager, job, sessionId, com);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                logger.error("Interrupted aborting job {id: " + job.getId() + "}", e);
+            } catch (ExecutionException | CatalogException | RuntimeException e) {
+                logger.error("Error aborting job {id: " + job.getId() + "}", e);
+            }
+        }
+        jobs.clear();
+        statusReporter.shutdown();
+        timeoutScheduler.shutdownNow();
+    }
+
+    private static class LocalJob {
+        private final Job job;
+        private final long submitTime;
+        private volatile Future<Void> queued;
+        // Guarded by the LocalJob monitor
+        private volatile Command command;
+        private volatile boolean aborted = false;
+        private volatile boolean postProcessing = false;
+        private volatile boolean finished = false;
+
+        LocalJob(Job job) {
+            this.job = job;
+            this.submitTime = System.currentTimeMillis();
+        }
+    }
+}
@@ -17,6 +17,7 @@ import java.io.IOException;
 import java.net.URI;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 /**
@@ -59,6 +60,19 @@ public class FileScanner {
                 queryOptions,
                 sessionId);
 
+        if (calculateChecksum) {
+            //Only the recovered missing files need a new checksum
+            Map<CatalogIOManager, List<URI>> missingFiles = new HashMap<>();
+            for (File file : files.getResult()) {
+                if (file.getStatus() == File.Status.MISSING) {
+                    URI fileUri = catalogManager.getFileUri(file);
+                    missingFiles.computeIfAbsent(catalogManager.getCatalogIOManagerFactory().get(fileUri), m -> new LinkedList<>())
+                            .add(fileUri);
+                }
+            }
+            missingFiles.forEach(CatalogIOManager::prefetchChecksums);
+        }
+
         List<File> modifiedFiles = new LinkedList<>();
         for (File file : files.getResult()) {
             File checkedFile = catalogFileUtils.checkFile(file, calculateChecksum, sessionId);
@@ -178,7 +192,12 @@ public class FileScanner {
         int studyId = catalogManager.getStudyIdByFileId(directory.getId());
 
         long createFilesTime = 0, uploadFilesTime = 0, metadataReadTime = 0;
-        Stream<URI> uris = catalogManager.getCatalogIOManagerFactory().get(directoryToScan).listFilesStream(directoryToScan);
+        CatalogIOManager ioManager = catalogManager.getCatalogIOManagerFactory().get(directoryToScan);
+        List<URI> uris = ioManager.listFilesStream(directoryToScan).collect(Collectors.toList());
+        if (calculateChecksum) {
+            //Start calculating the checksums while the files are registered
+            ioManager.prefetchChecksums(uris.stream().filter(uri -> !uri.getPath().endsWith("/")).collect(Collectors.toList()));
+        }
         List<File> files = new LinkedList<>();
         FileMetadataReader fileMetadataReader = FileMetadataReader.get(catalogManager);
         for (Iterator<URI> iterator = uris.iterator(); iterator.hasNext(); ) {
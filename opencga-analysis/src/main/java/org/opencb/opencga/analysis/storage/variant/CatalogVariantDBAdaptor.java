@@ -176,11 +176,11 @@ public abstract class CatalogVariantDBAdaptor implements VariantDBAdaptor {
 //    public QueryResult updateStats(List<VariantStatsWrapper> variantStatsWrappers, int studyId, QueryOptions queryOptions) {
 //        return null;
 //    }
-//
-//    @Override
-//    public boolean close() {
-//        return false;
-//    }
+
+    @Override
+    public boolean close() {
+        return dbAdaptor.close();
+    }
 
 
     //AuxMethods
@@ -0,0 +1,128 @@
+package org.opencb.opencga.analysis;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.opencb.opencga.catalog.CatalogManager;
+import org.opencb.opencga.catalog.CatalogManagerTest;
+import org.opencb.opencga.catalog.models.*;
+import org.opencb.opencga.core.JobScheduler;
+import org.opencb.opencga.core.SgeManager;
+
+import java.net.URI;
+import java.nio.file.Paths;
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+
+public class JobStatusTrackerTest {
+
+    private CatalogManager catalogManager;
+    private String sessionId;
+    private int studyId;
+    private File outDir;
+    private URI temporalOutDirUri;
+
+    /** Scheduler stand-in. Counts the queries */
+    private final Map<String, String> schedulerStatus = new HashMap<>();
+    private final List<Collection<String>> queries = new ArrayList<>();
+    private final JobScheduler scheduler = jobIds -> {
+        queries.add(new ArrayList<>(jobIds));
+        Map<String, String> status = new HashMap<>();
+        for (String jobId : jobIds) {
+            status.put(jobId, schedulerStatus.getOrDefault(jobId, SgeManager.UNKNOWN));
+        }
+        return status;
+    };
+
+    @Before
+    public void before() throws Exception {
+        Properties properties = new Properties();
+        properties.load(CatalogManagerTest.class.getClassLoader().getResourceAsStream("catalog.properties"));
+
+        CatalogManagerTest.clearCatalog(properties);
+
+        catalogManager = new CatalogManager(properties);
+
+        catalogManager.createUser("user", "User", "user@email.org", "user", "ACME", null);
+        sessionId = catalogManager.login("user", "user", "localhost").first().getString("sessionId");
+        int projectId = catalogManager.createProject("user", "p1", "p1", "Project 1", "ACME", null, sessionId).first().getId();
+        studyId = catalogManager.createStudy(projectId, "s1", "s1", Study.Type.CASE_CONTROL, "Study 1", sessionId).first().getId();
+        outDir = catalogManager.createFolder(studyId, Paths.get("data", "jobs"), false, null, sessionId).first();
+
+        temporalOutDirUri = catalogManager.createJobOutDir(studyId, "JOB_TMP", sessionId);
+    }
+
+    @Test
+    public void testUpdate() throws Exception {
+        Job job1 = createJob("job1", Job.Status.QUEUED);
+        Job job2 = createJob("job2", Job.Status.QUEUED);
+        Job job3 = createJob("job3", Job.Status.PREPARED);
+        JobStatusTracker tracker = new JobStatusTracker(catalogManager, sessionId, scheduler);
+
+        schedulerStatus.put("job1", SgeManager.QUEUED);
+        schedulerStatus.put("job2", SgeManager.RUNNING);
+        assertEquals(1, tracker.update(getJobs()));
+        assertEquals(Job.Status.QUEUED, getStatus(job1));
+        assertEquals(Job.Status.RUNNING, getStatus(job2));
+        assertEquals(Job.Status.PREPARED, getStatus(job3));
+        assertEquals(1, queries.size());
+        assertEquals(new HashSet<>(Arrays.asList("job1", "job2")), new HashSet<>(queries.get(0)));
+
+        // Nothing changed in the scheduler
+        assertEquals(0, tracker.update(getJobs()));
+        assertEquals(2, queries.size());
+
+        schedulerStatus.put("job1", SgeManager.FINISHED);
+        schedulerStatus.put("job2", SgeManager.EXECUTION_ERROR);
+        List<Job> jobs = getJobs();
+        assertEquals(2, tracker.update(jobs));
+        for (Job job : jobs) {
+            if (job.getId() != job3.getId()) {
+                assertEquals(Job.Status.DONE, job.getStatus());
+            }
+        }
+        assertEquals(Job.Status.DONE, getStatus(job1));
+        assertEquals(Job.Status.DONE, getStatus(job2));
+        assertEquals(Job.ERRNO_FINISH_ERROR, catalogManager.getJob(job2.getId(), null, sessionId).first().getError());
+        assertEquals(3, queries.size());
+
+        // No jobs to track. The scheduler is not queried
+        assertEquals(0, tracker.update(getJobs()));
+        assertEquals(3, queries.size());
+    }
+
+    @Test
+    public void testUpdateByJobId() throws Exception {
+        Job job1 = createJob("job1", "job", Job.Status.QUEUED);
+        Job job2 = createJob("job2", "job", Job.Status.QUEUED);
+        Job unnamed = createJob("unnamed", "", Job.Status.QUEUED);
+        JobStatusTracker tracker = new JobStatusTracker(catalogManager, sessionId, scheduler);
+
+        // Jobs with the same scheduler name are all updated. Jobs without a name are not queried
+        schedulerStatus.put("job", SgeManager.RUNNING);
+        assertEquals(2, tracker.update(getJobs()));
+        assertEquals(Job.Status.RUNNING, getStatus(job1));
+        assertEquals(Job.Status.RUNNING, getStatus(job2));
+        assertEquals(Job.Status.QUEUED, getStatus(unnamed));
+        assertEquals(1, queries.size());
+        assertEquals(Collections.singletonList("job"), queries.get(0));
+    }
+
+    private Job createJob(String schedulerName, Job.Status status) throws Exception {
+        return createJob(schedulerName, schedulerName, status);
+    }
+
+    private Job createJob(String name, String schedulerName, Job.Status status) throws Exception {
+        return catalogManager.createJob(studyId, name, "bash", "", "echo", temporalOutDirUri, outDir.getId(),
+                Collections.emptyList(), null, new HashMap<>(), new HashMap<>(Collections.singletonMap(Job.JOB_SCHEDULER_NAME,
+                        schedulerName)), status, 0, 0, null, sessionId).first();
+    }
+
+    private List<Job> getJobs() throws Exception {
+        return catalogManager.getAllJobs(studyId, sessionId).getResult();
+    }
+
+    private Job.Status getStatus(Job job) throws Exception {
+        return catalogManager.getJob(job.getId(), null, sessionId).first().getStatus();
+    }
+}
@@ -0,0 +1,134 @@
+package org.opencb.opencga.analysis;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opencb.opencga.catalog.CatalogManager;
+import org.opencb.opencga.catalog.CatalogManagerTest;
+import org.opencb.opencga.catalog.models.File;
+import org.opencb.opencga.catalog.models.Job;
+import org.opencb.opencga.catalog.models.Study;
+
+import java.net.URI;
+import java.nio.file.Paths;
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LocalJobExecutorTest {
+
+    private CatalogManager catalogManager;
+    private String sessionId;
+    private int studyId;
+    private File outDir;
+    private LocalJobExecutor executor;
+
+    @Before
+    public void before() throws Exception {
+        Properties properties = new Properties();
+        properties.load(CatalogManagerTest.class.getClassLoader().getResourceAsStream("catalog.properties"));
+
+        CatalogManagerTest.clearCatalog(properties);
+
+        catalogManager = new CatalogManager(properties);
+
+        catalogManager.createUser("user", "User", "user@email.org", "user", "ACME", null);
+        sessionId = catalogManager.login("user", "user", "localhost").first().getString("sessionId");
+        int projectId = catalogManager.createProject("user", "p1", "p1", "Project 1", "ACME", null, sessionId).first().getId();
+        studyId = catalogManager.createStudy(projectId, "s1", "s1", Study.Type.CASE_CONTROL, "Study 1", sessionId).first().getId();
+        outDir = catalogManager.createFolder(studyId, Paths.get("data", "jobs"), false, null, sessionId).first();
+    }
+
+    @After
+    public void after() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void testPoolLimit() throws Exception {
+        executor = new LocalJobExecutor(catalogManager, sessionId, getProperties(2, 0));
+        List<Job> jobs = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            Job job = createJob("job" + i, "sleep 1");
+            jobs.add(job);
+            assertTrue(executor.submit(job));
+        }
+
+        int maxRunning = 0;
+        while (countStatus(jobs, Job.Status.READY) + countStatus(jobs, Job.Status.ERROR) < jobs.size()) {
+            maxRunning = Math.max(maxRunning, countStatus(jobs, Job.Status.RUNNING));
+            Thread.sleep(100);
+        }
+        assertTrue("Running jobs: " + maxRunning, maxRunning <= 2);
+        assertEquals(jobs.size(), countStatus(jobs, Job.Status.READY));
+        assertEquals(4L, executor.getMetrics().get("finished"));
+    }
+
+    @Test(timeout = 60000)
+    public void testTimeLimit() throws Exception {
+        executor = new LocalJobExecutor(catalogManager, sessionId, getProperties(1, 1));
+        Job job = createJob("job", "sleep 30");
+        assertTrue(executor.submit(job));
+
+        long start = System.currentTimeMillis();
+        while (getStatus(job) != Job.Status.ERROR && getStatus(job) != Job.Status.READY) {
+            Thread.sleep(100);
+        }
+        assertEquals(Job.Status.ERROR, getStatus(job));
+        assertTrue(System.currentTimeMillis() - start < 30000);
+    }
+
+    @Test(timeout = 60000)
+    public void testShutdownRestoresQueuedJobs() throws Exception {
+        executor = new LocalJobExecutor(catalogManager, sessionId, getProperties(1, 0));
+        Job running = createJob("running", "sleep 30");
+        Job queued = createJob("queued", "sleep 30");
+        assertTrue(executor.submit(running));
+        assertTrue(executor.submit(queued));
+        while (getStatus(running) != Job.Status.RUNNING) {
+            Thread.sleep(100);
+        }
+
+        executor.shutdown();
+        assertEquals(Job.Status.ERROR, getStatus(running));
+        assertEquals(Job.Status.PREPARED, getStatus(queued));
+
+        // The killed worker does not modify the status after the abort
+        Thread.sleep(1000);
+        assertEquals(Job.Status.ERROR, getStatus(running));
+        assertEquals(Job.Status.PREPARED, getStatus(queued));
+        assertFalse(executor.submit(createJob("other", "sleep 1")));
+    }
+
+    private static Properties getProperties(int threads, int timeLimit) {
+        Properties properties = new Properties();
+        properties.setProperty(LocalJobExecutor.THREADS, String.valueOf(threads));
+        properties.setProperty(LocalJobExecutor.TIME_LIMIT, String.valueOf(timeLimit));
+        return properties;
+    }
+
+    private Job createJob(String name, String commandLine) throws Exception {
+        URI tmpOutDirUri = catalogManager.createJobOutDir(studyId, "JOB_TMP_" + name, sessionId);
+        return catalogManager.createJob(studyId, name, "bash", "", commandLine, tmpOutDirUri, outDir.getId(),
+                Collections.emptyList(), null, new HashMap<>(), new HashMap<>(), Job.Status.PREPARED, 0, 0, null,
+                sessionId).first();
+    }
+
+    private int countStatus(List<Job> jobs, Job.Status status) throws Exception {
+        int count = 0;
+        for (Job job : jobs) {
+            if (getStatus(job) == status) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private Job.Status getStatus(Job job) throws Exception {
+        return catalogManager.getJob(job.getId(), null, sessionId).first().getStatus();
+    }
+}
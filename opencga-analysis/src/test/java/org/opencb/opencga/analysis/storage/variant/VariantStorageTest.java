@@ -351,17 +351,20 @@ public class VariantStorageTest {
                 .append(VariantStorageManager.Options.STUDY_CONFIGURATION_MANAGER_CLASS_NAME.key(), CatalogStudyConfigurationManager.class.getName())
                 .append("sessionId", sessionId);
         VariantDBAdaptor dbAdaptor = new StorageManagerFactory(storageConfiguration).getVariantStorageManager().getDBAdaptor(dbName);
-
-        for (Variant variant : dbAdaptor) {
-            for (VariantSourceEntry sourceEntry : variant.getSourceEntries().values()) {
-                assertEquals(cohorts.size(), sourceEntry.getCohortStats().size());
-                for (Map.Entry<String, VariantStats> entry : sourceEntry.getCohortStats().entrySet()) {
-                    assertTrue(cohorts.containsKey(entry.getKey()));
-                    if (cohorts.get(entry.getKey()) != null) {
-                        assertEquals("Variant: " + variant.toString() + " does not have the correct number of samples.", cohorts.get(entry.getKey()).getSamples().size(), entry.getValue().getGenotypesCount().values().stream().reduce((integer, integer2) -> integer + integer2).orElse(0).intValue());
+        try {
+            for (Variant variant : dbAdaptor) {
+                for (VariantSourceEntry sourceEntry : variant.getSourceEntries().values()) {
+                    assertEquals(cohorts.size(), sourceEntry.getCohortStats().size());
+                    for (Map.Entry<String, VariantStats> entry : sourceEntry.getCohortStats().entrySet()) {
+                        assertTrue(cohorts.containsKey(entry.getKey()));
+                        if (cohorts.get(entry.getKey()) != null) {
+                            assertEquals("Variant: " + variant.toString() + " does not have the correct number of samples.", cohorts.get(entry.getKey()).getSamples().size(), entry.getValue().getGenotypesCount().values().stream().reduce((integer, integer2) -> integer + integer2).orElse(0).intValue());
+                        }
                     }
                 }
             }
+        } finally {
+            dbAdaptor.close();
         }
     }
 
@@ -372,14 +375,17 @@ public class VariantStorageTest {
                 .append(VariantStorageManager.Options.STUDY_CONFIGURATION_MANAGER_CLASS_NAME.key(), CatalogStudyConfigurationManager.class.getName())
                 .append("sessionId", sessionId);
         VariantDBAdaptor dbAdaptor = new StorageManagerFactory(storageConfiguration).getVariantStorageManager().getDBAdaptor(dbName);
-
-        for (Variant variant : dbAdaptor) {
-            for (VariantSourceEntry sourceEntry : variant.getSourceEntries().values()) {
-                assertEquals(cohorts.size(), sourceEntry.getCohortStats().size());
-                for (Map.Entry<String, VariantStats> entry : sourceEntry.getCohortStats().entrySet()) {
-                    assertTrue(cohorts.containsKey(entry.getKey()));
+        try {
+            for (Variant variant : dbAdaptor) {
+                for (VariantSourceEntry sourceEntry : variant.getSourceEntries().values()) {
+                    assertEquals(cohorts.size(), sourceEntry.getCohortStats().size());
+                    for (Map.Entry<String, VariantStats> entry : sourceEntry.getCohortStats().entrySet()) {
+                        assertTrue(cohorts.containsKey(entry.getKey()));
+                    }
                 }
             }
+        } finally {
+            dbAdaptor.close();
         }
     }
     /**
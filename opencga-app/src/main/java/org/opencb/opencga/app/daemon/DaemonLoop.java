@@ -27,6 +27,8 @@ import org.opencb.datastore.core.QueryResult;
 import org.opencb.opencga.analysis.AnalysisJobExecutor;
 import org.opencb.opencga.analysis.AnalysisExecutionException;
 import org.opencb.opencga.analysis.AnalysisOutputRecorder;
+import org.opencb.opencga.analysis.JobStatusTracker;
+import org.opencb.opencga.analysis.LocalJobExecutor;
 import org.opencb.opencga.catalog.exceptions.CatalogException;
 import org.opencb.opencga.catalog.CatalogManager;
 import org.opencb.opencga.catalog.models.File;
@@ -41,6 +43,8 @@ import org.slf4j.LoggerFactory;
 import org.slf4j.Logger;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 
 /**
@@ -50,6 +54,7 @@ public class DaemonLoop implements Runnable {
 
     public static final String PORT = "OPENCGA.APP.DAEMON.PORT";
     public static final String SLEEP = "OPENCGA.APP.DAEMON.SLEEP";
+    public static final String MAX_SLEEP = "OPENCGA.APP.DAEMON.MAX_SLEEP";
     public static final String USER = "OPENCGA.APP.DAEMON.USER";
     public static final String PASSWORD = "OPENCGA.APP.DAEMON.PASSWORD";
     public static final String DELETE_DELAY = "OPENCGA.APP.DAEMON.DELETE_DELAY";
@@ -64,6 +69,8 @@ public class DaemonLoop implements Runnable {
     private static Logger logger = LoggerFactory.getLogger(DaemonLoop.class);
     private AnalysisOutputRecorder analysisOutputRecorder;
     private String sessionId;
+    private LocalJobExecutor localJobExecutor;
+    private JobStatusTracker jobStatusTracker;
 
     public DaemonLoop(Properties properties) {
         this.properties = properties;
@@ -93,7 +100,9 @@ public class DaemonLoop implements Runnable {
 
     @Override
     public void run() {
-        int sleep = Integer.parseInt(properties.getProperty(SLEEP, "4000"));
+        int minSleep = Integer.parseInt(properties.getProperty(SLEEP, "4000"));
+        int maxSleep = Math.max(minSleep, Integer.parseInt(properties.getProperty(MAX_SLEEP, "30000")));
+        int sleep = minSleep;
         sessionId = null;
         try {
             QueryResult<ObjectMap> login = catalogManager.login(properties.getProperty(USER), properties.getProperty(PASSWORD), "daemon");
@@ -103,6 +112,13 @@ public class DaemonLoop implements Runnable {
             exit = true;
         }
         analysisOutputRecorder = new AnalysisOutputRecorder(catalogManager, sessionId);
+        if (!exit) {
+            if (LocalJobExecutor.isLocalExecutor(Config.getAnalysisProperties())) {
+                localJobExecutor = new LocalJobExecutor(catalogManager, sessionId, Config.getAnalysisProperties());
+            } else {
+                jobStatusTracker = new JobStatusTracker(catalogManager, sessionId, SgeManager::status);
+            }
+        }
 
         while (!exit) {
             try {
@@ -115,64 +131,34 @@ public class DaemonLoop implements Runnable {
             logger.info("----- WakeUp {} -----", TimeUtils.getTimeMillis());
 
             logger.info("----- Pending jobs -----");
+            boolean idle = true;
             try {
+                if (localJobExecutor != null) {
+                    localJobExecutor.purgeFinished();
+                }
                 QueryResult<Job> unfinishedJobs = catalogManager.getUnfinishedJobs(sessionId);
+                List<Job> jobs = new ArrayList<>(unfinishedJobs.getNumResults());
                 for (Job job : unfinishedJobs.getResult()) {
-                    String status = null;
-                    try {
-                        status = SgeManager.status(job.getResourceManagerAttributes().get(Job.JOB_SCHEDULER_NAME).toString());
-                    } catch (Exception e) {
-                        logger.warn(e.getMessage());
+                    if (localJobExecutor != null && localJobExecutor.isActive(job.getId())) {
+                        // Status updated by the local executor
+                        logger.info("job : {id: " + job.getId() + ", status: '" + job.getStatus() + "', name: '" + job.getName() + "'}, local");
+                    } else {
+                        jobs.add(job);
                     }
-                    Job.Status jobStatus = job.getStatus();
-//                    String type = job.getResourceManagerAttributes().get(Job.TYPE).toString();
-//                    System.out.println("job : {id: " + job.getId() + ", status: '" + job.getStatus() + "', name: '" + job.getName() + "'}, sgeStatus : " + status);
-                    logger.info("job : {id: " + job.getId() + ", status: '" + job.getStatus() + "', name: '" + job.getName() + "'}, sgeStatus : " + status);
+                }
 
-                    //Track SGEManager
-                    if (status != null) {
-                        switch (status) {
-                            case SgeManager.FINISHED:
-                                if (!Job.Status.DONE.equals(job.getStatus())) {
-                                    catalogManager.modifyJob(job.getId(), new ObjectMap("status", Job.Status.DONE), sessionId);
-                                    jobStatus = Job.Status.DONE;
-                                }
-                                break;
-                            case SgeManager.ERROR:
-                            case SgeManager.EXECUTION_ERROR:
-                                if (!Job.Status.DONE.equals(job.getStatus())) {
-                                    ObjectMap parameters = new ObjectMap();
-                                    parameters.put("status", Job.Status.DONE);
-                                    String error = Job.ERRNO_FINISH_ERROR;
-                                    parameters.put("error", error);
-                                    parameters.put("errorDescription", Job.errorDescriptions.get(error));
-                                    catalogManager.modifyJob(job.getId(), parameters, sessionId);
-                                    jobStatus = Job.Status.DONE;
-                                    job.setError(error);
-                                }
-                                break;
-                            case SgeManager.QUEUED:
-                                if (!Job.Status.QUEUED.equals(job.getStatus())) {
-                                    catalogManager.modifyJob(job.getId(), new ObjectMap("status", Job.Status.QUEUED), sessionId);
-                                    jobStatus = Job.Status.QUEUED;
-                                }
-                                break;
-                            case SgeManager.RUNNING:
-                                if (!Job.Status.RUNNING.equals(job.getStatus())) {
-                                    catalogManager.modifyJob(job.getId(), new ObjectMap("status", Job.Status.RUNNING), sessionId);
-                                    jobStatus = Job.Status.RUNNING;
-                                }
-                                break;
-                            case SgeManager.TRANSFERRED:
-                                break;
-                            case SgeManager.UNKNOWN:
-                                break;
-                        }
-                    }
+                //Track the job scheduler. One query for all the jobs
+                if (jobStatusTracker != null && jobStatusTracker.update(jobs) > 0) {
+                    idle = false;
+                }
+
+                for (Job job : jobs) {
+                    logger.info("job : {id: " + job.getId() + ", status: '" + job.getStatus() + "', name: '" + job.getName() + "'}");
 
                     //Track Catalog Job status
-                    switch (jobStatus) {
+                    switch (job.getStatus()) {
                         case DONE:
+                            idle = false;
                             boolean jobOk = job.getError() == null || (job.getError() != null && job.getError().isEmpty());
                             analysisOutputRecorder.recordJobOutputAndPostProcess(job, !jobOk);
                             if (jobOk) {
@@ -182,8 +168,13 @@ public class DaemonLoop implements Runnable {
                             }
                             break;
                         case PREPARED:
+                            idle = false;
                             try {
-                                AnalysisJobExecutor.execute(catalogManager, job, sessionId);
+                                if (localJobExecutor != null) {
+                                    localJobExecutor.submit(job);
+                                } else {
+                                    AnalysisJobExecutor.execute(catalogManager, job, sessionId);
+                                }
                             } catch (AnalysisExecutionException e) {
                                 ObjectMap params = new ObjectMap("status", Job.Status.ERROR);
                                 String error = Job.ERRNO_NO_QUEUE;
@@ -205,6 +196,9 @@ public class DaemonLoop implements Runnable {
             } catch (Exception e) {
                 e.printStackTrace();
             }
+            if (localJobExecutor != null) {
+                logger.info("Local jobs : {}", localJobExecutor.getMetrics());
+            }
 
             logger.info("----- Pending deletions -----");
             try {
@@ -218,6 +212,7 @@ public class DaemonLoop implements Runnable {
                             Study study = studyQueryResult.getResult().get(0);
                             logger.info("Deleting file {} from study {id: {}, alias: {}}", file, study.getId(), study.getAlias());
                             new CatalogFileUtils(catalogManager).delete(file, sessionId);
+                            idle = false;
                         } else {
                             logger.info("Don't delete file {id: {}, path: '{}', attributes: {}}}", file.getId(), file.getPath(), file.getAttributes());
                             logger.info("{}", (currentTimeMillis - deleteDate) / 1000);
@@ -229,6 +224,13 @@ public class DaemonLoop implements Runnable {
             } catch (Exception e) {
                 e.printStackTrace();
             }
+
+            // Back off while there is nothing to do
+            sleep = idle ? Math.min(sleep * 2, maxSleep) : minSleep;
+        }
+
+        if (localJobExecutor != null) {
+            localJobExecutor.shutdown();
         }
 
         if (sessionId != null) {
@@ -63,6 +63,7 @@ public class CatalogManager implements AutoCloseable {
     /* IOManager properties */
     public static final String CATALOG_MAIN_ROOTDIR = "OPENCGA.CATALOG.MAIN.ROOTDIR";
     public static final String CATALOG_JOBS_ROOTDIR = "OPENCGA.CATALOG.JOBS.ROOTDIR";
+    public static final String CATALOG_CHECKSUM_ALGORITHM = "OPENCGA.CATALOG.CHECKSUM.ALGORITHM";
     /* Manager policies properties */
     public static final String CATALOG_MANAGER_POLICY_CREATION_USER = "OPENCGA.CATALOG.MANAGER.POLICY.CREATION_USER";
     /* Other properties */
@@ -730,6 +731,10 @@ public class CatalogManager implements AutoCloseable {
         return jobManager.update(jobId, parameters, null, sessionId); //TODO: Add query options
     }
 
+    public QueryResult<Integer> modifyJobs(Map<Integer, ObjectMap> jobsParameters, String sessionId) throws CatalogException {
+        return jobManager.update(jobsParameters, sessionId);
+    }
+
     /**
      * Project methods
      * ***************************
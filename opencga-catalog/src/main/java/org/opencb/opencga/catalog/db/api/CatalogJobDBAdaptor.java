@@ -7,6 +7,8 @@ import org.opencb.opencga.catalog.models.Job;
 import org.opencb.opencga.catalog.models.Tool;
 import org.opencb.opencga.catalog.exceptions.CatalogDBException;
 
+import java.util.Map;
+
 /**
  * @author Jacobo Coll &lt;jacobo167@gmail.com&gt;
  */
@@ -35,6 +37,15 @@ public interface CatalogJobDBAdaptor {
 
     QueryResult<Job> modifyJob(int jobId, ObjectMap parameters) throws CatalogDBException;
 
+    /**
+     * Modify several jobs in a single bulk write.
+     *
+     * @param jobsParameters    Parameters to modify for each job id
+     * @return                  Number of modified jobs
+     * @throws CatalogDBException
+     */
+    QueryResult<Integer> modifyJobs(Map<Integer, ObjectMap> jobsParameters) throws CatalogDBException;
+
     int getStudyIdByJobId(int jobId) throws CatalogDBException;
 
 
@@ -774,6 +774,45 @@ public class CatalogMongoDBAdaptor extends CatalogDBAdaptor
     @Override
     public QueryResult modifyJob(int jobId, ObjectMap parameters) throws CatalogDBException {
         long startTime = startQuery();
+        Map<String, Object> jobParameters = parseJobParameters(parameters);
+
+        if(!jobParameters.isEmpty()) {
+            BasicDBObject query = new BasicDBObject(_ID, jobId);
+            BasicDBObject updates = new BasicDBObject("$set", jobParameters);
+//            System.out.println("query = " + query);
+//            System.out.println("updates = " + updates);
+            QueryResult<WriteResult> update = jobCollection.update(query, updates, null);
+            if(update.getResult().isEmpty() || update.getResult().get(0).getN() == 0){
+                throw CatalogDBException.idNotFound("Job", jobId);
+            }
+        }
+        return endQuery("Modify job", startTime, getJob(jobId, null));
+    }
+
+    @Override
+    public QueryResult<Integer> modifyJobs(Map<Integer, ObjectMap> jobsParameters) throws CatalogDBException {
+        long startTime = startQuery();
+        BulkWriteOperation bulk = db.getDb().getCollection(JOB_COLLECTION).initializeUnorderedBulkOperation();
+        int updates = 0;
+        for (Map.Entry<Integer, ObjectMap> entry : jobsParameters.entrySet()) {
+            Map<String, Object> jobParameters = parseJobParameters(entry.getValue());
+            if (!jobParameters.isEmpty()) {
+                bulk.find(new BasicDBObject(_ID, entry.getKey())).updateOne(new BasicDBObject("$set", jobParameters));
+                updates++;
+            }
+        }
+        int modified = 0;
+        if (updates > 0) {
+            BulkWriteResult result = bulk.execute();
+            if (result.getMatchedCount() != updates) {
+                throw new CatalogDBException("Modify jobs: " + (updates - result.getMatchedCount()) + " jobs not found");
+            }
+            modified = result.getMatchedCount();
+        }
+        return endQuery("Modify jobs", startTime, Collections.singletonList(modified));
+    }
+
+    private Map<String, Object> parseJobParameters(ObjectMap parameters) throws CatalogDBException {
         Map<String, Object> jobParameters = new HashMap<>();
 
         String[] acceptedParams = {"name", "userId", "toolName", "date", "description", "outputError", "commandLine", "status", "outdir", "error", "errorDescription"};
@@ -798,18 +837,7 @@ public class CatalogMongoDBAdaptor extends CatalogDBAdaptor
 
         String[] acceptedMapParams = {"attributes", "resourceManagerAttributes"};
         filterMapParams(parameters, jobParameters, acceptedMapParams);
-
-        if(!jobParameters.isEmpty()) {
-            BasicDBObject query = new BasicDBObject(_ID, jobId);
-            BasicDBObject updates = new BasicDBObject("$set", jobParameters);
-//            System.out.println("query = " + query);
-//            System.out.println("updates = " + updates);
-            QueryResult<WriteResult> update = jobCollection.update(query, updates, null);
-            if(update.getResult().isEmpty() || update.getResult().get(0).getN() == 0){
-                throw CatalogDBException.idNotFound("Job", jobId);
-            }
-        }
-        return endQuery("Modify job", startTime, getJob(jobId, null));
+        return jobParameters;
     }
 
     @Override
@@ -485,6 +485,15 @@ public abstract class CatalogIOManager {
 
     public abstract String calculateChecksum(URI file) throws CatalogIOException;
 
+    /**
+     * Starts calculating the checksum of the given files in background, so later calls to {@link #calculateChecksum}
+     * do not have to wait for each file. Does nothing by default.
+     *
+     * @param files Files to be checked
+     */
+    public void prefetchChecksums(List<URI> files) {
+    }
+
     public abstract List<URI> listFiles(URI directory) throws CatalogIOException;
 
     public Stream<URI> listFilesStream(URI directory) throws CatalogIOException {
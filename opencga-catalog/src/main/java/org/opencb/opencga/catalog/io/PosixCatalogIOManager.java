@@ -20,6 +20,7 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.ObjectWriter;
 import org.opencb.opencga.catalog.exceptions.CatalogIOException;
 import org.opencb.opencga.catalog.CatalogManager;
+import org.opencb.opencga.core.common.ChecksumCalculator;
 import org.opencb.opencga.core.common.UriUtils;
 import org.opencb.opencga.core.common.IOUtils;
 import org.slf4j.Logger;
@@ -39,6 +40,8 @@ public class PosixCatalogIOManager extends CatalogIOManager {
     protected static ObjectMapper jsonObjectMapper;
     protected static ObjectWriter jsonObjectWriter;
 
+    private ChecksumCalculator.Algorithm checksumAlgorithm = ChecksumCalculator.Algorithm.MD5;
+
 
     public PosixCatalogIOManager(String propertiesFile) throws CatalogIOException {
         super(propertiesFile);
@@ -70,6 +73,12 @@ public class PosixCatalogIOManager extends CatalogIOManager {
         if (!jobsDir.getScheme().equals("file")) {
             throw new CatalogIOException("wrong posix file system in catalog.properties: " + jobsDir);
         }
+        String algorithm = properties.getProperty(CatalogManager.CATALOG_CHECKSUM_ALGORITHM, ChecksumCalculator.Algorithm.MD5.name());
+        try {
+            checksumAlgorithm = ChecksumCalculator.Algorithm.valueOf(algorithm.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new CatalogIOException("Unknown checksum algorithm '" + algorithm + "' in " + CatalogManager.CATALOG_CHECKSUM_ALGORITHM, e);
+        }
     }
 
     /**********************
@@ -552,27 +561,26 @@ public class PosixCatalogIOManager extends CatalogIOManager {
 
     @Override
     public String calculateChecksum(URI file) throws CatalogIOException {
-        String checksum;
         try {
-            String[] command = {"md5sum", file.getPath()};
-            logger.debug("command = {} {}", command[0], command[1]);
-            Process p = Runtime.getRuntime().exec(command);
-            BufferedReader br = new BufferedReader(new InputStreamReader(p.getInputStream()));
-            checksum = br.readLine();
-
-            if (p.waitFor() != 0) {
-                //TODO: Handle error in checksum
-                System.out.println("checksum = " + checksum);
-                br = new BufferedReader(new InputStreamReader(p.getErrorStream()));
-                throw new CatalogIOException("md5sum failed with exit value : " + p.exitValue() + ". ERROR: " + br.readLine() );
-            }
-        } catch (IOException | InterruptedException e) {
-            e.printStackTrace();
-            //TODO: Handle error in checksum
+            return ChecksumCalculator.format(checksumAlgorithm,
+                    ChecksumCalculator.getInstance().checksum(Paths.get(file), checksumAlgorithm));
+        } catch (IOException e) {
             throw new CatalogIOException("Checksum error in file " + file, e);
         }
+    }
 
-        return checksum.split(" ")[0];
+    @Override
+    public void prefetchChecksums(List<URI> files) {
+        for (URI file : files) {
+            if ("file".equals(file.getScheme()) && Files.isRegularFile(Paths.get(file))) {
+                try {
+                    ChecksumCalculator.getInstance().submit(Paths.get(file), checksumAlgorithm);
+                } catch (IOException e) {
+                    // Will fail again, and be reported, in calculateChecksum
+                    logger.debug("Unable to prefetch checksum of {}: {}", file, e.getMessage());
+                }
+            }
+        }
     }
 
     @Override
@@ -190,6 +190,27 @@ public class JobManager extends AbstractManager implements IJobManager {
         return queryResult;
     }
 
+    @Override
+    public QueryResult<Integer> update(Map<Integer, ObjectMap> jobsParameters, String sessionId) throws CatalogException {
+        ParamUtils.checkParameter(sessionId, "sessionId");
+        ParamUtils.checkObj(jobsParameters, "jobsParameters");
+        String userId = userDBAdaptor.getUserIdBySessionId(sessionId);
+        if (!authorizationManager.getUserRole(userId).equals(User.Role.ADMIN)) {
+            Set<Integer> studies = new HashSet<>();
+            for (Integer jobId : jobsParameters.keySet()) {
+                int studyId = jobDBAdaptor.getStudyIdByJobId(jobId);
+                if (studies.add(studyId)) {
+                    authorizationManager.checkStudyPermission(studyId, userId, StudyPermission.LAUNCH_JOBS);
+                }
+            }
+        }
+        QueryResult<Integer> queryResult = jobDBAdaptor.modifyJobs(jobsParameters);
+        for (Map.Entry<Integer, ObjectMap> entry : jobsParameters.entrySet()) {
+            auditManager.recordUpdate(AuditRecord.Resource.job, entry.getKey(), userId, entry.getValue(), null, null);
+        }
+        return queryResult;
+    }
+
     @Override
     public QueryResult<Job> delete(Integer jobId, QueryOptions options, String sessionId)
             throws CatalogException {
@@ -28,6 +28,16 @@ public interface IJobManager extends ResourceManager<Integer, Job> {
     QueryResult<Job> readAll(int studyId, QueryOptions query, QueryOptions options, String sessionId)
             throws CatalogException;
 
+    /**
+     * Modify several jobs with a single write.
+     *
+     * @param jobsParameters    Parameters to modify for each job id
+     * @param sessionId         Session id
+     * @return                  Number of modified jobs
+     * @throws CatalogException
+     */
+    QueryResult<Integer> update(Map<Integer, ObjectMap> jobsParameters, String sessionId) throws CatalogException;
+
     URI createJobOutDir(int studyId, String dirName, String sessionId)
             throws CatalogException ;
 
@@ -25,6 +25,7 @@ import org.opencb.opencga.catalog.models.File;
 import org.opencb.opencga.catalog.exceptions.CatalogDBException;
 import org.opencb.opencga.catalog.io.CatalogIOManager;
 import org.opencb.opencga.catalog.exceptions.CatalogIOException;
+import org.opencb.opencga.core.common.ChecksumCalculator;
 import org.opencb.opencga.core.common.TimeUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -170,6 +171,11 @@ public class CatalogFileUtils {
             }
         }
 
+        //The given source checksum may be calculated with other algorithm
+        if (calculateChecksum && !fileMoved && !ChecksumCalculator.isSameAlgorithm(sourceChecksum, targetChecksum)) {
+            sourceChecksum = sourceIOManager.calculateChecksum(sourceUri);
+        }
+
         //Check status
         if(!calculateChecksum || targetChecksum.equals(sourceChecksum)) {
             if (calculateChecksum) {
@@ -368,6 +374,14 @@ public class CatalogFileUtils {
             //Set URI to folder. This will mark the directory as "external"
             catalogManager.modifyFile(folder.getId(), new ObjectMap("uri", externalUri), sessionId);
 
+            if (calculateChecksum) {
+                //Start calculating the checksums of the new files while they are created
+                ioManager.prefetchChecksums(uriPathMap.entrySet().stream()
+                        .filter(entry -> !pathFileMap.containsKey(entry.getValue()))
+                        .map(Map.Entry::getKey)
+                        .collect(Collectors.toList()));
+            }
+
             //Create and link files.
             for (Map.Entry<URI, String> entry : uriPathMap.entrySet()) {
                 String relativePath = entry.getValue();
@@ -570,7 +584,12 @@ public class CatalogFileUtils {
         CatalogIOManager catalogIOManager = catalogManager.getCatalogIOManagerFactory().get(fileUri);
 
         if (checksum != null && !checksum.isEmpty() && !checksum.equals("null")) {
-            if (file.getAttributes() == null || !Objects.equals(file.getAttributes().get("checksum"), checksum)) {
+            Object storedChecksum = file.getAttributes() == null ? null : file.getAttributes().get("checksum");
+            if (storedChecksum == null || !ChecksumCalculator.isSameAlgorithm(storedChecksum.toString(), checksum)) {
+                //Not comparable. Replace the checksum calculated with other algorithm
+                parameters.put("attributes", new ObjectMap("checksum", checksum));
+            } else if (!storedChecksum.equals(checksum)) {
+                logger.info("File { id:" + file.getId() + ", path:\"" + file.getPath() + "\" } content has changed");
                 parameters.put("attributes", new ObjectMap("checksum", checksum));
             }
         }
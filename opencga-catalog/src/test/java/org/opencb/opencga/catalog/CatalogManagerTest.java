@@ -1083,6 +1083,31 @@ public class CatalogManagerTest extends GenericTest {
         assertEquals(1, allJobs.getNumResults());
     }
 
+    @Test
+    public void testModifyJobs() throws CatalogException {
+        int projectId = catalogManager.getAllProjects("user", null, sessionIdUser).first().getId();
+        int studyId = catalogManager.getAllStudiesInProject(projectId, null, sessionIdUser).first().getId();
+        File outDir = catalogManager.createFolder(studyId, Paths.get("jobs", "myJob"), true, null, sessionIdUser).first();
+
+        URI tmpJobOutDir = catalogManager.createJobOutDir(studyId, StringUtils.randomString(5), sessionIdUser);
+        Job queuedJob = catalogManager.createJob(
+                studyId, "myQueuedJob", "samtool", "description", "echo \"Hello World!\"", tmpJobOutDir, outDir.getId(),
+                Collections.emptyList(), null, new HashMap<>(), null, Job.Status.QUEUED, 0, 0, null, sessionIdUser).first();
+        Job runningJob = catalogManager.createJob(
+                studyId, "myRunningJob", "samtool", "description", "echo \"Hello World!\"", tmpJobOutDir, outDir.getId(),
+                Collections.emptyList(), null, new HashMap<>(), null, Job.Status.RUNNING, 0, 0, null, sessionIdUser).first();
+
+        Map<Integer, ObjectMap> jobsParameters = new HashMap<>();
+        jobsParameters.put(queuedJob.getId(), new ObjectMap("status", Job.Status.RUNNING));
+        jobsParameters.put(runningJob.getId(), new ObjectMap("status", Job.Status.DONE).append("error", Job.ERRNO_FINISH_ERROR));
+        assertEquals(2, catalogManager.modifyJobs(jobsParameters, sessionIdUser).first().intValue());
+
+        assertEquals(Job.Status.RUNNING, catalogManager.getJob(queuedJob.getId(), null, sessionIdUser).first().getStatus());
+        Job doneJob = catalogManager.getJob(runningJob.getId(), null, sessionIdUser).first();
+        assertEquals(Job.Status.DONE, doneJob.getStatus());
+        assertEquals(Job.ERRNO_FINISH_ERROR, doneJob.getError());
+    }
+
     /**
      * VariableSet methods
      * ***************************
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2015 OpenCB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opencb.opencga.core;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Source of the status of the jobs sent to a scheduler. {@link SgeManager#status(Collection)} is the default one.
+ */
+@FunctionalInterface
+public interface JobScheduler {
+
+    /**
+     * Status of several jobs with a single query to the scheduler.
+     *
+     * @param jobIds    Scheduler job ids
+     * @return          Status of each job, one of the {@link SgeManager} status constants
+     * @throws Exception If the scheduler can not be queried
+     */
+    Map<String, String> status(Collection<String> jobIds) throws Exception;
+
+}
@@ -168,9 +168,45 @@ public class  SgeManager {
     }
 
     public static String status(String jobId) throws Exception {
-        String status = UNKNOWN;
+        return status(Collections.singletonList(jobId)).get(jobId);
+    }
 
-        String xml = null;
+    /**
+     * Status of several jobs. Runs "qstat" once for all the jobs, and "qacct" only for the jobs not listed by qstat.
+     *
+     * @param jobIds    Job ids, as given to {@link #queueJob}
+     * @return          Status of each job
+     * @throws Exception If qstat fails
+     */
+    public static Map<String, String> status(Collection<String> jobIds) throws Exception {
+        Map<String, String> statusMap = new HashMap<>();
+        if (jobIds.isEmpty()) {
+            return statusMap;
+        }
+        Set<String> pending = new HashSet<>(jobIds);
+        for (Map.Entry<String, String> entry : qstat().entrySet()) {
+            // SGE job names are "<toolName>_<jobId>"
+            String jobName = entry.getKey();
+            for (int i = jobName.indexOf('_'); i >= 0; i = jobName.indexOf('_', i + 1)) {
+                String jobId = jobName.substring(i + 1);
+                if (pending.remove(jobId)) {
+                    String status = stateDic.get(entry.getValue());
+                    statusMap.put(jobId, status == null ? UNKNOWN : status);
+                    break;
+                }
+            }
+        }
+        for (String jobId : pending) {
+            statusMap.put(jobId, qacct(jobId));
+        }
+        return statusMap;
+    }
+
+    /**
+     * @return State of each job in the queue, by job name
+     */
+    private static Map<String, String> qstat() throws Exception {
+        String xml;
         try {
             Process p = Runtime.getRuntime().exec("qstat -xml");
             StringBuilder stdOut = new StringBuilder();
@@ -182,73 +218,74 @@ public class  SgeManager {
             }
             xml = stdOut.toString();
             br.close();
+            p.waitFor();
         } catch (Exception e) {
             logger.error(e.toString());
-            throw new Exception("ERROR: can't get status for job " + jobId + ".");
+            throw new Exception("ERROR: can't get status for jobs.");
         }
 
-        if (xml != null) {
-            try {
-                DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-                DocumentBuilder db = dbf.newDocumentBuilder();
-                Document doc = db.parse(new InputSource(new StringReader(xml)));
-                doc.getDocumentElement().normalize();
-                NodeList nodeLst = doc.getElementsByTagName("job_list");
-
-                for (int s = 0; s < nodeLst.getLength(); s++) {
-                    Node fstNode = nodeLst.item(s);
-
-                    if (fstNode.getNodeType() == Node.ELEMENT_NODE) {
-                        Element fstElmnt = (Element) fstNode;
-                        NodeList fstNmElmntLst = fstElmnt.getElementsByTagName("JB_name");
-                        Element fstNmElmnt = (Element) fstNmElmntLst.item(0);
-                        NodeList fstNm = fstNmElmnt.getChildNodes();
-                        String jobName = ((Node) fstNm.item(0)).getNodeValue();
-                        if (jobName.contains(jobId)) {
-                            NodeList lstNmElmntLst = fstElmnt.getElementsByTagName("state");
-                            Element lstNmElmnt = (Element) lstNmElmntLst.item(0);
-                            NodeList lstNm = lstNmElmnt.getChildNodes();
-                            status = ((Node) lstNm.item(0)).getNodeValue();
-                        }
-                    }
+        Map<String, String> states = new LinkedHashMap<>();
+        try {
+            DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+            DocumentBuilder db = dbf.newDocumentBuilder();
+            Document doc = db.parse(new InputSource(new StringReader(xml)));
+            doc.getDocumentElement().normalize();
+            NodeList nodeLst = doc.getElementsByTagName("job_list");
+
+            for (int s = 0; s < nodeLst.getLength(); s++) {
+                Node fstNode = nodeLst.item(s);
+
+                if (fstNode.getNodeType() == Node.ELEMENT_NODE) {
+                    Element fstElmnt = (Element) fstNode;
+                    NodeList fstNmElmntLst = fstElmnt.getElementsByTagName("JB_name");
+                    Element fstNmElmnt = (Element) fstNmElmntLst.item(0);
+                    NodeList fstNm = fstNmElmnt.getChildNodes();
+                    String jobName = ((Node) fstNm.item(0)).getNodeValue();
+                    NodeList lstNmElmntLst = fstElmnt.getElementsByTagName("state");
+                    Element lstNmElmnt = (Element) lstNmElmntLst.item(0);
+                    NodeList lstNm = lstNmElmnt.getChildNodes();
+                    states.put(jobName, ((Node) lstNm.item(0)).getNodeValue());
                 }
-            } catch (Exception e) {
-                logger.error(e.toString());
-                throw new Exception("ERROR: can't get status for job " + jobId + ".");
             }
+        } catch (Exception e) {
+            logger.error(e.toString());
+            throw new Exception("ERROR: can't get status for jobs.");
         }
+        return states;
+    }
 
-        if (!status.equals(UNKNOWN)) {
-            status = stateDic.get(status);
-        } else {
-            String command = "qacct -j *" + jobId + "*";
+    /**
+     * @return Status of a job no longer in the queue
+     */
+    private static String qacct(String jobId) throws IOException, InterruptedException {
+        String status = UNKNOWN;
+        String command = "qacct -j *" + jobId + "*";
 //            logger.info(command);
-            Process p = Runtime.getRuntime().exec(command);
-            BufferedReader in = new BufferedReader(new InputStreamReader(p.getInputStream()));
-            String line;
-            String exitStatus = null;
-            String failed = null;
-            while ((line = in.readLine()) != null) {
+        Process p = Runtime.getRuntime().exec(command);
+        BufferedReader in = new BufferedReader(new InputStreamReader(p.getInputStream()));
+        String line;
+        String exitStatus = null;
+        String failed = null;
+        while ((line = in.readLine()) != null) {
 //                logger.info(line);
-                if (line.contains("exit_status")) {
-                    exitStatus = line.replace("exit_status", "").trim();
-                }
-                if (line.contains("failed")) {
-                    failed = line.replace("failed", "").trim();
-                }
+            if (line.contains("exit_status")) {
+                exitStatus = line.replace("exit_status", "").trim();
             }
-            p.waitFor();
-            in.close();
+            if (line.contains("failed")) {
+                failed = line.replace("failed", "").trim();
+            }
+        }
+        p.waitFor();
+        in.close();
 
-            if (exitStatus != null && failed != null) {
-                if (!"0".equals(failed)) {
-                    status = "queue error";
-                }
-                if ("0".equals(exitStatus)) {
-                    status = FINISHED;
-                } else {
-                    status = EXECUTION_ERROR;
-                }
+        if (exitStatus != null && failed != null) {
+            if (!"0".equals(failed)) {
+                status = "queue error";
+            }
+            if ("0".equals(exitStatus)) {
+                status = FINISHED;
+            } else {
+                status = EXECUTION_ERROR;
             }
         }
         return status;
@@ -0,0 +1,261 @@
+/*
+ * Copyright 2015 OpenCB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opencb.opencga.core.common;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Calculates file checksums in a bounded pool of threads, reading the files with large direct buffers.
+ *
+ * Results are cached by path, size, modification time and algorithm, so unchanged files are never read again.
+ * Use {@link #submit} to hash several files in parallel, and {@link #checksum} to wait for the result.
+ *
+ * Checksums to be stored are labeled with {@link #format}, so checksums of different algorithms are never compared.
+ */
+public class ChecksumCalculator {
+
+    public enum Algorithm {
+        /** Same value as "md5sum" */
+        MD5,
+        /** Much cheaper than MD5. Not a cryptographic hash */
+        CRC32
+    }
+
+    public static final int DEFAULT_CACHE_SIZE = 100000;
+    private static final int BUFFER_SIZE = 4 * 1024 * 1024;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final char ALGORITHM_SEPARATOR = ':';
+    private static ChecksumCalculator instance;
+
+    private final ExecutorService executor;
+    private final Map<Key, Future<String>> cache;
+    private final ThreadLocal<ByteBuffer> buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+
+    public ChecksumCalculator(int numThreads, int cacheSize) {
+        AtomicInteger threadCount = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(numThreads, r -> {
+            Thread thread = new Thread(r, "checksum_" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        cache = new LinkedHashMap<Key, Future<String>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Future<String>> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * @return Shared instance, with one thread per core, up to 4.
+     */
+    public static synchronized ChecksumCalculator getInstance() {
+        if (instance == null) {
+            instance = new ChecksumCalculator(Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors())),
+                    DEFAULT_CACHE_SIZE);
+        }
+        return instance;
+    }
+
+    /**
+     * Checksum of a file. Waits if the file is queued or being hashed.
+     *
+     * @param path      File
+     * @param algorithm Algorithm
+     * @return          Checksum, as hexadecimal string
+     * @throws IOException if the file can not be read
+     */
+    public String checksum(Path path, Algorithm algorithm) throws IOException {
+        try {
+            return submit(path, algorithm).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while calculating checksum of " + path);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            } else {
+                throw new IOException("Error calculating checksum of " + path, e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Queues a file to be hashed, unless it is cached or already queued.
+     *
+     * @param path      File
+     * @param algorithm Algorithm
+     * @return          Future checksum
+     * @throws IOException if the file attributes can not be read
+     */
+    public Future<String> submit(Path path, Algorithm algorithm) throws IOException {
+        Path absolutePath = path.toAbsolutePath();
+        BasicFileAttributes attributes = Files.readAttributes(absolutePath, BasicFileAttributes.class);
+        Key key = new Key(absolutePath, attributes.size(), attributes.lastModifiedTime().toMillis(), algorithm);
+        synchronized (cache) {
+            Future<String> future = cache.get(key);
+            if (future == null) {
+                FutureTask<String> task = new FutureTask<>(() -> {
+                    try {
+                        return hash(absolutePath, algorithm);
+                    } catch (IOException | RuntimeException e) {
+                        synchronized (cache) {
+                            cache.remove(key);
+                        }
+                        throw e;
+                    }
+                });
+                cache.put(key, task);
+                executor.execute(task);
+                future = task;
+            }
+            return future;
+        }
+    }
+
+    /**
+     * Labels a checksum with its algorithm, like "crc32:363a3020". MD5 checksums are not labeled, so they keep the
+     * same value than "md5sum" and than the checksums stored before the algorithm was configurable.
+     *
+     * @param algorithm Algorithm of the checksum
+     * @param checksum  Checksum, as hexadecimal string
+     * @return          Labeled checksum
+     */
+    public static String format(Algorithm algorithm, String checksum) {
+        if (algorithm == Algorithm.MD5) {
+            return checksum;
+        }
+        return algorithm.name().toLowerCase() + ALGORITHM_SEPARATOR + checksum;
+    }
+
+    /**
+     * @param checksum  Checksum labeled with {@link #format}
+     * @return          Algorithm of the checksum. MD5 if not labeled, null if the label is unknown or there is no checksum
+     */
+    public static Algorithm getAlgorithm(String checksum) {
+        if (checksum == null) {
+            return null;
+        }
+        int index = checksum.indexOf(ALGORITHM_SEPARATOR);
+        if (index < 0) {
+            return Algorithm.MD5;
+        }
+        try {
+            return Algorithm.valueOf(checksum.substring(0, index).toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param checksum1 Checksum labeled with {@link #format}
+     * @param checksum2 Checksum labeled with {@link #format}
+     * @return          If both checksums were calculated with the same known algorithm, so they can be compared
+     */
+    public static boolean isSameAlgorithm(String checksum1, String checksum2) {
+        Algorithm algorithm = getAlgorithm(checksum1);
+        return algorithm != null && algorithm == getAlgorithm(checksum2);
+    }
+
+    private String hash(Path path, Algorithm algorithm) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            switch (algorithm) {
+                case MD5:
+                    MessageDigest md5;
+                    try {
+                        md5 = MessageDigest.getInstance("MD5");
+                    } catch (NoSuchAlgorithmException e) {
+                        throw new IllegalStateException(e);
+                    }
+                    read(channel, md5::update);
+                    return toHex(md5.digest());
+                case CRC32:
+                    CRC32 crc32 = new CRC32();
+                    read(channel, crc32::update);
+                    return String.format("%08x", crc32.getValue());
+                default:
+                    throw new IllegalArgumentException("Unknown algorithm " + algorithm);
+            }
+        }
+    }
+
+    private void read(FileChannel channel, Consumer<ByteBuffer> consumer) throws IOException {
+        ByteBuffer buffer = buffers.get();
+        buffer.clear();
+        while (channel.read(buffer) != -1) {
+            buffer.flip();
+            consumer.accept(buffer);
+            buffer.clear();
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xF];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(chars);
+    }
+
+    private static class Key {
+        private final Path path;
+        private final long size;
+        private final long lastModified;
+        private final Algorithm algorithm;
+
+        Key(Path path, long size, long lastModified, Algorithm algorithm) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.algorithm = algorithm;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return size == key.size && lastModified == key.lastModified && algorithm == key.algorithm && path.equals(key.path);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(path, size, lastModified, algorithm);
+        }
+    }
+}
@@ -17,6 +17,8 @@
 package org.opencb.opencga.core.common;
 
 import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
 import java.nio.charset.Charset;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
@@ -71,51 +73,192 @@ public class IOUtils {
         return lines;
     }
 
+    /**
+     * Lazy stream of the lines from "offsetLine" to "numLines", excluded. Seeks to the closest indexed line
+     * with a {@link LineIndex}, so only the lines after it are read.
+     *
+     * @param path          File to read
+     * @param offsetLine    First line
+     * @param numLines      Last line, excluded. Negative for no limit
+     * @return              Lines, separated by "\n"
+     * @throws IOException  If the file can not be opened
+     */
     public static InputStream headOffset(Path path, int offsetLine, int numLines) throws IOException {
-        BufferedReader br = Files.newBufferedReader(path, Charset.defaultCharset());
-        StringBuilder sb = new StringBuilder();
-
-        int cont = 0;
-        String line;
-        while ((line = br.readLine()) != null) {
-            if (cont >= offsetLine) {
-                if (cont < numLines) {
-                    sb.append(line + "\n");
-                } else {
-                    break;
-                }
-            }
-            cont++;
+        offsetLine = Math.max(0, offsetLine);
+        LineIndex index = LineIndex.get(path);
+        long[] seek = index.seek(offsetLine);
+        SeekableByteChannel channel = Files.newByteChannel(path);
+        try {
+            channel.position(seek[1]);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
         }
-        br.close();
-
-        InputStream inputStream = new ByteArrayInputStream(sb.toString().getBytes());
-        return inputStream;
+        return new LineRangeInputStream(Channels.newInputStream(channel), index, seek[0], seek[1], offsetLine,
+                numLines < 0 ? Long.MAX_VALUE : numLines);
     }
 
+    /**
+     * Lazy stream of the lines matching a pattern. The file is read as the stream is consumed, and not read
+     * any more after the first match if not "multi".
+     *
+     * @param path          File to read
+     * @param pattern       Regular expression to match the whole line
+     * @param ignoreCase    Case insensitive pattern
+     * @param multi         Return all the matching lines, or only the first one
+     * @return              Matching lines, separated by "\n"
+     * @throws IOException  If the file can not be opened
+     */
     public static InputStream grepFile(Path path, String pattern, boolean ignoreCase, boolean multi) throws IOException {
-        BufferedReader br = Files.newBufferedReader(path, Charset.defaultCharset());
-        StringBuilder sb = new StringBuilder();
         Pattern pat;
         if (ignoreCase) {
             pat = Pattern.compile(pattern, Pattern.CASE_INSENSITIVE);
         } else {
             pat = Pattern.compile(pattern);
         }
-        String line;
-        while ((line = br.readLine()) != null) {
-            if (pat.matcher(line).matches()) {
-                sb.append(line + "\n");
-                if (!multi) {
-                    break;
+        return new GrepInputStream(Files.newBufferedReader(path, Charset.defaultCharset()), pat, multi);
+    }
+
+    private static class LineRangeInputStream extends InputStream {
+        private final InputStream in;
+        private final LineIndex index;
+        private final long startLine;
+        private final long endLine;
+        private final byte[] buffer = new byte[64 * 1024];
+        private int pos = 0;
+        private int limit = 0;
+        private long line;
+        private long offset;
+        private boolean lineStart = true;
+        private boolean done = false;
+
+        LineRangeInputStream(InputStream in, LineIndex index, long line, long offset, long startLine, long endLine) {
+            this.in = in;
+            this.index = index;
+            this.line = line;
+            this.offset = offset;
+            this.startLine = startLine;
+            this.endLine = endLine;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            int n = 0;
+            while (n < len && !done) {
+                if (line >= endLine) {
+                    done = true;
+                } else if (pos == limit && !fill()) {
+                    if (!lineStart && line >= startLine) {
+                        // Last line without line break
+                        b[off + n++] = '\n';
+                    }
+                    done = true;
+                } else {
+                    boolean copy = line >= startLine;
+                    int end = copy ? pos + Math.min(len - n, limit - pos) : limit;
+                    int length = end - pos;
+                    for (int i = pos; i < end; i++) {
+                        if (buffer[i] == '\n') {
+                            length = i + 1 - pos;
+                            break;
+                        }
+                    }
+                    if (copy) {
+                        System.arraycopy(buffer, pos, b, off + n, length);
+                        n += length;
+                    }
+                    pos += length;
+                    offset += length;
+                    lineStart = buffer[pos - 1] == '\n';
+                    if (lineStart) {
+                        line++;
+                        index.add(line, offset);
+                    }
                 }
             }
+            return n == 0 ? -1 : n;
+        }
+
+        private boolean fill() throws IOException {
+            pos = 0;
+            limit = Math.max(0, in.read(buffer));
+            return limit > 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
         }
-        br.close();
-        InputStream inputStream = new ByteArrayInputStream(sb.toString().getBytes());
-        return inputStream;
     }
 
+    private static class GrepInputStream extends InputStream {
+        private final BufferedReader reader;
+        private final Pattern pattern;
+        private final boolean multi;
+        private byte[] current = new byte[0];
+        private int pos = 0;
+        private boolean done = false;
+
+        GrepInputStream(BufferedReader reader, Pattern pattern, boolean multi) {
+            this.reader = reader;
+            this.pattern = pattern;
+            this.multi = multi;
+        }
+
+        private boolean next() throws IOException {
+            String line;
+            while (!done && (line = reader.readLine()) != null) {
+                if (pattern.matcher(line).matches()) {
+                    current = (line + "\n").getBytes();
+                    pos = 0;
+                    done = !multi;
+                    return true;
+                }
+            }
+            done = true;
+            return false;
+        }
+
+        @Override
+        public int read() throws IOException {
+            while (pos == current.length) {
+                if (!next()) {
+                    return -1;
+                }
+            }
+            return current[pos++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (pos == current.length) {
+                if (!next()) {
+                    return -1;
+                }
+            }
+            int n = Math.min(len, current.length - pos);
+            System.arraycopy(current, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+    }
 
     public static void prependString(Path filePath, String text) throws IOException {
         Path tempPath = Paths.get(filePath + ".prepend.tmp");
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2015 OpenCB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opencb.opencga.core.common;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Sparse index of the byte offset of every {@link #INTERVAL} lines of a file.
+ *
+ * The index is filled while the file is read, so seeking to a line only reads from the closest known line before it.
+ * Indexes are kept in memory for the last {@link #CACHE_SIZE} files, and discarded if the file size or the
+ * modification time change.
+ */
+class LineIndex {
+
+    static final int INTERVAL = 10000;
+    static final int CACHE_SIZE = 64;
+
+    private static final Map<Path, LineIndex> CACHE = new LinkedHashMap<Path, LineIndex>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, LineIndex> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    private final long size;
+    private final long lastModified;
+    private long[] offsets = new long[16];  // offsets[i] : offset of the line i * INTERVAL
+    private int numOffsets = 1;
+
+    private LineIndex(long size, long lastModified) {
+        this.size = size;
+        this.lastModified = lastModified;
+    }
+
+    static LineIndex get(Path path) throws IOException {
+        path = path.toAbsolutePath();
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        synchronized (CACHE) {
+            LineIndex index = CACHE.get(path);
+            if (index == null || index.size != attributes.size() || index.lastModified != lastModified) {
+                index = new LineIndex(attributes.size(), lastModified);
+                CACHE.put(path, index);
+            }
+            return index;
+        }
+    }
+
+    /**
+     * @param line  Line to seek
+     * @return      Closest indexed line before the given line, and its offset
+     */
+    synchronized long[] seek(long line) {
+        int i = (int) Math.min(line / INTERVAL, numOffsets - 1);
+        return new long[]{(long) i * INTERVAL, offsets[i]};
+    }
+
+    /**
+     * Records the offset of a line, if it is the next line to index.
+     *
+     * @param line      Line number
+     * @param offset    Offset of the first byte of the line
+     */
+    synchronized void add(long line, long offset) {
+        if (line == (long) numOffsets * INTERVAL) {
+            if (numOffsets == offsets.length) {
+                offsets = Arrays.copyOf(offsets, offsets.length * 2);
+            }
+            offsets[numOffsets++] = offset;
+        }
+    }
+
+}
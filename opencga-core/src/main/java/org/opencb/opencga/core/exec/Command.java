@@ -21,8 +21,7 @@ import org.opencb.opencga.core.common.ListUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
-import java.io.InputStream;
+import java.nio.file.Path;
 import java.util.List;
 
 public class Command extends RunnableProcess {
@@ -34,11 +33,20 @@ public class Command extends RunnableProcess {
 
     private String commandLine;
     private List<String> environment;
-    private Process proc;
+    private volatile Process proc;
+
+    /**
+     * Default maximum number of bytes retained in memory for each of stdout and stderr.
+     */
+    public static final int DEFAULT_BUFFER_LIMIT = 10 * 1024 * 1024;
 
     protected static Logger logger = LoggerFactory.getLogger(Command.class);
-    private StringBuffer outputBuffer = new StringBuffer();
-    private StringBuffer errorBuffer = new StringBuffer();
+    private OutputCapture outputBuffer;
+    private OutputCapture errorBuffer;
+    private int bufferLimit = DEFAULT_BUFFER_LIMIT;
+    private Path outputFile;
+    private Path errorFile;
+    private boolean printOutput = true;
     private final String[] cmdArray;
 
     public Command(String commandLine) {
@@ -71,32 +79,41 @@ public class Command extends RunnableProcess {
                 proc = Runtime.getRuntime().exec(cmdArray);
             }
 
-            InputStream is = proc.getInputStream();
-            // Thread out = readOutputStream(is);
-            Thread readOutputStreamThread = readOutputStream(is);
-            InputStream es = proc.getErrorStream();
-            // Thread err = readErrorStream(es);
-            Thread readErrorStreamThread = readErrorStream(es);
+            outputBuffer = new OutputCapture(proc.getInputStream(), bufferLimit, outputFile, printOutput ? System.err : null);
+            Thread readOutputStreamThread = startCapture(outputBuffer, "stdout_reader");
+            errorBuffer = new OutputCapture(proc.getErrorStream(), bufferLimit, errorFile, printOutput ? System.err : null);
+            Thread readErrorStreamThread = startCapture(errorBuffer, "stderr_reader");
 
             proc.waitFor();
             readOutputStreamThread.join();
             readErrorStreamThread.join();
+            if (outputBuffer.getException() != null) {
+                exception = outputBuffer.getException().toString();
+            } else if (errorBuffer.getException() != null) {
+                exception = errorBuffer.getException().toString();
+            }
+            if (outputBuffer.isTruncated() || errorBuffer.isTruncated()) {
+                logger.debug("Command output truncated to the last {} bytes. stdout: {} bytes, stderr: {} bytes", bufferLimit,
+                        outputBuffer.getTotalBytes(), errorBuffer.getTotalBytes());
+            }
             endTime();
 
             setExitValue(proc.exitValue());
             if (proc.exitValue() != 0) {
-                status = Status.ERROR;
+                if (status != Status.KILLED && status != Status.TIMEOUT) {
+                    status = Status.ERROR;
+                }
                 // output = IOUtils.toString(proc.getInputStream());
                 // error = IOUtils.toString(proc.getErrorStream());
-                output = outputBuffer.toString();
-                error = errorBuffer.toString();
+                output = outputBuffer.getOutput();
+                error = errorBuffer.getOutput();
             }
             if (status != Status.KILLED && status != Status.TIMEOUT && status != Status.ERROR) {
                 status = Status.DONE;
                 // output = IOUtils.toString(proc.getInputStream());
                 // error = IOUtils.toString(proc.getErrorStream());
-                output = outputBuffer.toString();
-                error = errorBuffer.toString();
+                output = outputBuffer.getOutput();
+                error = errorBuffer.getOutput();
             }
 
         } catch (Exception e) {
@@ -109,83 +126,44 @@ public class Command extends RunnableProcess {
 
     @Override
     public void destroy() {
-        proc.destroy();
+        if (proc != null) {
+            proc.destroy();
+        }
     }
 
-    private Thread readOutputStream(InputStream ins) throws IOException {
-        final InputStream in = ins;
-
-        Thread T = new Thread("stdout_reader") {
-            public void run() {
-                try {
-                    int bytesRead = 0;
-                    int bufferLength = 2048;
-                    byte[] buffer = new byte[bufferLength];
-
-                    while (bytesRead != -1) {
-                        // int x=in.available();
-                        bufferLength = in.available();
-                        bufferLength = Math.max(bufferLength, 1);
-                        // if (x<=0)
-                        // continue ;
-
-                        buffer = new byte[bufferLength];
-                        bytesRead = in.read(buffer, 0, bufferLength);
-                        if (logger != null) {
-                            System.err.print(new String(buffer));
-                        }
-                        outputBuffer.append(new String(buffer));
-                        Thread.sleep(500);
-                        logger.debug("stdout - Sleep (last bytesRead = " + bytesRead + ")");
-                    }
-                    logger.debug("ReadOutputStream - Exit while");
-                } catch (Exception ex) {
-                    ex.printStackTrace();
-                    exception = ex.toString();
-                }
-            }
-        };
-        T.start();
-        return T;
+    private Thread startCapture(OutputCapture capture, String name) {
+        Thread thread = new Thread(capture, name);
+        thread.start();
+        return thread;
     }
 
-    private Thread readErrorStream(InputStream ins) throws IOException {
-        final InputStream in = ins;
-
-        Thread T = new Thread("stderr_reader") {
-            public void run() {
-
-                try {
-                    int bytesRead = 0;
-                    int bufferLength = 2048;
-                    byte[] buffer = new byte[bufferLength];
-
-                    while (bytesRead != -1) {
-                        // int x=in.available();
-                        // if (x<=0)
-                        // continue ;
-
-                        bufferLength = in.available();
-                        bufferLength = Math.max(bufferLength, 1);
-
-                        buffer = new byte[bufferLength];
-                        bytesRead = in.read(buffer, 0, bufferLength);
-                        if (logger != null) {
-                            System.err.print(new String(buffer));
-                        }
-                        errorBuffer.append(new String(buffer));
-                        Thread.sleep(500);
-                        logger.debug("stderr - Sleep  (last bytesRead = " + bytesRead + ")");
-                    }
-                    logger.debug("ReadErrorStream - Exit while");
-                } catch (Exception ex) {
-                    ex.printStackTrace();
-                    exception = ex.toString();
-                }
-            }
-        };
-        T.start();
-        return T;
+    /**
+     * @param bufferLimit Maximum number of bytes of stdout and stderr retained in memory. Only the last bytes are
+     *                    kept in the output and error.
+     */
+    public void setBufferLimit(int bufferLimit) {
+        this.bufferLimit = bufferLimit;
+    }
+
+    /**
+     * @param outputFile File to write the full stdout, regardless of the buffer limit
+     */
+    public void setOutputFile(Path outputFile) {
+        this.outputFile = outputFile;
+    }
+
+    /**
+     * @param errorFile File to write the full stderr, regardless of the buffer limit
+     */
+    public void setErrorFile(Path errorFile) {
+        this.errorFile = errorFile;
+    }
+
+    /**
+     * @param printOutput Echo stdout and stderr to System.err while running. Enabled by default
+     */
+    public void setPrintOutput(boolean printOutput) {
+        this.printOutput = printOutput;
     }
 
     /**
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2015 OpenCB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opencb.opencga.core.exec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Captures a process stream. Reads with blocking reads into a reusable buffer, so each chunk of output is handled as
+ * soon as it is available, without polling.
+ *
+ * Only the last "limit" bytes are retained in memory, in a ring buffer that grows on demand up to the limit.
+ * Optionally, the full stream is copied to a file and echoed to a PrintStream.
+ */
+public class OutputCapture implements Runnable {
+
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+
+    private final InputStream in;
+    private final int limit;
+    private final Path file;
+    private final PrintStream echo;
+
+    private byte[] ring = new byte[0];
+    private int pos = 0;            // next position to write in the ring
+    private boolean wrapped = false;
+    private long totalBytes = 0;
+    private IOException exception;
+
+    /**
+     * @param in    Stream to capture
+     * @param limit Maximum number of bytes to retain in memory
+     * @param file  File to copy the full stream. May be null
+     * @param echo  Stream to echo the output. May be null
+     */
+    public OutputCapture(InputStream in, int limit, Path file, PrintStream echo) {
+        this.in = in;
+        this.limit = Math.max(0, limit);
+        this.file = file;
+        this.echo = echo;
+    }
+
+    @Override
+    public void run() {
+        OutputStream out = null;
+        if (file != null) {
+            try {
+                out = Files.newOutputStream(file);
+            } catch (IOException e) {
+                exception = e;
+            }
+        }
+        byte[] buffer = new byte[READ_BUFFER_SIZE];
+        try {
+            int bytesRead;
+            while ((bytesRead = in.read(buffer)) != -1) {
+                retain(buffer, bytesRead);
+                if (out != null) {
+                    try {
+                        out.write(buffer, 0, bytesRead);
+                    } catch (IOException e) {
+                        // Keep reading the stream, or the process could block on a full pipe
+                        exception = e;
+                        out = close(out);
+                    }
+                }
+                if (echo != null) {
+                    echo.write(buffer, 0, bytesRead);
+                }
+            }
+        } catch (IOException e) {
+            exception = e;
+        } finally {
+            close(out);
+        }
+    }
+
+    private OutputStream close(OutputStream out) {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                exception = e;
+            }
+        }
+        return null;
+    }
+
+    private synchronized void retain(byte[] buffer, int length) {
+        totalBytes += length;
+        if (limit == 0 || length == 0) {
+            return;
+        }
+        int offset = 0;
+        if (length >= limit) {
+            // Only the last bytes fit in the ring
+            offset = length - limit;
+            length = limit;
+        }
+        if (!wrapped && pos + length >= ring.length && ring.length < limit) {
+            byte[] newRing = new byte[Math.min(limit, Math.max(ring.length * 2, pos + length + 1))];
+            System.arraycopy(ring, 0, newRing, 0, pos);
+            ring = newRing;
+        }
+        int first = Math.min(length, ring.length - pos);
+        System.arraycopy(buffer, offset, ring, pos, first);
+        if (first < length) {
+            System.arraycopy(buffer, offset + first, ring, 0, length - first);
+            wrapped = true;
+        }
+        pos = (pos + length) % ring.length;
+        if (pos == 0) {
+            wrapped = true;
+        }
+    }
+
+    /**
+     * @return The retained output, the last "limit" bytes of the stream, decoded as UTF-8. If the output was truncated,
+     * it starts at the first complete character.
+     */
+    public synchronized String getOutput() {
+        if (!wrapped) {
+            return new String(ring, 0, pos, StandardCharsets.UTF_8);
+        }
+        byte[] output = new byte[ring.length];
+        System.arraycopy(ring, pos, output, 0, ring.length - pos);
+        System.arraycopy(ring, 0, output, ring.length - pos, pos);
+        int start = 0;
+        // Skip the continuation bytes of a character split by the truncation. UTF-8 characters have up to 4 bytes
+        while (start < 3 && start < output.length && (output[start] & 0xC0) == 0x80) {
+            start++;
+        }
+        return new String(output, start, output.length - start, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return Total number of bytes read, including the ones not retained.
+     */
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * @return If some bytes were discarded because of the limit.
+     */
+    public synchronized boolean isTruncated() {
+        return totalBytes > ring.length;
+    }
+
+    public IOException getException() {
+        return exception;
+    }
+}
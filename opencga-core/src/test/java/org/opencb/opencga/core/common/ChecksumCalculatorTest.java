@@ -0,0 +1,89 @@
+package org.opencb.opencga.core.common;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class ChecksumCalculatorTest {
+
+    private ChecksumCalculator calculator;
+    private Path dir;
+
+    @Before
+    public void before() throws IOException {
+        calculator = new ChecksumCalculator(2, 100);
+        dir = Files.createTempDirectory("ChecksumCalculatorTest");
+    }
+
+    @After
+    public void after() throws IOException {
+        IOUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void testChecksum() throws Exception {
+        Path file = Files.write(dir.resolve("hello.txt"), "hello\n".getBytes());
+        assertEquals("b1946ac92492d2347c6235b4d2611184", calculator.checksum(file, ChecksumCalculator.Algorithm.MD5));
+        assertEquals("363a3020", calculator.checksum(file, ChecksumCalculator.Algorithm.CRC32));
+
+        Path empty = Files.write(dir.resolve("empty.txt"), new byte[0]);
+        assertEquals("d41d8cd98f00b204e9800998ecf8427e", calculator.checksum(empty, ChecksumCalculator.Algorithm.MD5));
+    }
+
+    @Test
+    public void testCache() throws Exception {
+        Path file = Files.write(dir.resolve("file.txt"), "hello\n".getBytes());
+        Future<String> future = calculator.submit(file, ChecksumCalculator.Algorithm.MD5);
+        assertSame(future, calculator.submit(file, ChecksumCalculator.Algorithm.MD5));
+
+        // Modified file
+        Files.write(file, "bye\n".getBytes());
+        Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() + 10000));
+        assertNotSame(future, calculator.submit(file, ChecksumCalculator.Algorithm.MD5));
+        assertNotEquals(future.get(), calculator.checksum(file, ChecksumCalculator.Algorithm.MD5));
+    }
+
+    @Test
+    public void testParallel() throws Exception {
+        List<Path> files = new ArrayList<>();
+        List<Future<String>> futures = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            Path file = Files.write(dir.resolve("file_" + i + ".txt"), ("content " + i).getBytes());
+            files.add(file);
+            futures.add(calculator.submit(file, ChecksumCalculator.Algorithm.MD5));
+        }
+        for (int i = 0; i < files.size(); i++) {
+            assertEquals(futures.get(i).get(), calculator.checksum(files.get(i), ChecksumCalculator.Algorithm.MD5));
+        }
+    }
+
+    @Test
+    public void testFormat() throws Exception {
+        assertEquals("b1946ac92492d2347c6235b4d2611184",
+                ChecksumCalculator.format(ChecksumCalculator.Algorithm.MD5, "b1946ac92492d2347c6235b4d2611184"));
+        assertEquals("crc32:363a3020", ChecksumCalculator.format(ChecksumCalculator.Algorithm.CRC32, "363a3020"));
+
+        assertEquals(ChecksumCalculator.Algorithm.MD5, ChecksumCalculator.getAlgorithm("b1946ac92492d2347c6235b4d2611184"));
+        assertEquals(ChecksumCalculator.Algorithm.CRC32, ChecksumCalculator.getAlgorithm("crc32:363a3020"));
+        assertNull(ChecksumCalculator.getAlgorithm("xxhash:363a3020"));
+
+        assertTrue(ChecksumCalculator.isSameAlgorithm("crc32:363a3020", "crc32:00000000"));
+        assertFalse(ChecksumCalculator.isSameAlgorithm("b1946ac92492d2347c6235b4d2611184", "crc32:363a3020"));
+        assertFalse(ChecksumCalculator.isSameAlgorithm("xxhash:363a3020", "xxhash:363a3020"));
+    }
+
+    @Test(expected = IOException.class)
+    public void testMissingFile() throws Exception {
+        calculator.checksum(dir.resolve("missing.txt"), ChecksumCalculator.Algorithm.MD5);
+    }
+}
@@ -19,9 +19,17 @@ package org.opencb.opencga.core.common;
 import org.junit.Test;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
 
 public class IOUtilsTest {
 
@@ -65,4 +73,62 @@ public class IOUtilsTest {
         in.close();
 
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testHeadOffsetIndexed() throws Exception {
+        Path file = Files.createTempFile("IOUtilsTest", ".txt");
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < LineIndex.INTERVAL * 3 + 5; i++) {
+            lines.add("line_" + i);
+        }
+        Files.write(file, lines);
+
+        // First read fills the index. Second read seeks to the closest indexed line
+        for (int i = 0; i < 2; i++) {
+            int offset = LineIndex.INTERVAL * 2 + 3;
+            assertEquals(lines.subList(offset, offset + 4), readLines(IOUtils.headOffset(file, offset, offset + 4)));
+        }
+        assertEquals(lines.subList(LineIndex.INTERVAL * 3, lines.size()),
+                readLines(IOUtils.headOffset(file, LineIndex.INTERVAL * 3, -1)));
+        assertEquals(lines.subList(0, 2), readLines(IOUtils.headOffset(file, 0, 2)));
+        assertEquals(0, readLines(IOUtils.headOffset(file, lines.size(), lines.size() + 10)).size());
+        Files.delete(file);
+    }
+
+    @Test
+    public void testHeadOffsetNoFinalLineBreak() throws Exception {
+        Path file = Files.createTempFile("IOUtilsTest", ".txt");
+        Files.write(file, "a\nb\nc".getBytes());
+        InputStream is = IOUtils.headOffset(file, 1, 10);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int b;
+        while ((b = is.read()) != -1) {
+            out.write(b);
+        }
+        is.close();
+        assertEquals("b\nc\n", out.toString());
+        Files.delete(file);
+    }
+
+    @Test
+    public void testGrepFileFirstMatch() throws Exception {
+        Path file = Files.createTempFile("IOUtilsTest", ".txt");
+        Files.write(file, Arrays.asList("#header", "a1", "b1", "A2", "b2"));
+
+        assertEquals(Arrays.asList("a1", "A2"), readLines(IOUtils.grepFile(file, "a.*", true, true)));
+        assertEquals(Arrays.asList("a1"), readLines(IOUtils.grepFile(file, "a.*", true, false)));
+        assertEquals(Arrays.asList(), readLines(IOUtils.grepFile(file, "c.*", false, true)));
+        Files.delete(file);
+    }
+
+    private static List<String> readLines(InputStream is) throws Exception {
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(is))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+}
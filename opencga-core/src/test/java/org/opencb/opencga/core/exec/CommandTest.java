@@ -0,0 +1,86 @@
+package org.opencb.opencga.core.exec;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CommandTest {
+
+    private static final int MB = 1024 * 1024;
+
+    @Test
+    public void testOutputAndError() throws Exception {
+        Command command = new Command(new String[]{"sh", "-c", "echo out; echo err 1>&2"}, null);
+        command.setPrintOutput(false);
+        command.run();
+
+        assertEquals(RunnableProcess.Status.DONE, command.getStatus());
+        assertEquals("out\n", command.getOutput());
+        assertEquals("err\n", command.getError());
+    }
+
+    @Test
+    public void testBufferLimitAndOutputFile() throws Exception {
+        Path outputFile = Files.createTempFile("command_test", ".out.txt");
+        Command command = new Command(new String[]{"sh", "-c", "seq 1 100000"}, null);
+        command.setPrintOutput(false);
+        command.setBufferLimit(100);
+        command.setOutputFile(outputFile);
+        command.run();
+
+        String fullOutput = new String(Files.readAllBytes(outputFile));
+        assertTrue(fullOutput.startsWith("1\n2\n3\n"));
+        assertTrue(fullOutput.endsWith("99999\n100000\n"));
+        assertEquals(100, command.getOutput().length());
+        assertTrue(fullOutput.endsWith(command.getOutput()));
+        Files.delete(outputFile);
+    }
+
+    @Test
+    public void testTruncatedMultiByteOutput() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            sb.append("\u00e9");
+        }
+        // 200 bytes. The last 51 bytes start in the middle of a character
+        OutputCapture capture = new OutputCapture(new ByteArrayInputStream(sb.toString().getBytes(StandardCharsets.UTF_8)),
+                51, null, null);
+        capture.run();
+
+        assertTrue(capture.isTruncated());
+        assertEquals(sb.substring(0, 25), capture.getOutput());
+    }
+
+    /**
+     * Wall-clock overhead of capturing 100MB of stdout, compared with the same process writing to /dev/null.
+     */
+    @Test
+    @Ignore("Benchmark")
+    public void benchmarkOutputCapture() throws Exception {
+        String[] cmdArray = {"head", "-c", String.valueOf(100 * MB), "/dev/zero"};
+
+        long start = System.currentTimeMillis();
+        Process process = new ProcessBuilder(cmdArray).redirectOutput(new File("/dev/null")).start();
+        process.waitFor();
+        long baseline = System.currentTimeMillis() - start;
+
+        Command command = new Command(cmdArray, null);
+        command.setPrintOutput(false);
+        start = System.currentTimeMillis();
+        command.run();
+        long captured = System.currentTimeMillis() - start;
+
+        System.out.println("100MB of stdout. Without capture: " + baseline + "ms, captured: " + captured + "ms, overhead: "
+                + (captured - baseline) + "ms");
+        assertEquals(RunnableProcess.Status.DONE, command.getStatus());
+        assertEquals(Command.DEFAULT_BUFFER_LIMIT, command.getOutput().length());
+    }
+}
@@ -40,6 +40,7 @@ import org.opencb.opencga.core.exception.VersionException;
 import org.opencb.opencga.storage.core.StorageManagerException;
 import org.opencb.opencga.storage.core.alignment.AlignmentStorageManager;
 import org.opencb.opencga.storage.core.alignment.adaptors.AlignmentDBAdaptor;
+import org.opencb.opencga.storage.core.utils.LatencyStats;
 import org.opencb.opencga.storage.core.variant.adaptors.VariantDBAdaptor;
 
 import javax.servlet.http.HttpServletRequest;
@@ -59,6 +60,8 @@ import java.util.*;
 @Api(value = "Files", position = 4, description = "Methods for working with 'files' endpoint")
 public class FileWSServer extends OpenCGAWSServer {
 
+    // Latency of the alignment queries of the fetch, including the catalog lookups
+    private static final LatencyStats alignmentFetchLatency = new LatencyStats("files/fetch alignments");
 
     public FileWSServer(@PathParam("version") String version, @Context UriInfo uriInfo,
                         @Context HttpServletRequest httpServletRequest)
@@ -316,7 +319,7 @@ public class FileWSServer extends OpenCGAWSServer {
             int fileId = catalogManager.getFileId(fileIdStr);
             DataInputStream stream = catalogManager.downloadFile(fileId, start, limit, sessionId);
 //             String content = org.apache.commons.io.IOUtils.toString(stream);
-            return createOkResponse(stream, MediaType.TEXT_PLAIN_TYPE);
+            return createStreamingResponse(stream, MediaType.TEXT_PLAIN_TYPE);
         } catch (Exception e) {
             return createErrorResponse(e);
         }
@@ -334,7 +337,7 @@ public class FileWSServer extends OpenCGAWSServer {
             int fileId = catalogManager.getFileId(fileIdStr);
             DataInputStream stream = catalogManager.grepFile(fileId, pattern, ignoreCase, multi, sessionId);
 //             String content = org.apache.commons.io.IOUtils.toString(stream);
-            return createOkResponse(stream, MediaType.TEXT_PLAIN_TYPE);
+            return createStreamingResponse(stream, MediaType.TEXT_PLAIN_TYPE);
         } catch (Exception e) {
             return createErrorResponse(e);
         }
@@ -539,6 +542,7 @@ public class FileWSServer extends OpenCGAWSServer {
         }
 
         for (String fileId : splitFileId) {
+            long startTime = System.currentTimeMillis();
             int fileIdNum;
             File file;
             URI fileUri;
@@ -619,6 +623,8 @@ public class FileWSServer extends OpenCGAWSServer {
                         alignmentsByRegion = dbAdaptor.getAllAlignmentsByRegion(regions, queryOptions);
                     }
                     result = alignmentsByRegion;
+                    alignmentFetchLatency.add(System.currentTimeMillis() - startTime);
+                    logger.debug("{}", alignmentFetchLatency);
                     break;
                 }
 
@@ -648,27 +654,31 @@ public class FileWSServer extends OpenCGAWSServer {
                         }
                     }
 
-                    VariantDBAdaptor dbAdaptor;
+                    QueryResult queryResult;
+                    VariantDBAdaptor dbAdaptor = null;
                     try {
                         dbAdaptor = storageManagerFactory.getVariantStorageManager(storageEngine).getDBAdaptor(dbName);
 //                        dbAdaptor = new CatalogVariantDBAdaptor(catalogManager, dbAdaptor);
+                        if (histogram) {
+                            queryOptions.put("interval", interval);
+                            queryResult = dbAdaptor.get(query, queryOptions);
+//                        } else if (variantSource) {
+//                            queryOptions.put("fileId", Integer.toString(fileIdNum));
+//                            queryResult = dbAdaptor.getVariantSourceDBAdaptor().getAllSources(queryOptions);
+                        } else if (!groupBy.isEmpty()) {
+                            queryResult = dbAdaptor.groupBy(query, groupBy, queryOptions);
+                        } else {
+                            //With merge = true, will return only one result.
+//                            queryOptions.put("merge", true);
+//                            queryResult = dbAdaptor.getAllVariantsByRegionList(regions, queryOptions).get(0);
+                            queryResult = dbAdaptor.get(query, queryOptions);
+                        }
                     } catch (ClassNotFoundException | IllegalAccessException | InstantiationException | StorageManagerException e) {
                         return createErrorResponse(e);
-                    }
-                    QueryResult queryResult;
-                    if (histogram) {
-                        queryOptions.put("interval", interval);
-                        queryResult = dbAdaptor.get(query, queryOptions);
-//                    } else if (variantSource) {
-//                        queryOptions.put("fileId", Integer.toString(fileIdNum));
-//                        queryResult = dbAdaptor.getVariantSourceDBAdaptor().getAllSources(queryOptions);
-                    } else if (!groupBy.isEmpty()) {
-                        queryResult = dbAdaptor.groupBy(query, groupBy, queryOptions);
-                    } else {
-                        //With merge = true, will return only one result.
-//                        queryOptions.put("merge", true);
-//                        queryResult = dbAdaptor.getAllVariantsByRegionList(regions, queryOptions).get(0);
-                        queryResult = dbAdaptor.get(query, queryOptions);
+                    } finally {
+                        if (dbAdaptor != null) {
+                            dbAdaptor.close();
+                        }
                     }
                     result = queryResult;
                     if (warningMsg != null) {
@@ -379,6 +379,28 @@ public class OpenCGAWSServer {
         return buildResponse(Response.ok(o1, o2).header("content-disposition", "attachment; filename =" + fileName));
     }
 
+    /**
+     * Streams the content of a lazy InputStream. The first bytes are flushed as soon as they are read.
+     * The stream is closed after writing.
+     */
+    protected Response createStreamingResponse(InputStream inputStream, MediaType mediaType) {
+        StreamingOutput streamingOutput = output -> {
+            try (InputStream in = inputStream) {
+                byte[] buffer = new byte[64 * 1024];
+                boolean first = true;
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    output.write(buffer, 0, read);
+                    if (first) {
+                        output.flush();
+                        first = false;
+                    }
+                }
+            }
+        };
+        return createOkResponse(streamingOutput, mediaType);
+    }
+
 
     protected Response createJsonResponse(QueryResponse queryResponse) {
         try {
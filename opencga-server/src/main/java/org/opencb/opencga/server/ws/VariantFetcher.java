@@ -91,9 +91,6 @@ public class VariantFetcher {
 
 
         logger.debug("queryVariants = {}", query.toJson());
-        VariantDBAdaptor dbAdaptor = storageManagerFactory.getVariantStorageManager(storageEngine).getDBAdaptor(dbName);
-        dbAdaptor.setStudyConfigurationManager(new CatalogStudyConfigurationManager(catalogManager, wsServer.sessionId));
-
         String[] regions;
         if (regionStr != null) {
             regions = regionStr.split(",");
@@ -101,15 +98,22 @@ public class VariantFetcher {
             regions = new String[0];
         }
 
-        if (histogram) {
-            if (regions.length != 1) {
-                throw new IllegalArgumentException("Unable to calculate histogram with " + regions.length + " regions.");
+        // Closing the adaptor releases the connection to the shared pool
+        VariantDBAdaptor dbAdaptor = storageManagerFactory.getVariantStorageManager(storageEngine).getDBAdaptor(dbName);
+        try {
+            dbAdaptor.setStudyConfigurationManager(new CatalogStudyConfigurationManager(catalogManager, wsServer.sessionId));
+            if (histogram) {
+                if (regions.length != 1) {
+                    throw new IllegalArgumentException("Unable to calculate histogram with " + regions.length + " regions.");
+                }
+                result = dbAdaptor.getFrequency(query, Region.parseRegion(regions[0]), interval);
+            } else if (!groupBy.isEmpty()) {
+                result = dbAdaptor.groupBy(query, groupBy, queryOptions);
+            } else {
+                result = dbAdaptor.get(query, queryOptions);
             }
-            result = dbAdaptor.getFrequency(query, Region.parseRegion(regions[0]), interval);
-        } else if (!groupBy.isEmpty()) {
-            result = dbAdaptor.groupBy(query, groupBy, queryOptions);
-        } else {
-            result = dbAdaptor.get(query, queryOptions);
+        } finally {
+            dbAdaptor.close();
         }
         return result;
     }
@@ -120,5 +120,6 @@ public class AnnotateVariantsCommandExecutor extends CommandExecutor {
             variantAnnotationManager.loadAnnotation(annotationFile, new QueryOptions());
             logger.info("Finished annotation load {}ms", System.currentTimeMillis() - start);
         }
+        dbAdaptor.close();
     }
 }
@@ -296,6 +296,7 @@ public class FetchVariantsCommandExecutor extends CommandExecutor {
         if (queryVariantsCommandOptions.count) {
             QueryResult<Long> result = variantDBAdaptor.count(query);
             System.out.println("Num. results\t" + result.getResult().get(0));
+            variantDBAdaptor.close();
             return;
         }
 
@@ -325,6 +326,7 @@ public class FetchVariantsCommandExecutor extends CommandExecutor {
             }
         }
         outputStream.close();
+        variantDBAdaptor.close();
     }
 
     private void executeRank(Query query, VariantDBAdaptor variantDBAdaptor) throws JsonProcessingException {
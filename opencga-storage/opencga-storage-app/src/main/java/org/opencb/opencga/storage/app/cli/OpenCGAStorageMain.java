@@ -280,6 +280,7 @@ public class OpenCGAStorageMain {
                 } else {
                     System.out.println(printQueryResult(dbAdaptor.getAllVariants(options), null));
                 }
+                dbAdaptor.close();
 
 
             } else if (command instanceof OptionsParser.CommandFetchAlignments) {
@@ -738,6 +739,7 @@ public class OpenCGAStorageMain {
             variantAnnotationManager.loadAnnotation(annotationFile, new QueryOptions());
             logger.info("Finished annotation load {}ms", System.currentTimeMillis() - start);
         }
+        dbAdaptor.close();
 
     }
 
@@ -820,6 +822,8 @@ public class OpenCGAStorageMain {
             e.printStackTrace();
             logger.error(e.getMessage());
             System.exit(1);
+        } finally {
+            dbAdaptor.close();
         }
     }
 
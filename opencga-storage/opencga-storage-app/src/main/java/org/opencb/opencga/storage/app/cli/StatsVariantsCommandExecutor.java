@@ -154,6 +154,8 @@ public class StatsVariantsCommandExecutor extends CommandExecutor {
         } catch (Exception e) {   // file not found? wrong file id or study id? bad parameters to ParallelTaskRunner?
             e.printStackTrace();
             logger.error(e.getMessage());
+        } finally {
+            dbAdaptor.close();
         }
     }
 }
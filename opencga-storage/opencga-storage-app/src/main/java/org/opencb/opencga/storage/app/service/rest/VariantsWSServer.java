@@ -70,8 +70,6 @@ public class VariantsWSServer extends StorageWSServer {
 
         public static QueryResult getVariants(String storageEngine, String dbName, boolean histogram, int interval, QueryOptions queryOptions)
                 throws StorageManagerException, ClassNotFoundException, IllegalAccessException, InstantiationException {
-            VariantDBAdaptor dbAdaptor = StorageManagerFactory.get().getVariantStorageManager(storageEngine).getDBAdaptor(dbName);
-
             Query query = new Query();
             for (VariantQueryParams acceptedValue : VariantQueryParams.values()) {
                 if (queryOptions.get(acceptedValue.key()) != null) {
@@ -94,17 +92,22 @@ public class VariantsWSServer extends StorageWSServer {
             int regionsSize = regions.stream().reduce(0, (size, r) -> size += r.getEnd() - r.getStart(), (a, b) -> a + b);
 
             QueryResult queryResult;
-            if (histogram) {
-                if (regions.size() != 1) {
-                    throw new IllegalArgumentException("Sorry, histogram functionality only works with a single region");
-                } else {
-                    if (interval > 0) {
-                        queryOptions.put("interval", interval);
+            VariantDBAdaptor dbAdaptor = StorageManagerFactory.get().getVariantStorageManager(storageEngine).getDBAdaptor(dbName);
+            try {
+                if (histogram) {
+                    if (regions.size() != 1) {
+                        throw new IllegalArgumentException("Sorry, histogram functionality only works with a single region");
+                    } else {
+                        if (interval > 0) {
+                            queryOptions.put("interval", interval);
+                        }
+                        queryResult = dbAdaptor.getFrequency(query, regions.get(0), interval);
                     }
-                    queryResult = dbAdaptor.getFrequency(query, regions.get(0), interval);
+                } else {
+                    queryResult = dbAdaptor.get(query, queryOptions);
                 }
-            } else {
-                queryResult = dbAdaptor.get(query, queryOptions);
+            } finally {
+                dbAdaptor.close();
             }
     //            else if (regionsSize <= 1000000) {
     //                if (regions.size() == 0) {
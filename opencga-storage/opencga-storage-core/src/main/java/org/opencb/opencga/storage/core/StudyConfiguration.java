@@ -59,13 +59,14 @@ public class StudyConfiguration implements Cloneable {
         this.fileIds = new LinkedHashMap<>(other.fileIds);
         this.sampleIds = new LinkedHashMap<>(other.sampleIds);
         this.cohortIds = new LinkedHashMap<>(other.cohortIds);
-        this.cohorts = new LinkedHashMap<>(other.cohorts);
+        this.cohorts = copySets(other.cohorts);
         this.indexedFiles = new LinkedHashSet<>(other.indexedFiles);
         this.headers = new LinkedHashMap<>(other.headers);
-        this.samplesInFiles = new LinkedHashMap<>(other.samplesInFiles);
+        this.samplesInFiles = copySets(other.samplesInFiles);
         this.calculatedStats = new LinkedHashSet<>(other.calculatedStats);
         this.invalidStats = new LinkedHashSet<>(other.invalidStats);
         this.aggregation = other.aggregation;
+        this.timeStamp = other.timeStamp;
         this.attributes = new ObjectMap(other.attributes);
     }
 
@@ -74,6 +75,27 @@ public class StudyConfiguration implements Cloneable {
         return new StudyConfiguration(this);
     }
 
+    private static Map<Integer, Set<Integer>> copySets(Map<Integer, Set<Integer>> map) {
+        Map<Integer, Set<Integer>> copy = new LinkedHashMap<>(map.size());
+        for (Map.Entry<Integer, Set<Integer>> entry : map.entrySet()) {
+            copy.put(entry.getKey(), entry.getValue() == null ? null : new LinkedHashSet<>(entry.getValue()));
+        }
+        return copy;
+    }
+
+    /**
+     * Read only copy of a StudyConfiguration. The setters and the modifications of the returned collections and
+     * attributes throw an UnsupportedOperationException. {@link #clone()} returns a modifiable copy.
+     *
+     * @param studyConfiguration    StudyConfiguration to copy
+     * @return  Read only copy
+     */
+    public static StudyConfiguration unmodifiable(StudyConfiguration studyConfiguration) {
+        return studyConfiguration instanceof UnmodifiableStudyConfiguration
+                ? studyConfiguration
+                : new UnmodifiableStudyConfiguration(studyConfiguration);
+    }
+
     public StudyConfiguration(int studyId, String studyName) {
         this.studyId = studyId;
         this.studyName = studyName;
@@ -323,4 +345,140 @@ public class StudyConfiguration implements Cloneable {
         return sampleIds;
     }
 
+    private static final class UnmodifiableStudyConfiguration extends StudyConfiguration {
+
+        private UnmodifiableStudyConfiguration(StudyConfiguration other) {
+            StudyConfiguration copy = other.clone();
+            StudyConfiguration view = this;
+            view.studyId = copy.studyId;
+            view.studyName = copy.studyName;
+            view.fileIds = Collections.unmodifiableMap(copy.fileIds);
+            view.sampleIds = Collections.unmodifiableMap(copy.sampleIds);
+            view.cohortIds = Collections.unmodifiableMap(copy.cohortIds);
+            view.cohorts = unmodifiableSets(copy.cohorts);
+            view.indexedFiles = Collections.unmodifiableSet(copy.indexedFiles);
+            view.headers = Collections.unmodifiableMap(copy.headers);
+            view.samplesInFiles = unmodifiableSets(copy.samplesInFiles);
+            view.calculatedStats = Collections.unmodifiableSet(copy.calculatedStats);
+            view.invalidStats = Collections.unmodifiableSet(copy.invalidStats);
+            view.aggregation = copy.aggregation;
+            view.timeStamp = copy.timeStamp;
+            view.attributes = new UnmodifiableObjectMap(copy.attributes);
+        }
+
+        private static Map<Integer, Set<Integer>> unmodifiableSets(Map<Integer, Set<Integer>> map) {
+            for (Map.Entry<Integer, Set<Integer>> entry : map.entrySet()) {
+                if (entry.getValue() != null) {
+                    entry.setValue(Collections.unmodifiableSet(entry.getValue()));
+                }
+            }
+            return Collections.unmodifiableMap(map);
+        }
+
+        @Override
+        public void setStudyId(int studyId) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void setStudyName(String studyName) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void setFileIds(Map<String, Integer> fileIds) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void setSampleIds(Map<String, Integer> sampleIds) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void setCohortIds(Map<String, Integer> cohortIds) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void setCohorts(Map<Integer, Set<Integer>> cohorts) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void setIndexedFiles(Set<Integer> indexedFiles) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void setHeaders(Map<Integer, String> headers) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void setSamplesInFiles(Map<Integer, Set<Integer>> samplesInFiles) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void setCalculatedStats(Set<Integer> calculatedStats) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void setInvalidStats(Set<Integer> invalidStats) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void setAggregation(VariantSource.Aggregation aggregation) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void setTimeStamp(Long timeStamp) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void setAttributes(ObjectMap attributes) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static final class UnmodifiableObjectMap extends ObjectMap {
+        // Allows the copy of the values in the constructor
+        private final boolean sealed;
+
+        private UnmodifiableObjectMap(ObjectMap attributes) {
+            super(attributes);
+            sealed = true;
+        }
+
+        @Override
+        public Object put(String key, Object value) {
+            if (sealed) {
+                throw new UnsupportedOperationException();
+            }
+            return super.put(key, value);
+        }
+
+        @Override
+        public void putAll(Map<? extends String, ?> m) {
+            if (sealed) {
+                throw new UnsupportedOperationException();
+            }
+            super.putAll(m);
+        }
+
+        @Override
+        public Object remove(Object key) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void clear() {
+            throw new UnsupportedOperationException();
+        }
+    }
 }
@@ -30,11 +30,13 @@ import org.opencb.commons.run.Task;
 import org.opencb.commons.utils.FileUtils;
 import org.opencb.opencga.storage.core.StorageManager;
 import org.opencb.opencga.storage.core.alignment.adaptors.AlignmentDBAdaptor;
+import org.opencb.opencga.storage.core.alignment.coverage.CoveragePyramidBuilder;
 import org.opencb.opencga.storage.core.alignment.json.AlignmentCoverageJsonDataReader;
 import org.opencb.opencga.storage.core.alignment.json.AlignmentCoverageJsonDataWriter;
 import org.opencb.opencga.storage.core.alignment.json.AlignmentJsonDataReader;
 import org.opencb.opencga.storage.core.alignment.json.AlignmentJsonDataWriter;
 import org.opencb.opencga.storage.core.alignment.tasks.AlignmentRegionCoverageCalculatorTask;
+import org.opencb.opencga.storage.core.alignment.tasks.ParallelCoverageCalculatorRunner;
 import org.opencb.opencga.storage.core.config.StorageConfiguration;
 import org.opencb.opencga.storage.core.config.StorageEtlConfiguration;
 import org.slf4j.LoggerFactory;
@@ -47,6 +49,7 @@ import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.function.Supplier;
 
 /**
  * Created by jacobo on 14/08/14.
@@ -74,7 +77,10 @@ public abstract class AlignmentStorageManager extends StorageManager<DataWriter<
         PLAIN ("plain", false),
         TRANSFORM_REGION_SIZE ("transform.region_size", 200000),
         TRANSFORM_COVERAGE_CHUNK_SIZE ("transform.coverage_chunk_size", 1000),
+        TRANSFORM_THREADS ("transform.threads", 4),
         WRITE_COVERAGE ("transform.write_coverage", true),
+        COVERAGE_PYRAMID ("transform.coverage_pyramid", true),
+        COVERAGE_PYRAMID_BASE_SIZE ("transform.coverage_pyramid.base_size", 256),
         STUDY ("study", true),
         FILE_ID ("fileId", ""),
         FILE_ALIAS ("fileAlias", ""),
@@ -84,6 +90,8 @@ public abstract class AlignmentStorageManager extends StorageManager<DataWriter<
         ENCRYPT ("encrypt", false),
         COPY_FILE ("copy", false),
         DB_NAME ("database.name", "opencga"),
+        LOAD_THREADS ("load.threads", 4),
+        LOAD_BATCH_SIZE ("load.batch.size", 10),
         TOOLS_SAMTOOLS ("tools.samtools", null);
 
         private final String key;
@@ -149,6 +157,8 @@ public abstract class AlignmentStorageManager extends StorageManager<DataWriter<
      *  Calculate the coverage                      : <outputPath>/<FILE_ALIAS>.bam.coverage.json[.gz]
      * if INCLUDE_COVERAGE && MEAN_COVERAGE_SIZE_LIST
      *  Calculate the meanCoverage                  : <outputPath>/<FILE_ALIAS>.bam.mean-coverage.json[.gz]
+     * if INCLUDE_COVERAGE && COVERAGE_PYRAMID
+     *  Calculate the coverage pyramid              : <inputPath>/<FILE_ALIAS>.bam.coverage.pyramid
      *
      *
      * @param inputUri      Sorted bam file
@@ -179,14 +189,17 @@ public abstract class AlignmentStorageManager extends StorageManager<DataWriter<
         boolean writeJsonAlignments = storageEtlConfiguration.getOptions().getBoolean(Options.WRITE_ALIGNMENTS.key, Options.WRITE_ALIGNMENTS.defaultValue());
 
         int regionSize = storageEtlConfiguration.getOptions().getInt(Options.TRANSFORM_REGION_SIZE.key, Options.TRANSFORM_REGION_SIZE.defaultValue());
+        int numThreads = storageEtlConfiguration.getOptions().getInt(Options.TRANSFORM_THREADS.key, Options.TRANSFORM_THREADS.defaultValue());
 
         //1 Encrypt
         //encrypt(encrypt, bamFile, fileId, output, copy);
 
         //2 Index (bai)
+        Path bamIndexPath = null;
         if(createBai) {
-            Path bamIndexPath = createBai(input, output);
+            bamIndexPath = createBai(input, output);
         }
+        bamIndexPath = findBai(input, bamIndexPath);
 
         //3 Calculate Coverage and transform
 
@@ -202,10 +215,24 @@ public abstract class AlignmentStorageManager extends StorageManager<DataWriter<
         String outputFile = null;
 
         // We set the different coverage size regions
-        if(includeCoverage) {
+        List<String> meanCoverageSizeList = storageEtlConfiguration.getOptions().getAsStringList(Options.MEAN_COVERAGE_SIZE_LIST.key);
+        CoveragePyramidBuilder coveragePyramid = null;
+        if (includeCoverage && storageEtlConfiguration.getOptions().getBoolean(Options.COVERAGE_PYRAMID.key, Options.COVERAGE_PYRAMID.defaultValue())) {
+            coveragePyramid = new CoveragePyramidBuilder(storageEtlConfiguration.getOptions()
+                    .getInt(Options.COVERAGE_PYRAMID_BASE_SIZE.key, Options.COVERAGE_PYRAMID_BASE_SIZE.defaultValue()));
+        }
+        final CoveragePyramidBuilder finalCoveragePyramid = coveragePyramid;
+        Supplier<AlignmentRegionCoverageCalculatorTask> coverageCalculatorSupplier = () -> {
             AlignmentRegionCoverageCalculatorTask coverageCalculatorTask = new AlignmentRegionCoverageCalculatorTask();
-            List<String> meanCoverageSizeList = storageEtlConfiguration.getOptions().getAsStringList(Options.MEAN_COVERAGE_SIZE_LIST.key);
             meanCoverageSizeList.forEach(coverageCalculatorTask::addMeanCoverageCalculator);
+            if (finalCoveragePyramid != null) {
+                coverageCalculatorTask.setCoveragePyramid(finalCoveragePyramid);
+            }
+            return coverageCalculatorTask;
+        };
+        AlignmentRegionCoverageCalculatorTask coverageCalculatorTask = null;
+        if(includeCoverage) {
+            coverageCalculatorTask = coverageCalculatorSupplier.get();
             tasks.add(coverageCalculatorTask);
         }
 
@@ -217,9 +244,11 @@ public abstract class AlignmentStorageManager extends StorageManager<DataWriter<
             outputFile = alignmentDataWriter.getAlignmentFilename();
         }
 
+        boolean writeMeanCoverage = false;
+        boolean writeCoverage = false;
         if(includeCoverage) {
-            boolean writeMeanCoverage = !storageEtlConfiguration.getOptions().getList(Options.MEAN_COVERAGE_SIZE_LIST.key, Options.MEAN_COVERAGE_SIZE_LIST.defaultValue()).isEmpty();
-            boolean writeCoverage = storageEtlConfiguration.getOptions().getBoolean(Options.WRITE_COVERAGE.key, Options.WRITE_COVERAGE.defaultValue());
+            writeMeanCoverage = !storageEtlConfiguration.getOptions().getList(Options.MEAN_COVERAGE_SIZE_LIST.key, Options.MEAN_COVERAGE_SIZE_LIST.defaultValue()).isEmpty();
+            writeCoverage = storageEtlConfiguration.getOptions().getBoolean(Options.WRITE_COVERAGE.key, Options.WRITE_COVERAGE.defaultValue());
             AlignmentCoverageJsonDataWriter alignmentCoverageJsonDataWriter =
                     new AlignmentCoverageJsonDataWriter(jsonOutputFiles, writeCoverage, writeMeanCoverage, !plain);
             alignmentCoverageJsonDataWriter.setChunkSize(
@@ -238,11 +267,43 @@ public abstract class AlignmentStorageManager extends StorageManager<DataWriter<
         //Runner
         AlignmentRegionDataReader regionReader = new AlignmentRegionDataReader(reader);
         regionReader.setMaxSequenceSize(regionSize);
-        Runner<AlignmentRegion> runner = new Runner<>(regionReader, writers, tasks, 1);
 
-        logger.info("Transforming alignments...");
         long start = System.currentTimeMillis();
-        runner.run();
+        if (includeCoverage && numThreads > 1 && !writeJsonAlignments && bamIndexPath != null) {
+            // Calculate the coverage of each reference sequence in parallel, reading each one with a BAI query
+            logger.info("Transforming alignments with {} threads...", numThreads);
+            AlignmentCoverageJsonDataWriter coverageWriter = (AlignmentCoverageJsonDataWriter) writers.get(0);
+            boolean finalWriteCoverage = writeCoverage;
+            boolean finalWriteMeanCoverage = writeMeanCoverage;
+            new ParallelCoverageCalculatorRunner(input, bamIndexPath, regionSize, coverageCalculatorSupplier,
+                    baseFilename -> {
+                        AlignmentCoverageJsonDataWriter writer = new AlignmentCoverageJsonDataWriter(baseFilename,
+                                finalWriteCoverage, finalWriteMeanCoverage, !plain);
+                        writer.setChunkSize(coverageWriter.getChunkSize());
+                        return writer;
+                    }, numThreads, 1).run(jsonOutputFiles);
+        } else {
+            if (includeCoverage && numThreads > 1 && bamIndexPath == null) {
+                logger.warn("BAM index not found for '{}'. Calculating the coverage with one thread", input);
+            }
+            Runner<AlignmentRegion> runner = new Runner<>(regionReader, writers, tasks, 1);
+            logger.info("Transforming alignments...");
+            runner.run();
+            if (coverageCalculatorTask != null) {
+                coverageCalculatorTask.flushCoveragePyramid();
+            }
+        }
+        if (coveragePyramid != null) {
+            // Written next to the BAM file, like the BAM index, where IndexedAlignmentDBAdaptor looks for it
+            Path coveragePyramidPath = input.resolveSibling(input.getFileName() + CoveragePyramidBuilder.EXTENSION);
+            if (!Files.isWritable(input.getParent())) {
+                coveragePyramidPath = output.resolve(input.getFileName() + CoveragePyramidBuilder.EXTENSION);
+                logger.warn("Can not write the coverage pyramid next to the BAM file. Writing into '{}'. "
+                        + "Histograms will be read from the database", coveragePyramidPath);
+            }
+            logger.info("Writing coverage pyramid: '{}'", coveragePyramidPath);
+            coveragePyramid.write(coveragePyramidPath);
+        }
         long end = System.currentTimeMillis();
         logger.info("end - start = " + (end - start) / 1000.0 + "s");
 
@@ -416,6 +477,28 @@ public abstract class AlignmentStorageManager extends StorageManager<DataWriter<
         return bamIndexPath;
     }
 
+    /**
+     * Find the BAM index. "samtools index" writes it next to the BAM file, not into the output directory.
+     *
+     * @param input         Bam file
+     * @param bamIndexPath  Expected index path, or null
+     * @return              The first existing index, or null if there is no index.
+     */
+    protected Path findBai(Path input, Path bamIndexPath) {
+        List<Path> candidates = new LinkedList<>();
+        if (bamIndexPath != null) {
+            candidates.add(bamIndexPath);
+        }
+        candidates.add(input.resolveSibling(input.getFileName().toString() + ".bai"));
+        candidates.add(input.resolveSibling(input.getFileName().toString().replaceAll("\\.bam$", "") + ".bai"));
+        for (Path candidate : candidates) {
+            if (Files.exists(candidate)) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
     /**
      * Check if the file is a sorted binary bam file.
      * @param is            Bam InputStream
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2015 OpenCB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opencb.opencga.storage.core.alignment.coverage;
+
+import org.opencb.biodata.models.alignment.stats.MeanCoverage;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Builds a coverage pyramid from the mean coverage of fixed size windows, and writes it into a binary file.
+ *
+ * The level 0 contains the mean coverage of windows of {@link #baseSize} bases. Each next level doubles the size of the
+ * windows, up to a single window for the whole chromosome. See {@link CoveragePyramidReader} for the file format.
+ *
+ * Windows without any coverage information are stored as NaN, so readers can tell them apart from windows with zero
+ * coverage. The coverage collection only has documents for the regions with alignments.
+ *
+ * Each chromosome must be added by one thread at a time, but different chromosomes can be added concurrently.
+ */
+public class CoveragePyramidBuilder {
+
+    public static final String EXTENSION = ".coverage.pyramid";
+    static final int MAGIC = 0x4F435059;    // "OCPY"
+    static final int VERSION = 2;
+
+    private final int baseSize;
+    private final Map<String, float[]> chromosomes = new ConcurrentHashMap<>();
+    private final Map<String, Integer> numBins = new ConcurrentHashMap<>();
+
+    /**
+     * @param baseSize  Window size of the level 0. Must be a power of two.
+     */
+    public CoveragePyramidBuilder(int baseSize) {
+        if (Integer.bitCount(baseSize) != 1) {
+            throw new IllegalArgumentException("Coverage pyramid base size must be a power of two. Found " + baseSize);
+        }
+        this.baseSize = baseSize;
+    }
+
+    public int getBaseSize() {
+        return baseSize;
+    }
+
+    /**
+     * Add the mean coverage of windows of {@link #baseSize} bases, starting at 1 + n * baseSize. A window may be added
+     * in several parts, if it is split between two regions. The parts are summed.
+     *
+     * @param meanCoverageList  Mean coverage list of a chromosome
+     */
+    public void add(List<MeanCoverage> meanCoverageList) {
+        for (MeanCoverage meanCoverage : meanCoverageList) {
+            if (meanCoverage.getSize() != baseSize || meanCoverage.getRegion().getStart() < 1) {
+                continue;
+            }
+            String chromosome = meanCoverage.getRegion().getChromosome();
+            int bin = (meanCoverage.getRegion().getStart() - 1) / baseSize;
+            float[] bins = chromosomes.get(chromosome);
+            if (bins == null) {
+                bins = new float[Math.max(1024, bin + 1)];
+                Arrays.fill(bins, Float.NaN);
+            } else if (bins.length <= bin) {
+                int length = bins.length;
+                bins = Arrays.copyOf(bins, Math.max(bins.length * 2, bin + 1));
+                Arrays.fill(bins, length, bins.length, Float.NaN);
+            }
+            bins[bin] = Float.isNaN(bins[bin]) ? meanCoverage.getCoverage() : bins[bin] + meanCoverage.getCoverage();
+            chromosomes.put(chromosome, bins);
+            numBins.merge(chromosome, bin + 1, Math::max);
+        }
+    }
+
+    /**
+     * Write the pyramid into a file. The file is written into a temporary file and then moved, so readers never find
+     * an incomplete file.
+     *
+     * @param output        Output file
+     * @throws IOException  If the file can not be written
+     */
+    public void write(Path output) throws IOException {
+        List<String> chromosomeNames = new ArrayList<>(chromosomes.keySet());
+        Collections.sort(chromosomeNames);
+
+        // Build all the levels of each chromosome
+        Map<String, List<float[]>> levelsByChromosome = new LinkedHashMap<>();
+        for (String chromosome : chromosomeNames) {
+            List<float[]> levels = new ArrayList<>();
+            float[] level = Arrays.copyOf(chromosomes.get(chromosome), numBins.get(chromosome));
+            levels.add(level);
+            while (level.length > 1) {
+                float[] next = new float[(level.length + 1) / 2];
+                for (int i = 0; i < next.length; i++) {
+                    float left = level[2 * i];
+                    float right = 2 * i + 1 < level.length ? level[2 * i + 1] : Float.NaN;
+                    if (Float.isNaN(left) && Float.isNaN(right)) {
+                        next[i] = Float.NaN;
+                    } else {
+                        // Windows without information count as zero coverage, as in the coverage collection
+                        next[i] = ((Float.isNaN(left) ? 0 : left) + (Float.isNaN(right) ? 0 : right)) / 2;
+                    }
+                }
+                levels.add(next);
+                level = next;
+            }
+            levelsByChromosome.put(chromosome, levels);
+        }
+
+        Path tmp = output.resolveSibling(output.getFileName() + ".tmp");
+        try (DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp.toFile())))) {
+            // Header
+            ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+            DataOutputStream header = new DataOutputStream(headerBytes);
+            header.writeInt(MAGIC);
+            header.writeInt(VERSION);
+            header.writeInt(baseSize);
+            header.writeInt(chromosomeNames.size());
+            for (String chromosome : chromosomeNames) {
+                header.writeUTF(chromosome);
+                header.writeInt(levelsByChromosome.get(chromosome).size());
+            }
+            // Level index: offset and number of bins of each level. Data starts after the header and the index.
+            int numLevels = 0;
+            for (List<float[]> levels : levelsByChromosome.values()) {
+                numLevels += levels.size();
+            }
+            long offset = 4 + header.size() + numLevels * (8 + 4);
+            os.writeInt(header.size());
+            headerBytes.writeTo(os);
+            for (List<float[]> levels : levelsByChromosome.values()) {
+                for (float[] level : levels) {
+                    os.writeLong(offset);
+                    os.writeInt(level.length);
+                    offset += level.length * 4L;
+                }
+            }
+            // Data
+            for (List<float[]> levels : levelsByChromosome.values()) {
+                for (float[] level : levels) {
+                    for (float value : level) {
+                        os.writeFloat(value);
+                    }
+                }
+            }
+        }
+        Files.move(tmp, output, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+}
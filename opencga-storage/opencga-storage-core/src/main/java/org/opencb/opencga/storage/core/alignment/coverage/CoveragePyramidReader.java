@@ -0,0 +1,174 @@
+/*
+ * Copyright 2015 OpenCB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opencb.opencga.storage.core.alignment.coverage;
+
+import org.opencb.biodata.models.alignment.stats.MeanCoverage;
+import org.opencb.biodata.models.feature.Region;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Reads a coverage pyramid file written by {@link CoveragePyramidBuilder}. The file is memory-mapped, and the mean
+ * coverage of any interval is read from the nearest level, so the cost depends only on the number of intervals.
+ *
+ * File format, big-endian:
+ * <pre>
+ *  int     headerSize
+ *  header: int magic, int version, int baseSize, int numChromosomes, {UTF chromosome, int numLevels}[numChromosomes]
+ *  index:  {long offset, int numBins}[numLevels] for each chromosome, in the same order than the header
+ *  data:   float[numBins] mean coverage for each level. NaN for windows without coverage information.
+ * </pre>
+ *
+ * Instances are thread safe.
+ */
+public class CoveragePyramidReader {
+
+    private final Path path;
+    private final int baseSize;
+    private final MappedByteBuffer buffer;
+    private final Map<String, Level[]> levelsByChromosome = new HashMap<>();
+
+    public CoveragePyramidReader(Path path) throws IOException {
+        this.path = path;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        int headerSize = buffer.getInt(0);
+        byte[] headerBytes = new byte[headerSize];
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(4);
+        duplicate.get(headerBytes);
+        DataInputStream header = new DataInputStream(new ByteArrayInputStream(headerBytes));
+        if (header.readInt() != CoveragePyramidBuilder.MAGIC) {
+            throw new IOException("File " + path + " is not a coverage pyramid");
+        }
+        int version = header.readInt();
+        // Version 1 stored the windows without coverage as 0 instead of NaN. Those files must be rebuilt
+        if (version != CoveragePyramidBuilder.VERSION) {
+            throw new IOException("Unsupported coverage pyramid version " + version + " in file " + path
+                    + ". Expected version " + CoveragePyramidBuilder.VERSION + ", the file must be rebuilt");
+        }
+        baseSize = header.readInt();
+        int numChromosomes = header.readInt();
+        List<String> chromosomes = new ArrayList<>(numChromosomes);
+        List<Integer> numLevels = new ArrayList<>(numChromosomes);
+        for (int i = 0; i < numChromosomes; i++) {
+            chromosomes.add(header.readUTF());
+            numLevels.add(header.readInt());
+        }
+        int indexPosition = 4 + headerSize;
+        for (int i = 0; i < numChromosomes; i++) {
+            Level[] levels = new Level[numLevels.get(i)];
+            for (int l = 0; l < levels.length; l++) {
+                levels[l] = new Level(baseSize << l, (int) buffer.getLong(indexPosition), buffer.getInt(indexPosition + 8));
+                indexPosition += 8 + 4;
+            }
+            levelsByChromosome.put(chromosomes.get(i), levels);
+        }
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public int getBaseSize() {
+        return baseSize;
+    }
+
+    public Set<String> getChromosomes() {
+        return Collections.unmodifiableSet(levelsByChromosome.keySet());
+    }
+
+    /**
+     * Get the mean coverage of the intervals of intervalSize bases overlapping the region. Intervals start at
+     * 1 + n * intervalSize.
+     *
+     * @param region        Region to query
+     * @param intervalSize  Size of the intervals
+     * @return              Mean coverage of each interval with coverage information. Intervals without any
+     *                      information are skipped, as in the aggregation over the coverage collection.
+     */
+    public List<MeanCoverage> getMeanCoverage(Region region, int intervalSize) {
+        Level[] levels = levelsByChromosome.get(region.getChromosome());
+        if (levels == null) {
+            return Collections.emptyList();
+        }
+        Level level = levels[getLevelIndex(levels.length, intervalSize)];
+        String name = MeanCoverage.sizeToNameConvert(intervalSize);
+
+        int firstInterval = (Math.max(region.getStart(), 1) - 1) / intervalSize;
+        int lastInterval = (region.getEnd() - 1) / intervalSize;
+        List<MeanCoverage> list = new ArrayList<>(Math.max(0, lastInterval - firstInterval + 1));
+        for (int interval = firstInterval; interval <= lastInterval; interval++) {
+            long start = (long) interval * intervalSize;  // 0-based, inclusive
+            long end = start + intervalSize;                // 0-based, exclusive
+            double sum = 0;
+            boolean empty = true;
+            for (long bin = start / level.binSize; bin * level.binSize < end && bin < level.numBins; bin++) {
+                float value = level.get(buffer, (int) bin);
+                if (Float.isNaN(value)) {
+                    continue;
+                }
+                long overlap = Math.min(end, (bin + 1) * level.binSize) - Math.max(start, bin * level.binSize);
+                sum += value * overlap;
+                empty = false;
+            }
+            if (empty) {
+                continue;
+            }
+            Region intervalRegion = new Region(region.getChromosome(), (int) start + 1, (int) end);
+            list.add(new MeanCoverage(intervalSize, name, intervalRegion, (float) (sum / intervalSize)));
+        }
+        return list;
+    }
+
+    /**
+     * Nearest level with windows not bigger than the interval size. Each interval reads at most a few windows.
+     */
+    private int getLevelIndex(int numLevels, int intervalSize) {
+        int levelIndex = 0;
+        while (levelIndex + 1 < numLevels && (baseSize << (levelIndex + 1)) <= intervalSize) {
+            levelIndex++;
+        }
+        return levelIndex;
+    }
+
+    private static class Level {
+        private final int binSize;
+        private final int offset;
+        private final int numBins;
+
+        Level(int binSize, int offset, int numBins) {
+            this.binSize = binSize;
+            this.offset = offset;
+            this.numBins = numBins;
+        }
+
+        float get(MappedByteBuffer buffer, int bin) {
+            // Absolute get. Does not modify the buffer position, so is safe to share between threads.
+            return buffer.getFloat(offset + bin * 4);
+        }
+    }
+}
@@ -29,6 +29,7 @@ import org.opencb.biodata.models.alignment.stats.MeanCoverage;
 import org.opencb.biodata.models.alignment.stats.RegionCoverage;
 import org.opencb.biodata.models.feature.Region;
 import org.opencb.commons.run.Task;
+import org.opencb.opencga.storage.core.alignment.coverage.CoveragePyramidBuilder;
 
 
 /**
@@ -50,6 +51,7 @@ public class AlignmentRegionCoverageCalculatorTask extends Task<AlignmentRegion>
 
         private int accumulator;
         private long next;
+        private boolean pending;   // Some positions of the current interval have been added
 
         public MeanCoverageCalculator(String name){
             this.accumulator = 0;
@@ -83,6 +85,7 @@ public class AlignmentRegionCoverageCalculatorTask extends Task<AlignmentRegion>
                     lim = all.length;
                     lastIteration = true;
                 }
+                int from = i;
                 for(; i < lim; i++) {
                     accumulator += all[i];
                 }
@@ -91,6 +94,9 @@ public class AlignmentRegionCoverageCalculatorTask extends Task<AlignmentRegion>
                     list.add(new MeanCoverage(size, name, region, (float) accumulator / size));
                     next += size;
                     accumulator = 0;
+                    pending = false;
+                } else if (i > from) {
+                    pending = true;
                 }
             }
 
@@ -100,6 +106,21 @@ public class AlignmentRegionCoverageCalculatorTask extends Task<AlignmentRegion>
         public void reset(long position){
             this.next =((position-1)/size+1)*size+1;  //Calculates the NEXT interval starting position
             this.accumulator = 0;                   //Reset the accumulator
+            this.pending = false;
+        }
+
+        /**
+         * Get the last partial interval, which is not returned by calculateMeanCoverage until the next interval starts.
+         */
+        public List<MeanCoverage> flush(String chromosome){
+            List<MeanCoverage> list = new LinkedList<>();
+            if (pending) {
+                Region region = new Region(chromosome, (int) next - size, (int) next - 1);
+                list.add(new MeanCoverage(size, name, region, (float) accumulator / size));
+                accumulator = 0;
+                pending = false;
+            }
+            return list;
         }
 
     }
@@ -154,6 +175,9 @@ public class AlignmentRegionCoverageCalculatorTask extends Task<AlignmentRegion>
     }
 
     private List<MeanCoverageCalculator> meanCoverageCalculator;
+    private MeanCoverageCalculator pyramidCalculator;
+    private CoveragePyramidBuilder coveragePyramid;
+    private String pyramidChromosome;
 
     private long start, end;
     private RegionCoverage coverage;
@@ -227,6 +251,10 @@ public class AlignmentRegionCoverageCalculatorTask extends Task<AlignmentRegion>
                 for(MeanCoverageCalculator aux : meanCoverageCalculator){
                     aux.reset(start);
                 }
+                if (pyramidCalculator != null) {
+                    flushCoveragePyramid();     //The last window of the previous region
+                    pyramidCalculator.reset(start);
+                }
             }
             int totalSize = (int)(alignmentRegion.getEnd()-alignmentRegion.getStart());
             if(all.getCapacity() < totalSize){
@@ -284,6 +312,10 @@ public class AlignmentRegionCoverageCalculatorTask extends Task<AlignmentRegion>
                 meanCoverageList.addAll(aux.calculateMeanCoverage(regionCoverage));
             }
             alignmentRegion.setMeanCoverage(meanCoverageList);
+            if (pyramidCalculator != null) {
+                coveragePyramid.add(pyramidCalculator.calculateMeanCoverage(regionCoverage));
+                pyramidChromosome = alignmentRegion.getChromosome();
+            }
 
             if(!alignmentRegion.isOverlapEnd()){
                 end = alignmentRegion.getEnd();
@@ -445,5 +477,26 @@ public class AlignmentRegionCoverageCalculatorTask extends Task<AlignmentRegion>
         this.meanCoverageCalculator.add(new MeanCoverageCalculator(name));
     }
 
+    /**
+     * Add the mean coverage of the base size windows of the pyramid to the given builder. This mean coverage is not
+     * added to the AlignmentRegions.
+     *
+     * @param coveragePyramid   Coverage pyramid builder. May be shared with the tasks of other chromosomes.
+     */
+    public void setCoveragePyramid(CoveragePyramidBuilder coveragePyramid) {
+        this.coveragePyramid = coveragePyramid;
+        int size = coveragePyramid.getBaseSize();
+        this.pyramidCalculator = new MeanCoverageCalculator(size, MeanCoverage.sizeToNameConvert(size));
+    }
+
+    /**
+     * Add the last partial window of the coverage pyramid to the builder. Must be called after the last batch.
+     */
+    public void flushCoveragePyramid() {
+        if (pyramidCalculator != null && pyramidChromosome != null) {
+            coveragePyramid.add(pyramidCalculator.flush(pyramidChromosome));
+        }
+    }
+
 
 }
@@ -0,0 +1,290 @@
+/*
+ * Copyright 2015 OpenCB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opencb.opencga.storage.core.alignment.tasks;
+
+import htsjdk.samtools.SAMFileReader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SAMSequenceRecord;
+import org.opencb.biodata.formats.alignment.AlignmentConverter;
+import org.opencb.biodata.formats.alignment.io.AlignmentDataReader;
+import org.opencb.biodata.formats.alignment.io.AlignmentRegionDataReader;
+import org.opencb.biodata.models.alignment.Alignment;
+import org.opencb.biodata.models.alignment.AlignmentHeader;
+import org.opencb.biodata.models.alignment.AlignmentRegion;
+import org.opencb.opencga.storage.core.alignment.json.AlignmentCoverageJsonDataWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Calculates the coverage of a sorted and indexed BAM file in parallel, by reference sequence.
+ *
+ * The {@link AlignmentRegionCoverageCalculatorTask} keeps state between consecutive regions, so a reference sequence
+ * can not be split between threads. Instead, each reference sequence is read with its own BAI query, calculated by its
+ * own calculator and written into its own part files, and up to {@link #numThreads} sequences are processed at the
+ * same time. At the end, the part files are appended to the output files in the order of the BAM header, so the
+ * result is the same than with a single reader.
+ */
+public class ParallelCoverageCalculatorRunner {
+
+    private final Path bamFile;
+    private final Path bamIndexFile;
+    private final int maxSequenceSize;
+    private final Supplier<AlignmentRegionCoverageCalculatorTask> calculatorSupplier;
+    private final Function<String, AlignmentCoverageJsonDataWriter> writerFactory;
+    private final int numThreads;
+    private final int batchSize;
+
+    protected static Logger logger = LoggerFactory.getLogger(ParallelCoverageCalculatorRunner.class);
+
+    /**
+     * @param bamFile               Sorted BAM file
+     * @param bamIndexFile          BAI index of the BAM file
+     * @param maxSequenceSize       Max size of each AlignmentRegion
+     * @param calculatorSupplier    Creates a new calculator for each reference sequence
+     * @param writerFactory         Creates a writer for a base file name
+     * @param numThreads            Number of reference sequences calculated at the same time
+     * @param batchSize             Number of AlignmentRegions read at a time
+     */
+    public ParallelCoverageCalculatorRunner(Path bamFile, Path bamIndexFile, int maxSequenceSize,
+                                            Supplier<AlignmentRegionCoverageCalculatorTask> calculatorSupplier,
+                                            Function<String, AlignmentCoverageJsonDataWriter> writerFactory,
+                                            int numThreads, int batchSize) {
+        this.bamFile = bamFile;
+        this.bamIndexFile = bamIndexFile;
+        this.maxSequenceSize = maxSequenceSize;
+        this.calculatorSupplier = calculatorSupplier;
+        this.writerFactory = writerFactory;
+        this.numThreads = numThreads;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Calculate the coverage and write it into the files of the writer for the given base file name.
+     *
+     * @param baseFilename  Base file name of the output files
+     * @return              The writer of the output files. Already closed.
+     * @throws IOException  If the coverage can not be calculated or written
+     */
+    public AlignmentCoverageJsonDataWriter run(String baseFilename) throws IOException {
+        List<String> chromosomes = new ArrayList<>();
+        SAMFileReader samReader = new SAMFileReader(bamFile.toFile(), bamIndexFile.toFile());
+        try {
+            for (SAMSequenceRecord sequence : samReader.getFileHeader().getSequenceDictionary().getSequences()) {
+                chromosomes.add(sequence.getSequenceName());
+            }
+        } finally {
+            samReader.close();
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        List<Future<AlignmentCoverageJsonDataWriter>> futures = new ArrayList<>(chromosomes.size());
+        List<String> partFiles = new ArrayList<>();
+        try {
+            for (int i = 0; i < chromosomes.size(); i++) {
+                String chromosome = chromosomes.get(i);
+                AlignmentCoverageJsonDataWriter partWriter = writerFactory.apply(baseFilename + ".part" + i);
+                partFiles.add(partWriter.getCoverageFilename());
+                partFiles.add(partWriter.getMeanCoverageFilename());
+                futures.add(executor.submit(() -> calculate(chromosome, partWriter)));
+            }
+
+            AlignmentCoverageJsonDataWriter writer = writerFactory.apply(baseFilename);
+            // Create the output files, even if there are no reference sequences
+            if (!writer.open()) {
+                throw new IOException("Error opening coverage output files '" + baseFilename + "'");
+            }
+            writer.pre();
+            writer.post();
+            writer.close();
+            for (Future<AlignmentCoverageJsonDataWriter> future : futures) {
+                AlignmentCoverageJsonDataWriter partWriter = future.get();
+                append(partWriter.getCoverageFilename(), writer.getCoverageFilename());
+                append(partWriter.getMeanCoverageFilename(), writer.getMeanCoverageFilename());
+            }
+            return writer;
+        } catch (ExecutionException e) {
+            throw new IOException("Error calculating coverage", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } finally {
+            executor.shutdownNow();
+            try {
+                // Wait for the interrupted tasks before removing their files
+                executor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            for (String partFile : partFiles) {
+                if (partFile != null) {
+                    Files.deleteIfExists(Paths.get(partFile));
+                }
+            }
+        }
+    }
+
+    private AlignmentCoverageJsonDataWriter calculate(String chromosome, AlignmentCoverageJsonDataWriter writer)
+            throws IOException {
+        logger.debug("Calculating coverage of '{}'", chromosome);
+        AlignmentRegionDataReader reader = new AlignmentRegionDataReader(
+                new ChromosomeAlignmentDataReader(bamFile, bamIndexFile, chromosome));
+        reader.setMaxSequenceSize(maxSequenceSize);
+        AlignmentRegionCoverageCalculatorTask calculator = calculatorSupplier.get();
+
+        reader.open();
+        try {
+            if (!writer.open()) {
+                throw new IOException("Error opening coverage output files of '" + chromosome + "'");
+            }
+            try {
+                reader.pre();
+                writer.pre();
+                List<AlignmentRegion> batch = reader.read(batchSize);
+                while (batch != null && !batch.isEmpty()) {
+                    calculator.apply(batch);
+                    if (!writer.write(batch)) {
+                        throw new IOException("Error writing coverage of '" + chromosome + "'");
+                    }
+                    batch = reader.read(batchSize);
+                }
+                calculator.flushCoveragePyramid();
+                reader.post();
+                writer.post();
+            } finally {
+                writer.close();
+            }
+        } finally {
+            reader.close();
+        }
+        logger.debug("Coverage of '{}' calculated", chromosome);
+        return writer;
+    }
+
+    private static void append(String partFile, String outputFile) throws IOException {
+        if (partFile == null || outputFile == null || !Files.exists(Paths.get(partFile))) {
+            return;
+        }
+        // Concatenated gzip members are read as a single gzip file
+        try (OutputStream os = Files.newOutputStream(Paths.get(outputFile), StandardOpenOption.APPEND)) {
+            Files.copy(Paths.get(partFile), os);
+        }
+    }
+
+    /**
+     * Reads the alignments of one reference sequence of an indexed BAM file.
+     */
+    static class ChromosomeAlignmentDataReader implements AlignmentDataReader {
+
+        private final Path bamFile;
+        private final Path bamIndexFile;
+        private final String chromosome;
+        private SAMFileReader samReader;
+        private SAMRecordIterator iterator;
+        private AlignmentHeader header;
+
+        ChromosomeAlignmentDataReader(Path bamFile, Path bamIndexFile, String chromosome) {
+            this.bamFile = bamFile;
+            this.bamIndexFile = bamIndexFile;
+            this.chromosome = chromosome;
+        }
+
+        @Override
+        public AlignmentHeader getHeader() {
+            return header;
+        }
+
+        @Override
+        public boolean open() {
+            samReader = new SAMFileReader(bamFile.toFile(), bamIndexFile.toFile());
+            return true;
+        }
+
+        @Override
+        public boolean pre() {
+            header = new AlignmentHeader(samReader.getFileHeader(), bamFile.getFileName().toString());
+            iterator = samReader.query(chromosome, 0, 0, false);
+            return true;
+        }
+
+        @Override
+        public List<Alignment> read() {
+            Alignment elem = readElem();
+            return elem != null ? Arrays.asList(elem) : null;
+        }
+
+        public Alignment readElem() {
+            while (iterator.hasNext()) {
+                SAMRecord record = iterator.next();
+                if (record.getReadUnmappedFlag()) {
+                    continue;
+                }
+                Map<String, Object> attributes = new HashMap<>();
+                for (SAMRecord.SAMTagAndValue attr : record.getAttributes()) {
+                    attributes.put(attr.tag, attr.value);
+                }
+                return AlignmentConverter.buildAlignment(record, attributes, record.getReadString());
+            }
+            return null;
+        }
+
+        @Override
+        public List<Alignment> read(int batchSize) {
+            List<Alignment> alignments = new ArrayList<>(batchSize);
+            Alignment elem;
+            for (int i = 0; i < batchSize; i++) {
+                elem = readElem();
+                if (elem == null) {
+                    break;
+                }
+                alignments.add(elem);
+            }
+            return alignments;
+        }
+
+        @Override
+        public boolean post() {
+            return true;
+        }
+
+        @Override
+        public boolean close() {
+            if (iterator != null) {
+                iterator.close();
+            }
+            if (samReader != null) {
+                samReader.close();
+            }
+            return true;
+        }
+    }
+}
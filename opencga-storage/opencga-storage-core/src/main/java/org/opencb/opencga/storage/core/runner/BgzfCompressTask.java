@@ -0,0 +1,131 @@
+/*
+ * Copyright 2015 OpenCB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opencb.opencga.storage.core.runner;
+
+import org.opencb.commons.run.ParallelTaskRunner;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Wraps a task producing strings, and compresses each output batch into BGZF blocks in the same worker thread.
+ * The writer only has to append the compressed bytes, using a {@link BgzfDataWriter}.
+ *
+ * Concatenated BGZF blocks are a valid gzip file, and can be decompressed in parallel with a {@link BgzfStringDataReader}.
+ */
+public class BgzfCompressTask<I> implements ParallelTaskRunner.Task<I, byte[]> {
+
+    /** Maximum uncompressed size of a block, as in samtools. */
+    public static final int MAX_BLOCK_INPUT_SIZE = 0xFF00;
+    private static final int MAX_BLOCK_SIZE = 0x10000;
+    private static final int BLOCK_HEADER_SIZE = 18;
+    private static final int BLOCK_FOOTER_SIZE = 8;
+
+    /** Empty block marking the end of a BGZF file. */
+    public static final byte[] EOF_BLOCK = {
+            0x1f, (byte) 0x8b, 0x08, 0x04, 0x00, 0x00, 0x00, 0x00, 0x00, (byte) 0xff, 0x06, 0x00, 0x42, 0x43, 0x02, 0x00,
+            0x1b, 0x00, 0x03, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00};
+
+    private final ParallelTaskRunner.Task<I, String> task;
+
+    public BgzfCompressTask(ParallelTaskRunner.Task<I, String> task) {
+        this.task = task;
+    }
+
+    @Override
+    public void pre() {
+        task.pre();
+    }
+
+    @Override
+    public List<byte[]> apply(List<I> batch) {
+        List<String> output = task.apply(batch);
+        if (output == null) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (String s : output) {
+            sb.append(s);
+        }
+        return Collections.singletonList(compress(sb.toString().getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Override
+    public void post() {
+        task.post();
+    }
+
+    /**
+     * Compress the data into as many BGZF blocks as needed.
+     *
+     * @param data  Uncompressed data
+     * @return      Concatenated BGZF blocks
+     */
+    public static byte[] compress(byte[] data) {
+        ByteArrayOutputStream os = new ByteArrayOutputStream(data.length / 3 + BLOCK_HEADER_SIZE);
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        Deflater noCompressionDeflater = null;
+        byte[] buffer = new byte[MAX_BLOCK_SIZE];
+        CRC32 crc32 = new CRC32();
+        try {
+            for (int offset = 0; offset < data.length; offset += MAX_BLOCK_INPUT_SIZE) {
+                int length = Math.min(MAX_BLOCK_INPUT_SIZE, data.length - offset);
+                int maxCompressedLength = MAX_BLOCK_SIZE - BLOCK_HEADER_SIZE - BLOCK_FOOTER_SIZE;
+                deflater.reset();
+                deflater.setInput(data, offset, length);
+                deflater.finish();
+                int compressedLength = deflater.deflate(buffer, 0, maxCompressedLength);
+                if (!deflater.finished()) {
+                    // Incompressible data. Store it without compression.
+                    if (noCompressionDeflater == null) {
+                        noCompressionDeflater = new Deflater(Deflater.NO_COMPRESSION, true);
+                    }
+                    noCompressionDeflater.reset();
+                    noCompressionDeflater.setInput(data, offset, length);
+                    noCompressionDeflater.finish();
+                    compressedLength = noCompressionDeflater.deflate(buffer, 0, maxCompressedLength);
+                }
+                crc32.reset();
+                crc32.update(data, offset, length);
+
+                int blockSize = BLOCK_HEADER_SIZE + compressedLength + BLOCK_FOOTER_SIZE;
+                ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                // ID1 ID2 CM FLG MTIME(4) XFL OS XLEN(2) SI1 SI2 SLEN(2) BSIZE(2)
+                header.put((byte) 0x1f).put((byte) 0x8b).put((byte) 8).put((byte) 4).putInt(0).put((byte) 0).put((byte) 0xff)
+                        .putShort((short) 6).put((byte) 'B').put((byte) 'C').putShort((short) 2).putShort((short) (blockSize - 1));
+                ByteBuffer footer = ByteBuffer.allocate(BLOCK_FOOTER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                footer.putInt((int) crc32.getValue()).putInt(length);
+
+                os.write(header.array(), 0, BLOCK_HEADER_SIZE);
+                os.write(buffer, 0, compressedLength);
+                os.write(footer.array(), 0, BLOCK_FOOTER_SIZE);
+            }
+        } finally {
+            deflater.end();
+            if (noCompressionDeflater != null) {
+                noCompressionDeflater.end();
+            }
+        }
+        return os.toByteArray();
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2015 OpenCB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opencb.opencga.storage.core.runner;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Appends BGZF blocks already compressed by a {@link BgzfCompressTask}. Writes the BGZF end of file marker on close.
+ */
+public class BgzfDataWriter extends ByteDataWriter {
+
+    public BgzfDataWriter(Path path) {
+        super(path);
+    }
+
+    @Override
+    public boolean open() {
+        logger.info("BGZF output compress");
+        return super.open();
+    }
+
+    @Override
+    public boolean close() {
+        try {
+            os.write(BgzfCompressTask.EOF_BLOCK);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        return super.close();
+    }
+}
@@ -0,0 +1,326 @@
+/*
+ * Copyright 2015 OpenCB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opencb.opencga.storage.core.runner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads the lines of a BGZF (bgzip) compressed file decompressing several blocks in parallel.
+ *
+ * The file is split at BGZF block boundaries into chunks of {@link #blocksPerChunk} blocks. Each chunk is decompressed
+ * and split into lines by a pool of threads, while the reader thread only joins the lines cut between two chunks.
+ * Lines are returned in the same order than in the file. The lines cut between two chunks are joined as bytes before
+ * decoding them, so multi-byte UTF-8 characters and "\r\n" line breaks can be split at any point.
+ *
+ * If the file is not BGZF compressed (i.e. plain gzip), works as a {@link StringDataReader}.
+ */
+public class BgzfStringDataReader extends StringDataReader {
+
+    private static final int BGZF_HEADER_SIZE = 18;
+    private static final int BGZF_FOOTER_SIZE = 8;
+    public static final int DEFAULT_BLOCKS_PER_CHUNK = 64;
+
+    private final int numThreads;
+    private final int blocksPerChunk;
+
+    private boolean bgzf;
+    private FileChannel channel;
+    private ExecutorService executorService;
+    private final LinkedList<Future<Chunk>> pendingChunks = new LinkedList<>();
+    private long nextBlockOffset = 0;
+    private boolean eof = false;
+
+    private List<String> currentLines = Collections.emptyList();
+    private int currentLinesIdx = 0;
+    // Bytes of the line cut at the end of the last chunk
+    private final ByteArrayOutputStream remainingLine = new ByteArrayOutputStream();
+
+    public BgzfStringDataReader(Path path, int numThreads) {
+        this(path, numThreads, DEFAULT_BLOCKS_PER_CHUNK);
+    }
+
+    public BgzfStringDataReader(Path path, int numThreads, int blocksPerChunk) {
+        super(path);
+        this.numThreads = numThreads;
+        this.blocksPerChunk = blocksPerChunk;
+    }
+
+    /**
+     * Checks if the file starts with a BGZF block. Blocks are gzip members with the "BC" extra subfield.
+     *
+     * @param path  File to check
+     * @return      If the file is BGZF compressed
+     * @throws IOException  If the file can not be read
+     */
+    public static boolean isBgzf(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return readBlockSize(channel, 0) > 0;
+        }
+    }
+
+    @Override
+    public boolean open() {
+        try {
+            bgzf = isBgzf(path);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        if (!bgzf) {
+            logger.info("Not a BGZF file. Read with a single thread");
+            return super.open();
+        }
+        logger.info("BGZF input compress. Decompress with {} threads", numThreads);
+        try {
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        executorService = Executors.newFixedThreadPool(numThreads);
+        nextBlockOffset = 0;
+        eof = false;
+        remainingLine.reset();
+        return true;
+    }
+
+    @Override
+    public boolean close() {
+        if (!bgzf) {
+            return super.close();
+        }
+        executorService.shutdownNow();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public List<String> read() {
+        return read(1);
+    }
+
+    @Override
+    public List<String> read(int batchSize) {
+        if (!bgzf) {
+            return super.read(batchSize);
+        }
+        List<String> batch = new ArrayList<>(batchSize);
+        try {
+            while (batch.size() < batchSize) {
+                if (currentLinesIdx < currentLines.size()) {
+                    batch.add(currentLines.get(currentLinesIdx++));
+                    if (++readLines % 1000 == 0) {
+                        logger.info("read lines = " + readLines);
+                    }
+                } else if (!nextChunk()) {
+                    break;
+                }
+            }
+        } catch (IOException | ExecutionException e) {
+            throw new RuntimeException("Error reading file " + path, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        return batch;
+    }
+
+    /**
+     * Moves to the next decompressed chunk, joining the line cut between the previous and the new chunk.
+     *
+     * @return false if there are no more lines
+     */
+    private boolean nextChunk() throws IOException, ExecutionException, InterruptedException {
+        submitChunks();
+        if (pendingChunks.isEmpty()) {
+            if (remainingLine.size() > 0) {
+                currentLines = Collections.singletonList(decodeLine(remainingLine.toByteArray(), 0, remainingLine.size()));
+                currentLinesIdx = 0;
+                remainingLine.reset();
+                return true;
+            }
+            return false;
+        }
+        Chunk chunk = pendingChunks.removeFirst().get();
+        submitChunks();
+
+        if (chunk.firstLineEnd < 0) {
+            // This chunk has no line break. Continue accumulating.
+            remainingLine.write(chunk.data, 0, chunk.data.length);
+            currentLines = Collections.emptyList();
+        } else {
+            // The line cut at the end of the previous chunk is completed with the first line of this chunk
+            remainingLine.write(chunk.data, 0, chunk.firstLineEnd);
+            chunk.lines.set(0, decodeLine(remainingLine.toByteArray(), 0, remainingLine.size()));
+            remainingLine.reset();
+            remainingLine.write(chunk.data, chunk.lastLineStart, chunk.data.length - chunk.lastLineStart);
+            currentLines = chunk.lines;
+        }
+        currentLinesIdx = 0;
+        return true;
+    }
+
+    /**
+     * Decodes a line without the line break. Removes the "\r" of the "\r\n" line breaks.
+     */
+    private static String decodeLine(byte[] data, int start, int end) {
+        if (end > start && data[end - 1] == '\r') {
+            end--;
+        }
+        return new String(data, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Keeps up to 2 * numThreads chunks being decompressed.
+     */
+    private void submitChunks() throws IOException {
+        while (!eof && pendingChunks.size() < numThreads * 2) {
+            long start = nextBlockOffset;
+            int blocks = 0;
+            while (blocks < blocksPerChunk) {
+                int blockSize = readBlockSize(channel, nextBlockOffset);
+                if (blockSize <= 0) {
+                    eof = true;
+                    break;
+                }
+                nextBlockOffset += blockSize;
+                blocks++;
+            }
+            if (blocks > 0) {
+                final long end = nextBlockOffset;
+                pendingChunks.add(executorService.submit(() -> decompressChunk(start, end)));
+            }
+        }
+    }
+
+    /**
+     * Reads the BSIZE field of the BGZF block starting at the given offset.
+     *
+     * @return Total size of the block, or -1 if there is no BGZF block at that offset.
+     */
+    private static int readBlockSize(FileChannel channel, long offset) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(BGZF_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        while (header.hasRemaining()) {
+            if (channel.read(header, offset + header.position()) < 0) {
+                return -1;
+            }
+        }
+        // ID1 ID2 CM FLG MTIME(4) XFL OS XLEN(2) SI1 SI2 SLEN(2) BSIZE(2)
+        if ((header.get(0) & 0xFF) != 31 || (header.get(1) & 0xFF) != 139 || (header.get(3) & 4) == 0
+                || header.get(12) != 'B' || header.get(13) != 'C') {
+            return -1;
+        }
+        return (header.getShort(16) & 0xFFFF) + 1;
+    }
+
+    /**
+     * Decompress all the blocks between start and end, and split the content into lines.
+     */
+    private Chunk decompressChunk(long start, long end) throws IOException, DataFormatException {
+        ByteBuffer compressed = ByteBuffer.allocate((int) (end - start)).order(ByteOrder.LITTLE_ENDIAN);
+        while (compressed.hasRemaining()) {
+            if (channel.read(compressed, start + compressed.position()) < 0) {
+                throw new IOException("Unexpected end of file " + path);
+            }
+        }
+        byte[] bytes = compressed.array();
+        ByteArrayOutputStream uncompressed = new ByteArrayOutputStream(bytes.length * 4);
+        Inflater inflater = new Inflater(true);
+        try {
+            int blockStart = 0;
+            while (blockStart < bytes.length) {
+                int blockSize = (compressed.getShort(blockStart + 16) & 0xFFFF) + 1;
+                int xlen = compressed.getShort(blockStart + 10) & 0xFFFF;
+                int dataStart = blockStart + 12 + xlen;
+                int dataLength = blockSize - 12 - xlen - BGZF_FOOTER_SIZE;
+                int uncompressedSize = compressed.getInt(blockStart + blockSize - 4);
+                byte[] buffer = new byte[uncompressedSize];
+                inflater.reset();
+                inflater.setInput(bytes, dataStart, dataLength);
+                int read = 0;
+                while (read < uncompressedSize && !inflater.finished()) {
+                    int n = inflater.inflate(buffer, read, uncompressedSize - read);
+                    if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        throw new IOException("Corrupted BGZF block at offset " + (start + blockStart) + " of " + path);
+                    }
+                    read += n;
+                }
+                uncompressed.write(buffer, 0, read);
+                blockStart += blockSize;
+            }
+        } finally {
+            inflater.end();
+        }
+        return new Chunk(uncompressed.toByteArray());
+    }
+
+    /**
+     * Lines of a decompressed chunk. The first line may be the end of the last line of the previous chunk,
+     * and the last line may continue in the next chunk, so both are kept as bytes. The complete lines in the middle
+     * are decoded by the decompressing thread.
+     */
+    private static class Chunk {
+        private final byte[] data;
+        // The first element is a placeholder for the first line, if any
+        private final List<String> lines = new ArrayList<>();
+        // End of the first line, or -1 if there is no line break
+        private final int firstLineEnd;
+        // Start of the last line, without line break
+        private final int lastLineStart;
+
+        Chunk(byte[] data) {
+            this.data = data;
+            int firstLineEnd = -1;
+            int lineStart = 0;
+            for (int i = 0; i < data.length; i++) {
+                if (data[i] == '\n') {
+                    if (firstLineEnd < 0) {
+                        firstLineEnd = i;
+                        lines.add(null);
+                    } else {
+                        lines.add(decodeLine(data, lineStart, i));
+                    }
+                    lineStart = i + 1;
+                }
+            }
+            this.firstLineEnd = firstLineEnd;
+            this.lastLineStart = lineStart;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2015 OpenCB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opencb.opencga.storage.core.runner;
+
+import org.opencb.commons.io.DataWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Appends already serialized (and maybe compressed) batches of bytes to a file.
+ */
+public class ByteDataWriter implements DataWriter<byte[]> {
+    protected OutputStream os;
+    protected final Path path;
+    protected static Logger logger = LoggerFactory.getLogger(ByteDataWriter.class);
+    protected long writtenBytes = 0l;
+
+    public ByteDataWriter(Path path) {
+        this.path = path;
+    }
+
+    @Override
+    public boolean open() {
+        try {
+            os = new BufferedOutputStream(new FileOutputStream(path.toAbsolutePath().toString()));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean close() {
+        try {
+            os.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        logger.debug("written bytes = " + writtenBytes);
+        return true;
+    }
+
+    @Override
+    public boolean pre() {
+        return true;
+    }
+
+    @Override
+    public boolean post() {
+        return true;
+    }
+
+    @Override
+    public boolean write(byte[] bytes) {
+        try {
+            os.write(bytes);
+            writtenBytes += bytes.length;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean write(List<byte[]> batch) {
+        for (byte[] bytes : batch) {
+            write(bytes);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2015 OpenCB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opencb.opencga.storage.core.utils;
+
+import org.opencb.datastore.core.ObjectMap;
+
+import java.util.Arrays;
+
+/**
+ * Latency percentiles of an operation, calculated over the last {@link #windowSize} samples.
+ */
+public class LatencyStats {
+
+    public static final int DEFAULT_WINDOW_SIZE = 1024;
+
+    private final String name;
+    private final int windowSize;
+    // Ring buffer with the last samples, in milliseconds
+    private final long[] samples;
+    private long count = 0;
+    private long max = 0;
+
+    public LatencyStats(String name) {
+        this(name, DEFAULT_WINDOW_SIZE);
+    }
+
+    public LatencyStats(String name, int windowSize) {
+        this.name = name;
+        this.windowSize = windowSize;
+        this.samples = new long[windowSize];
+    }
+
+    public synchronized void add(long millis) {
+        samples[(int) (count % windowSize)] = millis;
+        count++;
+        max = Math.max(max, millis);
+    }
+
+    /**
+     * @param percentile    Percentile, from 0 to 100
+     * @return              Latency in milliseconds of the given percentile over the last samples, or 0 if empty
+     */
+    public long getPercentile(double percentile) {
+        long[] sorted;
+        synchronized (this) {
+            sorted = Arrays.copyOf(samples, (int) Math.min(count, windowSize));
+        }
+        if (sorted.length == 0) {
+            return 0;
+        }
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * @return Metrics: number of samples, p50, p99 and max latency in milliseconds.
+     */
+    public ObjectMap getMetrics() {
+        ObjectMap metrics = new ObjectMap();
+        metrics.put("count", getCount());
+        metrics.put("p50", getPercentile(50));
+        metrics.put("p99", getPercentile(99));
+        synchronized (this) {
+            metrics.put("max", max);
+        }
+        return metrics;
+    }
+
+    @Override
+    public String toString() {
+        return name + " " + getMetrics().toJson();
+    }
+}
@@ -25,9 +25,10 @@ import org.slf4j.LoggerFactory;
 
 import java.lang.reflect.InvocationTargetException;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * @author Jacobo Coll <jacobo167@gmail.com>
@@ -37,8 +38,12 @@ public abstract class StudyConfigurationManager {
     public static final String READ_ONLY = "ro";
     protected static Logger logger = LoggerFactory.getLogger(StudyConfigurationManager.class);
 
-    private final Map<String, StudyConfiguration> stringStudyConfigurationMap = new HashMap<>();
-    private final Map<Integer, StudyConfiguration> intStudyConfigurationMap = new HashMap<>();
+    // Shared between threads. Cached values are read only views, never modified, only replaced.
+    private final Map<String, StudyConfiguration> stringStudyConfigurationMap = new ConcurrentHashMap<>();
+    private final Map<Integer, StudyConfiguration> intStudyConfigurationMap = new ConcurrentHashMap<>();
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong cacheMisses = new AtomicLong();
+    private final AtomicLong cacheReloads = new AtomicLong();
 
     public StudyConfigurationManager(ObjectMap objectMap) {}
 
@@ -50,75 +55,84 @@ public abstract class StudyConfigurationManager {
 
     protected abstract QueryResult _updateStudyConfiguration(StudyConfiguration studyConfiguration, QueryOptions options);
 
+    /**
+     * Get a StudyConfiguration by name. Cached StudyConfigurations are only read again if its timeStamp has changed.
+     * Unless the option {@link #READ_ONLY} is given, returns a copy of the cached value. With {@link #READ_ONLY},
+     * returns the cached value itself, shared between all the callers. Any modification of a read only
+     * StudyConfiguration throws an UnsupportedOperationException.
+     *
+     * @param studyName Study name
+     * @param options   Options. Use {@link #CACHED} to skip the timeStamp check, and {@link #READ_ONLY} to skip the copy
+     * @return          The StudyConfiguration, if any
+     */
     public final QueryResult<StudyConfiguration> getStudyConfiguration(String studyName, QueryOptions options) {
-        QueryResult<StudyConfiguration> result;
+        QueryResult<StudyConfiguration> result = null;
         final boolean cached = options != null && options.getBoolean(CACHED, false);
         final boolean readOnly = options != null && options.getBoolean(READ_ONLY, false);
-        if (stringStudyConfigurationMap.containsKey(studyName)) {
-            if (cached) {
-                StudyConfiguration studyConfiguration = stringStudyConfigurationMap.get(studyName);
-                if (!readOnly) {
-                    studyConfiguration = studyConfiguration.clone();
-                }
-                return new QueryResult<>(studyConfiguration.getStudyName(), 0, 1, 1, "", "", Collections.singletonList(studyConfiguration));
+        StudyConfiguration cachedStudyConfiguration = studyName == null ? null : stringStudyConfigurationMap.get(studyName);
+        if (cachedStudyConfiguration != null) {
+            if (!cached) {
+                result = _getStudyConfiguration(studyName, cachedStudyConfiguration.getTimeStamp(), options);
             }
-            result = _getStudyConfiguration(studyName, stringStudyConfigurationMap.get(studyName).getTimeStamp(), options);
-            if (result.getNumTotalResults() == 0) { //No changes. Return old value
-                StudyConfiguration studyConfiguration = stringStudyConfigurationMap.get(studyName);
-                if (!readOnly) {
-                    studyConfiguration = studyConfiguration.clone();
-                }
+            if (cached || result.getNumTotalResults() == 0) { //No changes. Return old value
+                cacheHits.incrementAndGet();
+                StudyConfiguration studyConfiguration = readOnly ? cachedStudyConfiguration : cachedStudyConfiguration.clone();
                 return new QueryResult<>(studyName, 0, 1, 1, "", "", Collections.singletonList(studyConfiguration));
             }
+            cacheReloads.incrementAndGet();
+            logger.debug("StudyConfiguration {} has changed. Update cache", studyName);
         } else {
+            cacheMisses.incrementAndGet();
             result = _getStudyConfiguration(studyName, null, options);
         }
 
         StudyConfiguration studyConfiguration = result.first();
         if (studyConfiguration != null) {
-            intStudyConfigurationMap.put(studyConfiguration.getStudyId(), studyConfiguration);
-            stringStudyConfigurationMap.put(studyConfiguration.getStudyName(), studyConfiguration);
+            StudyConfiguration cached = putInCache(studyConfiguration);
             if (studyName != null && !studyName.equals(studyConfiguration.getStudyName()) ) {
-                stringStudyConfigurationMap.put(studyName, studyConfiguration);
+                stringStudyConfigurationMap.put(studyName, cached);
             }
-            if (!readOnly) {
-                result.setResult(Collections.singletonList(studyConfiguration.clone()));
+            if (readOnly) {
+                result.setResult(Collections.singletonList(cached));
             }
         }
         return result;
 
     }
 
+    /**
+     * Get a StudyConfiguration by id. See {@link #getStudyConfiguration(String, QueryOptions)}.
+     *
+     * @param studyId   Study id
+     * @param options   Options. Use {@link #CACHED} to skip the timeStamp check, and {@link #READ_ONLY} to skip the copy
+     * @return          The StudyConfiguration, if any
+     */
     public final QueryResult<StudyConfiguration> getStudyConfiguration(int studyId, QueryOptions options) {
-        QueryResult<StudyConfiguration> result;
+        QueryResult<StudyConfiguration> result = null;
         final boolean cached = options != null && options.getBoolean(CACHED, false);
         final boolean readOnly = options != null && options.getBoolean(READ_ONLY, false);
-        if (intStudyConfigurationMap.containsKey(studyId)) {
-            if (cached) {
-                StudyConfiguration studyConfiguration = intStudyConfigurationMap.get(studyId);
-                if (!readOnly) {
-                    studyConfiguration = studyConfiguration.clone();
-                }
-                return  new QueryResult<>(studyConfiguration.getStudyName(), 0, 1, 1, "", "", Collections.singletonList(studyConfiguration));
+        StudyConfiguration cachedStudyConfiguration = intStudyConfigurationMap.get(studyId);
+        if (cachedStudyConfiguration != null) {
+            if (!cached) {
+                result = _getStudyConfiguration(studyId, cachedStudyConfiguration.getTimeStamp(), options);
             }
-            result = _getStudyConfiguration(studyId, intStudyConfigurationMap.get(studyId).getTimeStamp(), options);
-            if (result.getNumTotalResults() == 0) { //No changes. Return old value
-                StudyConfiguration studyConfiguration = intStudyConfigurationMap.get(studyId);
-                if (!readOnly) {
-                    studyConfiguration = studyConfiguration.clone();
-                }
+            if (cached || result.getNumTotalResults() == 0) { //No changes. Return old value
+                cacheHits.incrementAndGet();
+                StudyConfiguration studyConfiguration = readOnly ? cachedStudyConfiguration : cachedStudyConfiguration.clone();
                 return new QueryResult<>(studyConfiguration.getStudyName(), 0, 1, 1, "", "", Collections.singletonList(studyConfiguration));
             }
+            cacheReloads.incrementAndGet();
+            logger.debug("StudyConfiguration {} has changed. Update cache", studyId);
         } else {
+            cacheMisses.incrementAndGet();
             result = _getStudyConfiguration(studyId, null, options);
         }
 
         StudyConfiguration studyConfiguration = result.first();
         if (studyConfiguration != null) {
-            intStudyConfigurationMap.put(studyConfiguration.getStudyId(), studyConfiguration);
-            stringStudyConfigurationMap.put(studyConfiguration.getStudyName(), studyConfiguration);
-            if (!readOnly) {
-                result.setResult(Collections.singletonList(studyConfiguration.clone()));
+            StudyConfiguration cached = putInCache(studyConfiguration);
+            if (readOnly) {
+                result.setResult(Collections.singletonList(cached));
             }
         }
         return result;
@@ -131,11 +145,43 @@ public abstract class StudyConfigurationManager {
 
     public final QueryResult updateStudyConfiguration(StudyConfiguration studyConfiguration, QueryOptions options) {
         studyConfiguration.setTimeStamp(System.currentTimeMillis());
-        stringStudyConfigurationMap.put(studyConfiguration.getStudyName(), studyConfiguration);
-        intStudyConfigurationMap.put(studyConfiguration.getStudyId(), studyConfiguration);
+        // Cache a read only copy. The caller may keep modifying its instance
+        putInCache(studyConfiguration);
         return _updateStudyConfiguration(studyConfiguration, options);
     }
 
+    /**
+     * @return The cached read only copy
+     */
+    private StudyConfiguration putInCache(StudyConfiguration studyConfiguration) {
+        StudyConfiguration cached = StudyConfiguration.unmodifiable(studyConfiguration);
+        intStudyConfigurationMap.put(cached.getStudyId(), cached);
+        if (cached.getStudyName() != null) {
+            stringStudyConfigurationMap.put(cached.getStudyName(), cached);
+        }
+        return cached;
+    }
+
+    /**
+     * Remove all the cached StudyConfigurations. Next reads will go to the database.
+     */
+    public void clearCache() {
+        intStudyConfigurationMap.clear();
+        stringStudyConfigurationMap.clear();
+    }
+
+    /**
+     * @return Cache metrics: hits (unchanged), misses (not cached), reloads (changed timeStamp) and number of cached studies.
+     */
+    public ObjectMap getCacheMetrics() {
+        ObjectMap metrics = new ObjectMap();
+        metrics.put("hits", cacheHits.get());
+        metrics.put("misses", cacheMisses.get());
+        metrics.put("reloads", cacheReloads.get());
+        metrics.put("size", intStudyConfigurationMap.size());
+        return metrics;
+    }
+
     static public StudyConfigurationManager build(String className, ObjectMap params)
             throws ReflectiveOperationException {
         try {
@@ -59,24 +59,40 @@ class VariantJsonTransformTask implements ParallelTaskRunner.Task<String, String
         this.source = source;
         this.outputFileJsonFile = outputFileJsonFile;
 
-        JsonFactory jsonFactory = new JsonFactory();
-        ObjectMapper jsonObjectMapper = new ObjectMapper(jsonFactory);
-        jsonObjectMapper.addMixIn(VariantSourceEntry.class, VariantSourceEntryJsonMixin.class);
-        jsonObjectMapper.addMixIn(Genotype.class, GenotypeJsonMixin.class);
-        jsonObjectMapper.addMixIn(VariantStats.class, VariantStatsJsonMixin.class);
-        jsonObjectMapper.addMixIn(VariantSource.class, VariantSourceJsonMixin.class);
-        jsonObjectMapper.addMixIn(VariantAnnotation.class, VariantAnnotationMixin.class);
-
-        this.jsonObjectMapper = jsonObjectMapper;
+        this.jsonObjectMapper = createObjectMapper(new JsonFactory());
         this.objectWriter = jsonObjectMapper.writerFor(Variant.class);
     }
 
+    /**
+     * Creates an ObjectMapper with the variant mixins for any Jackson format (i.e. JSON or Smile).
+     */
+    static ObjectMapper createObjectMapper(JsonFactory jsonFactory) {
+        ObjectMapper objectMapper = new ObjectMapper(jsonFactory);
+        objectMapper.addMixIn(VariantSourceEntry.class, VariantSourceEntryJsonMixin.class);
+        objectMapper.addMixIn(Genotype.class, GenotypeJsonMixin.class);
+        objectMapper.addMixIn(VariantStats.class, VariantStatsJsonMixin.class);
+        objectMapper.addMixIn(VariantSource.class, VariantSourceJsonMixin.class);
+        objectMapper.addMixIn(VariantAnnotation.class, VariantAnnotationMixin.class);
+        return objectMapper;
+    }
+
     public void setIncludeSrc(boolean includeSrc) {
         this.includeSrc = includeSrc;
     }
 
     @Override
     public void post() {
+        writeVariantSource(jsonObjectMapper, source, outputFileJsonFile);
+    }
+
+    /**
+     * Writes the VariantSource into the file.json
+     */
+    static void writeVariantSource(VariantSource source, Path outputFileJsonFile) {
+        writeVariantSource(createObjectMapper(new JsonFactory()), source, outputFileJsonFile);
+    }
+
+    private static void writeVariantSource(ObjectMapper jsonObjectMapper, VariantSource source, Path outputFileJsonFile) {
         ObjectWriter variantSourceObjectWriter = jsonObjectMapper.writerFor(VariantSource.class);
         try {
             String sourceJsonString = variantSourceObjectWriter.writeValueAsString(source);
@@ -92,27 +108,8 @@ class VariantJsonTransformTask implements ParallelTaskRunner.Task<String, String
 //            logger.info("batch.size() = " + batch.size());
         try {
             for (String line : batch) {
-                if (line.startsWith("#") || line.trim().isEmpty()) {
-                    continue;
-                }
-                List<Variant> variants = null;
-                try {
-                    variants = factory.create(source, line);
-                } catch (NotAVariantException e) {
-                    variants = Collections.emptyList();
-                } catch (Exception e) {
-                    logger.error("Error parsing line: {}", line);
-                    throw e;
-                }
-                for (Variant variant : variants) {
+                for (Variant variant : convert(line)) {
                     try {
-                        if (!includeSrc) {
-                            for (VariantSourceEntry variantSourceEntry : variant.getSourceEntries().values()) {
-                                if (variantSourceEntry.getAttributes().containsKey("src")) {
-                                    variantSourceEntry.getAttributes().remove("src");
-                                }
-                            }
-                        }
                         String e = objectWriter.writeValueAsString(variant);
                         outputBatch.add(e + "\n");
                     } catch (IOException e) {
@@ -133,4 +130,35 @@ class VariantJsonTransformTask implements ParallelTaskRunner.Task<String, String
         }
         return batch;
     }
+
+    /**
+     * Convert a VCF line into variants. Header and empty lines return no variants.
+     *
+     * @param line  VCF line
+     * @return      Variants in the line
+     */
+    List<Variant> convert(String line) {
+        if (line.startsWith("#") || line.trim().isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Variant> variants;
+        try {
+            variants = factory.create(source, line);
+        } catch (NotAVariantException e) {
+            variants = Collections.emptyList();
+        } catch (Exception e) {
+            logger.error("Error parsing line: {}", line);
+            throw e;
+        }
+        if (!includeSrc) {
+            for (Variant variant : variants) {
+                for (VariantSourceEntry variantSourceEntry : variant.getSourceEntries().values()) {
+                    if (variantSourceEntry.getAttributes().containsKey("src")) {
+                        variantSourceEntry.getAttributes().remove("src");
+                    }
+                }
+            }
+        }
+        return variants;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2015 OpenCB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opencb.opencga.storage.core.variant;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import org.opencb.biodata.models.variant.Variant;
+import org.opencb.commons.run.ParallelTaskRunner;
+import org.opencb.opencga.storage.core.runner.BgzfCompressTask;
+import org.opencb.opencga.storage.core.variant.io.json.VariantJsonReader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Transforms VCF lines into a binary Smile stream of variants. Each output batch is a sequence of Smile
+ * root values, optionally compressed as BGZF blocks.
+ *
+ * Uses the same mixins than the JSON transformation, so the {@link VariantJsonReader} reads both formats
+ * the same way.
+ */
+class VariantSmileTransformTask implements ParallelTaskRunner.Task<String, byte[]> {
+
+    private final VariantJsonTransformTask jsonTransformTask;
+    private final SmileFactory smileFactory;
+    private final ObjectWriter objectWriter;
+    private final boolean compress;
+
+    /**
+     * @param jsonTransformTask     Task used to convert the lines into variants and to write the VariantSource at the post
+     * @param compress              Compress the output as BGZF blocks
+     */
+    public VariantSmileTransformTask(VariantJsonTransformTask jsonTransformTask, boolean compress) {
+        this.jsonTransformTask = jsonTransformTask;
+        this.compress = compress;
+        smileFactory = VariantJsonReader.createSmileFactory();
+        ObjectMapper objectMapper = VariantJsonTransformTask.createObjectMapper(smileFactory);
+        objectWriter = objectMapper.writerFor(Variant.class);
+    }
+
+    @Override
+    public void pre() {
+        jsonTransformTask.pre();
+    }
+
+    @Override
+    public List<byte[]> apply(List<String> batch) {
+        ByteArrayOutputStream os = new ByteArrayOutputStream(batch.size() * 512);
+        try (JsonGenerator generator = smileFactory.createGenerator(os)) {
+            for (String line : batch) {
+                for (Variant variant : jsonTransformTask.convert(line)) {
+                    objectWriter.writeValue(generator, variant);
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Error writing variants batch", e);
+        }
+        byte[] bytes = os.toByteArray();
+        return Collections.singletonList(compress ? BgzfCompressTask.compress(bytes) : bytes);
+    }
+
+    @Override
+    public void post() {
+        jsonTransformTask.post();
+    }
+}
@@ -34,6 +34,10 @@ import org.opencb.opencga.storage.core.StorageManager;
 import org.opencb.opencga.storage.core.StorageManagerException;
 import org.opencb.opencga.storage.core.StudyConfiguration;
 import org.opencb.opencga.storage.core.config.StorageConfiguration;
+import org.opencb.opencga.storage.core.runner.BgzfCompressTask;
+import org.opencb.opencga.storage.core.runner.BgzfDataWriter;
+import org.opencb.opencga.storage.core.runner.ByteDataWriter;
+import org.opencb.opencga.storage.core.runner.BgzfStringDataReader;
 import org.opencb.opencga.storage.core.runner.StringDataReader;
 import org.opencb.opencga.storage.core.runner.StringDataWriter;
 import org.opencb.opencga.storage.core.variant.adaptors.VariantDBAdaptor;
@@ -107,11 +111,17 @@ public abstract class VariantStorageManager extends StorageManager<VariantWriter
 
         TRANSFORM_BATCH_SIZE ("transform.batch.size", 200),
         TRANSFORM_THREADS ("transform.threads", 4),
+        TRANSFORM_READ_THREADS ("transform.read.threads", 2),     //Threads decompressing BGZF input files. 0 for a single thread reader
+        TRANSFORM_FORMAT ("transform.format", "json"),            //Intermediate variants format. "json" or "smile" (binary JSON)
+        STREAM_LOAD ("streamLoad", false),                         //Transform and load in a single step, without the intermediate variants file
         LOAD_BATCH_SIZE ("load.batch.size", 100),
         LOAD_THREADS ("load.threads", 4),
+        LOAD_READ_THREADS ("load.read.threads", 2),               //Threads decompressing BGZF transformed files. 0 for a single thread reader
 
         CALCULATE_STATS ("calculateStats", false),          //Calculate stats on the postLoad step
         OVERWRITE_STATS ("overwriteStats", false),          //Overwrite stats already present
+        STATS_SHARD_SIZE ("stats.shard.size", 10000000),    //Size of the chromosome ranges with stats calculated in parallel. 0 to split only by chromosome
+        STATS_DIRECT_LOAD ("stats.directLoad", false),      //Store the stats on the postLoad step while calculating them, without intermediate files
         ANNOTATE ("annotate", false);
 
         private final String key;
@@ -196,19 +206,10 @@ public abstract class VariantStorageManager extends StorageManager<VariantWriter
         boolean includeStats = options.getBoolean(Options.INCLUDE_STATS.key, false);
         boolean includeSrc = options.getBoolean(Options.INCLUDE_SRC.key, Options.INCLUDE_SRC.defaultValue());
 
-        StudyConfiguration studyConfiguration = getStudyConfiguration(options);
-        Integer fileId = options.getInt(Options.FILE_ID.key);    //TODO: Transform into an optional field
         VariantSource.Aggregation aggregation = options.get(Options.AGGREGATED_TYPE.key, VariantSource.Aggregation.class, Options.AGGREGATED_TYPE.defaultValue());
         String fileName = input.getFileName().toString();
-        VariantStudy.StudyType type = options.get(Options.STUDY_TYPE.key, VariantStudy.StudyType.class, Options.STUDY_TYPE.defaultValue());
-        VariantSource source = new VariantSource(
-                fileName,
-                fileId.toString(),
-                Integer.toString(studyConfiguration.getStudyId()),
-                studyConfiguration.getStudyName(), type, aggregation);
+        VariantSource source = buildVariantSource(input, options);
 
-       
-       
         int batchSize = options.getInt(Options.TRANSFORM_BATCH_SIZE.key, Options.TRANSFORM_BATCH_SIZE.defaultValue());
 
         String compression = options.getString(Options.COMPRESS_METHOD.key, Options.COMPRESS_METHOD.defaultValue());
@@ -224,25 +225,37 @@ public abstract class VariantStorageManager extends StorageManager<VariantWriter
             throw new IllegalArgumentException("Unknown compression method " + compression);
         }
 
-        // TODO Create a utility to determine which extensions are variants files
-        final VariantVcfFactory factory;
-        if (fileName.endsWith(".vcf") || fileName.endsWith(".vcf.gz") || fileName.endsWith(".vcf.snappy")) {
-            if (VariantSource.Aggregation.NONE.equals(aggregation)) {
-                factory = new VariantVcfFactory();
-            } else {
-                factory = new VariantAggregatedVcfFactory();
+        String format = options.getString(Options.TRANSFORM_FORMAT.key, Options.TRANSFORM_FORMAT.defaultValue());
+        boolean smile;
+        if (format.equalsIgnoreCase("smile")) {
+            smile = true;
+            if (extension.equals(".snappy")) {  //FIXME: Add compatibility with snappy compression
+                logger.warn("Force using gzip compression");
+                extension = ".gz";
             }
+        } else if (format.equalsIgnoreCase("json")) {
+            smile = false;
         } else {
-            throw new StorageManagerException("Variants input file format not supported");
+            throw new IllegalArgumentException("Unknown transform format " + format);
         }
 
+        final VariantVcfFactory factory = buildVariantFactory(fileName, aggregation);
+
 
-        Path outputVariantJsonFile = output.resolve(fileName + ".variants.json" + extension);
+        Path outputVariantJsonFile = output.resolve(fileName + (smile ? ".variants.smile" : ".variants.json") + extension);
         Path outputFileJsonFile = output.resolve(fileName + ".file.json" + extension);
 
+        if (options.getBoolean(Options.STREAM_LOAD.key, Options.STREAM_LOAD.defaultValue())) {
+            //The variants will be transformed at the load step. Only write the VariantSource
+            source = readVariantSource(input, source);
+            VariantJsonTransformTask.writeVariantSource(source, outputFileJsonFile);
+            logger.info("Stream load. Skip variants transformation");
+            return inputUri;
+        }
+
         logger.info("Transforming variants...");
         long start, end;
-        if (numTasks == 1) { //Run transformation with a SingleThread runner. The legacy way
+        if (numTasks == 1 && !smile) { //Run transformation with a SingleThread runner. The legacy way
             if (!extension.equals(".gz")) { //FIXME: Add compatibility with snappy compression
                 logger.warn("Force using gzip compression");
                 extension = ".gz";
@@ -284,28 +297,49 @@ public abstract class VariantStorageManager extends StorageManager<VariantWriter
             source = readVariantSource(input, source);
 
             //Reader
-            StringDataReader dataReader = new StringDataReader(input);
-
-            //Writers
-            StringDataWriter dataWriter = new StringDataWriter(outputVariantJsonFile);
+            int readThreads = options.getInt(Options.TRANSFORM_READ_THREADS.key, Options.TRANSFORM_READ_THREADS.defaultValue());
+            StringDataReader dataReader = buildVcfDataReader(input, readThreads);
+            if (!(dataReader instanceof BgzfStringDataReader)) {
+                readThreads = 1;
+            }
 
             final VariantSource finalSource = source;
             final Path finalOutputFileJsonFile = outputFileJsonFile;
-            ParallelTaskRunner<String, String> ptr;
+            ParallelTaskRunner<String, ?> ptr;
             try {
                 VariantJsonTransformTask variantJsonTransformTask = new VariantJsonTransformTask(factory, finalSource, finalOutputFileJsonFile);
                 variantJsonTransformTask.setIncludeSrc(includeSrc);
-                ptr = new ParallelTaskRunner<>(
-                        dataReader,
-                        variantJsonTransformTask,
-                        dataWriter,
-                        new ParallelTaskRunner.Config(numTasks, batchSize, capacity, false)
-                );
+                ParallelTaskRunner.Config config = new ParallelTaskRunner.Config(numTasks, batchSize, capacity, true);    //Keep the order of the batches
+                if (smile) {
+                    //Serialize (and compress, if needed) the variants in the transform threads
+                    boolean compress = extension.equals(".gz");
+                    ptr = new ParallelTaskRunner<>(
+                            dataReader,
+                            new VariantSmileTransformTask(variantJsonTransformTask, compress),
+                            compress ? new BgzfDataWriter(outputVariantJsonFile) : new ByteDataWriter(outputVariantJsonFile),
+                            config
+                    );
+                } else if (extension.equals(".gz")) {
+                    //Compress BGZF blocks in the transform threads. The writer only appends the compressed blocks
+                    ptr = new ParallelTaskRunner<>(
+                            dataReader,
+                            new BgzfCompressTask<>(variantJsonTransformTask),
+                            new BgzfDataWriter(outputVariantJsonFile),
+                            config
+                    );
+                } else {
+                    ptr = new ParallelTaskRunner<>(
+                            dataReader,
+                            variantJsonTransformTask,
+                            new StringDataWriter(outputVariantJsonFile),
+                            config
+                    );
+                }
             } catch (Exception e) {
                 e.printStackTrace();
                 throw new StorageManagerException("Error while creating ParallelTaskRunner", e);
             }
-            logger.info("Multi thread transform... [1 reading, {} transforming, 1 writing]", numTasks);
+            logger.info("Multi thread transform... [{} reading, {} transforming, 1 writing]", readThreads, numTasks);
             start = System.currentTimeMillis();
             try {
                 ptr.run();
@@ -321,6 +355,67 @@ public abstract class VariantStorageManager extends StorageManager<VariantWriter
         return outputUri.resolve(outputVariantJsonFile.getFileName().toString());
     }
 
+    /**
+     * Creates the VariantSource for a raw variants file, from the FILE_ID and the StudyConfiguration in the options.
+     * The VCF header is not read.
+     */
+    protected VariantSource buildVariantSource(Path input, ObjectMap options) throws StorageManagerException {
+        StudyConfiguration studyConfiguration = getStudyConfiguration(options);
+        Integer fileId = options.getInt(Options.FILE_ID.key);    //TODO: Transform into an optional field
+        VariantSource.Aggregation aggregation = options.get(Options.AGGREGATED_TYPE.key, VariantSource.Aggregation.class, Options.AGGREGATED_TYPE.defaultValue());
+        VariantStudy.StudyType type = options.get(Options.STUDY_TYPE.key, VariantStudy.StudyType.class, Options.STUDY_TYPE.defaultValue());
+        return new VariantSource(
+                input.getFileName().toString(),
+                fileId.toString(),
+                Integer.toString(studyConfiguration.getStudyId()),
+                studyConfiguration.getStudyName(), type, aggregation);
+    }
+
+    protected static VariantVcfFactory buildVariantFactory(String fileName, VariantSource.Aggregation aggregation) throws StorageManagerException {
+        // TODO Create a utility to determine which extensions are variants files
+        if (isVcfFile(fileName)) {
+            if (VariantSource.Aggregation.NONE.equals(aggregation)) {
+                return new VariantVcfFactory();
+            } else {
+                return new VariantAggregatedVcfFactory();
+            }
+        } else {
+            throw new StorageManagerException("Variants input file format not supported");
+        }
+    }
+
+    public static boolean isVcfFile(String fileName) {
+        return fileName.endsWith(".vcf") || fileName.endsWith(".vcf.gz") || fileName.endsWith(".vcf.snappy");
+    }
+
+    /**
+     * Checks the {@link Options#STREAM_LOAD} option. In stream load mode the input of the load is the raw VCF file.
+     */
+    protected static boolean isStreamLoad(Path input, ObjectMap options) throws StorageManagerException {
+        if (!options.getBoolean(Options.STREAM_LOAD.key, Options.STREAM_LOAD.defaultValue())) {
+            return false;
+        }
+        if (!isVcfFile(input.getFileName().toString())) {
+            throw new StorageManagerException("Stream load expects a VCF file, not " + input);
+        }
+        return true;
+    }
+
+    /**
+     * Reads the lines of a raw variants file. BGZF files are decompressed with readThreads threads.
+     */
+    protected static StringDataReader buildVcfDataReader(Path input, int readThreads) throws StorageManagerException {
+        try {
+            if (readThreads > 0 && input.toString().endsWith(".gz") && BgzfStringDataReader.isBgzf(input)) {
+                return new BgzfStringDataReader(input, readThreads);
+            } else {
+                return new StringDataReader(input);
+            }
+        } catch (IOException e) {
+            throw new StorageManagerException("Unable to read input file " + input, e);
+        }
+    }
+
     @Override
     public URI postTransform(URI input) throws IOException, FileFormatException {
         return input;
@@ -338,8 +433,14 @@ public abstract class VariantStorageManager extends StorageManager<VariantWriter
             options.put(Options.STUDY_CONFIGURATION.key, studyConfiguration);
         }
 
-        //TODO: Expect JSON file
-        VariantSource source = readVariantSource(Paths.get(input.getPath()), null);
+        //Expect a JSON file, or a VCF file in stream load mode
+        Path inputPath = Paths.get(input.getPath());
+        VariantSource source;
+        if (isStreamLoad(inputPath, options)) {
+            source = readVariantSource(inputPath, buildVariantSource(inputPath, options));
+        } else {
+            source = readVariantSource(inputPath, null);
+        }
 
         /*
          * Before load file, check and add fileName to the StudyConfiguration.
@@ -511,28 +612,39 @@ public abstract class VariantStorageManager extends StorageManager<VariantWriter
                 return input;
             }
 
-            VariantAnnotationManager variantAnnotationManager = new VariantAnnotationManager(annotator, getDBAdaptor(dbName));
-
-            QueryOptions annotationOptions = new QueryOptions();
-            Query annotationQuery = new Query();
-            if (!options.getBoolean(VariantAnnotationManager.OVERWRITE_ANNOTATIONS, false)) {
-                annotationOptions.put(VariantDBAdaptor.VariantQueryParams.ANNOTATION_EXISTS.key(), false);
+            VariantDBAdaptor dbAdaptor = getDBAdaptor(dbName);
+            try {
+                VariantAnnotationManager variantAnnotationManager = new VariantAnnotationManager(annotator, dbAdaptor);
+
+                QueryOptions annotationOptions = new QueryOptions();
+                Query annotationQuery = new Query();
+                if (options.getBoolean(VariantAnnotationManager.OVERWRITE_ANNOTATIONS, false)) {
+                    annotationOptions.put(VariantAnnotationManager.OVERWRITE_ANNOTATIONS, true);
+                } else if (!options.getBoolean(VariantAnnotationManager.INCREMENTAL_ANNOTATION, false)) {
+                    // The incremental annotation selects the variants with a missing or stale annotation
+                    annotationQuery.put(VariantDBAdaptor.VariantQueryParams.ANNOTATION_EXISTS.key(), false);
+                }
+                annotationOptions.put(VariantAnnotationManager.INCREMENTAL_ANNOTATION,
+                        options.getBoolean(VariantAnnotationManager.INCREMENTAL_ANNOTATION, false));
+                annotationQuery.put(VariantDBAdaptor.VariantQueryParams.FILES.key(), Collections.singletonList(fileId));    // annotate just the indexed variants
+
+                annotationOptions.add(VariantAnnotationManager.OUT_DIR, output.getPath());
+                annotationOptions.add(VariantAnnotationManager.FILE_NAME, dbName + "." + TimeUtils.getTime());
+                variantAnnotationManager.annotate(annotationQuery, annotationOptions);
+            } finally {
+                dbAdaptor.close();
             }
-            annotationOptions.put(VariantDBAdaptor.VariantQueryParams.FILES.key(), Collections.singletonList(fileId));    // annotate just the indexed variants
-
-            annotationOptions.add(VariantAnnotationManager.OUT_DIR, output.getPath());
-            annotationOptions.add(VariantAnnotationManager.FILE_NAME, dbName + "." + TimeUtils.getTime());
-            variantAnnotationManager.annotate(annotationQuery, annotationOptions);
 //            URI annotationFile = variantAnnotationManager.createAnnotation(Paths.get(output.getPath()), dbName + "." + TimeUtils.getTime(), annotationOptions);
 //            variantAnnotationManager.loadAnnotation(annotationFile, annotationOptions);
         }
 
         if (options.getBoolean(Options.CALCULATE_STATS.key, Options.CALCULATE_STATS.defaultValue())) {
             // TODO add filters
+            logger.debug("about to calculate stats");
+            VariantDBAdaptor dbAdaptor = null;
             try {
-                logger.debug("about to calculate stats");
+                dbAdaptor = getDBAdaptor(dbName);
                 VariantStatisticsManager variantStatisticsManager = new VariantStatisticsManager();
-                VariantDBAdaptor dbAdaptor = getDBAdaptor(dbName);
                 URI statsOutputUri = output.resolve(buildFilename(studyConfiguration.getStudyName(), fileId) + "." + TimeUtils.getTime());
 
                 String defaultCohortName = VariantSourceEntry.DEFAULT_COHORT;
@@ -550,11 +662,19 @@ public abstract class VariantStorageManager extends StorageManager<VariantWriter
                     }
                 }
 
-                URI statsUri = variantStatisticsManager.createStats(dbAdaptor, statsOutputUri, defaultCohort, new HashMap<>(), studyConfiguration, new QueryOptions(options));
-                variantStatisticsManager.loadStats(dbAdaptor, statsUri, studyConfiguration, new QueryOptions(options));
+                if (options.getBoolean(Options.STATS_DIRECT_LOAD.key, Options.STATS_DIRECT_LOAD.defaultValue())) {
+                    variantStatisticsManager.createAndLoadStats(dbAdaptor, defaultCohort, new HashMap<>(), studyConfiguration, new QueryOptions(options));
+                } else {
+                    URI statsUri = variantStatisticsManager.createStats(dbAdaptor, statsOutputUri, defaultCohort, new HashMap<>(), studyConfiguration, new QueryOptions(options));
+                    variantStatisticsManager.loadStats(dbAdaptor, statsUri, studyConfiguration, new QueryOptions(options));
+                }
             } catch (Exception e) {
                 logger.error("Can't calculate stats." , e);
                 e.printStackTrace();
+            } finally {
+                if (dbAdaptor != null) {
+                    dbAdaptor.close();
+                }
             }
         }
 
@@ -574,7 +694,7 @@ public abstract class VariantStorageManager extends StorageManager<VariantWriter
         if (source == null) {
             source = new VariantSource("", "", "", "");
         }
-        if (input.toFile().getName().contains("json")) {
+        if (input.toFile().getName().contains("json") || input.toFile().getName().contains("smile")) {
             try {
                 VariantJsonReader reader = getVariantJsonReader(input, source);
                 reader.open();
@@ -603,6 +723,9 @@ public abstract class VariantStorageManager extends StorageManager<VariantWriter
                 input.toString().endsWith(".json.snz")) {
             String sourceFile = input.toAbsolutePath().toString().replace("variants.json", "file.json");
             variantJsonReader = new VariantJsonReader(source, input.toAbsolutePath().toString(), sourceFile);
+        } else if (input.toString().endsWith(".smile") || input.toString().endsWith(".smile.gz")) {
+            String sourceFile = input.toAbsolutePath().toString().replace("variants.smile", "file.json");
+            variantJsonReader = new VariantJsonReader(source, input.toAbsolutePath().toString(), sourceFile);
         } else {
             throw new IOException("Variants input file format not supported for file: " + input);
         }
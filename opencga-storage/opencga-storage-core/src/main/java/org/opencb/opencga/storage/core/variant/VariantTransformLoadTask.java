@@ -0,0 +1,168 @@
+/*
+ * Copyright 2015 OpenCB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opencb.opencga.storage.core.variant;
+
+import org.opencb.biodata.models.variant.Variant;
+import org.opencb.biodata.models.variant.VariantFactory;
+import org.opencb.biodata.models.variant.VariantSource;
+import org.opencb.commons.io.DataReader;
+import org.opencb.commons.io.DataWriter;
+import org.opencb.commons.run.ParallelTaskRunner;
+import org.slf4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Transforms VCF lines into variants and writes them with its own DataWriter, without an intermediate file.
+ * Used to transform and load the variants in a single {@link ParallelTaskRunner} pipeline.
+ *
+ * The time spent on each stage is accumulated in a shared {@link Throughput}.
+ */
+public class VariantTransformLoadTask implements ParallelTaskRunner.Task<String, Variant> {
+
+    private final VariantJsonTransformTask transformTask;
+    private final DataWriter<Variant> writer;
+    private final Throughput throughput;
+
+    public VariantTransformLoadTask(VariantFactory factory, VariantSource source, boolean includeSrc,
+                                    DataWriter<Variant> writer, Throughput throughput) {
+        this.transformTask = new VariantJsonTransformTask(factory, source, null);
+        this.transformTask.setIncludeSrc(includeSrc);
+        this.writer = writer;
+        this.throughput = throughput;
+    }
+
+    @Override
+    public void pre() {
+        writer.pre();
+    }
+
+    @Override
+    public List<Variant> apply(List<String> batch) {
+        long start = System.nanoTime();
+        List<Variant> variants = new ArrayList<>(batch.size());
+        for (String line : batch) {
+            variants.addAll(transformTask.convert(line));
+        }
+        long transformed = System.nanoTime();
+        writer.write(variants);
+        long loaded = System.nanoTime();
+
+        throughput.transformNanos.addAndGet(transformed - start);
+        throughput.loadNanos.addAndGet(loaded - transformed);
+        throughput.variants.addAndGet(variants.size());
+        // The variants are already written. Nothing to send to the writer of the runner
+        return Collections.emptyList();
+    }
+
+    @Override
+    public void post() {
+        // The writer post is executed by the caller, after all the tasks have finished
+    }
+
+    /**
+     * Accumulated time and number of elements for each stage of the pipeline: read, transform and load.
+     */
+    public static class Throughput {
+        private final AtomicLong readNanos = new AtomicLong();
+        private final AtomicLong lines = new AtomicLong();
+        private final AtomicLong transformNanos = new AtomicLong();
+        private final AtomicLong loadNanos = new AtomicLong();
+        private final AtomicLong variants = new AtomicLong();
+
+        /**
+         * Wraps a reader to accumulate the time spent reading lines.
+         *
+         * @param reader    Reader to wrap
+         * @return          Reader counting the read time
+         */
+        public DataReader<String> timed(DataReader<String> reader) {
+            return new DataReader<String>() {
+                @Override
+                public boolean open() {
+                    return reader.open();
+                }
+
+                @Override
+                public boolean close() {
+                    return reader.close();
+                }
+
+                @Override
+                public boolean pre() {
+                    return reader.pre();
+                }
+
+                @Override
+                public boolean post() {
+                    return reader.post();
+                }
+
+                @Override
+                public List<String> read() {
+                    return read(1);
+                }
+
+                @Override
+                public List<String> read(int batchSize) {
+                    long start = System.nanoTime();
+                    List<String> batch = reader.read(batchSize);
+                    readNanos.addAndGet(System.nanoTime() - start);
+                    if (batch != null) {
+                        lines.addAndGet(batch.size());
+                    }
+                    return batch;
+                }
+            };
+        }
+
+        /**
+         * Logs the throughput of each stage. Transform and load times are accumulated by all the tasks, so are
+         * divided by the number of tasks to get the wall time.
+         *
+         * @param logger    Logger
+         * @param numTasks  Number of tasks running in parallel
+         */
+        public void log(Logger logger, int numTasks) {
+            logger.info("Read      : {} lines in {}s ({} lines/s)", lines.get(), seconds(readNanos.get()),
+                    perSecond(lines.get(), readNanos.get()));
+            logger.info("Transform : {} variants in {}s per task ({} variants/s with {} tasks)", variants.get(),
+                    seconds(transformNanos.get() / numTasks), perSecond(variants.get(), transformNanos.get() / numTasks), numTasks);
+            logger.info("Load      : {} variants in {}s per task ({} variants/s with {} tasks)", variants.get(),
+                    seconds(loadNanos.get() / numTasks), perSecond(variants.get(), loadNanos.get() / numTasks), numTasks);
+        }
+
+        public long getLines() {
+            return lines.get();
+        }
+
+        public long getVariants() {
+            return variants.get();
+        }
+
+        private static double seconds(long nanos) {
+            return nanos / 1000000 / 1000.0;
+        }
+
+        private static long perSecond(long count, long nanos) {
+            return nanos == 0 ? 0 : count * 1000000000L / nanos;
+        }
+    }
+}
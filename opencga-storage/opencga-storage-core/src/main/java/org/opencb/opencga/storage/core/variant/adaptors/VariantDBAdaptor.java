@@ -59,6 +59,7 @@ public interface VariantDBAdaptor extends Iterable<Variant> {
         MISSING_ALLELES ("missingAlleles", TEXT_ARRAY, ""),
         MISSING_GENOTYPES ("missingGenotypes", TEXT_ARRAY, ""),
         ANNOTATION_EXISTS ("annotationExists", TEXT_ARRAY, ""),
+        ANNOTATOR_ID ("annotatorId", TEXT, "Annotator and version of the stored annotation. Use !{annotatorId} to select variants with a missing or different annotation"),
         GENOTYPE ("genotype", TEXT_ARRAY, ""),
         ANNOT_CONSEQUENCE_TYPE ("annot-ct", TEXT_ARRAY, ""),
         ANNOT_XREF ("annot-xref", TEXT_ARRAY, ""),
@@ -145,7 +146,8 @@ public interface VariantDBAdaptor extends Iterable<Variant> {
      * Fetch all variants resulting of executing the query in the database. Returned fields are taken from
      * the 'include' and 'exclude' fields at options.
      * @param query Query to be executed in the database to filter variants
-     * @param options Query modifiers, accepted values are: include, exclude, limit, skip, sort and count
+     * @param options Query modifiers, accepted values are: include, exclude, limit, skip, sort and count.
+     *                Sort is true to sort by chromosome and start, or "desc" for the reverse order
      * @return A QueryResult with the result of the query
      */
     QueryResult<Variant> get(Query query, QueryOptions options);
@@ -229,6 +231,12 @@ public interface VariantDBAdaptor extends Iterable<Variant> {
     QueryResult deleteAnnotation(String annotationId, Query query, QueryOptions queryOptions);
 
 
+    /**
+     * Release the resources of the DBAdaptor, like the shared connections. Every DBAdaptor must be closed,
+     * preferably in a finally block. Closing it more than once has no effect.
+     *
+     * @return false if the DBAdaptor was already closed
+     */
     boolean close();
 
 
@@ -17,9 +17,9 @@
 package org.opencb.opencga.storage.core.variant.annotation;
 
 import com.fasterxml.jackson.core.JsonFactory;
-import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 import com.fasterxml.jackson.databind.ObjectWriter;
 import org.opencb.biodata.models.variant.Variant;
 import org.opencb.biodata.models.variant.annotation.VariantAnnotation;
@@ -31,11 +31,13 @@ import org.opencb.cellbase.core.db.api.variation.VariationDBAdaptor;
 import org.opencb.commons.io.DataReader;
 import org.opencb.commons.io.DataWriter;
 import org.opencb.commons.run.ParallelTaskRunner;
+import org.opencb.datastore.core.ObjectMap;
 import org.opencb.datastore.core.Query;
 import org.opencb.datastore.core.QueryOptions;
 import org.opencb.datastore.core.QueryResponse;
 import org.opencb.datastore.core.QueryResult;
 import org.opencb.opencga.storage.core.config.CellBaseConfiguration;
+import org.opencb.opencga.storage.core.runner.StringDataReader;
 import org.opencb.opencga.storage.core.variant.adaptors.VariantDBAdaptor;
 import org.opencb.opencga.storage.core.variant.io.json.VariantAnnotationMixin;
 import org.slf4j.Logger;
@@ -48,7 +50,7 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.zip.GZIPInputStream;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.zip.GZIPOutputStream;
 
 /**
@@ -63,6 +65,11 @@ public class CellBaseVariantAnnotator implements VariantAnnotator {
     private ObjectMapper jsonObjectMapper;
     private VariationDBAdaptor variationDBAdaptor;
     private DBAdaptorFactory dbAdaptorFactory;
+    private String cellbaseVersion;
+    private VariantAnnotationCache annotationCache;
+    private Path annotationCacheDir;
+    private final AtomicLong remoteCalls = new AtomicLong();
+    private final AtomicLong remoteVariants = new AtomicLong();
 
 //    public static final String CELLBASE_VERSION = "CELLBASE.VERSION";
 //    public static final String CELLBASE_REST_URL = "CELLBASE.REST.URL";
@@ -106,6 +113,11 @@ public class CellBaseVariantAnnotator implements VariantAnnotator {
         cellBaseClient.getObjectMapper().addMixIn(VariantAnnotation.class, VariantAnnotationMixin.class);
     }
 
+    public CellBaseVariantAnnotator(CellBaseClient cellBaseClient, String cellbaseVersion) {
+        this(cellBaseClient);
+        this.cellbaseVersion = cellbaseVersion;
+    }
+
     public static CellBaseVariantAnnotator buildCellbaseAnnotator(CellBaseConfiguration cellBaseConfiguration, String species, String assembly, boolean restConnection)
             throws VariantAnnotatorException {
         if (restConnection) {
@@ -128,7 +140,7 @@ public class CellBaseVariantAnnotator implements VariantAnnotator {
                 e.printStackTrace();
                 throw new VariantAnnotatorException("Invalid URL : " + cellbaseRest, e);
             }
-            return new CellBaseVariantAnnotator(cellBaseClient);
+            return new CellBaseVariantAnnotator(cellBaseClient, cellbaseVersion);
         } else {
             throw new UnsupportedOperationException("Unimplemented CellBase dbAdaptor connection. Use CellBaseClient instead");
 //            String cellbaseHost = annotatorProperties.getProperty(CELLBASE_DB_HOST, "");
@@ -169,15 +181,47 @@ public class CellBaseVariantAnnotator implements VariantAnnotator {
         }
     }
 
+    /**
+     * Use a persistent annotation cache. Only the variants missing in the cache are annotated with CellBase.
+     */
+    public void setAnnotationCache(VariantAnnotationCache annotationCache) {
+        this.annotationCache = annotationCache;
+    }
+
+    /**
+     * Open an annotation cache in the given directory on each {@link #createAnnotation}, for the CellBase version
+     * of this annotator. The cache is not used if the version is unknown.
+     */
+    public void setAnnotationCacheDir(Path annotationCacheDir) {
+        this.annotationCacheDir = annotationCacheDir;
+    }
+
+    /**
+     * @return Metrics: number of requests and variants sent to CellBase, and the annotation cache metrics, if any.
+     */
+    public ObjectMap getMetrics() {
+        ObjectMap metrics = new ObjectMap();
+        metrics.put("remoteCalls", remoteCalls.get());
+        metrics.put("remoteVariants", remoteVariants.get());
+        if (annotationCache != null) {
+            metrics.put("cache", annotationCache.getMetrics());
+        }
+        return metrics;
+    }
+
+    /**
+     * @return "cellbase_{version}", or null if the CellBase version is unknown.
+     */
+    @Override
+    public String getAnnotatorId() {
+        return cellbaseVersion == null ? null : "cellbase_" + cellbaseVersion;
+    }
+
     /////// CREATE ANNOTATION
 
     @Override
     public URI createAnnotation(VariantDBAdaptor variantDBAdaptor, Path outDir, String fileName, Query query, QueryOptions options)
             throws IOException {
-        if(cellBaseClient == null && dbAdaptorFactory == null) {
-            throw new IllegalStateException("Cant createAnnotation without a CellBase source (DBAdaptorFactory or a CellBaseClient)");
-        }
-
         boolean gzip = options == null || options.getBoolean("gzip", true);
         Path path = Paths.get(outDir != null? outDir.toString() : "/tmp" ,fileName + ".annot.json" + (gzip? ".gz" : ""));
         URI fileUri = path.toUri();
@@ -193,6 +237,85 @@ public class CellBaseVariantAnnotator implements VariantAnnotator {
         /** Initialize Json serializer**/
         ObjectWriter writer = jsonObjectMapper.writerFor(VariantAnnotation.class);
 
+        DataWriter<VariantAnnotation> variantAnnotationDataWriter = variantAnnotationList -> {
+            try {
+                for (VariantAnnotation variantAnnotation : variantAnnotationList) {
+                    outputStream.write(writer.writeValueAsString(variantAnnotation).getBytes());
+                    outputStream.write('\n');
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                throw new RuntimeException(e);
+            }
+            return true;
+        };
+
+        try {
+            annotate(variantDBAdaptor, query, options, variantAnnotationDataWriter);
+        } finally {
+            outputStream.close();
+        }
+
+        return fileUri;
+    }
+
+    /**
+     * Annotates the variants and stores the annotations with {@link VariantDBAdaptor#updateAnnotations}, without
+     * an intermediate file. The annotations are stored with the id of this annotator.
+     */
+    @Override
+    public void annotateAndLoad(VariantDBAdaptor variantDBAdaptor, Query query, QueryOptions options) throws IOException {
+        QueryOptions updateOptions = new QueryOptions();
+        if (getAnnotatorId() != null) {
+            updateOptions.put(VariantDBAdaptor.VariantQueryParams.ANNOTATOR_ID.key(), getAnnotatorId());
+        }
+        final long[] numAnnotations = {0};
+        annotate(variantDBAdaptor, query, options, variantAnnotationList -> {
+            if (!variantAnnotationList.isEmpty()) {
+                variantDBAdaptor.updateAnnotations(variantAnnotationList, updateOptions);
+                numAnnotations[0] += variantAnnotationList.size();
+            }
+            return true;
+        });
+        logger.info("Loaded {} annotations", numAnnotations[0]);
+    }
+
+    private void annotate(VariantDBAdaptor variantDBAdaptor, Query query, QueryOptions options,
+                          DataWriter<VariantAnnotation> variantAnnotationDataWriter) throws IOException {
+        VariantAnnotationCache cache = annotationCache;
+        if (cache == null) {
+            Path cacheDir = options != null && options.containsKey(VariantAnnotationManager.ANNOTATION_CACHE_DIR)
+                    ? Paths.get(options.getString(VariantAnnotationManager.ANNOTATION_CACHE_DIR))
+                    : annotationCacheDir;
+            if (cacheDir != null) {
+                if (cellbaseVersion == null) {
+                    // Annotations from different CellBase versions must not be mixed in the same cache
+                    logger.warn("Unknown CellBase version. Not using the annotation cache {}", cacheDir);
+                } else {
+                    cache = new VariantAnnotationCache(cacheDir, cellbaseVersion);
+                }
+            }
+        }
+        try {
+            annotate(variantDBAdaptor, query, options, cache, variantAnnotationDataWriter);
+        } finally {
+            if (cache != null) {
+                logger.info("Annotation cache {}. CellBase calls: {}, annotated variants: {}", cache.getMetrics().toJson(),
+                        remoteCalls.get(), remoteVariants.get());
+                if (cache != annotationCache) {
+                    cache.close();
+                }
+            }
+        }
+    }
+
+    private void annotate(VariantDBAdaptor variantDBAdaptor, Query query, QueryOptions options, VariantAnnotationCache cache,
+                          DataWriter<VariantAnnotation> variantAnnotationDataWriter)
+            throws IOException {
+        if (!hasRemoteSource() && cache == null) {
+            throw new IllegalStateException("Cant createAnnotation without a CellBase source (DBAdaptorFactory or a CellBaseClient)");
+        }
+
         /** Getting iterator from OpenCGA Variant database. **/
         QueryOptions iteratorQueryOptions;
         if(options == null) {
@@ -250,11 +373,7 @@ public class CellBaseVariantAnnotator implements VariantAnnotator {
                 long start = System.currentTimeMillis();
                 logger.debug("Annotating batch of {} genomic variants.", genomicVariantList.size());
                 try {
-                    if(cellBaseClient != null) {
-                        variantAnnotationList = getVariantAnnotationsREST(genomicVariantList);
-                    } else {
-                        variantAnnotationList = getVariantAnnotationsDbAdaptor(genomicVariantList);
-                    }
+                    variantAnnotationList = getVariantAnnotations(genomicVariantList, cache);
                 } catch (IOException e) {
                     e.printStackTrace();
                     throw new RuntimeException(e);
@@ -263,19 +382,6 @@ public class CellBaseVariantAnnotator implements VariantAnnotator {
                 return variantAnnotationList;
             };
 
-            DataWriter<VariantAnnotation> variantAnnotationDataWriter = variantAnnotationList -> {
-                try {
-                    for (VariantAnnotation variantAnnotation : variantAnnotationList) {
-                        outputStream.write(writer.writeValueAsString(variantAnnotation).getBytes());
-                        outputStream.write('\n');
-                    }
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    throw new RuntimeException(e);
-                }
-                return true;
-            };
-
             ParallelTaskRunner.Config config = new ParallelTaskRunner.Config(numThreads, batchSize, numThreads * 2, true, false);
             ParallelTaskRunner<GenomicVariant, VariantAnnotation> parallelTaskRunner = new ParallelTaskRunner<>(genomicVariantDataReader, annotationTask, variantAnnotationDataWriter, config);
             parallelTaskRunner.run();
@@ -283,15 +389,102 @@ public class CellBaseVariantAnnotator implements VariantAnnotator {
             throw e;
         } catch (Exception e) {
             throw new IOException(e);
-        } finally {
-            outputStream.close();
         }
-
-        return fileUri;
     }
 
     /////// CREATE ANNOTATION - AUX METHODS
 
+    /**
+     * Annotate from the cache, if any, and send only the missing variants to CellBase.
+     * The annotations are returned in the order of the variants.
+     */
+    private List<VariantAnnotation> getVariantAnnotations(List<GenomicVariant> genomicVariantList, VariantAnnotationCache cache)
+            throws IOException {
+        if (cache == null) {
+            return annotate(genomicVariantList);
+        }
+        VariantAnnotation[] variantAnnotations = new VariantAnnotation[genomicVariantList.size()];
+        List<Integer> missingIndexes = new ArrayList<>();
+        List<GenomicVariant> missingVariants = new ArrayList<>();
+        for (int i = 0; i < genomicVariantList.size(); i++) {
+            GenomicVariant genomicVariant = genomicVariantList.get(i);
+            variantAnnotations[i] = cache.get(genomicVariant);
+            if (variantAnnotations[i] == null) {
+                missingIndexes.add(i);
+                missingVariants.add(genomicVariant);
+            }
+        }
+        if (!missingVariants.isEmpty()) {
+            if (hasRemoteSource()) {
+                List<VariantAnnotation> remoteAnnotations = matchAnnotations(missingVariants, annotate(missingVariants));
+                List<GenomicVariant> annotatedVariants = new ArrayList<>(missingVariants.size());
+                List<VariantAnnotation> annotations = new ArrayList<>(missingVariants.size());
+                for (int i = 0; i < missingVariants.size(); i++) {
+                    VariantAnnotation variantAnnotation = remoteAnnotations.get(i);
+                    if (variantAnnotation != null) {
+                        variantAnnotations[missingIndexes.get(i)] = variantAnnotation;
+                        annotatedVariants.add(missingVariants.get(i));
+                        annotations.add(variantAnnotation);
+                    }
+                }
+                cache.put(annotatedVariants, annotations);
+            } else {
+                logger.warn("Skipping {} variants missing in the annotation cache. No CellBase source available", missingVariants.size());
+            }
+        }
+        List<VariantAnnotation> variantAnnotationList = new ArrayList<>(genomicVariantList.size());
+        for (VariantAnnotation variantAnnotation : variantAnnotations) {
+            if (variantAnnotation != null) {
+                variantAnnotationList.add(variantAnnotation);
+            }
+        }
+        return variantAnnotationList;
+    }
+
+    /**
+     * CellBase returns one annotation per variant, in the same order, unless some variant is skipped. In that case,
+     * the annotations are matched by their coordinates.
+     *
+     * @return  The annotation of each variant, or null if missing
+     */
+    private List<VariantAnnotation> matchAnnotations(List<GenomicVariant> genomicVariantList,
+                                                     List<VariantAnnotation> variantAnnotationList) {
+        if (genomicVariantList.size() == variantAnnotationList.size()) {
+            return variantAnnotationList;
+        }
+        Map<String, VariantAnnotation> annotationsMap = new HashMap<>(variantAnnotationList.size());
+        for (VariantAnnotation variantAnnotation : variantAnnotationList) {
+            annotationsMap.put(VariantAnnotationCache.buildKey(variantAnnotation.getChromosome(), variantAnnotation.getStart(),
+                    variantAnnotation.getReference(), variantAnnotation.getAlternate()), variantAnnotation);
+        }
+        List<VariantAnnotation> matched = new ArrayList<>(genomicVariantList.size());
+        for (GenomicVariant genomicVariant : genomicVariantList) {
+            matched.add(annotationsMap.get(VariantAnnotationCache.buildKey(genomicVariant.getChromosome(),
+                    genomicVariant.getPosition(), genomicVariant.getReference(), genomicVariant.getAlternative())));
+        }
+        return matched;
+    }
+
+    /**
+     * Annotate the variants with CellBase. Can be overridden to use a local CellBase replacement.
+     */
+    protected List<VariantAnnotation> annotate(List<GenomicVariant> genomicVariantList) throws IOException {
+        remoteCalls.incrementAndGet();
+        remoteVariants.addAndGet(genomicVariantList.size());
+        if(cellBaseClient != null) {
+            return getVariantAnnotationsREST(genomicVariantList);
+        } else {
+            return getVariantAnnotationsDbAdaptor(genomicVariantList);
+        }
+    }
+
+    /**
+     * @return If there is a source to annotate the variants missing in the cache.
+     */
+    protected boolean hasRemoteSource() {
+        return cellBaseClient != null || dbAdaptorFactory != null;
+    }
+
     private List<VariantAnnotation> getVariantAnnotationsREST(List<GenomicVariant> genomicVariantList) throws IOException {
         QueryResponse<QueryResult<VariantAnnotation>> queryResponse;
         List<String> genomicVariantStringList = new ArrayList<>(genomicVariantList.size());
@@ -408,105 +601,42 @@ public class CellBaseVariantAnnotator implements VariantAnnotator {
 
     /////// LOAD ANNOTATION
 
+    /**
+     * Loads the annotation file with a {@link ParallelTaskRunner}. The json lines are parsed in parallel by several
+     * {@link VariantAnnotationLoadTask}, that store the annotations by themselves, in bulks of
+     * {@link VariantAnnotationManager#LOAD_BULK_SIZE} annotations.
+     */
     @Override
     public void loadAnnotation(final VariantDBAdaptor variantDBAdaptor, final URI uri, QueryOptions options) throws IOException {
 
         final int batchSize = options.getInt(VariantAnnotationManager.BATCH_SIZE, 100);
-        final int numConsumers = options.getInt(VariantAnnotationManager.NUM_WRITERS, 6);
-        final int numProducers = 1;
-        ExecutorService executor = Executors.newFixedThreadPool(numConsumers + numProducers);
-        final BlockingQueue<VariantAnnotation> queue = new ArrayBlockingQueue<>(batchSize*numConsumers*2);
-        final VariantAnnotation lastElement = new VariantAnnotation();
-
-        executor.execute(new Runnable() {   // producer
-            @Override
-            public void run() {
-                try {
-                    int readsCounter = 0;
-
-                    /** Open input stream **/
-                    InputStream inputStream;
-                    inputStream = new FileInputStream(Paths.get(uri).toFile());
-                    inputStream = new GZIPInputStream(inputStream);
-
-                    /** Innitialice Json parse**/
-                    JsonParser parser = factory.createParser(inputStream);
-
-                    while (parser.nextToken() != null) {
-                        VariantAnnotation variantAnnotation = parser.readValueAs(VariantAnnotation.class);
-                        queue.put(variantAnnotation);
-                        readsCounter++;
-                        if (readsCounter % 1000 == 0) {
-                            logger.info("Element {}", readsCounter);
-                        }
-                    }
-                    for (int i = 0; i < numConsumers; i++) {    //Add a lastElement marker. Consumers will stop reading when read this element.
-                        queue.put(lastElement);
-                    }
-                    logger.debug("Put Last element. queue size = {}", queue.size());
-                    inputStream.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-            }
-        });
-
-        for (int i = 0; i < numConsumers; i++) {
-            executor.execute(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        List<VariantAnnotation> batch = new ArrayList<>(batchSize);
-                        VariantAnnotation elem = queue.take();
-                        while (elem != lastElement) {
-                            batch.add(elem);
-                            if (batch.size() == batchSize) {
-                                variantDBAdaptor.updateAnnotations(batch, new QueryOptions());
-                                batch.clear();
-                                logger.debug("thread updated batch");
-                            }
-                            elem = queue.take();
-                        }
-                        if (!batch.isEmpty()) { //Upload remaining elements
-                            variantDBAdaptor.updateAnnotations(batch, new QueryOptions());
-                        }
-                        logger.debug("thread finished updating annotations");
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
-                }
-            });
+        final int numTasks = options.getInt(VariantAnnotationManager.NUM_WRITERS, 6);
+        final int bulkSize = options.getInt(VariantAnnotationManager.LOAD_BULK_SIZE, 1000);
+        final QueryOptions updateOptions = new QueryOptions();
+        if (options.containsKey(VariantDBAdaptor.VariantQueryParams.ANNOTATOR_ID.key())) {
+            updateOptions.put(VariantDBAdaptor.VariantQueryParams.ANNOTATOR_ID.key(),
+                    options.getString(VariantDBAdaptor.VariantQueryParams.ANNOTATOR_ID.key()));
         }
 
-        executor.shutdown();
-        try {
-            executor.awaitTermination(Integer.MAX_VALUE, TimeUnit.SECONDS);
-        } catch (InterruptedException e) {
-            logger.error("annotation interrupted");
-            e.printStackTrace();
+        VariantAnnotationLoadTask.Throughput throughput = new VariantAnnotationLoadTask.Throughput();
+        ObjectReader reader = jsonObjectMapper.readerFor(VariantAnnotation.class);
+        List<ParallelTaskRunner.Task<String, VariantAnnotation>> tasks = new ArrayList<>(numTasks);
+        for (int i = 0; i < numTasks; i++) {
+            tasks.add(new VariantAnnotationLoadTask(variantDBAdaptor, reader, bulkSize, updateOptions, throughput));
         }
 
-        /** Join
+        // tasks write to the database by themselves
+        ParallelTaskRunner.Config config = new ParallelTaskRunner.Config(numTasks, batchSize, numTasks * 2, false);
+        ParallelTaskRunner<String, VariantAnnotation> runner = new ParallelTaskRunner<>(
+                throughput.timed(new StringDataReader(Paths.get(uri))), tasks, null, config);
+
+        logger.info("Loading annotations from {} [1 reading, {} parsing and loading]", uri, numTasks);
+        long start = System.nanoTime();
         try {
-            producerThread.join();
-            for (Thread consumerThread : consumers) {
-                consumerThread.join();
-            }
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+            runner.run();
+        } catch (ExecutionException e) {
+            throw new IOException("Error loading annotations from " + uri, e);
         }
-        **/
-//        while (parser.nextToken() != null) {
-//            VariantAnnotation variantAnnotation = parser.readValueAs(VariantAnnotation.class);
-////            System.out.println("variantAnnotation = " + variantAnnotation);
-//            batch.add(variantAnnotation);
-//            if(batch.size() == batchSize || parser.nextToken() == null) {
-//                variantDBAdaptor.updateAnnotations(batch, new QueryOptions());
-//                batch.clear();
-//            }
-//        }
-
+        throughput.log(logger, numTasks, System.nanoTime() - start);
     }
 }
@@ -0,0 +1,242 @@
+/*
+ * Copyright 2015 OpenCB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opencb.opencga.storage.core.variant.annotation;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import org.opencb.biodata.models.variant.annotation.VariantAnnotation;
+import org.opencb.biodata.models.variation.GenomicVariant;
+import org.opencb.datastore.core.ObjectMap;
+import org.opencb.opencga.storage.core.variant.io.json.VariantAnnotationMixin;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Persistent cache of variant annotations in the local disk, keyed by "chromosome:position:reference:alternate".
+ * Each annotator version uses a different file, so a new CellBase version never returns old annotations.
+ *
+ * The file is an append-only log with one "key \t json" line per annotation. The position of each annotation is
+ * kept in memory, and the json is read from the disk on each hit. An incomplete last line, for example after a crash,
+ * is discarded when the file is opened.
+ *
+ * Instances are thread safe. The file is locked while it is loaded or written, so several processes, or several
+ * instances, can share the same cache. The annotations added by others after opening the cache are not visible.
+ */
+public class VariantAnnotationCache implements Closeable {
+
+    public static final String FILE_PREFIX = "annotation_cache.";
+    public static final String FILE_SUFFIX = ".json";
+
+    private final Path path;
+    private final FileChannel channel;
+    // key -> {offset, length} of the json
+    private final Map<String, long[]> index = new ConcurrentHashMap<>();
+    private final ObjectReader reader;
+    private final ObjectWriter writer;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    // FileLocks are held by the whole JVM, so the instances of the same file must not lock it at the same time
+    private static final Map<Path, Object> FILE_MONITORS = new ConcurrentHashMap<>();
+    private final Object fileMonitor;
+
+    protected static Logger logger = LoggerFactory.getLogger(VariantAnnotationCache.class);
+
+    /**
+     * @param dir       Directory of the cache. Created if missing.
+     * @param version   Version of the annotations, for example, the CellBase version.
+     * @throws IOException  If the cache can not be opened
+     */
+    public VariantAnnotationCache(Path dir, String version) throws IOException {
+        Files.createDirectories(dir);
+        path = dir.resolve(FILE_PREFIX + version.replaceAll("[^\\w.-]", "_") + FILE_SUFFIX);
+        fileMonitor = FILE_MONITORS.computeIfAbsent(path.toAbsolutePath().normalize(), key -> new Object());
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        ObjectMapper jsonObjectMapper = new ObjectMapper();
+        jsonObjectMapper.addMixIn(VariantAnnotation.class, VariantAnnotationMixin.class);
+        reader = jsonObjectMapper.readerFor(VariantAnnotation.class);
+        writer = jsonObjectMapper.writerFor(VariantAnnotation.class);
+
+        synchronized (fileMonitor) {
+            try (FileLock ignored = channel.lock()) {
+                loadIndex();
+            }
+        }
+        logger.info("Opened annotation cache {} with {} annotations", path, index.size());
+    }
+
+    private void loadIndex() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(1024 * 1024);
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        long position = 0;      // position of the next byte to read
+        long lineStart = 0;
+        while (channel.read(buffer, position) > 0) {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                byte b = buffer.get();
+                position++;
+                if (b == '\n') {
+                    addToIndex(line.toByteArray(), lineStart);
+                    line.reset();
+                    lineStart = position;
+                } else {
+                    line.write(b);
+                }
+            }
+            buffer.clear();
+        }
+        if (lineStart != channel.size()) {
+            logger.warn("Discarding incomplete annotation at the end of the cache {}", path);
+            channel.truncate(lineStart);
+        }
+    }
+
+    private void addToIndex(byte[] line, long lineStart) {
+        for (int i = 0; i < line.length; i++) {
+            if (line[i] == '\t') {
+                String key = new String(line, 0, i, StandardCharsets.UTF_8);
+                index.put(key, new long[]{lineStart + i + 1, line.length - i - 1});
+                return;
+            }
+        }
+    }
+
+    /**
+     * @param genomicVariant    Variant to look for
+     * @return  The cached annotation, or null if missing
+     */
+    public VariantAnnotation get(GenomicVariant genomicVariant) throws IOException {
+        long[] position = index.get(buildKey(genomicVariant.getChromosome(), genomicVariant.getPosition(),
+                genomicVariant.getReference(), genomicVariant.getAlternative()));
+        if (position == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) position[1]);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position[0] + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of the annotation cache " + path);
+            }
+        }
+        hits.incrementAndGet();
+        return reader.readValue(buffer.array());
+    }
+
+    /**
+     * Adds the annotations to the cache. The annotations are stored in the disk before returning.
+     *
+     * Each annotation is stored with the key of the variant it was requested for, so it is found by
+     * {@link #get(GenomicVariant)} even if the annotator normalizes the variant.
+     *
+     * @param genomicVariants       Requested variants
+     * @param variantAnnotations    Annotation of each requested variant, in the same order
+     */
+    public void put(List<GenomicVariant> genomicVariants, List<VariantAnnotation> variantAnnotations) throws IOException {
+        if (genomicVariants.size() != variantAnnotations.size()) {
+            throw new IllegalArgumentException("Expected one annotation per variant. Got " + variantAnnotations.size()
+                    + " annotations for " + genomicVariants.size() + " variants");
+        }
+        if (variantAnnotations.isEmpty()) {
+            return;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        String[] keys = new String[variantAnnotations.size()];
+        long[][] positions = new long[variantAnnotations.size()][];
+        for (int i = 0; i < variantAnnotations.size(); i++) {
+            GenomicVariant genomicVariant = genomicVariants.get(i);
+            keys[i] = buildKey(genomicVariant.getChromosome(), genomicVariant.getPosition(),
+                    genomicVariant.getReference(), genomicVariant.getAlternative());
+            byte[] keyBytes = keys[i].getBytes(StandardCharsets.UTF_8);
+            byte[] json = writer.writeValueAsBytes(variantAnnotations.get(i));
+            bytes.write(keyBytes);
+            bytes.write('\t');
+            positions[i] = new long[]{bytes.size(), json.length};
+            bytes.write(json);
+            bytes.write('\n');
+        }
+
+        long offset;
+        synchronized (fileMonitor) {
+            try (FileLock ignored = channel.lock()) {
+                offset = channel.size();
+                ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer, offset + buffer.position());
+                }
+            }
+        }
+        for (int i = 0; i < keys.length; i++) {
+            positions[i][0] += offset;
+            index.put(keys[i], positions[i]);
+        }
+    }
+
+    /**
+     * Empty alleles are stored as "-", like in the CellBase queries.
+     */
+    static String buildKey(String chromosome, int position, String reference, String alternate) {
+        return chromosome + ':' + position + ':'
+                + (reference == null || reference.isEmpty() ? "-" : reference) + ':'
+                + (alternate == null || alternate.isEmpty() ? "-" : alternate);
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     * @return Metrics: number of cached annotations, hits, misses and hit ratio
+     */
+    public ObjectMap getMetrics() {
+        long hits = this.hits.get();
+        long misses = this.misses.get();
+        ObjectMap metrics = new ObjectMap();
+        metrics.put("size", index.size());
+        metrics.put("hits", hits);
+        metrics.put("misses", misses);
+        metrics.put("hitRatio", hits + misses == 0 ? 0 : hits / (double) (hits + misses));
+        return metrics;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.force(false);
+        channel.close();
+    }
+}
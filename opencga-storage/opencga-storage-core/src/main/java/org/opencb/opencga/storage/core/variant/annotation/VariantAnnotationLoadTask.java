@@ -0,0 +1,198 @@
+/*
+ * Copyright 2015 OpenCB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opencb.opencga.storage.core.variant.annotation;
+
+import com.fasterxml.jackson.databind.ObjectReader;
+import org.opencb.biodata.models.variant.annotation.VariantAnnotation;
+import org.opencb.commons.io.DataReader;
+import org.opencb.commons.run.ParallelTaskRunner;
+import org.opencb.datastore.core.QueryOptions;
+import org.opencb.opencga.storage.core.variant.adaptors.VariantDBAdaptor;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Parses json annotation lines and stores them with {@link VariantDBAdaptor#updateAnnotations}.
+ * Used to load an annotation file in a {@link ParallelTaskRunner} pipeline, without a writer.
+ *
+ * Each task keeps its own buffer, so the size of the bulk updates does not depend on the size of the read batches.
+ * The remaining annotations are stored on {@link #post()}. Use one instance per thread.
+ */
+public class VariantAnnotationLoadTask implements ParallelTaskRunner.Task<String, VariantAnnotation> {
+
+    private final VariantDBAdaptor dbAdaptor;
+    private final ObjectReader reader;
+    private final int bulkSize;
+    private final QueryOptions updateOptions;
+    private final Throughput throughput;
+    private final List<VariantAnnotation> buffer;
+
+    /**
+     * @param dbAdaptor     DBAdaptor to the variant db
+     * @param reader        Json reader for {@link VariantAnnotation}. Shared between tasks
+     * @param bulkSize      Number of annotations stored in each call to updateAnnotations
+     * @param updateOptions Options for updateAnnotations
+     * @param throughput    Metrics shared between tasks
+     */
+    public VariantAnnotationLoadTask(VariantDBAdaptor dbAdaptor, ObjectReader reader, int bulkSize, QueryOptions updateOptions,
+                                     Throughput throughput) {
+        this.dbAdaptor = dbAdaptor;
+        this.reader = reader;
+        this.bulkSize = bulkSize;
+        this.updateOptions = updateOptions;
+        this.throughput = throughput;
+        this.buffer = new ArrayList<>(bulkSize);
+    }
+
+    @Override
+    public List<VariantAnnotation> apply(List<String> batch) {
+        long start = System.nanoTime();
+        List<VariantAnnotation> variantAnnotations = new ArrayList<>(batch.size());
+        try {
+            for (String line : batch) {
+                if (!line.isEmpty()) {
+                    variantAnnotations.add(reader.readValue(line));
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        throughput.parseNanos.addAndGet(System.nanoTime() - start);
+        throughput.annotations.addAndGet(variantAnnotations.size());
+
+        for (VariantAnnotation variantAnnotation : variantAnnotations) {
+            buffer.add(variantAnnotation);
+            if (buffer.size() >= bulkSize) {
+                flush();
+            }
+        }
+        return variantAnnotations;
+    }
+
+    @Override
+    public void post() {
+        flush();
+    }
+
+    private void flush() {
+        if (buffer.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        dbAdaptor.updateAnnotations(buffer, updateOptions);
+        throughput.loadNanos.addAndGet(System.nanoTime() - start);
+        throughput.bulks.incrementAndGet();
+        buffer.clear();
+    }
+
+    /**
+     * Accumulated time and number of elements for each stage of the load: read, parse and load.
+     */
+    public static class Throughput {
+        private final AtomicLong readNanos = new AtomicLong();
+        private final AtomicLong lines = new AtomicLong();
+        private final AtomicLong parseNanos = new AtomicLong();
+        private final AtomicLong loadNanos = new AtomicLong();
+        private final AtomicLong annotations = new AtomicLong();
+        private final AtomicLong bulks = new AtomicLong();
+
+        /**
+         * Wraps a reader to accumulate the time spent reading lines.
+         *
+         * @param reader    Reader to wrap
+         * @return          Reader counting the read time
+         */
+        public DataReader<String> timed(DataReader<String> reader) {
+            return new DataReader<String>() {
+                @Override
+                public boolean open() {
+                    return reader.open();
+                }
+
+                @Override
+                public boolean close() {
+                    return reader.close();
+                }
+
+                @Override
+                public boolean pre() {
+                    return reader.pre();
+                }
+
+                @Override
+                public boolean post() {
+                    return reader.post();
+                }
+
+                @Override
+                public List<String> read() {
+                    return read(1);
+                }
+
+                @Override
+                public List<String> read(int batchSize) {
+                    long start = System.nanoTime();
+                    List<String> batch = reader.read(batchSize);
+                    readNanos.addAndGet(System.nanoTime() - start);
+                    if (batch != null) {
+                        lines.addAndGet(batch.size());
+                    }
+                    return batch;
+                }
+            };
+        }
+
+        /**
+         * Logs the throughput of each stage. Parse and load times are accumulated by all the tasks, so are
+         * divided by the number of tasks to get the wall time. The reader is blocked by back-pressure when the
+         * tasks are slower than the reader: the time not spent reading is waiting for free space in the queue.
+         *
+         * @param logger    Logger
+         * @param numTasks  Number of tasks running in parallel
+         * @param wallNanos Total time of the load
+         */
+        public void log(Logger logger, int numTasks, long wallNanos) {
+            logger.info("Read   : {} lines in {}s ({} lines/s)", lines.get(), seconds(readNanos.get()),
+                    perSecond(lines.get(), readNanos.get()));
+            logger.info("Parse  : {} annotations in {}s per task ({} annotations/s with {} tasks)", annotations.get(),
+                    seconds(parseNanos.get() / numTasks), perSecond(annotations.get(), parseNanos.get() / numTasks), numTasks);
+            logger.info("Load   : {} annotations in {} bulks, {}s per task ({} annotations/s with {} tasks)", annotations.get(),
+                    bulks.get(), seconds(loadNanos.get() / numTasks), perSecond(annotations.get(), loadNanos.get() / numTasks),
+                    numTasks);
+            logger.info("Total  : {} annotations in {}s ({} annotations/s). Reader blocked by back-pressure {}s",
+                    annotations.get(), seconds(wallNanos), perSecond(annotations.get(), wallNanos),
+                    seconds(Math.max(0, wallNanos - readNanos.get())));
+        }
+
+        public long getAnnotations() {
+            return annotations.get();
+        }
+
+        private static double seconds(long nanos) {
+            return nanos / 1000000 / 1000.0;
+        }
+
+        private static long perSecond(long count, long nanos) {
+            return nanos == 0 ? 0 : count * 1000000000L / nanos;
+        }
+    }
+}
@@ -60,7 +60,10 @@ public class VariantAnnotationManager {
     public static final String ANNOTATOR_QUERY_OPTIONS = "annotatorQueryOptions";   // TODO use or remove
     public static final String BATCH_SIZE = "batchSize";
     public static final String NUM_WRITERS = "numWriters";
+    public static final String LOAD_BULK_SIZE = "loadBulkSize";
     public static final String NUM_THREADS = "numThreads";
+    public static final String ANNOTATION_CACHE_DIR = "annotationCacheDir";
+    public static final String INCREMENTAL_ANNOTATION = "incrementalAnnotation";
 
     private VariantDBAdaptor dbAdaptor;
     private VariantAnnotator variantAnnotator;
@@ -75,6 +78,15 @@ public class VariantAnnotationManager {
     }
 
     public void annotate(Query query, QueryOptions options) throws IOException {
+        String annotatorId = variantAnnotator.getAnnotatorId();
+        if (annotatorId != null) {
+            options = new QueryOptions(options);
+            options.put(VariantDBAdaptor.VariantQueryParams.ANNOTATOR_ID.key(), annotatorId);
+        }
+        if (options.getBoolean(INCREMENTAL_ANNOTATION, false)) {
+            annotateIncremental(query, options);
+            return;
+        }
 
         long start = System.currentTimeMillis();
         logger.info("Starting annotation creation ");
@@ -90,6 +102,28 @@ public class VariantAnnotationManager {
         logger.info("Finished annotation load {}ms", System.currentTimeMillis() - start);
     }
 
+    /**
+     * Annotates only the variants without an annotation from the current annotator, and loads the annotations
+     * directly into the database, without an intermediate file.
+     * Annotators without an id ({@link VariantAnnotator#getAnnotatorId()}) annotate the variants without annotation.
+     */
+    public void annotateIncremental(Query query, QueryOptions options) throws IOException {
+        Query incrementalQuery = query == null ? new Query() : new Query(query);
+        String annotatorId = variantAnnotator.getAnnotatorId();
+        if (options.getBoolean(OVERWRITE_ANNOTATIONS, false)) {
+            logger.info("Overwriting all the annotations");
+        } else if (annotatorId != null) {
+            incrementalQuery.put(VariantDBAdaptor.VariantQueryParams.ANNOTATOR_ID.key(), "!" + annotatorId);
+        } else {
+            incrementalQuery.put(VariantDBAdaptor.VariantQueryParams.ANNOTATION_EXISTS.key(), false);
+        }
+
+        long start = System.currentTimeMillis();
+        logger.info("Starting incremental annotation with annotator {}", annotatorId);
+        variantAnnotator.annotateAndLoad(dbAdaptor, incrementalQuery, options);
+        logger.info("Finished incremental annotation {}ms", System.currentTimeMillis() - start);
+    }
+
     public URI createAnnotation(Path outDir, String fileName, Query query, QueryOptions options) throws IOException {
         return this.variantAnnotator.createAnnotation(dbAdaptor, outDir, fileName, query, options);
     }
@@ -121,7 +155,11 @@ public class VariantAnnotationManager {
             case CELLBASE_DB_ADAPTOR:
                 return CellBaseVariantAnnotator.buildCellbaseAnnotator(configuration.getCellbase(), species, assembly, false);
             case CELLBASE_REST:
-                return CellBaseVariantAnnotator.buildCellbaseAnnotator(configuration.getCellbase(), species, assembly, true);
+                CellBaseVariantAnnotator annotator = CellBaseVariantAnnotator.buildCellbaseAnnotator(configuration.getCellbase(), species, assembly, true);
+                if (options.containsKey(ANNOTATION_CACHE_DIR)) {
+                    annotator.setAnnotationCacheDir(Paths.get(options.getString(ANNOTATION_CACHE_DIR)));
+                }
+                return annotator;
             case VEP:
                 return VepVariantAnnotator.buildVepAnnotator();
             default:
@@ -18,11 +18,13 @@ package org.opencb.opencga.storage.core.variant.annotation;
 
 import org.opencb.datastore.core.Query;
 import org.opencb.datastore.core.QueryOptions;
+import org.opencb.opencga.core.common.TimeUtils;
 import org.opencb.opencga.storage.core.variant.adaptors.VariantDBAdaptor;
 
 import java.io.IOException;
 import java.net.URI;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 
 /**
  * Created by jacobo on 9/01/15.
@@ -53,4 +55,30 @@ public interface VariantAnnotator {
      */
     void loadAnnotation(VariantDBAdaptor variantDBAdaptor, URI uri, QueryOptions options) throws IOException;
 
+    /**
+     * Identifier of the annotator and its version, stored with each annotation. Variants annotated with a
+     * different id are considered stale.
+     *
+     * @return                      Annotator id, or null if annotations are not versioned.
+     */
+    default String getAnnotatorId() {
+        return null;
+    }
+
+    /**
+     * Annotates the variants and stores the annotations directly in the Variant DataBase.
+     * By default, creates an intermediate annotation file and loads it.
+     *
+     * @param variantDBAdaptor      DBAdaptor to the variant db
+     * @param query                 Query for those variants to annotate.
+     * @param options               Specific options.
+     * @throws IOException
+     */
+    default void annotateAndLoad(VariantDBAdaptor variantDBAdaptor, Query query, QueryOptions options) throws IOException {
+        Path outDir = Paths.get(options.getString(VariantAnnotationManager.OUT_DIR, "/tmp"));
+        String fileName = options.getString(VariantAnnotationManager.FILE_NAME, "annotation_" + TimeUtils.getTime());
+        URI uri = createAnnotation(variantDBAdaptor, outDir, fileName, query, options);
+        loadAnnotation(variantDBAdaptor, uri, options);
+    }
+
 }
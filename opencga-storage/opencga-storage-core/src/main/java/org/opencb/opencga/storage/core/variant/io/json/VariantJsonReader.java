@@ -19,9 +19,13 @@ package org.opencb.opencga.storage.core.variant.io.json;
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileGenerator;
+import com.fasterxml.jackson.dataformat.smile.SmileParser;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -38,6 +42,7 @@ import org.opencb.biodata.models.variant.VariantSourceEntry;
 import org.opencb.biodata.models.variant.Variant;
 import org.opencb.biodata.models.variant.VariantSource;
 import org.opencb.biodata.models.variant.stats.VariantStats;
+import org.opencb.opencga.storage.core.runner.BgzfStringDataReader;
 import org.xerial.snappy.SnappyInputStream;
 
 /**
@@ -48,6 +53,7 @@ public class VariantJsonReader implements VariantReader {
 
     protected JsonFactory factory;
     protected ObjectMapper jsonObjectMapper;
+    protected ObjectMapper smileObjectMapper;
     private JsonParser variantsParser;
     private JsonParser globalParser;
     
@@ -61,6 +67,9 @@ public class VariantJsonReader implements VariantReader {
     private Path globalPath;
     
     private VariantSource source;
+
+    private int decompressThreads = 0;
+    private BgzfStringDataReader bgzfVariantsReader;
     
 //    public VariantJsonReader(String variantFilename, String globalFilename) {
     public VariantJsonReader(VariantSource source, String variantFilename, String globalFilename) {
@@ -69,6 +78,24 @@ public class VariantJsonReader implements VariantReader {
         this.globalFilename = globalFilename;
         this.factory = new JsonFactory();
         this.jsonObjectMapper = new ObjectMapper(this.factory);
+        if (variantFilename.contains(".smile")) {
+            this.smileObjectMapper = new ObjectMapper(createSmileFactory());
+        }
+    }
+
+    /**
+     * Smile factory for the binary variants files. The batches of variants are generated independently and
+     * concatenated, so there is no header and no back references to names or values of other batches.
+     *
+     * @return SmileFactory to write and read binary variants files
+     */
+    public static SmileFactory createSmileFactory() {
+        SmileFactory smileFactory = new SmileFactory();
+        smileFactory.disable(SmileGenerator.Feature.WRITE_HEADER);
+        smileFactory.disable(SmileGenerator.Feature.CHECK_SHARED_NAMES);
+        smileFactory.disable(SmileGenerator.Feature.CHECK_SHARED_STRING_VALUES);
+        smileFactory.disable(SmileParser.Feature.REQUIRE_HEADER);
+        return smileFactory;
     }
 
     @Override
@@ -82,7 +109,13 @@ public class VariantJsonReader implements VariantReader {
             Files.exists(this.globalPath);
 
             String name = variantsPath.toFile().getName();
-            if (name.endsWith(".gz")) {
+            if (name.endsWith(".gz") && smileObjectMapper == null && decompressThreads > 0
+                    && BgzfStringDataReader.isBgzf(variantsPath)) {
+                this.bgzfVariantsReader = new BgzfStringDataReader(variantsPath, decompressThreads);
+                if (!bgzfVariantsReader.open()) {
+                    return false;
+                }
+            } else if (name.endsWith(".gz")) {
                 this.variantsStream = new GZIPInputStream(new FileInputStream(variantsPath.toFile()));
             } else if (name.endsWith(".snz") || name.endsWith(".snappy")) {
                 this.variantsStream = new SnappyInputStream(new FileInputStream(variantsPath.toFile()));
@@ -114,7 +147,14 @@ public class VariantJsonReader implements VariantReader {
         jsonObjectMapper.addMixInAnnotations(Genotype.class, GenotypeJsonMixin.class);
         jsonObjectMapper.addMixInAnnotations(VariantStats.class, VariantStatsJsonMixin.class);
         try {
-            variantsParser = factory.createParser(variantsStream);
+            if (smileObjectMapper != null) {
+                smileObjectMapper.addMixInAnnotations(VariantSourceEntry.class, VariantSourceEntryJsonMixin.class);
+                smileObjectMapper.addMixInAnnotations(Genotype.class, GenotypeJsonMixin.class);
+                smileObjectMapper.addMixInAnnotations(VariantStats.class, VariantStatsJsonMixin.class);
+                variantsParser = smileObjectMapper.getFactory().createParser(variantsStream);
+            } else if (bgzfVariantsReader == null) {
+                variantsParser = factory.createParser(variantsStream);
+            }
             globalParser = factory.createParser(globalStream);
             // TODO Optimizations for memory management?
             
@@ -140,6 +180,10 @@ public class VariantJsonReader implements VariantReader {
 
     @Override
     public List<Variant> read() {
+        if (bgzfVariantsReader != null) {
+            List<Variant> variants = read(1);
+            return variants.isEmpty() ? null : variants;
+        }
         try {
             if (variantsParser.nextToken() != null) {
                 Variant variant = variantsParser.readValueAs(Variant.class);
@@ -155,7 +199,22 @@ public class VariantJsonReader implements VariantReader {
     @Override
     public List<Variant> read(int batchSize) {
         List<Variant> listRecords = new ArrayList<>(batchSize);
-        
+
+        if (bgzfVariantsReader != null) {
+            // Decompressed in parallel. One variant per line.
+            // A bad line fails the reader. Returning a short batch would silently truncate the load.
+            for (String line : bgzfVariantsReader.read(batchSize)) {
+                if (!line.isEmpty()) {
+                    try {
+                        listRecords.add(jsonObjectMapper.readValue(line, Variant.class));
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException("Error reading variant from " + variantFilename, ex);
+                    }
+                }
+            }
+            return listRecords;
+        }
+
         try {
             for (int i = 0; i < batchSize && variantsParser.nextToken() != null; i++) {
                 Variant variant = variantsParser.readValueAs(Variant.class);
@@ -176,7 +235,11 @@ public class VariantJsonReader implements VariantReader {
     @Override
     public boolean close() {
         try {
-            variantsParser.close();
+            if (bgzfVariantsReader != null) {
+                bgzfVariantsReader.close();
+            } else {
+                variantsParser.close();
+            }
             globalParser.close();
         } catch (IOException ex) {
             Logger.getLogger(VariantJsonReader.class.getName()).log(Level.SEVERE, null, ex);
@@ -186,6 +249,15 @@ public class VariantJsonReader implements VariantReader {
         return true;
     }
 
+    /**
+     * Decompress BGZF variants files with several threads. Other files are read with a single thread.
+     *
+     * @param decompressThreads Number of threads. 0 to disable.
+     */
+    public void setDecompressThreads(int decompressThreads) {
+        this.decompressThreads = decompressThreads;
+    }
+
     @Override
     public List<String> getSampleNames() {
         return new ArrayList<>(source.getSamplesPosition().keySet());
@@ -21,9 +21,12 @@ import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.ObjectWriter;
+import org.opencb.biodata.models.feature.Region;
 import org.opencb.biodata.models.variant.Variant;
 import org.opencb.biodata.models.variant.VariantSource;
 import org.opencb.biodata.models.variant.VariantSourceEntry;
+import org.opencb.biodata.models.variant.stats.VariantGlobalStats;
+import org.opencb.biodata.models.variant.stats.VariantSingleSampleStats;
 import org.opencb.biodata.models.variant.stats.VariantSourceStats;
 import org.opencb.biodata.models.variant.stats.VariantStats;
 import org.opencb.biodata.tools.variant.stats.VariantAggregatedStatsCalculator;
@@ -42,9 +45,15 @@ import org.slf4j.LoggerFactory;
 
 import java.io.*;
 import java.net.URI;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
@@ -114,6 +123,31 @@ public class VariantStatisticsManager {
     public URI createStats(VariantDBAdaptor variantDBAdaptor, URI output, Map<String, Set<String>> cohorts,
                            Map<String, Integer> cohortIds, StudyConfiguration studyConfiguration, QueryOptions options)
             throws Exception {
+        return createStats(variantDBAdaptor, output, cohorts, cohortIds, studyConfiguration, options, false);
+    }
+
+    /**
+     * Calculates the stats and stores them in the database, without intermediate files. Each task stores the stats
+     * of its own batches, so the database is written from several threads.
+     *
+     * Same steps than {@link #createStats} followed by {@link #loadStats}.
+     *
+     * @param variantDBAdaptor to obtain and update the Variants
+     * @param cohorts cohorts (subsets) of the samples. key: cohort name, defaultValue: list of sample names.
+     * @param cohortIds
+     * @param options (mandatory) fileId, (optional) filters to the query, batch size, number of threads to use...
+     * @throws IOException
+     */
+    public void createAndLoadStats(VariantDBAdaptor variantDBAdaptor, Map<String, Set<String>> cohorts,
+                                   Map<String, Integer> cohortIds, StudyConfiguration studyConfiguration, QueryOptions options)
+            throws Exception {
+        createStats(variantDBAdaptor, null, cohorts, cohortIds, studyConfiguration, options, true);
+    }
+
+    private URI createStats(VariantDBAdaptor variantDBAdaptor, URI output, Map<String, Set<String>> cohorts,
+                            Map<String, Integer> cohortIds, StudyConfiguration studyConfiguration, QueryOptions options,
+                            boolean load)
+            throws Exception {
         int numTasks = 6;
         int batchSize = 100;  // future optimization, threads, etc
         boolean overwrite = false;
@@ -155,31 +189,84 @@ public class VariantStatisticsManager {
         VariantStorageManager.checkStudyConfiguration(studyConfiguration);
 
 
-        VariantSourceStats variantSourceStats = new VariantSourceStats(null/*FILE_ID*/, Integer.toString(studyConfiguration.getStudyId()));
-
+        int shardSize = options.getInt(VariantStorageManager.Options.STATS_SHARD_SIZE.key(),
+                VariantStorageManager.Options.STATS_SHARD_SIZE.<Integer>defaultValue());
+
+        Query studyQuery = new Query(VariantDBAdaptor.VariantQueryParams.STUDIES.key(), studyConfiguration.getStudyId());
+        Query readerQuery = new Query(studyQuery);
+        List<String> include = new ArrayList<>(Arrays.asList("chromosome", "start", "end", "alternate", "reference", "sourceEntries"));
+        final Map<String, Set<String>> finalCohorts = cohorts;
+        final boolean finalOverwrite = overwrite;
+        final Properties finalTagmap = tagmap;
+        final QueryOptions loadOptions = new QueryOptions(options);
+        loadOptions.put(VariantStorageManager.Options.OVERWRITE_STATS.key(), overwrite);
+        Supplier<VariantStatsWrapperTask> taskSupplier = () -> {
+            VariantStatsWrapperTask task = new VariantStatsWrapperTask(finalOverwrite, finalCohorts, studyConfiguration, null/*FILE_ID*/, finalTagmap);
+            if (load) {
+                task.setLoadStats(variantDBAdaptor, loadOptions);
+            }
+            return task;
+        };
 
-       // reader, tasks and writer
-        Query readerQuery = new Query(VariantDBAdaptor.VariantQueryParams.STUDIES.key(), studyConfiguration.getStudyId());
-        VariantDBReader reader = new VariantDBReader(studyConfiguration, variantDBAdaptor, readerQuery, null);
-        List<ParallelTaskRunner.Task<Variant, String>> tasks = new ArrayList<>(numTasks);
-        for (int i = 0; i < numTasks; i++) {
-            tasks.add(new VariantStatsWrapperTask(overwrite, cohorts, studyConfiguration, null/*FILE_ID*/,
-                    variantSourceStats, tagmap));
+        Path variantStatsPath = null;
+        if (load) {
+            logger.info("will write stats to the database");
+        } else {
+            variantStatsPath = Paths.get(output.getPath() + VARIANT_STATS_SUFFIX);
+            logger.info("will write stats to {}", variantStatsPath);
         }
-        Path variantStatsPath = Paths.get(output.getPath() + VARIANT_STATS_SUFFIX);
-        logger.info("will write stats to {}", variantStatsPath);
-        StringDataWriter writer = new StringDataWriter(variantStatsPath);
-        
-        // runner 
-        ParallelTaskRunner.Config config = new ParallelTaskRunner.Config(numTasks, batchSize, numTasks*2, false);
-        ParallelTaskRunner runner = new ParallelTaskRunner<>(reader, tasks, writer, config);
+        List<Region> shards = numTasks > 1 ? getShards(variantDBAdaptor, studyQuery, shardSize) : Collections.emptyList();
 
         logger.info("starting stats creation for cohorts {}", cohortIds.keySet());
         long start = System.currentTimeMillis();
-        runner.run();
+        List<VariantStatsWrapperTask> tasks;
+        if (shards.size() > 1) {
+            logger.info("calculating stats of {} ranges with {} threads", shards.size(), numTasks);
+            tasks = createStatsByShard(variantDBAdaptor, variantStatsPath, shards, readerQuery, include, numTasks, batchSize,
+                    studyConfiguration, taskSupplier);
+        } else {
+            // reader, tasks and writer
+            VariantDBReader reader = new VariantDBReader(studyConfiguration, variantDBAdaptor, readerQuery,
+                    new QueryOptions("include", include));
+            tasks = new ArrayList<>(numTasks);
+            for (int i = 0; i < numTasks; i++) {
+                tasks.add(taskSupplier.get());
+            }
+            // tasks write to the database by themselves
+            StringDataWriter writer = load ? null : new StringDataWriter(variantStatsPath);
+
+            // runner
+            ParallelTaskRunner.Config config = new ParallelTaskRunner.Config(numTasks, batchSize, numTasks*2, false);
+            ParallelTaskRunner<Variant, String> runner = new ParallelTaskRunner<>(reader, new ArrayList<>(tasks), writer, config);
+            runner.run();
+        }
         logger.info("finishing stats creation, time: {}ms", System.currentTimeMillis() - start);
 
-        // source stats
+        // source stats. Each task accumulated the stats of its own variants
+        List<VariantSourceStats> partialSourceStats = new ArrayList<>(tasks.size());
+        for (VariantStatsWrapperTask task : tasks) {
+            partialSourceStats.add(task.getVariantSourceStats());
+        }
+        VariantSourceStats variantSourceStats = mergeSourceStats(partialSourceStats,
+                new VariantSourceStats(null/*FILE_ID*/, Integer.toString(studyConfiguration.getStudyId())));
+
+        if (load) {
+            int variantsNumber = 0;
+            int writes = 0;
+            for (VariantStatsWrapperTask task : tasks) {
+                variantsNumber += task.getNumVariants();
+                writes += task.getNumWrites();
+            }
+            if (writes < variantsNumber) {
+                logger.warn("provided statistics of {} variants, but only {} were found in the database", variantsNumber, writes);
+            }
+            checkAndUpdateCalculatedCohorts(studyConfiguration, cohorts.keySet());
+            variantDBAdaptor.getVariantSourceDBAdaptor().updateSourceStats(variantSourceStats, studyConfiguration, loadOptions);
+            logger.info("finishing stats loading, time: {}ms", System.currentTimeMillis() - start);
+            variantDBAdaptor.getStudyConfigurationManager().updateStudyConfiguration(studyConfiguration, options);
+            return null;
+        }
+
         Path fileSourcePath = Paths.get(output.getPath() + SOURCE_STATS_SUFFIX);
         OutputStream outputSourceStream = getOutputStream(fileSourcePath, options);
         ObjectWriter sourceWriter = jsonObjectMapper.writerFor(VariantSourceStats.class);
@@ -191,6 +278,205 @@ public class VariantStatisticsManager {
         return output;
     }
 
+    /**
+     * Split the study in ranges of shardSize bases of each chromosome. Returns an empty list if the chromosomes can not
+     * be obtained from the variantDBAdaptor.
+     */
+    List<Region> getShards(VariantDBAdaptor variantDBAdaptor, Query studyQuery, int shardSize) {
+        List<String> chromosomes = new ArrayList<>();
+        try {
+            QueryResult distinct = variantDBAdaptor.distinct(studyQuery, "chromosome");
+            for (Object chromosome : distinct.getResult()) {
+                chromosomes.add(chromosome.toString());
+            }
+        } catch (RuntimeException e) {
+            logger.warn("Unable to get the chromosomes of the study. Calculating stats without shards.", e);
+            return Collections.emptyList();
+        }
+        Collections.sort(chromosomes);
+
+        List<Region> shards = new ArrayList<>();
+        for (String chromosome : chromosomes) {
+            if (shardSize <= 0) {
+                shards.add(new Region(chromosome, 1, Integer.MAX_VALUE));
+                continue;
+            }
+            int maxStart = getMaxStart(variantDBAdaptor, studyQuery, chromosome);
+            if (maxStart < 0) {
+                continue;
+            }
+            // The last range is open ended, so no variant is left out
+            for (long rangeStart = 1; rangeStart <= maxStart; rangeStart += shardSize) {
+                long rangeEnd = rangeStart + shardSize > maxStart ? Integer.MAX_VALUE : rangeStart + shardSize - 1;
+                shards.add(new Region(chromosome, (int) rangeStart, (int) rangeEnd));
+            }
+        }
+        return shards;
+    }
+
+    /**
+     * Start of the last variant of the chromosome, sorting by start in descending order. The whole chromosome is
+     * returned as a single range if the last variant can not be obtained.
+     *
+     * @return  Start of the last variant, or -1 if the chromosome has no variants
+     */
+    private int getMaxStart(VariantDBAdaptor variantDBAdaptor, Query studyQuery, String chromosome) {
+        Query query = new Query(studyQuery)
+                .append(VariantDBAdaptor.VariantQueryParams.REGION.key(), new Region(chromosome, 1, Integer.MAX_VALUE).toString());
+        QueryOptions options = new QueryOptions("limit", 1)
+                .append("sort", "desc")
+                .append("include", Arrays.asList("chromosome", "start"));
+        try {
+            QueryResult<Variant> last = variantDBAdaptor.get(query, options);
+            return last.getResult().isEmpty() ? -1 : last.first().getStart();
+        } catch (RuntimeException e) {
+            logger.warn("Unable to get the last variant of the chromosome {}. Calculating its stats in a single range.", chromosome, e);
+            return 1;
+        }
+    }
+
+    /**
+     * Calculate the stats of each shard in parallel. Each shard has its own reader, task and output file, so there is
+     * nothing shared between threads. The output files are concatenated at the end, in the order of the shards.
+     * If variantStatsPath is null, the tasks load the stats into the database and no file is written.
+     */
+    private List<VariantStatsWrapperTask> createStatsByShard(VariantDBAdaptor variantDBAdaptor, Path variantStatsPath,
+                                                             List<Region> shards, Query readerQuery, List<String> include,
+                                                             int numTasks, int batchSize, StudyConfiguration studyConfiguration,
+                                                             Supplier<VariantStatsWrapperTask> taskSupplier)
+            throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(numTasks);
+        List<Path> partPaths = new ArrayList<>(shards.size());
+        List<Future<VariantStatsWrapperTask>> futures = new ArrayList<>(shards.size());
+        for (int i = 0; i < shards.size(); i++) {
+            Region shard = shards.get(i);
+            Path partPath = variantStatsPath == null ? null : Paths.get(variantStatsPath.toString() + "." + i + ".part.gz");
+            partPaths.add(partPath);
+            futures.add(executor.submit(() -> {
+                Query query = new Query(readerQuery).append(VariantDBAdaptor.VariantQueryParams.REGION.key(), shard.toString());
+                VariantDBReader reader = new VariantDBReader(studyConfiguration, variantDBAdaptor, query,
+                        new QueryOptions("include", include));
+                VariantStatsWrapperTask task = taskSupplier.get();
+                // tasks loading the stats write to the database by themselves
+                StringDataWriter writer = variantStatsPath == null ? null : new StringDataWriter(partPath);
+                reader.open();
+                if (writer != null) {
+                    writer.open();
+                }
+                try {
+                    for (List<Variant> batch = reader.read(batchSize); !batch.isEmpty(); batch = reader.read(batchSize)) {
+                        // Variants overlapping the start of the range belong to the previous range
+                        if (shard.getStart() > 1) {
+                            batch.removeIf(variant -> variant.getStart() < shard.getStart());
+                        }
+                        List<String> strings = task.apply(batch);
+                        if (writer != null) {
+                            writer.write(strings);
+                        }
+                    }
+                } finally {
+                    if (writer != null) {
+                        writer.close();
+                    }
+                    reader.close();
+                }
+                return task;
+            }));
+        }
+        executor.shutdown();
+
+        List<VariantStatsWrapperTask> tasks = new ArrayList<>(shards.size());
+        try {
+            try {
+                for (Future<VariantStatsWrapperTask> future : futures) {
+                    tasks.add(future.get());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            } catch (ExecutionException e) {
+                throw new IOException("Error calculating stats", e.getCause());
+            } finally {
+                executor.shutdownNow();
+            }
+
+            if (variantStatsPath != null) {
+                // Concatenated gzip members are read as a single gzip stream
+                try (OutputStream os = new BufferedOutputStream(new FileOutputStream(variantStatsPath.toFile()))) {
+                    for (Path partPath : partPaths) {
+                        Files.copy(partPath, os);
+                    }
+                }
+            }
+        } finally {
+            for (Path partPath : partPaths) {
+                if (partPath != null) {
+                    Files.deleteIfExists(partPath);
+                }
+            }
+        }
+        return tasks;
+    }
+
+    /**
+     * Merge the source stats accumulated by each task. The counts are added, except the number of samples, and the
+     * mean quality is weighted by the number of variants. The stats of each sample are added by sample name.
+     *
+     * @param partialSourceStats    Source stats of each task
+     * @param emptySourceStats      Source stats without values, with the study and file ids
+     * @return                      Merged source stats
+     */
+    VariantSourceStats mergeSourceStats(List<VariantSourceStats> partialSourceStats, VariantSourceStats emptySourceStats) {
+        int variantsCount = 0;
+        int samplesCount = 0;
+        int snpsCount = 0;
+        int indelsCount = 0;
+        int structuralCount = 0;
+        int passCount = 0;
+        int transitionsCount = 0;
+        int transversionsCount = 0;
+        double qualitySum = 0;
+        Map<String, VariantSingleSampleStats> samplesStats = emptySourceStats.getSamplesStats();
+        for (VariantSourceStats sourceStats : partialSourceStats) {
+            VariantGlobalStats fileStats = sourceStats.getFileStats();
+            if (fileStats != null) {
+                variantsCount += fileStats.getVariantsCount();
+                samplesCount = Math.max(samplesCount, fileStats.getSamplesCount());
+                snpsCount += fileStats.getSnpsCount();
+                indelsCount += fileStats.getIndelsCount();
+                structuralCount += fileStats.getStructuralCount();
+                passCount += fileStats.getPassCount();
+                transitionsCount += fileStats.getTransitionsCount();
+                transversionsCount += fileStats.getTransversionsCount();
+                if (fileStats.getVariantsCount() > 0) {
+                    qualitySum += (double) fileStats.getMeanQuality() * fileStats.getVariantsCount();
+                }
+            }
+            if (sourceStats.getSamplesStats() != null) {
+                for (Map.Entry<String, VariantSingleSampleStats> entry : sourceStats.getSamplesStats().entrySet()) {
+                    VariantSingleSampleStats sampleStats = samplesStats.computeIfAbsent(entry.getKey(), VariantSingleSampleStats::new);
+                    mergeSampleStats(sampleStats, entry.getValue());
+                }
+            }
+        }
+        float meanQuality = variantsCount == 0 ? 0 : (float) (qualitySum / variantsCount);
+        emptySourceStats.setFileStats(new VariantGlobalStats(variantsCount, samplesCount, snpsCount, indelsCount, structuralCount,
+                passCount, transitionsCount, transversionsCount, -1, meanQuality, null));
+        return emptySourceStats;
+    }
+
+    private static void mergeSampleStats(VariantSingleSampleStats target, VariantSingleSampleStats source) {
+        for (int i = 0; i < source.getMendelianErrors(); i++) {
+            target.incrementMendelianErrors();
+        }
+        for (int i = 0; i < source.getMissingGenotypes(); i++) {
+            target.incrementMissingGenotypes();
+        }
+        for (int i = 0; i < source.getHomozygotesNumber(); i++) {
+            target.incrementHomozygotesNumber();
+        }
+    }
+
     class VariantStatsWrapperTask implements ParallelTaskRunner.Task<Variant, String> {
 
         private boolean overwrite;
@@ -199,20 +485,25 @@ public class VariantStatisticsManager {
 //        private String fileId;
         private ObjectMapper jsonObjectMapper;
         private ObjectWriter variantsWriter;
+        // Partial source stats of the variants processed by this task
         private VariantSourceStats variantSourceStats;
         private Properties tagmap;
         private VariantStatisticsCalculator variantStatisticsCalculator;
+        // Direct load
+        private VariantDBAdaptor loadDBAdaptor;
+        private QueryOptions loadOptions;
+        private int numVariants = 0;
+        private int numWrites = 0;
 
         public VariantStatsWrapperTask(boolean overwrite, Map<String, Set<String>> samples,
-                                       StudyConfiguration studyConfiguration, String fileId,
-                                       VariantSourceStats variantSourceStats, Properties tagmap) {
+                                       StudyConfiguration studyConfiguration, String fileId, Properties tagmap) {
             this.overwrite = overwrite;
             this.samples = samples;
             this.studyConfiguration = studyConfiguration;
 //            this.fileId = fileId;
             jsonObjectMapper = new ObjectMapper(new JsonFactory());
             variantsWriter = jsonObjectMapper.writerFor(VariantStatsWrapper.class);
-            this.variantSourceStats = variantSourceStats;
+            this.variantSourceStats = new VariantSourceStats(fileId, Integer.toString(studyConfiguration.getStudyId()));
             this.tagmap = tagmap;
             variantStatisticsCalculator = new VariantStatisticsCalculator(overwrite);
             variantStatisticsCalculator.setAggregationType(studyConfiguration.getAggregation(), tagmap);
@@ -229,23 +520,30 @@ public class VariantStatisticsManager {
 
             long start = System.currentTimeMillis();
             for (VariantStatsWrapper variantStatsWrapper : variantStatsWrappers) {
-                try {
-                    strings.add(variantsWriter.writeValueAsString(variantStatsWrapper));
-                    if (variantStatsWrapper.getCohortStats().get(VariantSourceEntry.DEFAULT_COHORT) == null) {
-                        defaultCohortAbsent = true;
+                if (variantStatsWrapper.getCohortStats().get(VariantSourceEntry.DEFAULT_COHORT) == null) {
+                    defaultCohortAbsent = true;
+                }
+                if (loadDBAdaptor == null) {
+                    try {
+                        strings.add(variantsWriter.writeValueAsString(variantStatsWrapper));
+                    } catch (JsonProcessingException e) {
+                        e.printStackTrace();
                     }
-                } catch (JsonProcessingException e) {
-                    e.printStackTrace();
                 }
             }
+            if (loadDBAdaptor != null && !variantStatsWrappers.isEmpty()) {
+                QueryResult writeResult = loadDBAdaptor.updateStats(variantStatsWrappers, studyConfiguration, loadOptions);
+                numVariants += variantStatsWrappers.size();
+                numWrites += writeResult.getNumResults();
+                logger.info("stats loaded up to position {}:{}", variantStatsWrappers.get(variantStatsWrappers.size() - 1).getChromosome(),
+                        variantStatsWrappers.get(variantStatsWrappers.size() - 1).getPosition());
+            }
             // we don't want to overwrite file stats regarding all samples with stats about a subset of samples. Maybe if we change VariantSource.stats to a map with every subset...
             if (!defaultCohortAbsent) {
-                synchronized (variantSourceStats) {
-                    variantSourceStats.updateFileStats(variants);
-                    variantSourceStats.updateSampleStats(variants, null);  // TODO test
-                }
+                variantSourceStats.updateFileStats(variants);
+                variantSourceStats.updateSampleStats(variants, null);  // TODO test
             }
-            logger.debug("another batch  of {} elements calculated. time: {}ms", strings.size(), System.currentTimeMillis() - start);
+            logger.debug("another batch  of {} elements calculated. time: {}ms", variantStatsWrappers.size(), System.currentTimeMillis() - start);
             if (variants.size() != 0) {
                 logger.info("stats created up to position {}:{}", variants.get(variants.size()-1).getChromosome(), variants.get(variants.size()-1).getStart());
             } else {
@@ -253,6 +551,26 @@ public class VariantStatisticsManager {
             }
             return strings;
         }
+
+        /**
+         * Store the stats of each batch in the database instead of returning them as json.
+         */
+        public void setLoadStats(VariantDBAdaptor variantDBAdaptor, QueryOptions loadOptions) {
+            this.loadDBAdaptor = variantDBAdaptor;
+            this.loadOptions = loadOptions;
+        }
+
+        public int getNumVariants() {
+            return numVariants;
+        }
+
+        public int getNumWrites() {
+            return numWrites;
+        }
+
+        public VariantSourceStats getVariantSourceStats() {
+            return variantSourceStats;
+        }
     }
 
     public void loadStats(VariantDBAdaptor variantDBAdaptor, URI uri, StudyConfiguration studyConfiguration, QueryOptions options) throws IOException {
@@ -312,8 +630,8 @@ public class VariantStatisticsManager {
         }
 
         if (writes < variantsNumber) {
-            logger.warn("provided statistics of {} variants, but only {} were updated", variantsNumber, writes);
-            logger.info("note: maybe those variants didn't had the proper study? maybe the new and the old stats were the same?");
+            logger.warn("provided statistics of {} variants, but only {} were found in the database", variantsNumber, writes);
+            logger.info("note: maybe those variants didn't had the proper study?");
         }
 
     }
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2015 OpenCB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opencb.opencga.storage.core.alignment.coverage;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opencb.biodata.models.alignment.stats.MeanCoverage;
+import org.opencb.biodata.models.feature.Region;
+import org.opencb.commons.test.GenericTest;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CoveragePyramidTest extends GenericTest {
+
+    private static final int BASE_SIZE = 64;
+    private static final int NUM_BINS = 10000;
+
+    private float[] coverage;
+    private CoveragePyramidReader reader;
+    private Path rootDir;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Before
+    public void setUp() throws IOException {
+        Random random = new Random(0);
+        coverage = new float[NUM_BINS];
+        CoveragePyramidBuilder builder = new CoveragePyramidBuilder(BASE_SIZE);
+        List<MeanCoverage> list = new ArrayList<>();
+        for (int i = 0; i < NUM_BINS; i++) {
+            coverage[i] = random.nextInt(100) < 10 ? 0 : random.nextFloat() * 50;
+            list.add(new MeanCoverage(BASE_SIZE, "64", new Region("20", i * BASE_SIZE + 1, (i + 1) * BASE_SIZE), coverage[i]));
+            if (list.size() == 100) {
+                builder.add(list);
+                list = new ArrayList<>();
+            }
+        }
+        builder.add(list);
+        builder.add(Collections.singletonList(new MeanCoverage(BASE_SIZE, "64", new Region("1", 1, BASE_SIZE), 3)));
+
+        rootDir = temporaryFolder.getRoot().toPath();
+        Path file = rootDir.resolve("test.bam" + CoveragePyramidBuilder.EXTENSION);
+        builder.write(file);
+        reader = new CoveragePyramidReader(file);
+    }
+
+    @Test
+    public void testChromosomes() {
+        assertEquals(BASE_SIZE, reader.getBaseSize());
+        assertTrue(reader.getChromosomes().contains("1"));
+        assertTrue(reader.getChromosomes().contains("20"));
+        assertTrue(reader.getMeanCoverage(new Region("X", 1, 100000), 1000).isEmpty());
+        assertEquals(3, reader.getMeanCoverage(new Region("1", 1, 64), 64).get(0).getCoverage(), 0.0001);
+    }
+
+    @Test
+    public void testMeanCoverage() {
+        for (int intervalSize : new int[]{64, 100, 128, 1000, 4096, 10000, 65536, 100000, 1048576}) {
+            Region region = new Region("20", 12345, 600000);
+            List<MeanCoverage> list = reader.getMeanCoverage(region, intervalSize);
+            assertEquals((region.getEnd() - 1) / intervalSize - (region.getStart() - 1) / intervalSize + 1, list.size());
+            for (MeanCoverage meanCoverage : list) {
+                assertEquals(intervalSize, meanCoverage.getSize());
+                assertEquals(meanCoverage.getRegion().getEnd() - meanCoverage.getRegion().getStart() + 1, intervalSize);
+                assertEquals(0, (meanCoverage.getRegion().getStart() - 1) % intervalSize);
+                if (Integer.bitCount(intervalSize) == 1) {
+                    // Intervals match the windows of one level
+                    assertEquals("Interval " + meanCoverage.getRegion() + " size " + intervalSize,
+                            expected(meanCoverage.getRegion()), meanCoverage.getCoverage(), 0.01);
+                } else if (intervalSize % BASE_SIZE != 0 && intervalSize < BASE_SIZE * 2) {
+                    // Read from the level 0
+                    assertEquals("Interval " + meanCoverage.getRegion() + " size " + intervalSize,
+                            expected(meanCoverage.getRegion()), meanCoverage.getCoverage(), 0.01);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSkipWindowsWithoutCoverage() throws IOException {
+        CoveragePyramidBuilder builder = new CoveragePyramidBuilder(BASE_SIZE);
+        // Window 0 split between two regions, window 1 with zero coverage, window 3 not covered
+        builder.add(Collections.singletonList(new MeanCoverage(BASE_SIZE, "64", new Region("1", 1, BASE_SIZE), 2)));
+        builder.add(Collections.singletonList(new MeanCoverage(BASE_SIZE, "64", new Region("1", 1, BASE_SIZE), 3)));
+        builder.add(Collections.singletonList(new MeanCoverage(BASE_SIZE, "64", new Region("1", BASE_SIZE + 1, 2 * BASE_SIZE), 0)));
+        builder.add(Collections.singletonList(new MeanCoverage(BASE_SIZE, "64", new Region("1", 2 * BASE_SIZE + 1, 3 * BASE_SIZE), 4)));
+        builder.add(Collections.singletonList(new MeanCoverage(BASE_SIZE, "64", new Region("1", 4 * BASE_SIZE + 1, 5 * BASE_SIZE), 1)));
+        Path file = rootDir.resolve("gaps.bam" + CoveragePyramidBuilder.EXTENSION);
+        builder.write(file);
+        CoveragePyramidReader gapsReader = new CoveragePyramidReader(file);
+
+        List<MeanCoverage> list = gapsReader.getMeanCoverage(new Region("1", 1, 5 * BASE_SIZE), BASE_SIZE);
+        assertEquals(4, list.size());
+        assertEquals(5, list.get(0).getCoverage(), 0.0001);
+        assertEquals(0, list.get(1).getCoverage(), 0.0001);
+        assertEquals(4 * BASE_SIZE + 1, list.get(3).getRegion().getStart());
+
+        // Upper levels count the windows without coverage as zero
+        list = gapsReader.getMeanCoverage(new Region("1", 1, 4 * BASE_SIZE), 4 * BASE_SIZE);
+        assertEquals(1, list.size());
+        assertEquals((5 + 0 + 4) / 4.0, list.get(0).getCoverage(), 0.0001);
+    }
+
+    /**
+     * Mean coverage of the region calculated from the level 0.
+     */
+    private double expected(Region region) {
+        double sum = 0;
+        for (int position = region.getStart(); position <= region.getEnd(); position++) {
+            int bin = (position - 1) / BASE_SIZE;
+            sum += bin < NUM_BINS ? coverage[bin] : 0;
+        }
+        return sum / (region.getEnd() - region.getStart() + 1);
+    }
+}
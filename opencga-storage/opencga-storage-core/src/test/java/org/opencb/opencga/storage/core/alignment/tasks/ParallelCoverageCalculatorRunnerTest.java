@@ -0,0 +1,113 @@
+/*
+ * Copyright 2015 OpenCB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opencb.opencga.storage.core.alignment.tasks;
+
+import htsjdk.samtools.BAMIndexer;
+import htsjdk.samtools.SAMFileReader;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opencb.biodata.formats.alignment.io.AlignmentRegionDataReader;
+import org.opencb.biodata.formats.alignment.sam.io.AlignmentBamDataReader;
+import org.opencb.biodata.models.alignment.AlignmentRegion;
+import org.opencb.commons.run.Runner;
+import org.opencb.commons.run.Task;
+import org.opencb.commons.test.GenericTest;
+import org.opencb.opencga.storage.core.alignment.json.AlignmentCoverageJsonDataWriter;
+
+import java.io.*;
+import java.net.URISyntaxException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Supplier;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class ParallelCoverageCalculatorRunnerTest extends GenericTest {
+
+    private static final int REGION_SIZE = 20000;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path bam;
+    private Path bai;
+    private final Supplier<AlignmentRegionCoverageCalculatorTask> calculatorSupplier = () -> {
+        AlignmentRegionCoverageCalculatorTask calculator = new AlignmentRegionCoverageCalculatorTask();
+        calculator.addMeanCoverageCalculator("200");
+        calculator.addMeanCoverageCalculator("10000");
+        return calculator;
+    };
+
+    @Before
+    public void setUp() throws IOException, URISyntaxException {
+        Path outdir = temporaryFolder.getRoot().toPath();
+        bam = outdir.resolve("HG00096.chrom20.small.bam");
+        Files.copy(Paths.get(getClass().getResource("/HG00096.chrom20.small.bam").toURI()), bam);
+        bai = outdir.resolve("HG00096.chrom20.small.bam.bai");
+        SAMFileReader samReader = new SAMFileReader(bam.toFile());
+        samReader.enableFileSource(true);
+        BAMIndexer.createIndex(samReader, bai.toFile());
+        samReader.close();
+    }
+
+    @Test
+    public void testSameOutputAsSerial() throws Exception {
+        String serialBase = temporaryFolder.getRoot().toPath().resolve("serial.bam").toString();
+        AlignmentCoverageJsonDataWriter serialWriter = new AlignmentCoverageJsonDataWriter(serialBase, true, true, true);
+        AlignmentRegionDataReader regionReader = new AlignmentRegionDataReader(new AlignmentBamDataReader(bam, null));
+        regionReader.setMaxSequenceSize(REGION_SIZE);
+        new Runner<AlignmentRegion>(regionReader, Collections.singletonList(serialWriter),
+                Collections.<Task<AlignmentRegion>>singletonList(calculatorSupplier.get()), 1).run();
+
+        String parallelBase = temporaryFolder.getRoot().toPath().resolve("parallel.bam").toString();
+        AlignmentCoverageJsonDataWriter parallelWriter = new ParallelCoverageCalculatorRunner(bam, bai, REGION_SIZE,
+                calculatorSupplier, base -> new AlignmentCoverageJsonDataWriter(base, true, true, true), 4, 1)
+                .run(parallelBase);
+
+        List<String> serialCoverage = readLines(serialWriter.getCoverageFilename());
+        assertFalse(serialCoverage.isEmpty());
+        assertEquals(serialCoverage, readLines(parallelWriter.getCoverageFilename()));
+        assertEquals(readLines(serialWriter.getMeanCoverageFilename()), readLines(parallelWriter.getMeanCoverageFilename()));
+
+        // Part files are removed
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(temporaryFolder.getRoot().toPath())) {
+            for (Path file : files) {
+                assertFalse(file.toString(), file.getFileName().toString().contains(".part"));
+            }
+        }
+    }
+
+    private static List<String> readLines(String file) throws IOException {
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(file))))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2015 OpenCB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opencb.opencga.storage.core.runner;
+
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opencb.commons.test.GenericTest;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BgzfStringDataReaderTest extends GenericTest {
+
+    private static final String VCF_TEST_FILE_NAME = "10k.chr22.phase3_shapeit2_mvncall_integrated_v5.20130502.genotypes.vcf.gz";
+    private static Path gzipFile;
+    private static Path bgzfFile;
+
+    @ClassRule
+    public static TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void beforeClass() throws IOException {
+        Path rootDir = temporaryFolder.getRoot().toPath();
+        gzipFile = rootDir.resolve(VCF_TEST_FILE_NAME);
+        bgzfFile = rootDir.resolve("bgzf." + VCF_TEST_FILE_NAME);
+        Files.copy(BgzfStringDataReaderTest.class.getClassLoader().getResourceAsStream(VCF_TEST_FILE_NAME), gzipFile, StandardCopyOption.REPLACE_EXISTING);
+
+        try (InputStream is = new GZIPInputStream(new FileInputStream(gzipFile.toFile()));
+             OutputStream os = new BlockCompressedOutputStream(bgzfFile.toFile())) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = is.read(buffer)) > 0) {
+                os.write(buffer, 0, read);
+            }
+        }
+    }
+
+    @Test
+    public void testIsBgzf() throws IOException {
+        assertTrue(BgzfStringDataReader.isBgzf(bgzfFile));
+        assertFalse(BgzfStringDataReader.isBgzf(gzipFile));
+    }
+
+    @Test
+    public void testReadBgzf() throws IOException {
+        List<String> expected = readAll(new StringDataReader(gzipFile), 100);
+        for (int blocksPerChunk : new int[]{1, 3, BgzfStringDataReader.DEFAULT_BLOCKS_PER_CHUNK}) {
+            for (int batchSize : new int[]{1, 100, 1000}) {
+                assertEquals(expected, readAll(new BgzfStringDataReader(bgzfFile, 4, blocksPerChunk), batchSize));
+            }
+        }
+    }
+
+    @Test
+    public void testReadGzip() throws IOException {
+        List<String> expected = readAll(new StringDataReader(gzipFile), 100);
+        assertEquals(expected, readAll(new BgzfStringDataReader(gzipFile, 4), 100));
+    }
+
+    @Test
+    public void testCompressBgzf() throws IOException {
+        List<String> expected = readAll(new StringDataReader(gzipFile), 100);
+        Path compressedFile = bgzfFile.resolveSibling("compressed." + VCF_TEST_FILE_NAME);
+        BgzfDataWriter writer = new BgzfDataWriter(compressedFile);
+        writer.open();
+        writer.pre();
+        for (int i = 0; i < expected.size(); i += 1000) {
+            StringBuilder sb = new StringBuilder();
+            for (String line : expected.subList(i, Math.min(i + 1000, expected.size()))) {
+                sb.append(line).append('\n');
+            }
+            writer.write(BgzfCompressTask.compress(sb.toString().getBytes()));
+        }
+        writer.post();
+        writer.close();
+
+        assertTrue(BgzfStringDataReader.isBgzf(compressedFile));
+        assertEquals(expected, readAll(new StringDataReader(compressedFile), 100));
+        assertEquals(expected, readAll(new BgzfStringDataReader(compressedFile, 4), 100));
+    }
+
+    @Test
+    public void testLinesSplitBetweenChunks() throws IOException {
+        List<String> expected = Arrays.asList("l\u00ednea 1", "\u00f1and\u00fa \u20ac", "", "\u00faltimo");
+        byte[] content = "l\u00ednea 1\r\n\u00f1and\u00fa \u20ac\r\n\r\n\u00faltimo\r\n".getBytes(StandardCharsets.UTF_8);
+        Path file = bgzfFile.resolveSibling("split.txt.gz");
+        BgzfDataWriter writer = new BgzfDataWriter(file);
+        writer.open();
+        writer.pre();
+        // One block every 3 bytes. Splits the multi-byte characters and the "\r\n" line breaks
+        for (int i = 0; i < content.length; i += 3) {
+            writer.write(BgzfCompressTask.compress(Arrays.copyOfRange(content, i, Math.min(i + 3, content.length))));
+        }
+        writer.post();
+        writer.close();
+
+        for (int blocksPerChunk : new int[]{1, 2, 5}) {
+            assertEquals(expected, readAll(new BgzfStringDataReader(file, 4, blocksPerChunk), 1));
+        }
+    }
+
+    private List<String> readAll(StringDataReader reader, int batchSize) {
+        List<String> lines = new ArrayList<>();
+        assertTrue(reader.open());
+        reader.pre();
+        List<String> batch = reader.read(batchSize);
+        while (!batch.isEmpty()) {
+            lines.addAll(batch);
+            batch = reader.read(batchSize);
+        }
+        reader.post();
+        reader.close();
+        return lines;
+    }
+}
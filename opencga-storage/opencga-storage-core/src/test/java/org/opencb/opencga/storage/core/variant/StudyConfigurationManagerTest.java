@@ -0,0 +1,156 @@
+/*
+ * Copyright 2015 OpenCB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opencb.opencga.storage.core.variant;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.opencb.datastore.core.ObjectMap;
+import org.opencb.datastore.core.QueryOptions;
+import org.opencb.datastore.core.QueryResult;
+import org.opencb.opencga.storage.core.StudyConfiguration;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+
+import static org.junit.Assert.*;
+
+public class StudyConfigurationManagerTest {
+
+    private InMemoryStudyConfigurationManager scm;
+
+    @Before
+    public void setUp() {
+        scm = new InMemoryStudyConfigurationManager();
+        StudyConfiguration studyConfiguration = new StudyConfiguration(1, "study");
+        studyConfiguration.getSampleIds().put("s1", 1);
+        studyConfiguration.setTimeStamp(1L);
+        scm.stored.put(1, studyConfiguration);
+    }
+
+    @Test
+    public void testCache() {
+        assertEquals("study", scm.getStudyConfiguration(1, null).first().getStudyName());
+        assertEquals(1, scm.fullReads);
+
+        // Not changed. Only checks the timeStamp
+        StudyConfiguration studyConfiguration = scm.getStudyConfiguration("study", null).first();
+        assertEquals(1, scm.fullReads);
+        assertEquals(Collections.singletonMap("s1", 1), studyConfiguration.getSampleIds());
+
+        // Modifying the returned copy does not modify the cache
+        studyConfiguration.getSampleIds().put("s2", 2);
+        assertEquals(1, scm.getStudyConfiguration(1, null).first().getSampleIds().size());
+
+        // Read only returns always the same instance
+        QueryOptions readOnly = new QueryOptions(StudyConfigurationManager.READ_ONLY, true);
+        assertSame(scm.getStudyConfiguration(1, readOnly).first(), scm.getStudyConfiguration("study", readOnly).first());
+
+        // Changed in the database. Read again
+        StudyConfiguration changed = scm.stored.get(1).clone();
+        changed.getSampleIds().put("s2", 2);
+        changed.setTimeStamp(2L);
+        scm.stored.put(1, changed);
+        assertEquals(2, scm.getStudyConfiguration(1, readOnly).first().getSampleIds().size());
+        assertEquals(2, scm.fullReads);
+
+        ObjectMap metrics = scm.getCacheMetrics();
+        assertEquals(1L, metrics.get("misses"));
+        assertEquals(1L, metrics.get("reloads"));
+        assertEquals(4L, metrics.get("hits"));
+        assertEquals(1, metrics.get("size"));
+    }
+
+    @Test
+    public void testReadOnlyIsUnmodifiable() {
+        QueryOptions readOnly = new QueryOptions(StudyConfigurationManager.READ_ONLY, true);
+        StudyConfiguration studyConfiguration = scm.getStudyConfiguration(1, readOnly).first();
+        try {
+            studyConfiguration.getSampleIds().put("s2", 2);
+            fail("Read only StudyConfiguration modified");
+        } catch (UnsupportedOperationException ignore) {
+        }
+        try {
+            studyConfiguration.getAttributes().put("key", "value");
+            fail("Read only StudyConfiguration modified");
+        } catch (UnsupportedOperationException ignore) {
+        }
+        try {
+            studyConfiguration.setStudyName("other");
+            fail("Read only StudyConfiguration modified");
+        } catch (UnsupportedOperationException ignore) {
+        }
+
+        // A copy of the read only value can be modified, including the nested sets
+        StudyConfiguration copy = studyConfiguration.clone();
+        copy.getSamplesInFiles().put(1, new HashSet<>(Collections.singleton(1)));
+        copy.getSampleIds().put("s2", 2);
+        scm.updateStudyConfiguration(copy, null);
+        copy.getSamplesInFiles().get(1).add(2);
+        assertEquals(Collections.singleton(1), scm.getStudyConfiguration(1, null).first().getSamplesInFiles().get(1));
+        assertEquals(2, scm.getStudyConfiguration(1, readOnly).first().getSampleIds().size());
+    }
+
+    @Test
+    public void testUpdate() {
+        StudyConfiguration studyConfiguration = scm.getStudyConfiguration(1, null).first();
+        studyConfiguration.getSampleIds().put("s2", 2);
+        scm.updateStudyConfiguration(studyConfiguration, null);
+
+        // The cached value is a copy of the updated one
+        studyConfiguration.getSampleIds().put("s3", 3);
+        assertEquals(2, scm.getStudyConfiguration(1, null).first().getSampleIds().size());
+        assertEquals(1, scm.fullReads);
+    }
+
+    private static class InMemoryStudyConfigurationManager extends StudyConfigurationManager {
+        private final Map<Integer, StudyConfiguration> stored = new HashMap<>();
+        private int fullReads = 0;
+
+        InMemoryStudyConfigurationManager() {
+            super(null);
+        }
+
+        @Override
+        protected QueryResult<StudyConfiguration> _getStudyConfiguration(String studyName, Long timeStamp, QueryOptions options) {
+            for (StudyConfiguration studyConfiguration : stored.values()) {
+                if (studyConfiguration.getStudyName().equals(studyName)) {
+                    return _getStudyConfiguration(studyConfiguration.getStudyId(), timeStamp, options);
+                }
+            }
+            return new QueryResult<>(studyName, 0, 0, 0, "", "", Collections.emptyList());
+        }
+
+        @Override
+        protected QueryResult<StudyConfiguration> _getStudyConfiguration(int studyId, Long timeStamp, QueryOptions options) {
+            StudyConfiguration studyConfiguration = stored.get(studyId);
+            if (studyConfiguration == null || Objects.equals(studyConfiguration.getTimeStamp(), timeStamp)) {
+                return new QueryResult<>("", 0, 0, 0, "", "", Collections.emptyList());
+            }
+            fullReads++;
+            return new QueryResult<>("", 0, 1, 1, "", "", Collections.singletonList(studyConfiguration.clone()));
+        }
+
+        @Override
+        protected QueryResult _updateStudyConfiguration(StudyConfiguration studyConfiguration, QueryOptions options) {
+            stored.put(studyConfiguration.getStudyId(), studyConfiguration.clone());
+            return new QueryResult();
+        }
+    }
+}
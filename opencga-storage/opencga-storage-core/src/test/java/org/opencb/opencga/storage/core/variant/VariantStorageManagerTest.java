@@ -32,6 +32,7 @@ import org.opencb.opencga.storage.core.variant.adaptors.VariantDBIterator;
 import org.opencb.opencga.storage.core.variant.io.json.VariantJsonReader;
 
 import java.net.URI;
+import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.List;
 import java.util.Map;
@@ -57,7 +58,12 @@ public abstract class VariantStorageManagerTest extends VariantStorageManagerTes
 
         assertTrue(studyConfiguration.getIndexedFiles().contains(6));
         checkTransformedVariants(etlResult.transformResult, studyConfiguration);
-        checkLoadedVariants(variantStorageManager.getDBAdaptor(DB_NAME), studyConfiguration, true, false);
+        VariantDBAdaptor dbAdaptor = variantStorageManager.getDBAdaptor(DB_NAME);
+        try {
+            checkLoadedVariants(dbAdaptor, studyConfiguration, true, false);
+        } finally {
+            dbAdaptor.close();
+        }
     }
 
     @Test
@@ -94,31 +100,35 @@ public abstract class VariantStorageManagerTest extends VariantStorageManagerTes
         assertTrue(studyConfigurationMultiFile.getIndexedFiles().contains(9));
 
         VariantDBAdaptor dbAdaptor = variantStorageManager.getDBAdaptor(DB_NAME);
-        checkLoadedVariants(dbAdaptor, studyConfigurationMultiFile, true, false, expectedNumVariants);
+        try {
+            checkLoadedVariants(dbAdaptor, studyConfigurationMultiFile, true, false, expectedNumVariants);
 
 
-        //Load, in a new study, the same dataset in one single file
-        StudyConfiguration studyConfigurationSingleFile = new StudyConfiguration(2, "single");
-        etlResult = runDefaultETL(getResourceUri("filtered.10k.chr22.phase3_shapeit2_mvncall_integrated_v5.20130502.genotypes.vcf.gz"), variantStorageManager, studyConfigurationSingleFile, options.append(VariantStorageManager.Options.FILE_ID.key(), 10));
-        assertTrue(studyConfigurationSingleFile.getIndexedFiles().contains(10));
+            //Load, in a new study, the same dataset in one single file
+            StudyConfiguration studyConfigurationSingleFile = new StudyConfiguration(2, "single");
+            etlResult = runDefaultETL(getResourceUri("filtered.10k.chr22.phase3_shapeit2_mvncall_integrated_v5.20130502.genotypes.vcf.gz"), variantStorageManager, studyConfigurationSingleFile, options.append(VariantStorageManager.Options.FILE_ID.key(), 10));
+            assertTrue(studyConfigurationSingleFile.getIndexedFiles().contains(10));
 
-        checkTransformedVariants(etlResult.transformResult, studyConfigurationSingleFile, expectedNumVariants);
+            checkTransformedVariants(etlResult.transformResult, studyConfigurationSingleFile, expectedNumVariants);
 
 
-        //Check that both studies contains the same information
-        VariantDBIterator iterator = dbAdaptor.iterator(new Query(VariantDBAdaptor.VariantQueryParams.STUDIES.key(), studyConfigurationMultiFile.getStudyId() + "," + studyConfigurationSingleFile.getStudyId()), new QueryOptions());
-        int numVariants = 0;
-        for (; iterator.hasNext();) {
-            Variant variant = iterator.next();
-            numVariants++;
+            //Check that both studies contains the same information
+            VariantDBIterator iterator = dbAdaptor.iterator(new Query(VariantDBAdaptor.VariantQueryParams.STUDIES.key(), studyConfigurationMultiFile.getStudyId() + "," + studyConfigurationSingleFile.getStudyId()), new QueryOptions());
+            int numVariants = 0;
+            for (; iterator.hasNext();) {
+                Variant variant = iterator.next();
+                numVariants++;
 //            Map<String, VariantSourceEntry> map = variant.getSourceEntries().values().stream().collect(Collectors.toMap(VariantSourceEntry::getStudyId, Function.<VariantSourceEntry>identity()));
-            Map<String, VariantSourceEntry> map = variant.getSourceEntries();
+                Map<String, VariantSourceEntry> map = variant.getSourceEntries();
 
-            assertTrue(map.containsKey(studyConfigurationMultiFile.getStudyName()));
-            assertTrue(map.containsKey(studyConfigurationSingleFile.getStudyName()));
-            assertEquals(map.get(studyConfigurationSingleFile.getStudyName()).getSamplesData(), map.get(studyConfigurationMultiFile.getStudyName()).getSamplesData());
+                assertTrue(map.containsKey(studyConfigurationMultiFile.getStudyName()));
+                assertTrue(map.containsKey(studyConfigurationSingleFile.getStudyName()));
+                assertEquals(map.get(studyConfigurationSingleFile.getStudyName()).getSamplesData(), map.get(studyConfigurationMultiFile.getStudyName()).getSamplesData());
+            }
+            assertEquals(expectedNumVariants, numVariants);
+        } finally {
+            dbAdaptor.close();
         }
-        assertEquals(expectedNumVariants, numVariants);
 
     }
 
@@ -147,7 +157,12 @@ public abstract class VariantStorageManagerTest extends VariantStorageManagerTes
 
         assertTrue(studyConfiguration.getIndexedFiles().contains(6));
         checkTransformedVariants(etlResult.transformResult, studyConfiguration);
-        checkLoadedVariants(variantStorageManager.getDBAdaptor(DB_NAME), studyConfiguration, true, false);
+        VariantDBAdaptor dbAdaptor = variantStorageManager.getDBAdaptor(DB_NAME);
+        try {
+            checkLoadedVariants(dbAdaptor, studyConfiguration, true, false);
+        } finally {
+            dbAdaptor.close();
+        }
 
     }
 
@@ -178,10 +193,87 @@ public abstract class VariantStorageManagerTest extends VariantStorageManagerTes
 
         assertTrue(studyConfiguration.getIndexedFiles().contains(6));
         checkTransformedVariants(etlResult.transformResult, studyConfiguration);
-        checkLoadedVariants(variantStorageManager.getDBAdaptor(DB_NAME), studyConfiguration, false, false);
+        VariantDBAdaptor dbAdaptor = variantStorageManager.getDBAdaptor(DB_NAME);
+        try {
+            checkLoadedVariants(dbAdaptor, studyConfiguration, false, false);
+        } finally {
+            dbAdaptor.close();
+        }
 
     }
 
+    /**
+     * Binary transformation.
+     *  Smile (binary JSON) intermediate file
+     *  Gzip compression
+     *  Compare the read time with the equivalent JSON file
+     **/
+    @Test
+    public void smileIndex() throws Exception {
+        clearDB(DB_NAME);
+        ObjectMap params = new ObjectMap();
+        StudyConfiguration studyConfiguration = newStudyConfiguration();
+        params.put(VariantStorageManager.Options.STUDY_CONFIGURATION.key(), studyConfiguration);
+        params.put(VariantStorageManager.Options.FILE_ID.key(), 6);
+        params.put(VariantStorageManager.Options.COMPRESS_METHOD.key(), "gzip");
+        params.put(VariantStorageManager.Options.TRANSFORM_FORMAT.key(), "smile");
+        params.put(VariantStorageManager.Options.DB_NAME.key(), DB_NAME);
+        ETLResult smileResult = runETL(variantStorageManager, params, true, true, true);
+
+        Assert.assertTrue("Incorrect transform file extension " + smileResult.transformResult + ". Expected 'variants.smile.gz'" ,
+                Paths.get(smileResult.transformResult).toFile().getName().endsWith("variants.smile.gz"));
+
+        assertTrue(studyConfiguration.getIndexedFiles().contains(6));
+        checkTransformedVariants(smileResult.transformResult, studyConfiguration);
+        VariantDBAdaptor dbAdaptor = variantStorageManager.getDBAdaptor(DB_NAME);
+        try {
+            checkLoadedVariants(dbAdaptor, studyConfiguration, true, false);
+        } finally {
+            dbAdaptor.close();
+        }
+
+        params.put(VariantStorageManager.Options.TRANSFORM_FORMAT.key(), "json");
+        params.put(VariantStorageManager.Options.STUDY_CONFIGURATION.key(), newStudyConfiguration());
+        ETLResult jsonResult = runETL(variantStorageManager, params, true, true, false);
+
+        for (URI transformResult : new URI[]{jsonResult.transformResult, smileResult.transformResult}) {
+            long start = System.currentTimeMillis();
+            checkTransformedVariants(transformResult, studyConfiguration);
+            logger.info("Read " + Paths.get(transformResult).getFileName() + " ("
+                    + Files.size(Paths.get(transformResult)) + " bytes) in " + (System.currentTimeMillis() - start) / 1000.0 + "s");
+        }
+    }
+
+    /**
+     * Stream indexation.
+     *  Transform and load in the same step, without intermediate variants file
+     *  MultiThreads
+     **/
+    @Test
+    public void streamIndex() throws Exception {
+        clearDB(DB_NAME);
+        ObjectMap params = new ObjectMap();
+        StudyConfiguration studyConfiguration = newStudyConfiguration();
+        params.put(VariantStorageManager.Options.STUDY_CONFIGURATION.key(), studyConfiguration);
+        params.put(VariantStorageManager.Options.FILE_ID.key(), 6);
+        params.put(VariantStorageManager.Options.STREAM_LOAD.key(), true);
+        params.put(VariantStorageManager.Options.LOAD_THREADS.key(), 4);
+        params.put(VariantStorageManager.Options.INCLUDE_GENOTYPES.key(), true);
+        params.put(VariantStorageManager.Options.DB_NAME.key(), DB_NAME);
+        ETLResult etlResult = runETL(variantStorageManager, params, true, true, true);
+
+        Assert.assertEquals("Stream load must not write the transformed variants file", inputUri, etlResult.transformResult);
+        assertTrue(Files.exists(Paths.get(outputUri.resolve(VCF_TEST_FILE_NAME + ".file.json.gz"))));
+
+        assertTrue(studyConfiguration.getIndexedFiles().contains(6));
+        VariantDBAdaptor dbAdaptor = variantStorageManager.getDBAdaptor(DB_NAME);
+        try {
+            checkLoadedVariants(dbAdaptor, studyConfiguration, true, false);
+        } finally {
+            dbAdaptor.close();
+        }
+    }
+
     /**
      * Corrupted file index. This test must fail
      */
@@ -205,7 +297,7 @@ public abstract class VariantStorageManagerTest extends VariantStorageManagerTes
         long start = System.currentTimeMillis();
         VariantJsonReader variantJsonReader = new VariantJsonReader(new VariantSource(VCF_TEST_FILE_NAME, "6", "", ""),
                 variantsJson.getPath(),
-                variantsJson.getPath().replace("variants", "file"));
+                variantsJson.getPath().replace("variants.json", "file.json").replace("variants.smile", "file.json"));
 
         variantJsonReader.open();
         variantJsonReader.pre();
@@ -1,5 +1,6 @@
 package org.opencb.opencga.storage.core.variant.adaptors;
 
+import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
@@ -76,6 +77,16 @@ public abstract class VariantDBAdaptorLargeTest extends VariantStorageManagerTes
         }
     }
 
+    @AfterClass
+    public static void afterClass() {
+        if (dbAdaptor != null) {
+            dbAdaptor.close();
+            dbAdaptor = null;
+        }
+        // Load again the studies for the next storage engine
+        studyConfiguration1 = null;
+    }
+
 
     @Test
     public void testGetAllVariants_returnedStudies1() {
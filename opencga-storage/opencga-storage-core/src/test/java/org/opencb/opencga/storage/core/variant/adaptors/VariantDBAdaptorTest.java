@@ -92,9 +92,13 @@ public abstract class VariantDBAdaptorTest extends VariantStorageManagerTestUtil
             cohortIds.put("cohort2", 11);
 
             //Calculate stats
-            dbAdaptor = getVariantStorageManager().getDBAdaptor(DB_NAME);
-            URI stats = vsm.createStats(dbAdaptor, outputUri.resolve("cohort1.cohort2.stats"), cohorts, cohortIds, studyConfiguration, options);
-            vsm.loadStats(dbAdaptor, stats, studyConfiguration, options);
+            VariantDBAdaptor statsDBAdaptor = getVariantStorageManager().getDBAdaptor(DB_NAME);
+            try {
+                URI stats = vsm.createStats(statsDBAdaptor, outputUri.resolve("cohort1.cohort2.stats"), cohorts, cohortIds, studyConfiguration, options);
+                vsm.loadStats(statsDBAdaptor, stats, studyConfiguration, options);
+            } finally {
+                statsDBAdaptor.close();
+            }
 
         }
         options = new QueryOptions();
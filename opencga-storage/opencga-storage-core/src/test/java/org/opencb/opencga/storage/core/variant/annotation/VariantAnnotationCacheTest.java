@@ -0,0 +1,128 @@
+/*
+ * Copyright 2015 OpenCB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opencb.opencga.storage.core.variant.annotation;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opencb.biodata.models.variant.annotation.VariantAnnotation;
+import org.opencb.biodata.models.variation.GenomicVariant;
+import org.opencb.commons.test.GenericTest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class VariantAnnotationCacheTest extends GenericTest {
+
+    private Path cacheDir;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Before
+    public void before() throws IOException {
+        // Not created yet. The cache creates its directory
+        cacheDir = temporaryFolder.getRoot().toPath().resolve("cache");
+    }
+
+    @Test
+    public void testPutAndGet() throws IOException {
+        try (VariantAnnotationCache cache = new VariantAnnotationCache(cacheDir, "v3")) {
+            assertNull(cache.get(new GenomicVariant("1", 1000, "A", "C")));
+            cache.put(Arrays.asList(
+                    new GenomicVariant("1", 1000, "A", "C"),
+                    new GenomicVariant("2", 2000, "-", "T")), Arrays.asList(
+                    new VariantAnnotation("1", 1000, 1000, "A", "C"),
+                    new VariantAnnotation("2", 2000, 2000, "", "T")));
+
+            VariantAnnotation annotation = cache.get(new GenomicVariant("1", 1000, "A", "C"));
+            assertNotNull(annotation);
+            assertEquals("1", annotation.getChromosome());
+            assertEquals(1000, annotation.getStart());
+            assertNotNull(cache.get(new GenomicVariant("2", 2000, "-", "T")));
+            assertNull(cache.get(new GenomicVariant("1", 1000, "A", "G")));
+
+            assertEquals(2L, cache.getMetrics().get("hits"));
+            assertEquals(2L, cache.getMetrics().get("misses"));
+        }
+    }
+
+    @Test
+    public void testReopen() throws IOException {
+        try (VariantAnnotationCache cache = new VariantAnnotationCache(cacheDir, "v3")) {
+            cache.put(Arrays.asList(new GenomicVariant("1", 1000, "A", "C")),
+                    Arrays.asList(new VariantAnnotation("1", 1000, 1000, "A", "C")));
+        }
+        // Simulate an interrupted write
+        Path path;
+        try (VariantAnnotationCache cache = new VariantAnnotationCache(cacheDir, "v3")) {
+            path = cache.getPath();
+        }
+        try (OutputStream os = Files.newOutputStream(path, StandardOpenOption.APPEND)) {
+            os.write("1:2000:A:C\t{\"chromosome\":".getBytes());
+        }
+
+        try (VariantAnnotationCache cache = new VariantAnnotationCache(cacheDir, "v3")) {
+            assertEquals(1, cache.size());
+            assertNotNull(cache.get(new GenomicVariant("1", 1000, "A", "C")));
+            cache.put(Arrays.asList(new GenomicVariant("1", 2000, "A", "C")),
+                    Arrays.asList(new VariantAnnotation("1", 2000, 2000, "A", "C")));
+            assertNotNull(cache.get(new GenomicVariant("1", 2000, "A", "C")));
+        }
+
+        // Other versions do not share annotations
+        try (VariantAnnotationCache cache = new VariantAnnotationCache(cacheDir, "v4")) {
+            assertEquals(0, cache.size());
+        }
+    }
+
+    @Test
+    public void testKeyByRequestedVariant() throws IOException {
+        try (VariantAnnotationCache cache = new VariantAnnotationCache(cacheDir, "v3")) {
+            // The annotator may return the variant normalized
+            cache.put(Arrays.asList(new GenomicVariant("1", 1000, "AT", "A")),
+                    Arrays.asList(new VariantAnnotation("1", 1001, 1001, "T", "")));
+            assertNotNull(cache.get(new GenomicVariant("1", 1000, "AT", "A")));
+            assertNull(cache.get(new GenomicVariant("1", 1001, "T", "-")));
+        }
+    }
+
+    @Test
+    public void testSharedFile() throws IOException {
+        try (VariantAnnotationCache cache1 = new VariantAnnotationCache(cacheDir, "v3");
+             VariantAnnotationCache cache2 = new VariantAnnotationCache(cacheDir, "v3")) {
+            cache1.put(Arrays.asList(new GenomicVariant("1", 1000, "A", "C")),
+                    Arrays.asList(new VariantAnnotation("1", 1000, 1000, "A", "C")));
+            cache2.put(Arrays.asList(new GenomicVariant("1", 2000, "A", "C")),
+                    Arrays.asList(new VariantAnnotation("1", 2000, 2000, "A", "C")));
+            assertNotNull(cache1.get(new GenomicVariant("1", 1000, "A", "C")));
+            assertNotNull(cache2.get(new GenomicVariant("1", 2000, "A", "C")));
+        }
+        try (VariantAnnotationCache cache = new VariantAnnotationCache(cacheDir, "v3")) {
+            assertEquals(2, cache.size());
+            assertEquals(1000, cache.get(new GenomicVariant("1", 1000, "A", "C")).getStart());
+            assertEquals(2000, cache.get(new GenomicVariant("1", 2000, "A", "C")).getStart());
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package org.opencb.opencga.storage.core.variant.annotation;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.opencb.biodata.models.variant.annotation.VariantAnnotation;
+import org.opencb.biodata.models.variation.GenomicVariant;
+import org.opencb.datastore.core.ObjectMap;
+import org.opencb.datastore.core.Query;
+import org.opencb.datastore.core.QueryOptions;
+import org.opencb.opencga.storage.core.variant.VariantStorageManager;
+import org.opencb.opencga.storage.core.variant.VariantStorageManagerTestUtils;
+import org.opencb.opencga.storage.core.variant.adaptors.VariantDBAdaptor;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@Ignore
+public abstract class VariantAnnotationManagerTest extends VariantStorageManagerTestUtils {
+
+    private VariantDBAdaptor dbAdaptor;
+
+    @Override
+    @Before
+    public void before() throws Exception {
+        clearDB(DB_NAME);
+        runDefaultETL(inputUri, getVariantStorageManager(), newStudyConfiguration(), new ObjectMap(VariantStorageManager.Options.ANNOTATE.key(), false));
+        dbAdaptor = getVariantStorageManager().getDBAdaptor(null);
+    }
+
+    @After
+    public void after() {
+        dbAdaptor.close();
+    }
+
+    @Test
+    public void incrementalAnnotationTest() throws Exception {
+        QueryOptions options = new QueryOptions(VariantAnnotationManager.INCREMENTAL_ANNOTATION, true);
+        long numVariants = dbAdaptor.count(new Query()).first();
+
+        TestAnnotator annotator = new TestAnnotator("v1");
+        new VariantAnnotationManager(annotator, dbAdaptor).annotate(new Query(), options);
+        long notAnnotated = countStale(annotator);
+        assertTrue(annotator.annotated.get() > 0);
+        assertEquals(numVariants - notAnnotated, annotator.annotated.get());
+
+        // Nothing to annotate with the same annotator
+        annotator = new TestAnnotator("v1");
+        new VariantAnnotationManager(annotator, dbAdaptor).annotate(new Query(), options);
+        assertEquals(0, annotator.annotated.get());
+
+        // A new version annotates again all the variants
+        annotator = new TestAnnotator("v2");
+        new VariantAnnotationManager(annotator, dbAdaptor).annotate(new Query(), options);
+        assertEquals(numVariants - notAnnotated, annotator.annotated.get());
+        assertEquals(notAnnotated, countStale(annotator));
+    }
+
+    @Test
+    public void loadAnnotationFileTest() throws Exception {
+        QueryOptions options = new QueryOptions(VariantAnnotationManager.OUT_DIR, Paths.get(outputUri).toString());
+        options.put(VariantAnnotationManager.BATCH_SIZE, 10);
+        options.put(VariantAnnotationManager.LOAD_BULK_SIZE, 25);
+        options.put(VariantAnnotationManager.NUM_WRITERS, 3);
+        long numVariants = dbAdaptor.count(new Query()).first();
+
+        TestAnnotator annotator = new TestAnnotator("v1");
+        new VariantAnnotationManager(annotator, dbAdaptor).annotate(new Query(), options);
+        assertEquals(numVariants - annotator.annotated.get(), countStale(annotator));
+    }
+
+    private long countStale(VariantAnnotator annotator) {
+        return dbAdaptor.count(new Query(VariantDBAdaptor.VariantQueryParams.ANNOTATOR_ID.key(), "!" + annotator.getAnnotatorId()))
+                .first();
+    }
+
+    /**
+     * Annotator without CellBase. Creates empty annotations.
+     */
+    private static class TestAnnotator extends CellBaseVariantAnnotator {
+        private final String version;
+        private final AtomicInteger annotated = new AtomicInteger();
+
+        TestAnnotator(String version) {
+            this.version = version;
+        }
+
+        @Override
+        public String getAnnotatorId() {
+            return "test_" + version;
+        }
+
+        @Override
+        protected List<VariantAnnotation> annotate(List<GenomicVariant> genomicVariantList) throws IOException {
+            List<VariantAnnotation> variantAnnotations = new ArrayList<>(genomicVariantList.size());
+            for (GenomicVariant genomicVariant : genomicVariantList) {
+                variantAnnotations.add(new VariantAnnotation(genomicVariant.getChromosome(), genomicVariant.getPosition(),
+                        genomicVariant.getPosition(), genomicVariant.getReference(), genomicVariant.getAlternative()));
+            }
+            annotated.addAndGet(variantAnnotations.size());
+            return variantAnnotations;
+        }
+
+        @Override
+        protected boolean hasRemoteSource() {
+            return true;
+        }
+    }
+}
@@ -64,6 +64,11 @@ public abstract class VariantStatisticsManagerAggregatedExacTest extends Variant
         dbAdaptor = getVariantStorageManager().getDBAdaptor(null);
     }
 
+    @After
+    public void after() {
+        dbAdaptor.close();
+    }
+
 
     @Test
     public void calculateAggregatedStatsTest() throws Exception {
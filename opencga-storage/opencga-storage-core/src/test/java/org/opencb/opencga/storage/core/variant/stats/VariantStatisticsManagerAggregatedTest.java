@@ -59,6 +59,11 @@ public abstract class VariantStatisticsManagerAggregatedTest extends VariantStor
         dbAdaptor = getVariantStorageManager().getDBAdaptor(null);
     }
 
+    @After
+    public void after() {
+        dbAdaptor.close();
+    }
+
 
     @Test
     public void calculateAggregatedStatsTest() throws Exception {
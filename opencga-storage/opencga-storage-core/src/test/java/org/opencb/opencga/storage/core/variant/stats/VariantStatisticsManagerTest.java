@@ -6,6 +6,7 @@ import org.opencb.biodata.models.variant.Variant;
 import org.opencb.biodata.models.variant.VariantSourceEntry;
 import org.opencb.biodata.models.variant.stats.VariantStats;
 import org.opencb.datastore.core.ObjectMap;
+import org.opencb.datastore.core.Query;
 import org.opencb.datastore.core.QueryOptions;
 import org.opencb.opencga.storage.core.StudyConfiguration;
 import org.opencb.opencga.storage.core.variant.VariantStorageManager;
@@ -13,13 +14,17 @@ import org.opencb.opencga.storage.core.variant.VariantStorageManagerTest;
 import org.opencb.opencga.storage.core.variant.VariantStorageManagerTestUtils;
 import org.opencb.opencga.storage.core.variant.adaptors.VariantDBAdaptor;
 
+import java.io.BufferedReader;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.net.URI;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.zip.GZIPInputStream;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
@@ -54,6 +59,11 @@ public abstract class VariantStatisticsManagerTest extends VariantStorageManager
         dbAdaptor = getVariantStorageManager().getDBAdaptor(null);
     }
 
+    @After
+    public void after() {
+        dbAdaptor.close();
+    }
+
     @Test
     public void calculateStatsMultiCohortsTest() throws Exception {
         //Calculate stats for 2 cohorts at one time
@@ -151,6 +161,41 @@ public abstract class VariantStatisticsManagerTest extends VariantStorageManager
 
     }
 
+    @Test
+    public void calculateStatsByShardsTest() throws Exception {
+        //Calculate stats splitting the chromosomes in small ranges
+        VariantStatisticsManager vsm = new VariantStatisticsManager();
+
+        Integer fileId = studyConfiguration.getFileIds().get(Paths.get(inputUri).getFileName().toString());
+        QueryOptions options = new QueryOptions(VariantStorageManager.Options.FILE_ID.key(), fileId);
+        options.put(VariantStorageManager.Options.LOAD_BATCH_SIZE.key(), 100);
+        options.put(VariantStorageManager.Options.LOAD_THREADS.key(), 4);
+        options.put(VariantStorageManager.Options.STATS_SHARD_SIZE.key(), 1000000);
+
+        Iterator<String> iterator = studyConfiguration.getSampleIds().keySet().iterator();
+        HashSet<String> cohort1 = new HashSet<>();
+        cohort1.add(iterator.next());
+        cohort1.add(iterator.next());
+
+        Map<String, Set<String>> cohorts = Collections.singletonMap("cohort1", cohort1);
+        Map<String, Integer> cohortIds = Collections.singletonMap("cohort1", 10);
+
+        URI stats = vsm.createStats(dbAdaptor, outputUri.resolve("cohort1.shards.stats"), cohorts, cohortIds, studyConfiguration, options);
+
+        //Each variant must be written once, even if it overlaps two ranges
+        int numLines = 0;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(
+                new FileInputStream(stats.getPath() + ".variants.stats.json.gz"))))) {
+            while (reader.readLine() != null) {
+                numLines++;
+            }
+        }
+        assertEquals(dbAdaptor.count(new Query()).first().intValue(), numLines);
+
+        vsm.loadStats(dbAdaptor, stats, studyConfiguration, options);
+        checkCohorts(dbAdaptor, studyConfiguration);
+    }
+
     private static void checkCohorts(VariantDBAdaptor dbAdaptor, StudyConfiguration studyConfiguration) {
         for (Variant variant : dbAdaptor) {
             for (VariantSourceEntry sourceEntry : variant.getSourceEntries().values()) {
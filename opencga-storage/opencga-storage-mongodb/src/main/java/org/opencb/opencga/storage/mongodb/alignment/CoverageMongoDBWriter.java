@@ -22,15 +22,13 @@ import org.opencb.biodata.models.alignment.stats.MeanCoverage;
 import org.opencb.biodata.models.alignment.stats.RegionCoverage;
 import org.opencb.commons.io.DataWriter;
 
-import org.opencb.datastore.core.QueryOptions;
-import org.opencb.datastore.core.QueryResult;
-import org.opencb.datastore.mongodb.MongoDBCollection;
 import org.opencb.datastore.mongodb.MongoDataStore;
-import org.opencb.datastore.mongodb.MongoDataStoreManager;
 import org.opencb.opencga.storage.mongodb.utils.MongoCredentials;
+import org.opencb.opencga.storage.mongodb.utils.MongoDataStorePool;
 import org.slf4j.LoggerFactory;
 
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Date 26/08/14.
@@ -50,15 +48,15 @@ public class CoverageMongoDBWriter implements DataWriter<AlignmentRegion> {
     public static final String CHR_FIELD = "chr";
     public static final String SIZE_FIELD = "size";
 
-    private final MongoDataStoreManager mongoManager;
     private final String fileId;
-    private final QueryOptions updateOptions;
     private MongoDataStore db;
     private final DBObjectToRegionCoverageConverter coverageConverter;
     private final DBObjectToMeanCoverageConverter meanCoverageConverter;
     private final MongoCredentials credentials;
     private final String collectionName;
-    private MongoDBCollection collection;
+    private DBCollection nativeCollection;
+    private final AtomicLong writtenChunks = new AtomicLong();
+    private ChunkLocks chunkLocks = new ChunkLocks();
 
     protected static org.slf4j.Logger logger = LoggerFactory.getLogger(CoverageMongoDBWriter.class);
 
@@ -67,29 +65,38 @@ public class CoverageMongoDBWriter implements DataWriter<AlignmentRegion> {
         this.credentials = credentials;
         this.fileId = fileId;
 
-        mongoManager = new MongoDataStoreManager(credentials.getDataStoreServerAddresses());
         coverageConverter = new DBObjectToRegionCoverageConverter();
         meanCoverageConverter = new DBObjectToMeanCoverageConverter();
-        updateOptions = new QueryOptions("upsert", true);
+    }
+
+    /**
+     * Writers loading the same file concurrently must share the same {@link ChunkLocks}, so the writes of the same
+     * chunk are serialized.
+     *
+     * @param chunkLocks    Locks shared between the writers
+     */
+    public void setChunkLocks(ChunkLocks chunkLocks) {
+        this.chunkLocks = chunkLocks;
     }
 
     @Override
     public boolean open() {
         //MongoDBConfiguration mongoDBConfiguration = MongoDBConfiguration.builder().add("username", "biouser").add("password", "*******").build();
-        db = mongoManager.get(credentials.getMongoDbName());
+        db = MongoDataStorePool.get().acquire(credentials);
 
         return true;
     }
 
     @Override
     public boolean close() {
-        mongoManager.close(db.getDatabaseName());
+        MongoDataStorePool.get().release(db);
         return true;
     }
 
     @Override
     public boolean pre() {
-        collection = db.createCollection(collectionName);
+        db.createCollection(collectionName);
+        nativeCollection = db.getDb().getCollection(collectionName);
 //        DBCollection nativeCollection = db.getDb().getCollection(collectionName);
 //        nativeCollection.createIndex(new BasicDBObject(FILES_FIELD + "." + FILE_ID_FIELD, "text"));
 //        nativeCollection.createIndex(new BasicDBObject(FILES_FIELD, 1));
@@ -103,95 +110,132 @@ public class CoverageMongoDBWriter implements DataWriter<AlignmentRegion> {
 
     @Override
     public boolean write(AlignmentRegion elem) {
-        List<MeanCoverage> meanCoverageList = elem.getMeanCoverage();
-        RegionCoverage regionCoverage = elem.getCoverage();
-
-        if(regionCoverage != null){
-            DBObject coverageQuery = coverageConverter.getIdObject(regionCoverage);
-            DBObject coverageObject = coverageConverter.convertToStorageType(regionCoverage);
-            secureInsert(coverageQuery, coverageObject, regionCoverage.getChromosome(), (int) regionCoverage.getStart(), regionCoverage.getAll().length);
-        }
+        return write(Collections.singletonList(elem));
+    }
 
-        if(meanCoverageList != null) {
-            for (MeanCoverage meanCoverage : meanCoverageList) {
-                DBObject query = this.meanCoverageConverter.getIdObject(meanCoverage);  //{_id:"20_2354_1k"}
-                DBObject object = meanCoverageConverter.convertToStorageType(meanCoverage);  //{avg:4.5662}
-                secureInsert(query, object, meanCoverage.getRegion().getChromosome(), meanCoverage.getRegion().getStart(), meanCoverage.getSize());
+    /**
+     * Writes the coverage of all the regions with two unordered bulk operations.
+     *
+     * The first bulk creates the missing chunk documents. The second one, for each chunk, updates the coverage of
+     * the file if it was already in the chunk, or adds it otherwise. Both updates are exclusive, so the result
+     * does not depend on the execution order. The chunks are locked while the bulks are executed, so other writers
+     * sharing the {@link ChunkLocks} do not write the same chunks at the same time.
+     *
+     * @param batch Regions to write
+     * @return      true
+     */
+    @Override
+    public boolean write(List<AlignmentRegion> batch) {
+        // Chunks of the batch by id. Repeated chunks keep the last value, as it was overwritten before.
+        Map<Object, Chunk> chunks = new LinkedHashMap<>();
+        for (AlignmentRegion region : batch) {
+            if (region == null) {
+                continue;
+            }
+            RegionCoverage regionCoverage = region.getCoverage();
+            if (regionCoverage != null) {
+                DBObject coverageQuery = coverageConverter.getIdObject(regionCoverage);
+                DBObject coverageObject = coverageConverter.convertToStorageType(regionCoverage);
+                chunks.put(coverageQuery.get(ID_FIELD), new Chunk(coverageQuery, coverageObject,
+                        regionCoverage.getChromosome(), (int) regionCoverage.getStart(), regionCoverage.getAll().length));
             }
-        }
-        return true;
-    }
 
-    private void secureInsert(DBObject query, DBObject object, String chromosome, int start, int size) {
-        boolean documentExists = true;
-        boolean fileExists = true;
-
-        //Check if the document exists
-        {
-            QueryResult countId = collection.count(query);
-            if (countId.getNumResults() == 1 && countId.getResultType().equals(Long.class.getCanonicalName())) {
-                if ((Long) countId.getResult().get(0) < 1) {
-                    DBObject document = BasicDBObjectBuilder.start()
-                            .append(FILES_FIELD, new BasicDBList())
-                            .append(CHR_FIELD, chromosome)
-                            .append(START_FIELD, start)
-                            .append(SIZE_FIELD, size)
-                            .get();
-                    document.putAll(query);             //{_id:<chunkId>, files:[]}
-                    collection.insert(document, null);        //Insert a document with empty files array.
-                    fileExists = false;
+            List<MeanCoverage> meanCoverageList = region.getMeanCoverage();
+            if (meanCoverageList != null) {
+                for (MeanCoverage meanCoverage : meanCoverageList) {
+                    DBObject query = meanCoverageConverter.getIdObject(meanCoverage);  //{_id:"20_2354_1k"}
+                    DBObject object = meanCoverageConverter.convertToStorageType(meanCoverage);  //{avg:4.5662}
+                    chunks.put(query.get(ID_FIELD), new Chunk(query, object,
+                            meanCoverage.getRegion().getChromosome(), meanCoverage.getRegion().getStart(), meanCoverage.getSize()));
                 }
-            } else {
-                logger.error(countId.getErrorMsg(), countId);
             }
         }
+        if (chunks.isEmpty()) {
+            return true;
+        }
 
-        if(documentExists){
-            //Check if the file exists
-            BasicDBObject fileQuery = new BasicDBObject(FILES_FIELD + "." + FILE_ID_FIELD, fileId);
-            fileQuery.putAll(query);
-            QueryResult countFile = collection.count(fileQuery);
-            if(countFile.getNumResults() == 1 && countFile.getResultType().equals(Long.class.getCanonicalName())) {
-                if((Long) countFile.getResult().get(0) < 1){
-                    fileExists = false;
-                }
-            } else {
-                logger.error(countFile.getErrorMsg(), countFile);
+        BulkWriteOperation insertBulk = nativeCollection.initializeUnorderedBulkOperation();
+        BulkWriteOperation updateBulk = nativeCollection.initializeUnorderedBulkOperation();
+        for (Chunk chunk : chunks.values()) {
+            //db.<collectionName>.update({_id:<chunkId>}, {$setOnInsert:{chr:<chr>, start:<start>, size:<size>}}, {upsert:true})
+            insertBulk.find(chunk.query).upsert().updateOne(new BasicDBObject("$setOnInsert", BasicDBObjectBuilder.start()
+                    .append(CHR_FIELD, chunk.chromosome)
+                    .append(START_FIELD, chunk.start)
+                    .append(SIZE_FIELD, chunk.size)
+                    .get()));
+
+            //db.<collectionName>.update({_id:<chunkId>, "files.id":<fileId>}, {$set:{"files.$.<objKey>":<objValue>}})
+            BasicDBObject fileQuery = new BasicDBObject(chunk.query.toMap());
+            fileQuery.append(FILES_FIELD + "." + FILE_ID_FIELD, fileId);
+            BasicDBObject fileObject = new BasicDBObject();
+            for (String key : chunk.object.keySet()) {
+                fileObject.put(FILES_FIELD + ".$." + key, chunk.object.get(key));
             }
+            updateBulk.find(fileQuery).updateOne(new BasicDBObject("$set", fileObject));
+
+            //db.<collectionName>.update({_id:<chunkId>, "files.id":{$ne:<fileId>}}, {$push:{files:{id:<fileId>, <object>}}})
+            BasicDBObject noFileQuery = new BasicDBObject(chunk.query.toMap());
+            noFileQuery.append(FILES_FIELD + "." + FILE_ID_FIELD, new BasicDBObject("$ne", fileId));
+            BasicDBObject newFile = new BasicDBObject(FILE_ID_FIELD, fileId);
+            newFile.putAll(chunk.object);
+            updateBulk.find(noFileQuery).updateOne(new BasicDBObject("$push", new BasicDBObject(FILES_FIELD, newFile)));
         }
+        try {
+            chunkLocks.lock(chunks.keySet());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the coverage chunks", e);
+        }
+        try {
+            insertBulk.execute();
+            updateBulk.execute();
+        } finally {
+            chunkLocks.unlock(chunks.keySet());
+        }
+        writtenChunks.addAndGet(chunks.size());
+        return true;
+    }
 
-        if(fileExists){
-            BasicDBObject fileQuery = new BasicDBObject(FILES_FIELD + "." + FILE_ID_FIELD, fileId);
-            fileQuery.putAll(query);
+    /**
+     * @return Number of coverage chunks written by this writer
+     */
+    public long getWrittenChunks() {
+        return writtenChunks.get();
+    }
 
-            BasicDBObject fileObject = new BasicDBObject();
-            for(String key : object.keySet()){
-                fileObject.put(FILES_FIELD+".$."+key,object.get(key));
+    /**
+     * Chunk ids being written. A writer waits until none of its chunks is being written by other writer, and then
+     * takes all of them at once, so there are no deadlocks.
+     */
+    public static class ChunkLocks {
+        private final Set<Object> lockedChunks = new HashSet<>();
+
+        synchronized void lock(Collection<Object> chunkIds) throws InterruptedException {
+            while (!Collections.disjoint(lockedChunks, chunkIds)) {
+                wait();
             }
-//            DBObject update = new BasicDBObject("$set", new BasicDBObject(FILES_FIELD, fileObject));
-            DBObject update = new BasicDBObject("$set", fileObject);
-
-            //db.<collectionName>.update({_id:<chunkId>  , "files.id":<fileId>}, {$set:{"files.$.<objKey>":<objValue>}})
-            collection.update(fileQuery, update, updateOptions);
-        } else {
-            BasicDBObject fileObject = new BasicDBObject(FILE_ID_FIELD, fileId);
-            fileObject.putAll(object);
-            DBObject update = new BasicDBObject("$addToSet", new BasicDBObject(FILES_FIELD, fileObject));
-
-            //db.<collectionName>.update({_id:<chunkId>} , {$addToSet:{files:{id:<fileId>, <object>}}})
-            collection.update(query, update, updateOptions);
+            lockedChunks.addAll(chunkIds);
+        }
+
+        synchronized void unlock(Collection<Object> chunkIds) {
+            lockedChunks.removeAll(chunkIds);
+            notifyAll();
         }
     }
 
-    @Override
-    public boolean write(List<AlignmentRegion> batch) {
-        for(AlignmentRegion region : batch){
-            if(region != null){
-                if(!write(region)){
-                    return false;
-                }
-            }
+    private static class Chunk {
+        private final DBObject query;
+        private final DBObject object;
+        private final String chromosome;
+        private final int start;
+        private final int size;
+
+        Chunk(DBObject query, DBObject object, String chromosome, int start, int size) {
+            this.query = query;
+            this.object = object;
+            this.chromosome = chromosome;
+            this.start = start;
+            this.size = size;
         }
-        return true;
     }
 }
@@ -31,6 +31,7 @@ import org.opencb.biodata.models.alignment.stats.MeanCoverage;
 import org.opencb.biodata.models.alignment.stats.RegionCoverage;
 import org.opencb.biodata.models.feature.Region;
 import org.opencb.datastore.core.ComplexTypeConverter;
+import org.opencb.datastore.core.ObjectMap;
 import org.opencb.datastore.core.QueryOptions;
 import org.opencb.datastore.core.QueryResult;
 import org.opencb.datastore.mongodb.MongoDBCollection;
@@ -38,7 +39,10 @@ import org.opencb.datastore.mongodb.MongoDataStore;
 import org.opencb.datastore.mongodb.MongoDataStoreManager;
 import org.opencb.opencga.core.common.IOUtils;
 import org.opencb.opencga.storage.core.alignment.adaptors.AlignmentDBAdaptor;
+import org.opencb.opencga.storage.core.alignment.coverage.CoveragePyramidBuilder;
+import org.opencb.opencga.storage.core.alignment.coverage.CoveragePyramidReader;
 import org.opencb.opencga.storage.core.alignment.tasks.AlignmentRegionCoverageCalculatorTask;
+import org.opencb.opencga.storage.core.utils.LatencyStats;
 import org.opencb.opencga.storage.mongodb.utils.MongoCredentials;
 import org.slf4j.LoggerFactory;
 
@@ -62,6 +66,20 @@ public class IndexedAlignmentDBAdaptor implements AlignmentDBAdaptor {
     private MongoDataStore mongoDataStore;
     private MongoCredentials credentials;
 
+    private static final int MAX_COVERAGE_PYRAMIDS = 32;
+    // Least recently used coverage pyramids. Evicted readers are unmapped by the garbage collector.
+    private static final Map<Path, CoveragePyramid> coveragePyramids = Collections.synchronizedMap(
+            new LinkedHashMap<Path, CoveragePyramid>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Path, CoveragePyramid> eldest) {
+                    return size() > MAX_COVERAGE_PYRAMIDS;
+                }
+            });
+    private static final LatencyStats queryLatency = new LatencyStats("getAllAlignmentsByRegion");
+    private static final Comparator<Region> REGION_COMPARATOR = (r1, r2) -> {
+        int c = r1.getChromosome().compareTo(r2.getChromosome());
+        return c != 0 ? c : Long.compare(r1.getStart(), r2.getStart());
+    };
 
     public IndexedAlignmentDBAdaptor(SequenceDBAdaptor adaptor, MongoCredentials credentials) {
         try {
@@ -123,11 +141,12 @@ public class IndexedAlignmentDBAdaptor implements AlignmentDBAdaptor {
             logger.warn("BAM index file (.bai) " + baiFile + " for file " + bamFile + " not found");
         } else {
             List<AlignmentRegion> results = new LinkedList<>();
+            Map<Region, List<SAMRecord>> recordsByRegion = getSamRecordsByRegions(bamFile, baiFile, regions);
             for (Region region : regions) {
 
                 AlignmentRegion filteredAlignmentRegion;
 
-                List<SAMRecord> recordList = getSamRecordsByRegion(bamFile, baiFile, region);
+                List<SAMRecord> recordList = recordsByRegion.get(region);
                 List<Alignment> alignmentList = getAlignmentsFromSamRecords(recordList, options);
                 List<Alignment> alignmentsInRegion = getAlignmentsInRegion(alignmentList, region);
 
@@ -154,9 +173,20 @@ public class IndexedAlignmentDBAdaptor implements AlignmentDBAdaptor {
         }
 
         queryResult.setTime((int) (System.currentTimeMillis() - startTime));
+        queryLatency.add(queryResult.getTime());
         return queryResult;
     }
 
+    /**
+     * @return Metrics of the queries by region: latency percentiles and usage of the cached SAMFileReaders.
+     */
+    public static ObjectMap getMetrics() {
+        ObjectMap metrics = new ObjectMap();
+        metrics.put("latency", queryLatency.getMetrics());
+        metrics.put("readers", SAMFileReaderCache.get().getMetrics());
+        return metrics;
+    }
+
     @Override
     public QueryResult getAllAlignmentsByGene(String gene, QueryOptions options) {
         throw new UnsupportedOperationException("Not supported yet.");
@@ -198,6 +228,11 @@ public class IndexedAlignmentDBAdaptor implements AlignmentDBAdaptor {
             size -= size%chunkSize;
         }
 
+        CoveragePyramidReader coveragePyramid = getCoveragePyramid(options.getString(QO_BAM_PATH, ""));
+        if (coveragePyramid != null && size > 0) {
+            return getAllIntervalFrequencies(coveragePyramid, region, size, fileId);
+        }
+
         List<DBObject> operations = new LinkedList<>();
         operations.add(new BasicDBObject(
                 "$match",
@@ -309,6 +344,65 @@ public class IndexedAlignmentDBAdaptor implements AlignmentDBAdaptor {
         return aggregate;
     }
 
+    /**
+     * Read the interval frequencies from the nearest level of the coverage pyramid. Returns the same documents than
+     * the aggregation over the coverage collection: only the intervals with coverage information, overlapping the
+     * chunks that start inside the region, exclusive.
+     */
+    private QueryResult getAllIntervalFrequencies(CoveragePyramidReader coveragePyramid, Region region, int size, String fileId) {
+        long startTime = System.currentTimeMillis();
+        List<DBObject> results = new ArrayList<>();
+        Region innerRegion = new Region(region.getChromosome(), region.getStart() + 1, region.getEnd() - 1);
+        for (MeanCoverage meanCoverage : coveragePyramid.getMeanCoverage(innerRegion, size)) {
+            Region interval = meanCoverage.getRegion();
+            results.add(BasicDBObjectBuilder.start()
+                    .append("_id", (interval.getStart() - 1) / size)
+                    .append(FEATURES_COUNT, (double) meanCoverage.getCoverage())
+                    .append("chromosome", interval.getChromosome())
+                    .append("start", interval.getStart())
+                    .append("end", interval.getEnd())
+                    .get());
+        }
+        int time = (int) (System.currentTimeMillis() - startTime);
+        return new QueryResult<>(fileId, time, results.size(), results.size(), "", "", results);
+    }
+
+    /**
+     * Get the coverage pyramid written next to the BAM file, if any. Readers are cached while the file is not modified.
+     */
+    private static CoveragePyramidReader getCoveragePyramid(String bam) {
+        if (bam.isEmpty()) {
+            return null;
+        }
+        Path path = Paths.get(bam + CoveragePyramidBuilder.EXTENSION);
+        long lastModified = path.toFile().lastModified();   // 0 if does not exist
+        if (lastModified == 0) {
+            coveragePyramids.remove(path);
+            return null;
+        }
+        CoveragePyramid cached = coveragePyramids.get(path);
+        if (cached == null || cached.lastModified != lastModified) {
+            try {
+                cached = new CoveragePyramid(new CoveragePyramidReader(path), lastModified);
+            } catch (IOException e) {
+                logger.warn("Unable to read coverage pyramid " + path, e);
+                return null;
+            }
+            coveragePyramids.put(path, cached);
+        }
+        return cached.reader;
+    }
+
+    private static class CoveragePyramid {
+        private final CoveragePyramidReader reader;
+        private final long lastModified;
+
+        CoveragePyramid(CoveragePyramidReader reader, long lastModified) {
+            this.reader = reader;
+            this.lastModified = lastModified;
+        }
+    }
+
     private int getInt(DBObject object, String key) {
         int i;
         Object oi = object.get(key);
@@ -397,21 +491,71 @@ public class IndexedAlignmentDBAdaptor implements AlignmentDBAdaptor {
     /* ******************************************
      *              Auxiliary queries           *
      * ******************************************/
-    private List<SAMRecord> getSamRecordsByRegion(Path bamPath, Path baiPath, Region region){
-        List<SAMRecord> records = new ArrayList<>();
-
-        SAMFileReader inputSam = new SAMFileReader(bamPath.toFile(), baiPath.toFile());
-        inputSam.setValidationStringency(SAMFileReader.getDefaultValidationStringency().valueOf("LENIENT"));
-        SAMRecordIterator recordsRegion = inputSam.query(region.getChromosome(), (int) region.getStart(), (int) region.getEnd(), false);
+    /**
+     * Get the SAMRecords overlapping each region. Overlapping or adjacent regions are merged, so the index is walked
+     * only once per merged region, in sorted order, with a cached reader.
+     */
+    private Map<Region, List<SAMRecord>> getSamRecordsByRegions(Path bamPath, Path baiPath, List<Region> regions) {
+        List<Region> sortedRegions = new ArrayList<>(regions);
+        Collections.sort(sortedRegions, REGION_COMPARATOR);
 
-        SAMRecord record;
-        while (recordsRegion.hasNext()) {
-            record = recordsRegion.next();
-            records.add(record);
+        Map<Region, List<SAMRecord>> recordsByRegion = new IdentityHashMap<>();
+        SAMFileReader inputSam = SAMFileReaderCache.get().acquire(bamPath, baiPath);
+        try {
+            int i = 0;
+            while (i < sortedRegions.size()) {
+                // Merge the following overlapping or adjacent regions
+                Region first = sortedRegions.get(i);
+                long end = first.getEnd();
+                int j = i + 1;
+                while (j < sortedRegions.size()
+                        && sortedRegions.get(j).getChromosome().equals(first.getChromosome())
+                        && sortedRegions.get(j).getStart() <= end + 1) {
+                    end = Math.max(end, sortedRegions.get(j).getEnd());
+                    j++;
+                }
+                List<SAMRecord> records = new ArrayList<>();
+                SAMRecordIterator iterator = inputSam.query(first.getChromosome(), (int) first.getStart(), (int) end, false);
+                try {
+                    while (iterator.hasNext()) {
+                        records.add(iterator.next());
+                    }
+                } finally {
+                    iterator.close();
+                }
+                if (j == i + 1) {
+                    recordsByRegion.put(first, records);
+                } else {
+                    for (Region region : sortedRegions.subList(i, j)) {
+                        recordsByRegion.put(region, getSamRecordsInRegion(records, region));
+                    }
+                }
+                i = j;
+            }
+        } finally {
+            SAMFileReaderCache.get().release(inputSam);
         }
+        return recordsByRegion;
+    }
 
-        return records;
-
+    /**
+     * Select the records overlapping the region, as a query to the index would do.
+     *
+     * @param records   Records sorted by alignment start
+     * @param region    Region
+     * @return          New list with the records overlapping the region
+     */
+    private static List<SAMRecord> getSamRecordsInRegion(List<SAMRecord> records, Region region) {
+        List<SAMRecord> recordsInRegion = new ArrayList<>();
+        for (SAMRecord record : records) {
+            if (record.getAlignmentStart() > region.getEnd()) {
+                break;
+            }
+            if (Math.max(record.getAlignmentEnd(), record.getAlignmentStart()) >= region.getStart()) {
+                recordsInRegion.add(record);
+            }
+        }
+        return recordsInRegion;
     }
 
     private List<Alignment> getAlignmentsFromSamRecords(List<SAMRecord> records, QueryOptions params) {
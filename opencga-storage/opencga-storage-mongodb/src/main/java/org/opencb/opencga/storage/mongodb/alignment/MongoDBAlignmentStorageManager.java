@@ -20,8 +20,7 @@ import org.opencb.biodata.formats.io.FileFormatException;
 import org.opencb.biodata.formats.sequence.fasta.dbadaptor.CellBaseSequenceDBAdaptor;
 import org.opencb.biodata.formats.sequence.fasta.dbadaptor.SequenceDBAdaptor;
 import org.opencb.biodata.models.alignment.AlignmentRegion;
-import org.opencb.commons.run.Runner;
-import org.opencb.commons.run.Task;
+import org.opencb.commons.run.ParallelTaskRunner;
 import org.opencb.datastore.core.ObjectMap;
 import org.opencb.opencga.core.auth.IllegalOpenCGACredentialsException;
 import org.opencb.opencga.storage.core.alignment.AlignmentStorageManager;
@@ -37,6 +36,7 @@ import java.net.URI;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
 import java.util.stream.Collectors;
 
 /**
@@ -138,17 +138,59 @@ public class MongoDBAlignmentStorageManager extends AlignmentStorageManager {
         AlignmentCoverageJsonDataReader alignmentDataReader = getAlignmentCoverageJsonDataReader(input);
         alignmentDataReader.setReadRegionCoverage(false);   //Only load mean coverage
 
-        //Writer
-        CoverageMongoDBWriter dbWriter = this.getDBWriter(dbName);
+        int loadThreads = options.getInt(Options.LOAD_THREADS.key(), Options.LOAD_THREADS.defaultValue());
+        int batchSize = options.getInt(Options.LOAD_BATCH_SIZE.key(), Options.LOAD_BATCH_SIZE.defaultValue());
+
+        //Writers. One per thread, each one writing its batches with bulk operations
+        List<CoverageMongoDBWriter> writers = new ArrayList<>(loadThreads);
+        List<ParallelTaskRunner.Task<AlignmentRegion, AlignmentRegion>> tasks = new ArrayList<>(loadThreads);
+        CoverageMongoDBWriter.ChunkLocks chunkLocks = new CoverageMongoDBWriter.ChunkLocks();
+        for (int i = 0; i < loadThreads; i++) {
+            CoverageMongoDBWriter dbWriter = this.getDBWriter(dbName);
+            dbWriter.setChunkLocks(chunkLocks);
+            writers.add(dbWriter);
+            tasks.add(new ParallelTaskRunner.Task<AlignmentRegion, AlignmentRegion>() {
+                @Override
+                public void pre() {
+                    dbWriter.pre();
+                }
+
+                @Override
+                public List<AlignmentRegion> apply(List<AlignmentRegion> batch) {
+                    dbWriter.write(batch);
+                    return batch;
+                }
+
+                @Override
+                public void post() {
+                    dbWriter.post();
+                }
+            });
+        }
 
         //Runner
-        Runner<AlignmentRegion> runner = new Runner<>(alignmentDataReader, Arrays.asList(dbWriter), new LinkedList<Task<AlignmentRegion>>(), 1);
+        ParallelTaskRunner<AlignmentRegion, AlignmentRegion> ptr;
+        try {
+            ptr = new ParallelTaskRunner<>(alignmentDataReader, tasks, null,
+                    new ParallelTaskRunner.Config(loadThreads, batchSize, loadThreads * 2, false));
+        } catch (Exception e) {
+            throw new IOException("Error while creating ParallelTaskRunner", e);
+        }
 
-        logger.info("Loading coverage...");
+        logger.info("Loading coverage with {} threads...", loadThreads);
         long start = System.currentTimeMillis();
-        runner.run();
+        try {
+            writers.forEach(CoverageMongoDBWriter::open);
+            ptr.run();
+        } catch (ExecutionException e) {
+            throw new IOException("Error while loading coverage", e);
+        } finally {
+            writers.forEach(CoverageMongoDBWriter::close);
+        }
         long end = System.currentTimeMillis();
+        long chunks = writers.stream().mapToLong(CoverageMongoDBWriter::getWrittenChunks).sum();
         logger.info("end - start = " + (end - start) / 1000.0 + "s");
+        logger.info("Loaded {} coverage chunks ({} chunks/s)", chunks, end == start ? chunks : chunks * 1000 / (end - start));
         logger.info("Alignments loaded!");
 
         return inputUri;    //TODO: Return something like this: mongo://<host>/<dbName>/<collectionName>
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2015 OpenCB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opencb.opencga.storage.mongodb.alignment;
+
+import htsjdk.samtools.SAMFileReader;
+import htsjdk.samtools.ValidationStringency;
+import org.opencb.datastore.core.ObjectMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Keeps open the SAMFileReaders of the most recently queried BAM files, so the header and the BAI index are not
+ * parsed again on every query.
+ *
+ * A SAMFileReader is not thread safe, so each reader is used by one thread at a time. Each {@link #acquire(Path, Path)}
+ * must be followed by a {@link #release(SAMFileReader)}. Released readers are kept idle in a pool per file, up to
+ * {@link #maxReadersPerFile} readers. The pools are evicted in LRU order when there are more than {@link #maxFiles}
+ * files, and discarded if the BAM or the BAI file is modified.
+ */
+public class SAMFileReaderCache {
+
+    public static final int DEFAULT_MAX_FILES = 32;
+    public static final int DEFAULT_MAX_READERS_PER_FILE = 4;
+
+    private static final SAMFileReaderCache INSTANCE = new SAMFileReaderCache(DEFAULT_MAX_FILES, DEFAULT_MAX_READERS_PER_FILE);
+
+    private final int maxFiles;
+    private final int maxReadersPerFile;
+    // In access order. The first entries are the least recently used.
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<SAMFileReader, Entry> entriesByReader = new IdentityHashMap<>();
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evicted = 0;
+
+    protected static Logger logger = LoggerFactory.getLogger(SAMFileReaderCache.class);
+
+    public SAMFileReaderCache(int maxFiles, int maxReadersPerFile) {
+        this.maxFiles = maxFiles;
+        this.maxReadersPerFile = maxReadersPerFile;
+    }
+
+    public static SAMFileReaderCache get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Get an idle reader for the given BAM file, opening a new one if there is none.
+     *
+     * @param bamPath   BAM file
+     * @param baiPath   BAI index of the BAM file
+     * @return          Reader for the exclusive use of the caller. Must be released with {@link #release(SAMFileReader)}
+     */
+    public SAMFileReader acquire(Path bamPath, Path baiPath) {
+        String key = bamPath.toAbsolutePath() + "?" + baiPath.toAbsolutePath();
+        long lastModified = Math.max(bamPath.toFile().lastModified(), baiPath.toFile().lastModified());
+        Entry entry;
+        SAMFileReader reader;
+        List<SAMFileReader> toClose = new LinkedList<>();
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry != null && entry.lastModified != lastModified) {
+                logger.debug("File {} modified. Discard cached readers", bamPath);
+                remove(entry, toClose);
+                entry = null;
+            }
+            if (entry == null) {
+                entry = new Entry(key, lastModified);
+                entries.put(key, entry);
+                evict(toClose);
+            }
+            reader = entry.idle.pollFirst();
+            if (reader != null) {
+                hits++;
+                entriesByReader.put(reader, entry);
+            } else {
+                misses++;
+            }
+            entry.inUse++;
+        }
+        close(toClose);
+
+        if (reader == null) {
+            // Open the new reader out of the lock. Parsing the header and the index may take a while.
+            reader = new SAMFileReader(bamPath.toFile(), baiPath.toFile());
+            reader.setValidationStringency(ValidationStringency.LENIENT);
+            synchronized (this) {
+                entriesByReader.put(reader, entry);
+            }
+        }
+        return reader;
+    }
+
+    /**
+     * Release a reader obtained with {@link #acquire(Path, Path)}. The reader is kept open for the next acquire, unless
+     * the file was evicted or modified, or its pool is full.
+     *
+     * @param reader    Reader to release
+     */
+    public void release(SAMFileReader reader) {
+        boolean close;
+        synchronized (this) {
+            Entry entry = entriesByReader.remove(reader);
+            if (entry == null) {
+                logger.warn("Releasing an unknown SAMFileReader");
+                close = true;
+            } else {
+                entry.inUse--;
+                close = entry.removed || entry.idle.size() >= maxReadersPerFile;
+                if (!close) {
+                    entry.idle.addFirst(reader);
+                }
+            }
+        }
+        if (close) {
+            reader.close();
+        }
+    }
+
+    /**
+     * Close all the idle readers.
+     */
+    public void clear() {
+        List<SAMFileReader> toClose = new LinkedList<>();
+        synchronized (this) {
+            for (Entry entry : new ArrayList<>(entries.values())) {
+                remove(entry, toClose);
+            }
+        }
+        close(toClose);
+    }
+
+    /**
+     * @return Usage metrics: hits, misses, cached files, idle and in use readers, and evicted files.
+     */
+    public synchronized ObjectMap getMetrics() {
+        int idle = 0;
+        int inUse = 0;
+        for (Entry entry : entries.values()) {
+            idle += entry.idle.size();
+            inUse += entry.inUse;
+        }
+        ObjectMap metrics = new ObjectMap();
+        metrics.put("hits", hits);
+        metrics.put("misses", misses);
+        metrics.put("files", entries.size());
+        metrics.put("idle", idle);
+        metrics.put("inUse", inUse);
+        metrics.put("evicted", evicted);
+        return metrics;
+    }
+
+    /**
+     * Remove the least recently used files exceeding {@link #maxFiles}.
+     */
+    private void evict(List<SAMFileReader> toClose) {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (entries.size() > maxFiles && iterator.hasNext()) {
+            Entry entry = iterator.next();
+            iterator.remove();
+            entry.removed = true;
+            toClose.addAll(entry.idle);
+            entry.idle.clear();
+            evicted++;
+            logger.debug("Evicted readers for {}", entry.key);
+        }
+    }
+
+    private void remove(Entry entry, List<SAMFileReader> toClose) {
+        entries.remove(entry.key);
+        entry.removed = true;
+        toClose.addAll(entry.idle);
+        entry.idle.clear();
+    }
+
+    private static void close(List<SAMFileReader> readers) {
+        for (SAMFileReader reader : readers) {
+            reader.close();
+        }
+    }
+
+    private static class Entry {
+        private final String key;
+        private final long lastModified;
+        private final Deque<SAMFileReader> idle = new LinkedList<>();
+        private int inUse = 0;
+        // Evicted or modified. The readers in use will be closed when released.
+        private boolean removed = false;
+
+        Entry(String key, long lastModified) {
+            this.key = key;
+            this.lastModified = lastModified;
+        }
+    }
+}
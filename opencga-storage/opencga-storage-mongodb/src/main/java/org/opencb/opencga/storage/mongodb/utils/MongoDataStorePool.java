@@ -0,0 +1,82 @@
+/*
+ * Copyright 2015 OpenCB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opencb.opencga.storage.mongodb.utils;
+
+import org.opencb.datastore.core.config.DataStoreServerAddress;
+import org.opencb.datastore.mongodb.MongoDataStore;
+import org.opencb.datastore.mongodb.MongoDataStoreManager;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Shares the MongoDataStore (and its connection pool) of each database between all the DBAdaptors.
+ *
+ * Each {@link #acquire(Object)} must be followed by a {@link #release(Object)}. Released datastores are kept open
+ * while idle to be reused by the next acquire, up to {@link #DEFAULT_MAX_IDLE} datastores, and closed after
+ * {@link #DEFAULT_IDLE_TIMEOUT_MS} without being used.
+ */
+public class MongoDataStorePool extends SharedResourcePool<MongoCredentials, MongoDataStore> {
+
+    public static final int DEFAULT_MAX_IDLE = 8;
+    public static final long DEFAULT_IDLE_TIMEOUT_MS = 10 * 60 * 1000;
+
+    private static final MongoDataStorePool INSTANCE = new MongoDataStorePool(DEFAULT_MAX_IDLE, DEFAULT_IDLE_TIMEOUT_MS);
+
+    // Only accessed holding the lock of the pool
+    private final Map<MongoDataStore, MongoDataStoreManager> mongoManagers = new IdentityHashMap<>();
+
+    public MongoDataStorePool(int maxIdle, long idleTimeoutMs) {
+        super(maxIdle, idleTimeoutMs);
+    }
+
+    public static MongoDataStorePool get() {
+        return INSTANCE;
+    }
+
+    @Override
+    protected String buildKey(MongoCredentials credentials) {
+        return getKey(credentials);
+    }
+
+    @Override
+    protected MongoDataStore open(MongoCredentials credentials) {
+        MongoDataStoreManager mongoManager = new MongoDataStoreManager(credentials.getDataStoreServerAddresses());
+        MongoDataStore db = mongoManager.get(credentials.getMongoDbName(), credentials.getMongoDBConfiguration());
+        mongoManagers.put(db, mongoManager);
+        return db;
+    }
+
+    @Override
+    protected void close(MongoDataStore db) {
+        MongoDataStoreManager mongoManager = mongoManagers.remove(db);
+        if (mongoManager != null) {
+            mongoManager.close(db.getDatabaseName());
+        }
+    }
+
+    static String getKey(MongoCredentials credentials) {
+        StringBuilder sb = new StringBuilder();
+        for (DataStoreServerAddress address : credentials.getDataStoreServerAddresses()) {
+            sb.append(address.getHost()).append(':').append(address.getPort()).append(',');
+        }
+        sb.append('/').append(credentials.getMongoDbName())
+                .append('?').append(credentials.getUsername())
+                .append('@').append(credentials.getAuthenticationDatabase());
+        return sb.toString();
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2015 OpenCB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opencb.opencga.storage.mongodb.utils;
+
+import org.opencb.datastore.core.ObjectMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reference counted pool of shared resources, one for each key.
+ *
+ * Each {@link #acquire(Object)} must be followed by a {@link #release(Object)}. Released resources are kept open while
+ * idle to be reused by the next acquire, up to {@link #maxIdle} resources, and closed after {@link #idleTimeoutMs}
+ * without being used. The resources are opened and closed by the subclass, always holding the lock of the pool.
+ *
+ * @param <C>   Configuration used to open a resource
+ * @param <R>   Shared resource
+ */
+public abstract class SharedResourcePool<C, R> {
+
+    private final int maxIdle;
+    private final long idleTimeoutMs;
+    // In access order. The first entries are the least recently used.
+    private final LinkedHashMap<String, Entry<R>> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<R, Entry<R>> entriesByResource = new IdentityHashMap<>();
+
+    private long hits = 0;
+    private long misses = 0;
+    private long closed = 0;
+
+    protected static Logger logger = LoggerFactory.getLogger(SharedResourcePool.class);
+
+    protected SharedResourcePool(int maxIdle, long idleTimeoutMs) {
+        this.maxIdle = maxIdle;
+        this.idleTimeoutMs = idleTimeoutMs;
+    }
+
+    /**
+     * @param configuration Configuration of the resource
+     * @return              Key of the resource. Configurations with the same key share the resource
+     */
+    protected abstract String buildKey(C configuration);
+
+    protected abstract R open(C configuration);
+
+    protected abstract void close(R resource);
+
+    /**
+     * Get an open resource for the given configuration, opening it only if there is none.
+     *
+     * @param configuration Configuration of the resource
+     * @return              Shared resource. Must be released with {@link #release(Object)}
+     */
+    public synchronized R acquire(C configuration) {
+        closeIdle(System.currentTimeMillis());
+        String key = buildKey(configuration);
+        Entry<R> entry = entries.get(key);
+        if (entry == null) {
+            misses++;
+            R resource = open(configuration);
+            entry = new Entry<>(key, resource);
+            entries.put(key, entry);
+            entriesByResource.put(resource, entry);
+            logger.debug("New {} for {}", resource.getClass().getSimpleName(), key);
+        } else {
+            hits++;
+        }
+        entry.references++;
+        return entry.resource;
+    }
+
+    /**
+     * Release a resource obtained with {@link #acquire(Object)}. The resource is not closed, but kept idle for the
+     * next acquire.
+     *
+     * @param resource  Resource to release
+     */
+    public synchronized void release(R resource) {
+        Entry<R> entry = entriesByResource.get(resource);
+        if (entry == null) {
+            logger.warn("Releasing an unknown or already closed {}", resource);
+            return;
+        }
+        if (entry.references > 0) {
+            entry.references--;
+        } else {
+            logger.warn("Releasing a not acquired {} for {}", resource.getClass().getSimpleName(), entry.key);
+        }
+        entry.lastUsed = System.currentTimeMillis();
+        closeIdle(entry.lastUsed);
+    }
+
+    /**
+     * Close all the idle resources.
+     */
+    public synchronized void closeIdle() {
+        closeIdle(Long.MAX_VALUE);
+    }
+
+    /**
+     * @return Usage metrics: hits, misses, active (acquired) and idle resources, closed resources and references.
+     */
+    public synchronized ObjectMap getMetrics() {
+        int active = 0;
+        int references = 0;
+        for (Entry<R> entry : entries.values()) {
+            if (entry.references > 0) {
+                active++;
+                references += entry.references;
+            }
+        }
+        ObjectMap metrics = new ObjectMap();
+        metrics.put("hits", hits);
+        metrics.put("misses", misses);
+        metrics.put("active", active);
+        metrics.put("idle", entries.size() - active);
+        metrics.put("closed", closed);
+        metrics.put("references", references);
+        return metrics;
+    }
+
+    /**
+     * Close the idle resources not used since the idle timeout, and the least recently used idle resources
+     * exceeding {@link #maxIdle}.
+     */
+    private void closeIdle(long now) {
+        int idle = 0;
+        for (Entry<R> entry : entries.values()) {
+            if (entry.references == 0) {
+                idle++;
+            }
+        }
+        Iterator<Entry<R>> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry<R> entry = iterator.next();
+            if (entry.references == 0 && (idle > maxIdle || now - entry.lastUsed > idleTimeoutMs)) {
+                iterator.remove();
+                entriesByResource.remove(entry.resource);
+                close(entry.resource);
+                closed++;
+                idle--;
+                logger.debug("Closed idle {} for {}", entry.resource.getClass().getSimpleName(), entry.key);
+            }
+        }
+    }
+
+    private static class Entry<R> {
+        private final String key;
+        private final R resource;
+        private int references = 0;
+        private long lastUsed = System.currentTimeMillis();
+
+        Entry(String key, R resource) {
+            this.key = key;
+            this.resource = resource;
+        }
+    }
+}
@@ -20,6 +20,7 @@ import com.mongodb.BasicDBObject;
 import com.mongodb.DBObject;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 import org.opencb.biodata.models.feature.Genotype;
@@ -44,9 +45,21 @@ public class DBObjectToSamplesConverter /*implements ComplexTypeConverter<Varian
 
     public static final String UNKNOWN_GENOTYPE = "?/?";
 
+    // Marks the default genotypes in the "studyStorageGenotypes" cache. These genotypes are not stored.
+    private static final String DEFAULT_GENOTYPE_MARK = "";
+    // Use an array for the inverse sampleIds map if the ids are not too sparse, this is, if the max sampleId is lower
+    // than (numSamples + ID_SAMPLES_ARRAY_MIN_SIZE) * MAX_ID_SAMPLES_ARRAY_OVERHEAD
+    private static final int MAX_ID_SAMPLES_ARRAY_OVERHEAD = 10;
+    // Studies with few samples use an array even if the ids are sparse
+    private static final int ID_SAMPLES_ARRAY_MIN_SIZE = 100;
+    // Marks the studies with sparse sampleIds in the "__studyIdSamplesArray" cache, which can not contain null values
+    private static final String[] SPARSE_ID_SAMPLES = new String[0];
+
     private final Map<Integer, StudyConfiguration> studyConfigurations;
     private final Map<Integer, Map<String, Integer>> __studySamplesId; //Inverse map from "sampleIds". Do not use directly, can be null. Use "getIndexedIdSamplesMap()"
     private final Map<Integer, Map<Integer, String>> __studyIdSamples; //Inverse map from "sampleIds". Do not use directly, can be null. Use "getIndexedIdSamplesMap()"
+    private final Map<Integer, String[]> __studyIdSamplesArray; //Inverse array from "sampleIds". Do not use directly, can be null. Use "getIndexedIdSamplesArray()"
+    private final Map<Integer, Map<String, String>> studyStorageGenotypes; //Cache from the "GT" values to the genotype stored in Mongo
     private final Map<Integer, Set<String>> studyDefaultGenotypeSet;
     private Set<String> returnedSamples;
     private VariantSourceDBAdaptor sourceDbAdaptor;
@@ -62,6 +75,8 @@ public class DBObjectToSamplesConverter /*implements ComplexTypeConverter<Varian
         studyConfigurations = new HashMap<>();
         __studySamplesId = new HashMap<>();
         __studyIdSamples = new HashMap<>();
+        __studyIdSamplesArray = new ConcurrentHashMap<>();
+        studyStorageGenotypes = new HashMap<>();
         studyDefaultGenotypeSet = new HashMap<>();
         returnedSamples = new HashSet<>();
         studyConfigurationManager = null;
@@ -111,7 +126,7 @@ public class DBObjectToSamplesConverter /*implements ComplexTypeConverter<Varian
 //        Integer studyId = Integer.parseInt(object.get(STUDYID_FIELD).toString());
 //        Integer studyId = Integer.parseInt(studyIdStr);
         if (!studyConfigurations.containsKey(studyId) && studyConfigurationManager != null) { // Samples not set as constructor argument, need to query
-            QueryResult<StudyConfiguration> queryResult = studyConfigurationManager.getStudyConfiguration(studyId, null);
+            QueryResult<StudyConfiguration> queryResult = studyConfigurationManager.getStudyConfiguration(studyId, new QueryOptions(StudyConfigurationManager.READ_ONLY, true));
             if(queryResult.first() == null) {
                 logger.warn("DBObjectToSamplesConverter.convertToDataModelType StudyConfiguration {studyId: {}} not found! Looking for VariantSource", studyId);
 
@@ -148,16 +163,6 @@ public class DBObjectToSamplesConverter /*implements ComplexTypeConverter<Varian
         }
 
         BasicDBObject mongoGenotypes = (BasicDBObject) object.get(GENOTYPES_FIELD);
-//        int numSamples = idSamples.size();
-
-        // Temporary file, just to store the samples
-//        VariantSourceEntry fileWithSamples = new VariantSourceEntry(fileId.toString(), studyId.toString());
-        Map<String, Map<String, String>> samplesData = new LinkedHashMap<>();//new VariantSourceEntry(fileId.toString(), studyId.toString());
-
-        // Add the samples to the file
-        for (Map.Entry<String, Integer> entry : sampleIds.entrySet()) {
-            samplesData.put(entry.getKey(), new HashMap<>(1)); //size == 1, only will contain GT field
-        }
 
         // An array of genotypes is initialized with the most common one
 //        String mostCommonGtString = mongoGenotypes.getString("def");
@@ -166,17 +171,23 @@ public class DBObjectToSamplesConverter /*implements ComplexTypeConverter<Varian
         if (UNKNOWN_GENOTYPE.equals(mostCommonGtString)) {
             mostCommonGtString = returnedUnknownGenotype;
         }
-        if (mostCommonGtString != null) {
-            for (Map.Entry<String, Map<String, String>> entry : samplesData.entrySet()) {
-                entry.getValue().put("GT", mostCommonGtString);
+
+        // Add the samples to the file. Only the returned samples are present in the sampleIds map
+        Map<String, Map<String, String>> samplesData = new LinkedHashMap<>(sampleIds.size() * 4 / 3 + 1);
+        for (String sampleName : sampleIds.keySet()) {
+            Map<String, String> sampleData = new HashMap<>(2); //Only will contain GT field
+            if (mostCommonGtString != null) {
+                sampleData.put("GT", mostCommonGtString);
             }
+            samplesData.put(sampleName, sampleData);
         }
 
         // Loop through the non-most commmon genotypes, and set their defaultValue
         // in the position specified in the array, such as:
         // "0|1" : [ 41, 311, 342, 358, 881, 898, 903 ]
         // genotypes[41], genotypes[311], etc, will be set to "0|1"
-        Map idSamples = getIndexedIdSamplesMap(studyId);
+        String[] idSamplesArray = getIndexedIdSamplesArray(studyId);
+        Map idSamples = idSamplesArray == null ? getIndexedIdSamplesMap(studyId) : null;
         for (Map.Entry<String, Object> dbo : mongoGenotypes.entrySet()) {
             final String genotype;
             if (dbo.getKey().equals(UNKNOWN_GENOTYPE)) {
@@ -191,9 +202,19 @@ public class DBObjectToSamplesConverter /*implements ComplexTypeConverter<Varian
             } else {
                 genotype = genotypeToDataModelType(dbo.getKey());
             }
-            for (Integer sampleId : (List<Integer>) dbo.getValue()) {
-                if (idSamples.containsKey(sampleId)) {
-                    samplesData.get(idSamples.get(sampleId)).put("GT", genotype);
+            for (Object sampleIdObject : (List) dbo.getValue()) {
+                String sampleName;
+                if (sampleIdObject == null) {
+                    // Sample missing in the StudyConfiguration when it was loaded
+                    sampleName = null;
+                } else if (idSamplesArray != null) {
+                    int sampleId = ((Number) sampleIdObject).intValue();
+                    sampleName = sampleId >= 0 && sampleId < idSamplesArray.length ? idSamplesArray[sampleId] : null;
+                } else {
+                    sampleName = (String) idSamples.get(sampleIdObject);
+                }
+                if (sampleName != null) {
+                    samplesData.get(sampleName).put("GT", genotype);
                 }
             }
         }
@@ -203,44 +224,111 @@ public class DBObjectToSamplesConverter /*implements ComplexTypeConverter<Varian
 
     //    @Override
     public DBObject convertToStorageType(Map<String, Map<String, String>> object, int studyId) {
-        Map<Genotype, List<Integer>> genotypeCodes = new HashMap<>();
+        Map<String, SampleIdList> genotypeCodes = new HashMap<>();
 
 //        Integer studyId = Integer.parseInt(object.getStudyId());
 //        Integer studyId = Integer.parseInt(studyIdStr);
         StudyConfiguration studyConfiguration = studyConfigurations.get(studyId);
         Map<String, Integer> sampleIds = studyConfiguration.getSampleIds();
+        Map<String, String> storageGenotypes = getStorageGenotypes(studyId);
         // Classify samples by genotype
         for (Map.Entry<String, Map<String, String>> sample : object.entrySet()) {
             String genotype = sample.getValue().get("GT");
             if (genotype != null) {
-                Genotype g = new Genotype(genotype);
-                List<Integer> samplesWithGenotype = genotypeCodes.get(g);
-                if (samplesWithGenotype == null) {
-                    samplesWithGenotype = new ArrayList<>();
-                    genotypeCodes.put(g, samplesWithGenotype);
+                // Parse each different genotype only once
+                String storageGenotype = storageGenotypes.get(genotype);
+                if (storageGenotype == null) {
+                    storageGenotype = toStorageGenotype(genotype, studyId);
+                    storageGenotypes.put(genotype, storageGenotype);
+                }
+                // In Mongo, samples are stored in a map, classified by their genotype.
+                // The most common genotype will be marked as "default" and the specific
+                // positions where it is shown will not be stored. Example from 1000G:
+                // "def" : 0|0,
+                // "0|1" : [ 41, 311, 342, 358, 881, 898, 903 ],
+                // "1|0" : [ 262, 290, 300, 331, 343, 369, 374, 391, 879, 918, 930 ]
+                if (!DEFAULT_GENOTYPE_MARK.equals(storageGenotype)) {
+                    SampleIdList samplesWithGenotype = genotypeCodes.get(storageGenotype);
+                    if (samplesWithGenotype == null) {
+                        samplesWithGenotype = new SampleIdList();
+                        genotypeCodes.put(storageGenotype, samplesWithGenotype);
+                    }
+                    // Samples missing in the StudyConfiguration are stored as null
+                    samplesWithGenotype.add(sampleIds.get(sample.getKey()));
                 }
-                samplesWithGenotype.add(sampleIds.get(sample.getKey()));
             }
         }
 
+        BasicDBObject mongoSamples = new BasicDBObject();
+        for (Map.Entry<String, SampleIdList> entry : genotypeCodes.entrySet()) {
+            mongoSamples.append(entry.getKey(), entry.getValue());
+        }
 
-        Set<Genotype> defaultGenotype = studyDefaultGenotypeSet.get(studyId).stream().map(Genotype::new).collect(Collectors.toSet());
+        return mongoSamples;
+    }
 
-        // In Mongo, samples are stored in a map, classified by their genotype.
-        // The most common genotype will be marked as "default" and the specific
-        // positions where it is shown will not be stored. Example from 1000G:
-        // "def" : 0|0,
-        // "0|1" : [ 41, 311, 342, 358, 881, 898, 903 ],
-        // "1|0" : [ 262, 290, 300, 331, 343, 369, 374, 391, 879, 918, 930 ]
-        BasicDBObject mongoSamples = new BasicDBObject();
-        for (Map.Entry<Genotype, List<Integer>> entry : genotypeCodes.entrySet()) {
-            String genotypeStr = genotypeToStorageType(entry.getKey().toString());
-            if (!defaultGenotype.contains(entry.getKey())) {
-                mongoSamples.append(genotypeStr, entry.getValue());
+    /**
+     * Cache of the storage representation of each "GT" value for the study.
+     */
+    private Map<String, String> getStorageGenotypes(int studyId) {
+        Map<String, String> storageGenotypes;
+        synchronized (studyStorageGenotypes) {
+            storageGenotypes = studyStorageGenotypes.get(studyId);
+            if (storageGenotypes == null) {
+                storageGenotypes = new ConcurrentHashMap<>();
+                studyStorageGenotypes.put(studyId, storageGenotypes);
             }
         }
+        return storageGenotypes;
+    }
 
-        return mongoSamples;
+    /**
+     * @return The genotype as is stored in Mongo, or DEFAULT_GENOTYPE_MARK if it is a default genotype.
+     */
+    private String toStorageGenotype(String genotype, int studyId) {
+        Genotype g = new Genotype(genotype);
+        for (String defaultGenotype : studyDefaultGenotypeSet.get(studyId)) {
+            if (new Genotype(defaultGenotype).equals(g)) {
+                return DEFAULT_GENOTYPE_MARK;
+            }
+        }
+        return genotypeToStorageType(g.toString());
+    }
+
+    /**
+     * List of sample ids backed by a primitive array. Avoids boxing the ids while the samples are classified.
+     * Null ids are allowed.
+     */
+    static class SampleIdList extends AbstractList<Integer> implements RandomAccess {
+        private static final int NULL_ID = Integer.MIN_VALUE;
+        private int[] ids = new int[8];
+        private int size = 0;
+
+        void addInt(int id) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size++] = id;
+        }
+
+        @Override
+        public boolean add(Integer id) {
+            addInt(id == null ? NULL_ID : id);
+            return true;
+        }
+
+        @Override
+        public Integer get(int index) {
+            if (index >= size) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+            }
+            return ids[index] == NULL_ID ? null : ids[index];
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
     }
 
 
@@ -264,6 +352,7 @@ public class DBObjectToSamplesConverter /*implements ComplexTypeConverter<Varian
     public void setReturnedSamples(Set<String> returnedSamples) {
         this.returnedSamples = returnedSamples;
         __studyIdSamples.clear();
+        __studyIdSamplesArray.clear();
         __studySamplesId.clear();
     }
 
@@ -271,6 +360,10 @@ public class DBObjectToSamplesConverter /*implements ComplexTypeConverter<Varian
         this.studyConfigurations.put(studyConfiguration.getStudyId(), studyConfiguration);
         this.__studyIdSamples.put(studyConfiguration.getStudyId(), null);
         this.__studySamplesId.put(studyConfiguration.getStudyId(), null);
+        this.__studyIdSamplesArray.remove(studyConfiguration.getStudyId());
+        synchronized (studyStorageGenotypes) {
+            this.studyStorageGenotypes.remove(studyConfiguration.getStudyId());
+        }
 
         Set defGenotypeSet = studyConfiguration.getAttributes().get(MongoDBVariantStorageManager.DEFAULT_GENOTYPE, Set.class);
         if (defGenotypeSet == null) {
@@ -313,6 +406,37 @@ public class DBObjectToSamplesConverter /*implements ComplexTypeConverter<Varian
         return idSamples;
     }
 
+    /**
+     * Lazy usage of idSamplesArray. Only inverts map if required
+     *
+     * @return  Array of sample names indexed by sampleId, or null if the sampleIds are too sparse to fit in an array.
+     */
+    private String[] getIndexedIdSamplesArray(int studyId) {
+        String[] idSamples = this.__studyIdSamplesArray.computeIfAbsent(studyId, this::buildIndexedIdSamplesArray);
+        return idSamples == SPARSE_ID_SAMPLES ? null : idSamples;
+    }
+
+    private String[] buildIndexedIdSamplesArray(int studyId) {
+        Map<String, Integer> sampleIds = getIndexedSamplesIdMap(studyId);
+        int maxId = -1;
+        int minId = 0;
+        for (Integer id : sampleIds.values()) {
+            maxId = Math.max(maxId, id);
+            minId = Math.min(minId, id);
+        }
+        if (minId < 0 || maxId >= (sampleIds.size() + ID_SAMPLES_ARRAY_MIN_SIZE) * MAX_ID_SAMPLES_ARRAY_OVERHEAD) {
+            return SPARSE_ID_SAMPLES;
+        }
+        String[] idSamples = new String[maxId + 1];
+        for (Map.Entry<String, Integer> entry : sampleIds.entrySet()) {
+            if (idSamples[entry.getValue()] != null) {
+                throw new IllegalStateException("Invalid sample ids map. SampleIDs must be unique.");
+            }
+            idSamples[entry.getValue()] = entry.getKey();
+        }
+        return idSamples;
+    }
+
     /**
      * Lazy usage of loaded samplesIdMap.
      **/
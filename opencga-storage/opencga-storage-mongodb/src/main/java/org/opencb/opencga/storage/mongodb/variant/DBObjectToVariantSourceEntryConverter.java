@@ -25,6 +25,7 @@ import java.util.logging.Logger;
 
 import org.opencb.biodata.models.variant.VariantSourceEntry;
 import org.opencb.datastore.core.ComplexTypeConverter;
+import org.opencb.datastore.core.QueryOptions;
 import org.opencb.datastore.core.QueryResult;
 import org.opencb.opencga.storage.core.StudyConfiguration;
 import org.opencb.opencga.storage.core.variant.StudyConfigurationManager;
@@ -192,7 +193,7 @@ public class DBObjectToVariantSourceEntryConverter implements ComplexTypeConvert
             if (studyConfigurationManager == null) {
                 studyIds.put(studyId, Integer.toString(studyId));
             } else {
-                QueryResult<StudyConfiguration> queryResult = studyConfigurationManager.getStudyConfiguration(studyId, null);
+                QueryResult<StudyConfiguration> queryResult = studyConfigurationManager.getStudyConfiguration(studyId, new QueryOptions(StudyConfigurationManager.READ_ONLY, true));
                 if (queryResult.getResult().isEmpty()) {
                     studyIds.put(studyId, Integer.toString(studyId));
                 } else {
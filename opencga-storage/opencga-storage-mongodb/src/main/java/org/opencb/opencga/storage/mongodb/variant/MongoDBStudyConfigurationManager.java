@@ -24,11 +24,11 @@ import org.opencb.datastore.core.QueryOptions;
 import org.opencb.datastore.core.QueryResult;
 import org.opencb.datastore.mongodb.MongoDBCollection;
 import org.opencb.datastore.mongodb.MongoDataStore;
-import org.opencb.datastore.mongodb.MongoDataStoreManager;
 import org.opencb.opencga.core.auth.IllegalOpenCGACredentialsException;
 import org.opencb.opencga.storage.core.StudyConfiguration;
 import org.opencb.opencga.storage.core.variant.StudyConfigurationManager;
 import org.opencb.opencga.storage.mongodb.utils.MongoCredentials;
+import org.opencb.opencga.storage.mongodb.utils.MongoDataStorePool;
 
 import java.net.UnknownHostException;
 import java.util.Collections;
@@ -42,7 +42,6 @@ import java.util.stream.Collectors;
  */
 public class MongoDBStudyConfigurationManager extends StudyConfigurationManager {
 
-    private final MongoDataStoreManager mongoManager;
     private final MongoDataStore db;
     private final String collectionName;
 
@@ -62,8 +61,7 @@ public class MongoDBStudyConfigurationManager extends StudyConfigurationManager
     public MongoDBStudyConfigurationManager(MongoCredentials credentials, String collectionName) throws UnknownHostException {
         super(null);
         // Mongo configuration
-        mongoManager = new MongoDataStoreManager(credentials.getDataStoreServerAddresses());
-        db = mongoManager.get(credentials.getMongoDbName(), credentials.getMongoDBConfiguration());
+        db = MongoDataStorePool.get().acquire(credentials);
         this.collectionName = collectionName;
     }
 
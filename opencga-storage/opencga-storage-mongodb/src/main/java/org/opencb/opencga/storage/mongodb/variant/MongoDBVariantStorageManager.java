@@ -17,12 +17,17 @@
 package org.opencb.opencga.storage.mongodb.variant;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.URI;
 import java.net.UnknownHostException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.opencb.biodata.formats.variant.io.VariantReader;
@@ -38,7 +43,6 @@ import org.opencb.commons.run.Task;
 import org.opencb.datastore.core.ObjectMap;
 import org.opencb.datastore.core.config.DataStoreServerAddress;
 import org.opencb.datastore.mongodb.MongoDataStore;
-import org.opencb.datastore.mongodb.MongoDataStoreManager;
 import org.opencb.opencga.core.auth.IllegalOpenCGACredentialsException;
 
 import org.opencb.opencga.storage.core.StudyConfiguration;
@@ -46,7 +50,10 @@ import org.opencb.opencga.storage.core.StorageManagerException;
 import org.opencb.opencga.storage.core.variant.FileStudyConfigurationManager;
 import org.opencb.opencga.storage.core.variant.StudyConfigurationManager;
 import org.opencb.opencga.storage.core.variant.VariantStorageManager;
+import org.opencb.opencga.storage.core.variant.VariantTransformLoadTask;
+import org.opencb.opencga.storage.core.variant.io.json.VariantJsonReader;
 import org.opencb.opencga.storage.mongodb.utils.MongoCredentials;
+import org.opencb.opencga.storage.mongodb.utils.MongoDataStorePool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -75,16 +82,23 @@ public class MongoDBVariantStorageManager extends VariantStorageManager {
     @Deprecated public static final String OPENCGA_STORAGE_MONGODB_VARIANT_COMPRESS_GENEOTYPES      = "OPENCGA.STORAGE.MONGODB.VARIANT.LOAD.COMPRESS_GENOTYPES";
 
     //StorageEngine specific options
-//    public static final String WRITE_MONGO_THREADS = "writeMongoThreads";
+    public static final String WRITE_MONGO_THREADS = "writeMongoThreads";
+    public static final String MAX_PENDING_BULKS = "maxPendingBulks";
     public static final String AUTHENTICATION_DB     = "authentication.db";
     public static final String COLLECTION_VARIANTS   = "collection.variants";
     public static final String COLLECTION_FILES      = "collection.files";
     public static final String COLLECTION_STUDIES    = "collection.studies";
     public static final String BULK_SIZE = "bulkSize";
     public static final String DEFAULT_GENOTYPE = "defaultGenotype";
+    public static final String CHECK_EXISTING_VARIANTS = "checkExistingVariants";
+    public static final String FILL_GAPS_THREADS = "fillGaps.threads";
+    public static final String FILL_GAPS_CHUNKS = "fillGaps.chunksPerUpdate";
 
     protected static Logger logger = LoggerFactory.getLogger(MongoDBVariantStorageManager.class);
 
+    // StudyConfigurationManagers are stateless and thread safe. Share them between all the DBAdaptors of the same database
+    private final Map<String, MongoDBStudyConfigurationManager> studyConfigurationManagers = new ConcurrentHashMap<>();
+
     @Override
     @Deprecated
     public VariantMongoDBWriter getDBWriter(String dbName) throws StorageManagerException {
@@ -121,6 +135,7 @@ public class MongoDBVariantStorageManager extends VariantStorageManager {
         }
 
         logger.debug("getting DBAdaptor to db: {}", credentials.getMongoDbName());
+        logger.debug("MongoDataStorePool: {}", MongoDataStorePool.get().getMetrics());
         return variantMongoDBAdaptor;
     }
 
@@ -173,6 +188,7 @@ public class MongoDBVariantStorageManager extends VariantStorageManager {
         boolean includeSamples = options.getBoolean(Options.INCLUDE_GENOTYPES.key(), Options.INCLUDE_GENOTYPES.defaultValue());
         boolean includeStats = options.getBoolean(Options.INCLUDE_STATS.key(), Options.INCLUDE_STATS.defaultValue());
         boolean includeSrc = options.getBoolean(Options.INCLUDE_SRC.key(), Options.INCLUDE_SRC.defaultValue());
+        boolean checkExistingVariants = options.getBoolean(CHECK_EXISTING_VARIANTS, true);
 
         Set<String> defaultGenotype;
         if (studyConfiguration.getAttributes().containsKey(DEFAULT_GENOTYPE)) {
@@ -214,15 +230,13 @@ public class MongoDBVariantStorageManager extends VariantStorageManager {
         int bulkSize = options.getInt(BULK_SIZE, batchSize);
         int loadThreads = options.getInt(Options.LOAD_THREADS.key(), 8);
         int capacity = options.getInt("blockingQueueCapacity", loadThreads*2);
-//        int numWriters = params.getInt(WRITE_MONGO_THREADS, Integer.parseInt(properties.getProperty(OPENCGA_STORAGE_MONGODB_VARIANT_LOAD_WRITE_THREADS, "8")));
+        // Threads writing bulks asynchronously. If 0, each writer thread waits for its own bulks.
+        int writeMongoThreads = options.getInt(WRITE_MONGO_THREADS, 0);
+        int maxPendingBulks = options.getInt(MAX_PENDING_BULKS, writeMongoThreads * 2);
         final int numReaders = 1;
         final int numWriters = loadThreads  == 1? 1 : loadThreads - numReaders; //Subtract the reader thread
 
 
-        //Reader
-        VariantReader variantJsonReader;
-        variantJsonReader = getVariantJsonReader(input, source);
-
         //Tasks
         List<Task<Variant>> taskList = new SortedList<>();
 
@@ -231,12 +245,27 @@ public class MongoDBVariantStorageManager extends VariantStorageManager {
         List<VariantWriter> writers = new LinkedList<>();
         List<DataWriter> writerList = new LinkedList<>();
         AtomicBoolean atomicBoolean = new AtomicBoolean();
+        ExecutorService bulkExecutor = null;
+        Semaphore pendingBulksSemaphore = null;
+        if (writeMongoThreads > 0 && loadThreads > 1) {
+            if (!checkExistingVariants) {
+                throw new StorageManagerException("Asynchronous bulk writes (" + WRITE_MONGO_THREADS + ") require " + CHECK_EXISTING_VARIANTS);
+            }
+            logger.info("Asynchronous bulk writes. [{} writeMongoThreads, {} maxPendingBulks, {} bulkSize]", writeMongoThreads, maxPendingBulks, bulkSize);
+            bulkExecutor = Executors.newFixedThreadPool(writeMongoThreads);
+            pendingBulksSemaphore = new Semaphore(Math.max(maxPendingBulks, 1));
+        }
         for (int i = 0; i < numWriters; i++) {
             VariantMongoDBWriter variantDBWriter = this.getDBWriter(dbName);
-//            variantDBWriter.setBulkSize(bulkSize);
+            if (bulkExecutor != null) {
+                variantDBWriter.setAsyncBulkWrite(bulkExecutor, pendingBulksSemaphore, bulkSize);
+            }
             variantDBWriter.includeSrc(includeSrc);
             variantDBWriter.includeSamples(includeSamples);
             variantDBWriter.includeStats(includeStats);
+            variantDBWriter.setCheckExistingVariants(checkExistingVariants);
+            variantDBWriter.setFillGaps(options.getInt(FILL_GAPS_THREADS, VariantMongoDBAdaptor.DEFAULT_FILL_GAPS_THREADS),
+                    options.getInt(FILL_GAPS_CHUNKS, VariantMongoDBAdaptor.DEFAULT_FILL_GAPS_CHUNKS));
 //            variantDBWriter.setCompressDefaultGenotype(compressGenotypes);
 //            variantDBWriter.setDefaultGenotype(defaultGenotype);
 //            variantDBWriter.setVariantSource(source);
@@ -252,11 +281,20 @@ public class MongoDBVariantStorageManager extends VariantStorageManager {
         long start = System.currentTimeMillis();
 
         //Runner
-        if (loadThreads == 1) {
+        if (isStreamLoad(input, options)) {
+            // Stream load. Transform and load the variants in the same pipeline, without the intermediate file.
+            streamLoad(input, options, writers, loadThreads, batchSize, capacity, bulkExecutor);
+        } else if (loadThreads == 1) {
+            //Reader
+            VariantJsonReader variantJsonReader = getVariantJsonReader(input, source);
             logger.info("Single thread load...");
             VariantRunner vr = new VariantRunner(source, variantJsonReader, null, writers, taskList, batchSize);
             vr.run();
         } else {
+            //Reader
+            VariantJsonReader variantJsonReader = getVariantJsonReader(input, source);
+            variantJsonReader.setDecompressThreads(options.getInt(Options.LOAD_READ_THREADS.key(), Options.LOAD_READ_THREADS.defaultValue()));
+
             logger.info("Multi thread load... [{} readerThreads, {} writerThreads]", numReaders, numWriters);
 //            ThreadRunner runner = new ThreadRunner(Executors.newFixedThreadPool(loadThreads), batchSize);
 //            ThreadRunner.ReadNode<Variant> variantReadNode = runner.newReaderNode(variantJsonReader, 1);
@@ -311,11 +349,18 @@ public class MongoDBVariantStorageManager extends VariantStorageManager {
             try {
                 writers.forEach(DataWriter::open);
                 ptr.run();
+                // All the pending bulks have to be written before filling the gaps at the post
+                writerList.forEach(writer -> ((VariantMongoDBWriter) writer).flush());
                 writers.forEach(DataWriter::post);
-                writers.forEach(DataWriter::close);
-            } catch (ExecutionException e) {
+            } catch (ExecutionException | IllegalStateException e) {
                 e.printStackTrace();
                 throw new StorageManagerException("Error while executing LoadVariants in ParallelTaskRunner", e);
+            } finally {
+                // Release the connections of the DBAdaptors, also on error
+                writers.forEach(DataWriter::close);
+                if (bulkExecutor != null) {
+                    bulkExecutor.shutdownNow();
+                }
             }
 
 //            SimpleThreadRunner threadRunner = new SimpleThreadRunner(
@@ -336,6 +381,57 @@ public class MongoDBVariantStorageManager extends VariantStorageManager {
         return inputUri; //TODO: Return something like this: mongo://<host>/<dbName>/<collectionName>
     }
 
+    /**
+     * Transforms the VCF lines into variants and writes them into MongoDB with the given writers, in one single
+     * ParallelTaskRunner. Each task converts a batch of lines and writes the variants with its own writer.
+     */
+    private void streamLoad(Path input, ObjectMap options, List<VariantWriter> writers, int loadThreads, int batchSize,
+                            int capacity, ExecutorService bulkExecutor) throws StorageManagerException {
+        VariantSource source = readVariantSource(input, buildVariantSource(input, options));
+        VariantSource.Aggregation aggregation = options.get(Options.AGGREGATED_TYPE.key(), VariantSource.Aggregation.class,
+                Options.AGGREGATED_TYPE.defaultValue());
+        boolean includeSrc = options.getBoolean(Options.INCLUDE_SRC.key(), Options.INCLUDE_SRC.defaultValue());
+        int readThreads = options.getInt(Options.TRANSFORM_READ_THREADS.key(), Options.TRANSFORM_READ_THREADS.defaultValue());
+
+        VariantTransformLoadTask.Throughput throughput = new VariantTransformLoadTask.Throughput();
+        List<ParallelTaskRunner.Task<String, Variant>> tasks = new LinkedList<>();
+        for (VariantWriter writer : writers) {
+            tasks.add(new VariantTransformLoadTask(buildVariantFactory(input.getFileName().toString(), aggregation),
+                    source, includeSrc, writer, throughput));
+        }
+        ParallelTaskRunner<String, Variant> ptr;
+        try {
+            ptr = new ParallelTaskRunner<>(
+                    throughput.timed(buildVcfDataReader(input, readThreads)),
+                    tasks,
+                    null,
+                    new ParallelTaskRunner.Config(tasks.size(), batchSize, capacity, false)
+            );
+        } catch (Exception e) {
+            e.printStackTrace();
+            throw new StorageManagerException("Error while creating ParallelTaskRunner", e);
+        }
+
+        logger.info("Stream load... [{} readThreads, {} transform and load tasks]", readThreads, tasks.size());
+        try {
+            writers.forEach(DataWriter::open);
+            ptr.run();
+            // All the pending bulks have to be written before filling the gaps at the post
+            writers.forEach(writer -> ((VariantMongoDBWriter) writer).flush());
+            writers.forEach(DataWriter::post);
+        } catch (ExecutionException | IllegalStateException e) {
+            e.printStackTrace();
+            throw new StorageManagerException("Error while executing StreamLoad in ParallelTaskRunner", e);
+        } finally {
+            // Release the connections of the DBAdaptors, also on error
+            writers.forEach(DataWriter::close);
+            if (bulkExecutor != null) {
+                bulkExecutor.shutdownNow();
+            }
+        }
+        throughput.log(logger, tasks.size());
+    }
+
     @Override
     public URI postLoad(URI input, URI output) throws IOException, StorageManagerException {
         return super.postLoad(input, output);
@@ -344,8 +440,8 @@ public class MongoDBVariantStorageManager extends VariantStorageManager {
     @Override
     public boolean testConnection(String dbName) {
         MongoCredentials credentials = getMongoCredentials(dbName);
-        MongoDataStoreManager mongoManager = new MongoDataStoreManager(credentials.getDataStoreServerAddresses());
-        MongoDataStore db = mongoManager.get(credentials.getMongoDbName(), credentials.getMongoDBConfiguration());
+        MongoDataStore db = MongoDataStorePool.get().acquire(credentials);
+        MongoDataStorePool.get().release(db);
 //        return db.testConnection();
         return true;
     }
@@ -361,11 +457,18 @@ public class MongoDBVariantStorageManager extends VariantStorageManager {
         } else {
             String dbName = options == null? null : options.getString(Options.DB_NAME.key());
             String collectionName = options == null? null : options.getString(COLLECTION_STUDIES, "studies");
+            MongoCredentials credentials = getMongoCredentials(dbName);
             try {
-                return new MongoDBStudyConfigurationManager(getMongoCredentials(dbName), collectionName);
+                return studyConfigurationManagers.computeIfAbsent(credentials.getMongoDbName() + "." + collectionName, key -> {
+                    try {
+                        return new MongoDBStudyConfigurationManager(credentials, collectionName);
+                    } catch (UnknownHostException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
 //                return getDBAdaptor(dbName).getStudyConfigurationManager();
-            } catch (UnknownHostException e) {
-                throw new StorageManagerException("Unable to build MongoStorageConfigurationManager", e);
+            } catch (UncheckedIOException e) {
+                throw new StorageManagerException("Unable to build MongoStorageConfigurationManager", e.getCause());
             }
         }
     }
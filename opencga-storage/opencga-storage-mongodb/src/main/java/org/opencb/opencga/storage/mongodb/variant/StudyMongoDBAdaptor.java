@@ -21,13 +21,13 @@ import com.mongodb.DBObject;
 import com.mongodb.QueryBuilder;
 import java.net.UnknownHostException;
 import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
 import org.opencb.datastore.core.QueryOptions;
 import org.opencb.datastore.core.QueryResult;
 import org.opencb.datastore.mongodb.MongoDBCollection;
-import org.opencb.datastore.mongodb.MongoDBConfiguration;
 import org.opencb.datastore.mongodb.MongoDataStore;
-import org.opencb.datastore.mongodb.MongoDataStoreManager;
 import org.opencb.opencga.storage.mongodb.utils.MongoCredentials;
+import org.opencb.opencga.storage.mongodb.utils.MongoDataStorePool;
 import org.opencb.opencga.storage.core.adaptors.StudyDBAdaptor;
 
 /**
@@ -36,14 +36,13 @@ import org.opencb.opencga.storage.core.adaptors.StudyDBAdaptor;
  */
 public class StudyMongoDBAdaptor implements StudyDBAdaptor {
 
-    private final MongoDataStoreManager mongoManager;
     private final MongoDataStore db;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
     private final String collectionName;
 
     public StudyMongoDBAdaptor(MongoCredentials credentials, String collectionName) throws UnknownHostException {
         // Mongo configuration
-        mongoManager = new MongoDataStoreManager(credentials.getDataStoreServerAddresses());
-        db = mongoManager.get(credentials.getMongoDbName(), credentials.getMongoDBConfiguration());
+        db = MongoDataStorePool.get().acquire(credentials);
         this.collectionName = collectionName;
     }
 
@@ -122,7 +121,9 @@ public class StudyMongoDBAdaptor implements StudyDBAdaptor {
 
     @Override
     public boolean close() {
-        mongoManager.close(db.getDatabaseName());
+        if (closed.compareAndSet(false, true)) {
+            MongoDataStorePool.get().release(db);
+        }
         return true;
     }
 
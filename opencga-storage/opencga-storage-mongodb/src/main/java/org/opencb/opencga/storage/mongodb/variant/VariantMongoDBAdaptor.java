@@ -20,6 +20,11 @@ import com.mongodb.*;
 
 import java.net.UnknownHostException;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.regex.Pattern;
@@ -36,7 +41,6 @@ import org.opencb.datastore.core.QueryOptions;
 import org.opencb.datastore.core.QueryResult;
 import org.opencb.datastore.mongodb.MongoDBCollection;
 import org.opencb.datastore.mongodb.MongoDataStore;
-import org.opencb.datastore.mongodb.MongoDataStoreManager;
 import org.opencb.opencga.storage.core.StudyConfiguration;
 import org.opencb.opencga.storage.core.variant.StudyConfigurationManager;
 import org.opencb.opencga.storage.core.variant.VariantStorageManager;
@@ -44,6 +48,7 @@ import org.opencb.opencga.storage.core.variant.adaptors.VariantDBIterator;
 import org.opencb.opencga.storage.core.variant.adaptors.VariantSourceDBAdaptor;
 import org.opencb.opencga.storage.core.variant.stats.VariantStatsWrapper;
 import org.opencb.opencga.storage.mongodb.utils.MongoCredentials;
+import org.opencb.opencga.storage.mongodb.utils.MongoDataStorePool;
 import org.opencb.opencga.storage.core.variant.adaptors.VariantDBAdaptor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -55,7 +60,6 @@ import org.slf4j.LoggerFactory;
  */
 public class VariantMongoDBAdaptor implements VariantDBAdaptor {
 
-    private final MongoDataStoreManager mongoManager;
     private final MongoDataStore db;
     private final String collectionName;
     private final MongoDBCollection variantsCollection;
@@ -66,6 +70,14 @@ public class VariantMongoDBAdaptor implements VariantDBAdaptor {
     @Deprecated
     private DataWriter dataWriter;
 
+    // Shared by all the fill gaps of this adaptor
+    private ExecutorService fillGapsExecutor;
+    private int fillGapsThreads;
+    private boolean closed = false;
+    // Stateless converters, shared between threads on updateAnnotations
+    private final DBObjectToVariantConverter variantIdConverter = new DBObjectToVariantConverter();
+    private final DBObjectToVariantAnnotationConverter variantAnnotationConverter = new DBObjectToVariantAnnotationConverter();
+
 
     private enum QueryOperation {
         AND, OR
@@ -75,13 +87,15 @@ public class VariantMongoDBAdaptor implements VariantDBAdaptor {
     public static final String AND = ";";
     public static final String IS = ":";
 
+    public static final int DEFAULT_FILL_GAPS_THREADS = 4;
+    public static final int DEFAULT_FILL_GAPS_CHUNKS = 100;
+
     protected static Logger logger = LoggerFactory.getLogger(VariantMongoDBAdaptor.class);
 
     public VariantMongoDBAdaptor(MongoCredentials credentials, String variantsCollectionName, String filesCollectionName, StudyConfigurationManager studyConfigurationManager)
             throws UnknownHostException {
         // MongoDB configuration
-        mongoManager = new MongoDataStoreManager(credentials.getDataStoreServerAddresses());
-        db = mongoManager.get(credentials.getMongoDbName(), credentials.getMongoDBConfiguration());
+        db = MongoDataStorePool.get().acquire(credentials);
         variantSourceMongoDBAdaptor = new VariantSourceMongoDBAdaptor(credentials, filesCollectionName);
         collectionName = variantsCollectionName;
         variantsCollection = db.getCollection(collectionName);
@@ -220,6 +234,9 @@ public class VariantMongoDBAdaptor implements VariantDBAdaptor {
             case "ensemblTranscript":
                 documentPath = DBObjectToVariantConverter.ANNOTATION_FIELD + "." + DBObjectToVariantAnnotationConverter.CONSEQUENCE_TYPE_FIELD + "." + DBObjectToVariantAnnotationConverter.ENSEMBL_TRANSCRIPT_ID_FIELD;
                 break;
+            case "chromosome":
+                documentPath = DBObjectToVariantConverter.CHROMOSOME_FIELD;
+                break;
             case "ct":
             case "consequence_type":
                 documentPath = DBObjectToVariantConverter.ANNOTATION_FIELD + "." + DBObjectToVariantAnnotationConverter.CONSEQUENCE_TYPE_FIELD + "." + DBObjectToVariantAnnotationConverter.SO_ACCESSION_FIELD;
@@ -504,21 +521,37 @@ public class VariantMongoDBAdaptor implements VariantDBAdaptor {
         return updateStats(variantStatsWrappers, studyConfigurationManager.getStudyConfiguration(studyName, options).first(), options);
     }
 
+    /**
+     * Writes the stats of a batch of variants with a single bulk operation.
+     *
+     * Without overwrite, the new cohorts are pushed into the "st" array. With overwrite, each cohort is replaced in
+     * place with one atomic update, so the variant never lacks the stats of that cohort:
+     * <pre>
+     *  { _id : <id>, st : { $elemMatch : { sid : <studyId>, cid : <cohortId> } } }    { $set : { "st.$" : <stats> } }
+     *  { _id : <id>, st : { $not : { $elemMatch : { sid : <studyId>, cid : <cohortId> } } } }    { $push : { st : <stats> } }
+     * </pre>
+     * The bulk is ordered when overwriting, so the $push only matches if the $set did not. An unordered bulk could
+     * apply the $push first, and then the $set would match too.
+     *
+     * @return  QueryResult with the number of variants found, whether their stats changed or not
+     */
     @Override
     public QueryResult updateStats(List<VariantStatsWrapper> variantStatsWrappers, StudyConfiguration studyConfiguration,
                                    QueryOptions options) {
         DBCollection coll = db.getDb().getCollection(collectionName);
-        BulkWriteOperation pullBuilder = coll.initializeUnorderedBulkOperation();
-        BulkWriteOperation pushBuilder = coll.initializeUnorderedBulkOperation();
+        boolean overwrite = options.getBoolean(VariantStorageManager.Options.OVERWRITE_STATS.key(), false);
+        BulkWriteOperation builder = overwrite ? coll.initializeOrderedBulkOperation() : coll.initializeUnorderedBulkOperation();
 
         long start = System.nanoTime();
         DBObjectToVariantStatsConverter statsConverter = new DBObjectToVariantStatsConverter(studyConfigurationManager);
 //        VariantSource variantSource = queryOptions.get(VariantStorageManager.VARIANT_SOURCE, VariantSource.class);
         DBObjectToVariantConverter variantConverter = getDbObjectToVariantConverter(new Query(), options);
-        boolean overwrite = options.getBoolean(VariantStorageManager.Options.OVERWRITE_STATS.key(), false);
         //TODO: Use the StudyConfiguration to change names to ids
 
-        // TODO make unset of 'st' if already present?
+        int numUpdates = 0;
+        List<String> ids = new ArrayList<>(variantStatsWrappers.size());
+        // Number of updates that match if every variant is found
+        int expectedMatches = 0;
         for (VariantStatsWrapper wrapper : variantStatsWrappers) {
             Map<String, VariantStats> cohortStats = wrapper.getCohortStats();
             Iterator<VariantStats> iterator = cohortStats.values().iterator();
@@ -526,53 +559,43 @@ public class VariantMongoDBAdaptor implements VariantDBAdaptor {
             List<DBObject> cohorts = statsConverter.convertCohortsToStorageType(cohortStats, studyConfiguration.getStudyId());   // TODO remove when we remove fileId
 //            List cohorts = statsConverter.convertCohortsToStorageType(cohortStats, variantSource.getStudyId());   // TODO use when we remove fileId
 
-            // add cohorts, overwriting old values if that cid, fid and sid already exists: remove and then add
-            // db.variants.update(
-            //      {_id:<id>},
-            //      {$pull:{st:{cid:{$in:["Cohort 1","cohort 2"]}, fid:{$in:["file 1", "file 2"]}, sid:{$in:["study 1", "study 2"]}}}}
-            // )
-            // db.variants.update(
-            //      {_id:<id>},
-            //      {$push:{st:{$each: [{cid:"Cohort 1", fid:"file 1", ... , defaultValue:3},{cid:"Cohort 2", ... , defaultValue:3}] }}}
-            // )
-
             if (!cohorts.isEmpty()) {
                 String id = variantConverter.buildStorageId(wrapper.getChromosome(), wrapper.getPosition(),
                         variantStats.getRefAllele(), variantStats.getAltAllele());
+                ids.add(id);
 
-
-                DBObject find = new BasicDBObject("_id", id);
                 if (overwrite) {
-                    List<BasicDBObject> idsList = new ArrayList<>(cohorts.size());
+                    expectedMatches += cohorts.size();
                     for (DBObject cohort : cohorts) {
-                        BasicDBObject ids = new BasicDBObject()
-                                .append(DBObjectToVariantStatsConverter.COHORT_ID, cohort.get(DBObjectToVariantStatsConverter.COHORT_ID))
-                                .append(DBObjectToVariantStatsConverter.STUDY_ID, cohort.get(DBObjectToVariantStatsConverter.STUDY_ID));
-                        idsList.add(ids);
+                        DBObject elemMatch = new BasicDBObject("$elemMatch", new BasicDBObject()
+                                .append(DBObjectToVariantStatsConverter.STUDY_ID, cohort.get(DBObjectToVariantStatsConverter.STUDY_ID))
+                                .append(DBObjectToVariantStatsConverter.COHORT_ID, cohort.get(DBObjectToVariantStatsConverter.COHORT_ID)));
+                        builder.find(new BasicDBObject("_id", id).append(DBObjectToVariantConverter.STATS_FIELD, elemMatch))
+                                .updateOne(new BasicDBObject("$set", new BasicDBObject(DBObjectToVariantConverter.STATS_FIELD + ".$", cohort)));
+                        builder.find(new BasicDBObject("_id", id).append(DBObjectToVariantConverter.STATS_FIELD, new BasicDBObject("$not", elemMatch)))
+                                .updateOne(new BasicDBObject("$push", new BasicDBObject(DBObjectToVariantConverter.STATS_FIELD, cohort)));
                     }
-                    DBObject update = new BasicDBObject("$pull",
+                } else {
+                    DBObject push = new BasicDBObject("$push",
                             new BasicDBObject(DBObjectToVariantConverter.STATS_FIELD,
-                                    new BasicDBObject("$or", idsList)));
-
-                    pullBuilder.find(find).updateOne(update);
+                                    new BasicDBObject("$each", cohorts)));
+                    builder.find(new BasicDBObject("_id", id)).updateOne(push);
+                    expectedMatches++;
                 }
-
-                DBObject push = new BasicDBObject("$push",
-                        new BasicDBObject(DBObjectToVariantConverter.STATS_FIELD,
-                                new BasicDBObject("$each", cohorts)));
-
-                pushBuilder.find(find).update(push);
+                numUpdates++;
             }
         }
 
         // TODO handle if the variant didn't had that studyId in the files array
-        // TODO check the substitution is done right if the stats are already present
-        if (overwrite) {
-            pullBuilder.execute();
+        if (numUpdates == 0) {
+            return new QueryResult<>("", ((int) (System.nanoTime() - start)), 0, 0, "", "", Collections.emptyList());
         }
-        BulkWriteResult writeResult = pushBuilder.execute();
-        int writes = writeResult.getModifiedCount();
-
+        BulkWriteResult writeResult = builder.execute();
+        // The modified count is not the number of variants: there is one update per cohort when overwriting, and the
+        // unchanged stats are not modified. Count the variants only if some update did not match.
+        int writes = writeResult.getMatchedCount() == expectedMatches
+                ? numUpdates
+                : (int) coll.count(new BasicDBObject("_id", new BasicDBObject("$in", ids)));
 
         return new QueryResult<>("", ((int) (System.nanoTime() - start)), writes, writes, "", "", Collections.singletonList(writeResult));
     }
@@ -616,17 +639,22 @@ public class VariantMongoDBAdaptor implements VariantDBAdaptor {
 
     @Override
     public QueryResult updateAnnotations(List<VariantAnnotation> variantAnnotations, QueryOptions queryOptions) {
+        if (variantAnnotations.isEmpty()) {
+            return new QueryResult<>("", 0, 0, 0, "", "", Collections.emptyList());
+        }
         DBCollection coll = db.getDb().getCollection(collectionName);
         BulkWriteOperation builder = coll.initializeUnorderedBulkOperation();
 
         long start = System.nanoTime();
-        DBObjectToVariantConverter variantConverter = getDbObjectToVariantConverter(new Query(), queryOptions);
+        String annotatorId = queryOptions == null ? null : queryOptions.getString(VariantQueryParams.ANNOTATOR_ID.key(), null);
         for (VariantAnnotation variantAnnotation : variantAnnotations) {
-            String id = variantConverter.buildStorageId(variantAnnotation.getChromosome(), variantAnnotation.getStart(),
+            String id = variantIdConverter.buildStorageId(variantAnnotation.getChromosome(), variantAnnotation.getStart(),
                     variantAnnotation.getReference(), variantAnnotation.getAlternate());
             DBObject find = new BasicDBObject("_id", id);
-            DBObjectToVariantAnnotationConverter converter = new DBObjectToVariantAnnotationConverter();
-            DBObject convertedVariantAnnotation = converter.convertToStorageType(variantAnnotation);
+            DBObject convertedVariantAnnotation = variantAnnotationConverter.convertToStorageType(variantAnnotation);
+            if (annotatorId != null) {
+                convertedVariantAnnotation.put(DBObjectToVariantAnnotationConverter.ANNOT_ID_FIELD, annotatorId);
+            }
             DBObject update = new BasicDBObject("$set", new BasicDBObject(DBObjectToVariantConverter.ANNOTATION_FIELD + ".0",
                     convertedVariantAnnotation));
             builder.find(find).updateOne(update);
@@ -656,7 +684,19 @@ public class VariantMongoDBAdaptor implements VariantDBAdaptor {
 
     @Override
     public boolean close() {
-        mongoManager.close(db.getDatabaseName());
+        synchronized (this) {
+            if (closed) {
+                // The references to the shared MongoDataStore were already released
+                return false;
+            }
+            closed = true;
+            if (fillGapsExecutor != null) {
+                fillGapsExecutor.shutdown();
+                fillGapsExecutor = null;
+            }
+        }
+        variantSourceMongoDBAdaptor.close();
+        MongoDataStorePool.get().release(db);
         return true;
     }
 
@@ -710,6 +750,12 @@ public class VariantMongoDBAdaptor implements VariantDBAdaptor {
                 builder.exists(query.getBoolean(VariantQueryParams.ANNOTATION_EXISTS.key()));
             }
 
+            if (query.containsKey(VariantQueryParams.ANNOTATOR_ID.key())) {
+                // "!{annotatorId}" also matches the variants without annotation
+                addQueryStringFilter(DBObjectToVariantConverter.ANNOTATION_FIELD + "." + DBObjectToVariantAnnotationConverter.ANNOT_ID_FIELD,
+                        query.getString(VariantQueryParams.ANNOTATOR_ID.key()), builder, QueryOperation.AND);
+            }
+
             if (query.containsKey(VariantQueryParams.ANNOT_XREF.key())) {
                 String xrefs = query.getString(VariantQueryParams.GENE.key());
                 addQueryStringFilter(DBObjectToVariantConverter.ANNOTATION_FIELD + "." +
@@ -813,7 +859,7 @@ public class VariantMongoDBAdaptor implements VariantDBAdaptor {
                     try {
                         return Integer.parseInt(studyName);
                     } catch (NumberFormatException e) {
-                        QueryResult<StudyConfiguration> result = studyConfigurationManager.getStudyConfiguration(studyName, null);
+                        QueryResult<StudyConfiguration> result = studyConfigurationManager.getStudyConfiguration(studyName, new QueryOptions(StudyConfigurationManager.READ_ONLY, true));
                         if (result.getResult().isEmpty()) {
                             throw new IllegalArgumentException("Study " + studyName + " not found");
                         }
@@ -823,7 +869,7 @@ public class VariantMongoDBAdaptor implements VariantDBAdaptor {
 
                 List<Integer> studyIds = getStudyIds(Arrays.asList(value.split(",|;")), null);
                 if (studyIds.size() == 1) {
-                    defaultStudyConfiguration = studyConfigurationManager.getStudyConfiguration(studyIds.get(0), null).first();
+                    defaultStudyConfiguration = studyConfigurationManager.getStudyConfiguration(studyIds.get(0), new QueryOptions(StudyConfigurationManager.READ_ONLY, true)).first();
                 } else {
                     defaultStudyConfiguration = null;
                 }
@@ -833,7 +879,7 @@ public class VariantMongoDBAdaptor implements VariantDBAdaptor {
             } else {
                 List<String> studyNames = studyConfigurationManager.getStudyNames(null);
                 if (studyNames != null && studyNames.size() == 1) {
-                    defaultStudyConfiguration = studyConfigurationManager.getStudyConfiguration(studyNames.get(0), null).first();
+                    defaultStudyConfiguration = studyConfigurationManager.getStudyConfiguration(studyNames.get(0), new QueryOptions(StudyConfigurationManager.READ_ONLY, true)).first();
                 } else {
                     defaultStudyConfiguration = null;
                 }
@@ -844,7 +890,7 @@ public class VariantMongoDBAdaptor implements VariantDBAdaptor {
                         objectToString(query.get(VariantQueryParams.FILES.key())), studyBuilder, QueryOperation.AND, file -> {
                             if (file.contains(":")) {
                                 String[] studyFile = file.split(":");
-                                QueryResult<StudyConfiguration> queryResult = studyConfigurationManager.getStudyConfiguration(studyFile[0], null);
+                                QueryResult<StudyConfiguration> queryResult = studyConfigurationManager.getStudyConfiguration(studyFile[0], new QueryOptions(StudyConfigurationManager.READ_ONLY, true));
                                 if (queryResult.getResult().isEmpty()) {
                                     throw new IllegalArgumentException("Study " + studyFile[0] + " not found");
                                 }
@@ -887,7 +933,7 @@ public class VariantMongoDBAdaptor implements VariantDBAdaptor {
                         String study = sampleGenotype[0];
                         String sample = sampleGenotype[1];
                         genotypes = sampleGenotype[2];
-                        QueryResult<StudyConfiguration> queryResult = studyConfigurationManager.getStudyConfiguration(study, null);
+                        QueryResult<StudyConfiguration> queryResult = studyConfigurationManager.getStudyConfiguration(study, new QueryOptions(StudyConfigurationManager.READ_ONLY, true));
                         if (queryResult.getResult().isEmpty()) {
                             throw new IllegalArgumentException("Study " + study + " not found");
                         }
@@ -961,7 +1007,9 @@ public class VariantMongoDBAdaptor implements VariantDBAdaptor {
         }
 
         if (options.containsKey("sort")) {
-            if (options.getBoolean("sort")) {
+            if ("desc".equalsIgnoreCase(options.getString("sort"))) {
+                options.put("sort", new BasicDBObject(DBObjectToVariantConverter.CHROMOSOME_FIELD, -1).append(DBObjectToVariantConverter.START_FIELD, -1));
+            } else if (options.getBoolean("sort")) {
                 options.put("sort", new BasicDBObject(DBObjectToVariantConverter.CHROMOSOME_FIELD, 1).append(DBObjectToVariantConverter.START_FIELD, 1));
             } else {
                 options.remove("sort");
@@ -1099,24 +1147,10 @@ public class VariantMongoDBAdaptor implements VariantDBAdaptor {
                     if (!variantSourceEntry.getFileId().equals(fileIdStr)) {
                         continue;
                     }
-                    int studyId = studyConfiguration.getStudyId();
-                    DBObject study = variantSourceEntryConverter.convertToStorageType(variantSourceEntry);
-                    DBObject genotypes = (DBObject) study.get(DBObjectToVariantSourceEntryConverter.GENOTYPES_FIELD);
-                    if (genotypes != null) {        //If genotypes is null, genotypes are not suppose to be loaded
-                        genotypes.putAll(missingSamples);   //Add missing samples
-                    }
-                    DBObject push = new BasicDBObject(DBObjectToVariantConverter.STUDIES_FIELD, study);
-                    BasicDBObject update = new BasicDBObject()
-                            .append("$push", push)
-                            .append("$setOnInsert", variantConverter.convertToStorageType(variant));
-                    if (variant.getIds() != null && !variant.getIds().isEmpty() && !variant.getIds().iterator().next().isEmpty()) {
-                        update.put("$addToSet", new BasicDBObject(DBObjectToVariantConverter.IDS_FIELD, new BasicDBObject("$each", variant.getIds())));
-                    }
                     // { _id: <variant_id>, "studies.sid": {$ne: <studyId> } }
                     //If the variant exists and contains the study, this find will fail, will try to do the upsert, and throw a duplicated key exception.
-                    queries.add(new BasicDBObject("_id", id).append(DBObjectToVariantConverter.STUDIES_FIELD + "." + DBObjectToVariantSourceEntryConverter.STUDYID_FIELD,
-                            new BasicDBObject("$ne", studyId)));
-                    updates.add(update);
+                    queries.add(buildNewStudyQuery(id, studyConfiguration.getStudyId()));
+                    updates.add(buildNewStudyUpdate(variant, variantSourceEntry, variantConverter, variantSourceEntryConverter, missingSamples));
                 }
             }
             QueryOptions options = new QueryOptions("upsert", true);
@@ -1149,22 +1183,8 @@ public class VariantMongoDBAdaptor implements VariantDBAdaptor {
                     continue;
                 }
 
-                DBObject studyObject = variantSourceEntryConverter.convertToStorageType(variantSourceEntry);
-                DBObject genotypes = (DBObject) studyObject.get(DBObjectToVariantSourceEntryConverter.GENOTYPES_FIELD);
-                DBObject push = new BasicDBObject();
-                if (genotypes != null) { //If genotypes is null, genotypes are not suppose to be loaded
-                    for (String genotype : genotypes.keySet()) {
-                        push.put(DBObjectToVariantConverter.STUDIES_FIELD + ".$." + DBObjectToVariantSourceEntryConverter.GENOTYPES_FIELD + "." + genotype, new BasicDBObject("$each", genotypes.get(genotype)));
-                    }
-                } else {
-                    push.put(DBObjectToVariantConverter.STUDIES_FIELD + ".$." + DBObjectToVariantSourceEntryConverter.GENOTYPES_FIELD, Collections.emptyMap());
-                }
-                push.put(DBObjectToVariantConverter.STUDIES_FIELD + ".$." + DBObjectToVariantSourceEntryConverter.FILES_FIELD, ((List) studyObject.get(DBObjectToVariantSourceEntryConverter.FILES_FIELD)).get(0));
-                BasicDBObject update = new BasicDBObject(new BasicDBObject("$push", push));
-
-
-                queries.add(new BasicDBObject("_id", id).append(DBObjectToVariantConverter.STUDIES_FIELD + "." + DBObjectToVariantSourceEntryConverter.STUDYID_FIELD, studyConfiguration.getStudyId()));
-                updates.add(update);
+                queries.add(buildExistingStudyQuery(id, studyConfiguration.getStudyId()));
+                updates.add(buildExistingStudyUpdate(variantSourceEntry, variantSourceEntryConverter));
 
             }
 
@@ -1178,9 +1198,249 @@ public class VariantMongoDBAdaptor implements VariantDBAdaptor {
         }
     }
 
+    /**
+     * Single round trip insertion:
+     *      Before writing, probe which variants of the batch already contain the study with one "_id $in" query.
+     *      Those variants get the positional "$push" of the file and genotypes information. The rest of them get the
+     *      upsert that pushes the whole study. Both kind of updates are sent in one single unordered bulk operation.
+     *
+     *      If any other loader inserts the study of some variant between the probe and the bulk (i.e. two files of the
+     *      same study loading at the same time), the "dup key" errors are retried as in the two steps insertion. The
+     *      same happens with variants sharing the storage id inside the same bulk.
+     *
+     * @param data                  Variants to insert
+     * @param fileId                File to insert
+     * @param studyMayBeLoaded      If false, no variant may contain the study yet and the probe is skipped
+     * @param loadedSampleIds       Other loaded sampleIds EXCEPT those that are going to be loaded
+     */
+    QueryResult insert(List<Variant> data, int fileId, DBObjectToVariantConverter variantConverter,
+                       DBObjectToVariantSourceEntryConverter variantSourceEntryConverter, StudyConfiguration studyConfiguration,
+                       List<Integer> loadedSampleIds, boolean studyMayBeLoaded) {
+        if (data.isEmpty()) {
+            return new QueryResult("insertVariants");
+        }
+        InsertBulk bulk = newInsertBulk(fileId, variantSourceEntryConverter, studyConfiguration);
+        addToInsertBulk(bulk, data, variantConverter, loadedSampleIds, studyMayBeLoaded);
+        return executeInsertBulk(bulk);
+    }
+
+    /**
+     * Bulk operation under construction for the single round trip insertion. Keeps the id and source entry of each
+     * request of the bulk, by request index, to be able to retry the "dup key" errors.
+     *
+     * Building and executing the bulk may happen in different threads, but not at the same time.
+     */
+    class InsertBulk {
+        private final BulkWriteOperation builder = db.getDb().getCollection(collectionName).initializeUnorderedBulkOperation();
+        private final List<String> ids = new ArrayList<>();
+        private final List<VariantSourceEntry> sourceEntries = new ArrayList<>();
+        private final String fileIdStr;
+        private final int studyId;
+        private final DBObjectToVariantSourceEntryConverter variantSourceEntryConverter;
+        private final StudyConfiguration studyConfiguration;
+
+        private InsertBulk(int fileId, DBObjectToVariantSourceEntryConverter variantSourceEntryConverter, StudyConfiguration studyConfiguration) {
+            this.fileIdStr = Integer.toString(fileId);
+            this.studyId = studyConfiguration.getStudyId();
+            this.variantSourceEntryConverter = variantSourceEntryConverter;
+            this.studyConfiguration = studyConfiguration;
+        }
+
+        public int size() {
+            return sourceEntries.size();
+        }
+    }
+
+    InsertBulk newInsertBulk(int fileId, DBObjectToVariantSourceEntryConverter variantSourceEntryConverter, StudyConfiguration studyConfiguration) {
+        return new InsertBulk(fileId, variantSourceEntryConverter, studyConfiguration);
+    }
+
+    /**
+     * Convert a batch of variants and add the updates to the bulk. Does not write anything, apart from
+     * the "_id $in" probe.
+     *
+     * @param bulk                  Bulk to fill
+     * @param data                  Variants to insert
+     * @param studyMayBeLoaded      If false, no variant may contain the study yet and the probe is skipped
+     * @param loadedSampleIds       Other loaded sampleIds EXCEPT those that are going to be loaded
+     * @return                      Number of updates added to the bulk
+     */
+    int addToInsertBulk(InsertBulk bulk, List<Variant> data, DBObjectToVariantConverter variantConverter,
+                        List<Integer> loadedSampleIds, boolean studyMayBeLoaded) {
+        Map missingSamples = Collections.emptyMap();
+        String defaultGenotype = bulk.studyConfiguration.getAttributes().getString(MongoDBVariantStorageManager.DEFAULT_GENOTYPE, "");
+        if (defaultGenotype.equals(DBObjectToSamplesConverter.UNKNOWN_GENOTYPE)) {
+            logger.debug("Do not need fill gaps. DefaultGenotype is UNKNOWN_GENOTYPE({}).");
+        } else if (!loadedSampleIds.isEmpty()) {
+            missingSamples = new BasicDBObject(DBObjectToSamplesConverter.UNKNOWN_GENOTYPE, loadedSampleIds);   // ?/?
+        }
+
+        // Variants sharing the storage id are not merged. The upserts of the repeated ids fail with "dup key" and are
+        // retried in executeInsertBulk.
+        List<String> ids = new ArrayList<>(data.size());
+        for (Variant variant : data) {
+            variant.setAnnotation(null);
+            ids.add(variantConverter.buildStorageId(variant));
+        }
+        Set<String> variantsWithStudy = studyMayBeLoaded
+                ? getVariantsWithStudy(new LinkedHashSet<>(ids), bulk.studyId)
+                : Collections.<String>emptySet();
+
+        int added = 0;
+        for (int i = 0; i < data.size(); i++) {
+            String id = ids.get(i);
+            Variant variant = data.get(i);
+            for (VariantSourceEntry variantSourceEntry : variant.getSourceEntries().values()) {
+                if (!variantSourceEntry.getFileId().equals(bulk.fileIdStr)) {
+                    continue;
+                }
+                if (variantsWithStudy.contains(id)) {
+                    bulk.builder.find(buildExistingStudyQuery(id, bulk.studyId))
+                            .updateOne(buildExistingStudyUpdate(variantSourceEntry, bulk.variantSourceEntryConverter));
+                } else {
+                    bulk.builder.find(buildNewStudyQuery(id, bulk.studyId)).upsert()
+                            .updateOne(buildNewStudyUpdate(variant, variantSourceEntry, variantConverter, bulk.variantSourceEntryConverter, missingSamples));
+                }
+                bulk.ids.add(id);
+                bulk.sourceEntries.add(variantSourceEntry);
+                added++;
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Execute the bulk built with {@link #addToInsertBulk}. "Dup key" errors are retried with the positional update.
+     *
+     * @param bulk  Bulk to execute
+     * @return      QueryResult with the BulkWriteResult
+     */
+    QueryResult executeInsertBulk(InsertBulk bulk) {
+        if (bulk.size() == 0) {
+            return new QueryResult("insertVariants");
+        }
+        long start = System.nanoTime();
+        BulkWriteResult writeResult;
+        try {
+            writeResult = bulk.builder.execute();
+        } catch (BulkWriteException e) {
+            List<DBObject> queries = new LinkedList<>();
+            List<DBObject> updates = new LinkedList<>();
+            for (BulkWriteError writeError : e.getWriteErrors()) {
+                if (writeError.getCode() == 11000) { //Dup Key error code
+                    // The index of the error is the index of the request in the bulk
+                    int index = writeError.getIndex();
+                    queries.add(buildExistingStudyQuery(bulk.ids.get(index), bulk.studyId));
+                    updates.add(buildExistingStudyUpdate(bulk.sourceEntries.get(index), bulk.variantSourceEntryConverter));
+                } else {
+                    throw e;
+                }
+            }
+            logger.debug("{} variants already inserted by this bulk or by other loader after the probe. Retry with positional update.", queries.size());
+            QueryOptions options = new QueryOptions("upsert", false);
+            options.put("multi", false);
+            variantsCollection.update(queries, updates, options);
+            writeResult = e.getWriteResult();
+        }
+        int writes = getModifiedCount(writeResult) + writeResult.getUpserts().size();
+
+        return new QueryResult<>("insertVariants", ((int) (System.nanoTime() - start)), writes, writes, "", "", Collections.singletonList(writeResult));
+    }
+
+    /**
+     * Number of modified documents. Servers older than 2.6 do not report it, so the number of matched documents is
+     * used instead.
+     */
+    private static int getModifiedCount(BulkWriteResult writeResult) {
+        return writeResult.isModifiedCountAvailable() ? writeResult.getModifiedCount() : writeResult.getMatchedCount();
+    }
+
+    /**
+     * Find which variants already contain the study.
+     *
+     * @param ids       Storage ids of the variants to check
+     * @param studyId   Study to look for
+     * @return          Storage ids of the variants that contain the study
+     */
+    Set<String> getVariantsWithStudy(Collection<String> ids, int studyId) {
+        // { _id: { $in: [<variant_ids>] }, "studies.sid": <studyId> }
+        DBObject query = new BasicDBObject("_id", new BasicDBObject("$in", ids))
+                .append(DBObjectToVariantConverter.STUDIES_FIELD + "." + DBObjectToVariantSourceEntryConverter.STUDYID_FIELD, studyId);
+        QueryResult<DBObject> result = variantsCollection.find(query, new BasicDBObject("_id", true), new QueryOptions());
+
+        Set<String> variantsWithStudy = new HashSet<>(result.getNumResults());
+        for (DBObject dbObject : result.getResult()) {
+            variantsWithStudy.add(dbObject.get("_id").toString());
+        }
+        return variantsWithStudy;
+    }
+
+    private DBObject buildNewStudyQuery(String id, int studyId) {
+        return new BasicDBObject("_id", id).append(DBObjectToVariantConverter.STUDIES_FIELD + "." + DBObjectToVariantSourceEntryConverter.STUDYID_FIELD,
+                new BasicDBObject("$ne", studyId));
+    }
+
+    private DBObject buildNewStudyUpdate(Variant variant, VariantSourceEntry variantSourceEntry, DBObjectToVariantConverter variantConverter,
+                                         DBObjectToVariantSourceEntryConverter variantSourceEntryConverter, Map missingSamples) {
+        DBObject study = variantSourceEntryConverter.convertToStorageType(variantSourceEntry);
+        DBObject genotypes = (DBObject) study.get(DBObjectToVariantSourceEntryConverter.GENOTYPES_FIELD);
+        if (genotypes != null) {        //If genotypes is null, genotypes are not suppose to be loaded
+            genotypes.putAll(missingSamples);   //Add missing samples
+        }
+        DBObject push = new BasicDBObject(DBObjectToVariantConverter.STUDIES_FIELD, study);
+        BasicDBObject update = new BasicDBObject()
+                .append("$push", push)
+                .append("$setOnInsert", variantConverter.convertToStorageType(variant));
+        if (variant.getIds() != null && !variant.getIds().isEmpty() && !variant.getIds().iterator().next().isEmpty()) {
+            update.put("$addToSet", new BasicDBObject(DBObjectToVariantConverter.IDS_FIELD, new BasicDBObject("$each", variant.getIds())));
+        }
+        return update;
+    }
+
+    private DBObject buildExistingStudyQuery(String id, int studyId) {
+        return new BasicDBObject("_id", id).append(DBObjectToVariantConverter.STUDIES_FIELD + "." + DBObjectToVariantSourceEntryConverter.STUDYID_FIELD, studyId);
+    }
+
+    private DBObject buildExistingStudyUpdate(VariantSourceEntry variantSourceEntry, DBObjectToVariantSourceEntryConverter variantSourceEntryConverter) {
+        DBObject studyObject = variantSourceEntryConverter.convertToStorageType(variantSourceEntry);
+        DBObject genotypes = (DBObject) studyObject.get(DBObjectToVariantSourceEntryConverter.GENOTYPES_FIELD);
+        DBObject push = new BasicDBObject();
+        if (genotypes != null) { //If genotypes is null, genotypes are not suppose to be loaded
+            for (String genotype : genotypes.keySet()) {
+                push.put(DBObjectToVariantConverter.STUDIES_FIELD + ".$." + DBObjectToVariantSourceEntryConverter.GENOTYPES_FIELD + "." + genotype, new BasicDBObject("$each", genotypes.get(genotype)));
+            }
+        } else {
+            push.put(DBObjectToVariantConverter.STUDIES_FIELD + ".$." + DBObjectToVariantSourceEntryConverter.GENOTYPES_FIELD, Collections.emptyMap());
+        }
+        push.put(DBObjectToVariantConverter.STUDIES_FIELD + ".$." + DBObjectToVariantSourceEntryConverter.FILES_FIELD, ((List) studyObject.get(DBObjectToVariantSourceEntryConverter.FILES_FIELD)).get(0));
+        return new BasicDBObject("$push", push);
+    }
+
     QueryResult<WriteResult> fillFileGaps(int fileId, List<String> chromosomes, List<Integer> fileSampleIds, StudyConfiguration studyConfiguration) {
+        return fillFileGaps(fileId, chromosomes, fileSampleIds, studyConfiguration, DEFAULT_FILL_GAPS_THREADS, DEFAULT_FILL_GAPS_CHUNKS);
+    }
+
+    /**
+     * Adds the samples of the new file as UNKNOWN_GENOTYPE to the variants of the study not present in the file.
+     *
+     * The covered chromosomes are split in groups of consecutive {@link VariantMongoDBWriter#CHUNK_SIZE_BIG} chunks,
+     * filled in parallel with one update per group. Each update only modifies the variants without any of the samples
+     * of the file, so it is idempotent: an interrupted fill can be resumed executing it again, and two files of the
+     * same study loaded at the same time can fill their gaps without knowing about each other.
+     *
+     * @param fileId                File loaded
+     * @param chromosomes           Chromosomes covered by the file
+     * @param fileSampleIds         Samples of the file
+     * @param studyConfiguration    StudyConfiguration
+     * @param numThreads            Number of concurrent updates
+     * @param chunksPerUpdate       Number of big chunks filled by each update
+     * @return                      Result of each update
+     */
+    QueryResult<WriteResult> fillFileGaps(int fileId, List<String> chromosomes, List<Integer> fileSampleIds, StudyConfiguration studyConfiguration,
+                                          int numThreads, int chunksPerUpdate) {
 
-        // { "studies.sid" : <studyId>, "studies.files.fid" : { $ne : <fileId> } },
+        // { "_at.chunkIds" : { $in : [ <chunkIds> ] },
+        //   "studies" : { $elemMatch : { "sid" : <studyId>, "files.fid" : { $ne : <fileId> }, "gt.?/?" : { $nin : [ <fileSampleIds> ] } } } },
         // { $push : {
         //      "studies.$.gt.?/?" : {$each : [ <fileSampleIds> ] }
         // } }
@@ -1190,31 +1450,118 @@ public class VariantMongoDBAdaptor implements VariantDBAdaptor {
             logger.debug("Do not need fill gaps. DefaultGenotype is UNKNOWN_GENOTYPE({}).", DBObjectToSamplesConverter.UNKNOWN_GENOTYPE);
             return new QueryResult<>();
         }
-
-        DBObject query = new BasicDBObject();
-        if (chromosomes != null && !chromosomes.isEmpty()) {
-            query.put(DBObjectToVariantConverter.CHROMOSOME_FIELD, new BasicDBObject("$in", chromosomes));
+        if (fileSampleIds == null || fileSampleIds.isEmpty()) {
+            logger.debug("Do not need fill gaps. File {} has no samples", fileId);
+            return new QueryResult<>();
         }
+        long start = System.nanoTime();
 
-        query.put(DBObjectToVariantConverter.STUDIES_FIELD, new BasicDBObject("$elemMatch",
-                new BasicDBObject(
-                        DBObjectToVariantSourceEntryConverter.STUDYID_FIELD,
-                        studyConfiguration.getStudyId())
-                .append(
-                        DBObjectToVariantSourceEntryConverter.FILES_FIELD + "." + DBObjectToVariantSourceEntryConverter.FILEID_FIELD,
-                        new BasicDBObject("$ne", fileId)
-                )
-        ));
+        List<List<String>> chunkGroups = new ArrayList<>();
+        for (String chromosome : chromosomes) {
+            chunkGroups.addAll(getFillGapsChunkGroups(chromosome, studyConfiguration.getStudyId(), chunksPerUpdate));
+        }
 
         BasicDBObject update = new BasicDBObject("$push", new BasicDBObject()
                 .append(DBObjectToVariantConverter.STUDIES_FIELD + ".$." +
                         DBObjectToVariantSourceEntryConverter.GENOTYPES_FIELD + "." +
                         DBObjectToSamplesConverter.UNKNOWN_GENOTYPE, new BasicDBObject("$each", fileSampleIds)));
-
-        QueryOptions queryOptions = new QueryOptions("multi", true);
-        logger.debug("FillGaps find : {}", query);
         logger.debug("FillGaps update : {}", update);
-        return variantsCollection.update(query, update, queryOptions);
+        logger.info("Fill gaps of file {} in {} chromosomes. {} updates of {} chunks with {} threads",
+                fileId, chromosomes.size(), chunkGroups.size(), chunksPerUpdate, numThreads);
+
+        ExecutorService executorService = getFillGapsExecutor(Math.max(numThreads, 1));
+        List<Future<WriteResult>> futures = new ArrayList<>(chunkGroups.size());
+        AtomicInteger finishedUpdates = new AtomicInteger();
+        int progressStep = Math.max(chunkGroups.size() / 10, 1);
+        for (List<String> chunkIds : chunkGroups) {
+            DBObject query = new BasicDBObject("_at.chunkIds", new BasicDBObject("$in", chunkIds))
+                    .append(DBObjectToVariantConverter.STUDIES_FIELD, new BasicDBObject("$elemMatch",
+                            new BasicDBObject(
+                                    DBObjectToVariantSourceEntryConverter.STUDYID_FIELD,
+                                    studyConfiguration.getStudyId())
+                            .append(
+                                    DBObjectToVariantSourceEntryConverter.FILES_FIELD + "." + DBObjectToVariantSourceEntryConverter.FILEID_FIELD,
+                                    new BasicDBObject("$ne", fileId))
+                            .append(
+                                    DBObjectToVariantSourceEntryConverter.GENOTYPES_FIELD + "." + DBObjectToSamplesConverter.UNKNOWN_GENOTYPE,
+                                    new BasicDBObject("$nin", fileSampleIds))
+                    ));
+            futures.add(executorService.submit(() -> {
+                WriteResult writeResult = variantsCollection.update(query, update, new QueryOptions("multi", true)).first();
+                int finished = finishedUpdates.incrementAndGet();
+                if (finished % progressStep == 0) {
+                    logger.info("Fill gaps : {}/{} updates. Last chunks {} - {}", finished, chunkGroups.size(),
+                            chunkIds.get(0), chunkIds.get(chunkIds.size() - 1));
+                }
+                return writeResult;
+            }));
+        }
+
+        List<WriteResult> writeResults = new ArrayList<>(futures.size());
+        int updatedVariants = 0;
+        try {
+            for (Future<WriteResult> future : futures) {
+                WriteResult writeResult = future.get();
+                writeResults.add(writeResult);
+                updatedVariants += writeResult.getN();
+            }
+        } catch (InterruptedException e) {
+            futures.forEach(future -> future.cancel(true));
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            futures.forEach(future -> future.cancel(true));
+            throw new RuntimeException("Error filling gaps of file " + fileId, e.getCause());
+        }
+        logger.info("Fill gaps of file {} : {} variants updated", fileId, updatedVariants);
+        return new QueryResult<>("fillFileGaps", ((int) (System.nanoTime() - start)), updatedVariants, updatedVariants, "", "", writeResults);
+    }
+
+    /**
+     * Get the executor of the fill gaps updates. It is created once, and only replaced if the number of threads changes.
+     */
+    private synchronized ExecutorService getFillGapsExecutor(int numThreads) {
+        if (fillGapsExecutor == null || fillGapsThreads != numThreads) {
+            if (fillGapsExecutor != null) {
+                fillGapsExecutor.shutdown();    // Running fills can finish
+            }
+            fillGapsExecutor = Executors.newFixedThreadPool(numThreads, runnable -> {
+                Thread thread = new Thread(runnable, "fill-gaps");
+                thread.setDaemon(true);
+                return thread;
+            });
+            fillGapsThreads = numThreads;
+        }
+        return fillGapsExecutor;
+    }
+
+    /**
+     * Splits the chromosome, from the first to the last variant of the study, in groups of consecutive big chunkIds.
+     */
+    private List<List<String>> getFillGapsChunkGroups(String chromosome, int studyId, int chunksPerUpdate) {
+        DBObject query = new BasicDBObject(DBObjectToVariantConverter.CHROMOSOME_FIELD, chromosome)
+                .append(DBObjectToVariantConverter.STUDIES_FIELD + "." + DBObjectToVariantSourceEntryConverter.STUDYID_FIELD, studyId);
+        DBObject projection = new BasicDBObject(DBObjectToVariantConverter.START_FIELD, true);
+        QueryResult<DBObject> first = variantsCollection.find(query, projection, new QueryOptions("limit", 1)
+                .append("sort", new BasicDBObject(DBObjectToVariantConverter.CHROMOSOME_FIELD, 1).append(DBObjectToVariantConverter.START_FIELD, 1)));
+        QueryResult<DBObject> last = variantsCollection.find(query, projection, new QueryOptions("limit", 1)
+                .append("sort", new BasicDBObject(DBObjectToVariantConverter.CHROMOSOME_FIELD, 1).append(DBObjectToVariantConverter.START_FIELD, -1)));
+        if (first.getResult().isEmpty() || last.getResult().isEmpty()) {
+            return Collections.emptyList();
+        }
+        int firstChunk = getChunkId(((Number) first.first().get(DBObjectToVariantConverter.START_FIELD)).intValue(), VariantMongoDBWriter.CHUNK_SIZE_BIG);
+        int lastChunk = getChunkId(((Number) last.first().get(DBObjectToVariantConverter.START_FIELD)).intValue(), VariantMongoDBWriter.CHUNK_SIZE_BIG);
+        int ks = VariantMongoDBWriter.CHUNK_SIZE_BIG / 1000;
+
+        List<List<String>> chunkGroups = new ArrayList<>();
+        for (int groupStart = firstChunk; groupStart <= lastChunk; groupStart += chunksPerUpdate) {
+            List<String> chunkIds = new ArrayList<>(chunksPerUpdate);
+            for (int chunk = groupStart; chunk < groupStart + chunksPerUpdate && chunk <= lastChunk; chunk++) {
+                chunkIds.add(chromosome + "_" + chunk + "_" + ks + "k");
+            }
+            chunkGroups.add(chunkIds);
+        }
+        return chunkGroups;
     }
 
 
@@ -1526,13 +1873,13 @@ public class VariantMongoDBAdaptor implements VariantDBAdaptor {
             Integer studyId = getInteger(study);
             Integer cohortId = getInteger(cohort);
             if (studyId == null) {
-                StudyConfiguration studyConfiguration = studyConfigurationManager.getStudyConfiguration(study, null).first();
+                StudyConfiguration studyConfiguration = studyConfigurationManager.getStudyConfiguration(study, new QueryOptions(StudyConfigurationManager.READ_ONLY, true)).first();
                 studyId = studyConfiguration.getStudyId();
                 if (cohortId == null) {
                     cohortId = studyConfiguration.getCohortIds().get(cohort);
                 }
             } else if (cohortId == null) {
-                StudyConfiguration studyConfiguration = studyConfigurationManager.getStudyConfiguration(studyId, null).first();
+                StudyConfiguration studyConfiguration = studyConfigurationManager.getStudyConfiguration(studyId, new QueryOptions(StudyConfigurationManager.READ_ONLY, true)).first();
                 cohortId = studyConfiguration.getCohortIds().get(cohort);
             }
 //            StudyConfiguration studyConfiguration = studyConfigurationManager.getStudyConfiguration(study, null).first();
@@ -2538,7 +2885,7 @@ public class VariantMongoDBAdaptor implements VariantDBAdaptor {
         // TODO handle if the variant didn't had that studyId in the files array
         // TODO check the substitution is done right if the stats are already present
         BulkWriteResult writeResult = builder.execute();
-        int writes = writeResult.getModifiedCount();
+        int writes = getModifiedCount(writeResult);
 
         return new QueryResult<>("", ((int) (System.nanoTime() - start)), writes, writes, "", "", Collections.singletonList(writeResult));
     }
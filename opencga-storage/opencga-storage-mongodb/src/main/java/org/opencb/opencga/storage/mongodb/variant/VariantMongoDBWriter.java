@@ -19,10 +19,13 @@ package org.opencb.opencga.storage.mongodb.variant;
 import java.util.*;
 
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicLong;
 
-import org.opencb.biodata.models.feature.Region;
 import org.opencb.biodata.models.variant.Variant;
 import org.opencb.datastore.core.QueryOptions;
 import org.opencb.datastore.core.QueryResult;
@@ -80,11 +83,23 @@ public class VariantMongoDBWriter extends VariantDBWriter {
 //
 //    private long checkExistsTime = 0;
 //    private long checkExistsDBTime = 0;
-    private long insertionTime = 0;
+    private AtomicLong insertionTime = new AtomicLong(0);
     private StudyConfiguration studyConfiguration;
 //    private Integer fileId;
     private int fileId;
     private boolean writeStudyConfiguration = true;
+    private boolean checkExistingVariants = true;
+    private boolean studyMayBeLoaded = true;
+    private int fillGapsThreads = VariantMongoDBAdaptor.DEFAULT_FILL_GAPS_THREADS;
+    private int fillGapsChunks = VariantMongoDBAdaptor.DEFAULT_FILL_GAPS_CHUNKS;
+
+    // Asynchronous bulk writes. Only used if a bulkExecutor is provided
+    private ExecutorService bulkExecutor = null;
+    private Semaphore pendingBulksSemaphore = null;
+    private int bulkSize = 0;
+    private VariantMongoDBAdaptor.InsertBulk currentBulk = null;
+    private final List<Future<QueryResult>> pendingBulks = new LinkedList<>();
+    private long blockedTime = 0;
 //    private boolean writeVariantSource = true;
 //    private VariantSource source;
 
@@ -126,7 +141,8 @@ public class VariantMongoDBWriter extends VariantDBWriter {
     @Override
     public boolean open() {
         staticNumVariantsWritten = 0;
-        insertionTime = 0;
+        insertionTime.set(0);
+        blockedTime = 0;
         coveredChromosomes.clear();
 //        numVariantsWritten = 0;
 
@@ -143,6 +159,9 @@ public class VariantMongoDBWriter extends VariantDBWriter {
     public boolean pre() {
         this.fileSampleIds = new LinkedList<>(studyConfiguration.getSamplesInFiles().get(fileId));
         loadedSampleIds = VariantMongoDBAdaptor.getLoadedSamples(fileId, studyConfiguration);
+        // If there is no other indexed file, no variant can contain this study yet, and the "_id $in" probe can be
+        // skipped. Another file of the study may be loading at the same time; its "dup key" errors are retried.
+        studyMayBeLoaded = studyConfiguration.getIndexedFiles().stream().anyMatch(indexedFile -> indexedFile != fileId);
         // Mongo collection creation
 //        variantMongoCollection = mongoDataStore.getCollection(variantsCollectionName);
 //        filesMongoCollection = mongoDataStore.getCollection(filesCollectionName);
@@ -186,11 +205,96 @@ public class VariantMongoDBWriter extends VariantDBWriter {
         if (!data.isEmpty()) {
             coveredChromosomes.add(data.get(0).getChromosome());
         }
-        QueryResult queryResult = dbAdaptor.insert(data, fileId, this.variantConverter, this.sourceEntryConverter, studyConfiguration, loadedSampleIds);
-        insertionTime += queryResult.getDbTime();
+        if (bulkExecutor != null) {
+            return writeAsync(data);
+        }
+        QueryResult queryResult;
+        if (checkExistingVariants) {
+            queryResult = dbAdaptor.insert(data, fileId, this.variantConverter, this.sourceEntryConverter, studyConfiguration, loadedSampleIds, studyMayBeLoaded);
+        } else {
+            queryResult = dbAdaptor.insert(data, fileId, this.variantConverter, this.sourceEntryConverter, studyConfiguration, loadedSampleIds);
+        }
+        insertionTime.addAndGet(queryResult.getDbTime());
+        return true;
+    }
+
+    /**
+     * Convert the batch into the current bulk. Once the bulk reaches the bulkSize, it is sent to the bulkExecutor
+     * and this thread continues converting the next batch without waiting for the result.
+     * Blocks only if there are too many pending bulks.
+     */
+    private boolean writeAsync(List<Variant> data) {
+        checkPendingBulks(false);
+        if (currentBulk == null) {
+            currentBulk = dbAdaptor.newInsertBulk(fileId, sourceEntryConverter, studyConfiguration);
+        }
+        dbAdaptor.addToInsertBulk(currentBulk, data, variantConverter, loadedSampleIds, studyMayBeLoaded);
+        if (currentBulk.size() >= bulkSize) {
+            submitCurrentBulk();
+        }
         return true;
     }
 
+    private void submitCurrentBulk() {
+        if (currentBulk == null || currentBulk.size() == 0) {
+            return;
+        }
+        VariantMongoDBAdaptor.InsertBulk bulk = currentBulk;
+        currentBulk = null;
+        long start = System.nanoTime();
+        try {
+            pendingBulksSemaphore.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for pending bulk writes", e);
+        }
+        blockedTime += System.nanoTime() - start;
+        pendingBulks.add(bulkExecutor.submit(() -> {
+            try {
+                QueryResult queryResult = dbAdaptor.executeInsertBulk(bulk);
+                insertionTime.addAndGet(queryResult.getDbTime());
+                return queryResult;
+            } finally {
+                pendingBulksSemaphore.release();
+            }
+        }));
+    }
+
+    /**
+     * Remove finished bulks from the pending list, propagating any write error.
+     * @param wait  Wait for all the pending bulks to finish
+     */
+    private void checkPendingBulks(boolean wait) {
+        Iterator<Future<QueryResult>> iterator = pendingBulks.iterator();
+        while (iterator.hasNext()) {
+            Future<QueryResult> future = iterator.next();
+            if (wait || future.isDone()) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while waiting for pending bulk writes", e);
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException("Error writing variants bulk", e.getCause());
+                }
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Send the last bulk and wait for all the pending bulks of this writer.
+     * Must be called for every writer before the {@link #post()} of any of them, as the post fills the gaps
+     * of the loaded file.
+     */
+    public void flush() {
+        if (bulkExecutor != null) {
+            submitCurrentBulk();
+            checkPendingBulks(true);
+            logger.debug("Time blocked waiting for pending bulks: " + blockedTime / 1000000.0 + "ms");
+        }
+    }
+
 //    public boolean write_updateInsert(List<Variant> data) {
 //        List<String> variantIds = new ArrayList<>(data.size());
 //
@@ -346,6 +450,7 @@ public class VariantMongoDBWriter extends VariantDBWriter {
 //            executeBulk();
 //        }
         logger.debug("POST");
+        flush();
         if (!variantSourceWritten.getAndSet(true)) {
             if (writeStudyConfiguration) {
                 writeStudyConfiguration();
@@ -354,8 +459,10 @@ public class VariantMongoDBWriter extends VariantDBWriter {
 //                writeSourceSummary(source);
 //            }
 
-            List<Region> regions = coveredChromosomes.stream().map(Region::new).collect(Collectors.toList());
-            dbAdaptor.fillFileGaps(fileId, new LinkedList<>(coveredChromosomes), fileSampleIds, studyConfiguration);
+            // Always fill the gaps. Another file of the study may have been loaded at the same time than this one,
+            // and the fill gaps are idempotent.
+            dbAdaptor.fillFileGaps(fileId, new LinkedList<>(coveredChromosomes), fileSampleIds, studyConfiguration,
+                    fillGapsThreads, fillGapsChunks);
             dbAdaptor.createIndexes(new QueryOptions());
 //            DBObject onBackground = new BasicDBObject("background", true);
 //            variantMongoCollection.createIndex(new BasicDBObject("_at.chunkIds", 1), onBackground);
@@ -378,13 +485,14 @@ public class VariantMongoDBWriter extends VariantDBWriter {
 //        logger.debug("checkExistsTime " + checkExistsTime / 1000000.0 + "ms ");
 //        logger.debug("checkExistsDBTime " + checkExistsDBTime / 1000000.0 + "ms ");
 //        logger.debug("bulkTime " + bulkTime / 1000000.0 + "ms ");
-        logger.debug("insertionTime " + insertionTime / 1000000.0 + "ms ");
+        logger.debug("insertionTime " + insertionTime.get() / 1000000.0 + "ms ");
         return true;
     }
 
     @Override
     public boolean close() {
-//        this.mongoDataStoreManager.close(this.mongoDataStore.getDb().getName());
+        // The writer owns its DBAdaptor. Release its connections to the shared pool
+        dbAdaptor.close();
         return true;
     }
 
@@ -469,4 +577,38 @@ public class VariantMongoDBWriter extends VariantDBWriter {
     public void setWriteStudyConfiguration(boolean writeStudyConfiguration) {
         this.writeStudyConfiguration = writeStudyConfiguration;
     }
+
+    /**
+     * Check which variants already contain the study before writing each batch, so each batch is written
+     * with one single bulk operation. If false, use the two steps insertion.
+     * @param checkExistingVariants    Check existing variants before writing
+     */
+    public void setCheckExistingVariants(boolean checkExistingVariants) {
+        this.checkExistingVariants = checkExistingVariants;
+    }
+
+    /**
+     * Configure the gaps filling executed at the post.
+     *
+     * @param fillGapsThreads   Number of concurrent updates
+     * @param fillGapsChunks    Number of big chunks filled by each update
+     */
+    public void setFillGaps(int fillGapsThreads, int fillGapsChunks) {
+        this.fillGapsThreads = fillGapsThreads;
+        this.fillGapsChunks = fillGapsChunks;
+    }
+
+    /**
+     * Write the bulks asynchronously. Conversion of the next batches continues while the bulks are written
+     * by the bulkExecutor threads. Requires checkExistingVariants.
+     *
+     * @param bulkExecutor              Executor to write the bulks. Can be shared between writers.
+     * @param pendingBulksSemaphore     Limits the number of bulks in flight. Can be shared between writers.
+     * @param bulkSize                  Number of variants per bulk, independent of the batch size
+     */
+    public void setAsyncBulkWrite(ExecutorService bulkExecutor, Semaphore pendingBulksSemaphore, int bulkSize) {
+        this.bulkExecutor = bulkExecutor;
+        this.pendingBulksSemaphore = pendingBulksSemaphore;
+        this.bulkSize = bulkSize;
+    }
 }
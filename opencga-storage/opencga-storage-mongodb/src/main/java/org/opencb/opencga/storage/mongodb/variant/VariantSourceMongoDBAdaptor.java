@@ -21,6 +21,7 @@ import com.mongodb.DBObject;
 import com.mongodb.QueryBuilder;
 import java.net.UnknownHostException;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.opencb.biodata.models.variant.VariantSource;
 import org.opencb.biodata.models.variant.stats.VariantGlobalStats;
@@ -28,11 +29,10 @@ import org.opencb.biodata.models.variant.stats.VariantSourceStats;
 import org.opencb.datastore.core.QueryOptions;
 import org.opencb.datastore.core.QueryResult;
 import org.opencb.datastore.mongodb.MongoDBCollection;
-import org.opencb.datastore.mongodb.MongoDBConfiguration;
 import org.opencb.datastore.mongodb.MongoDataStore;
-import org.opencb.datastore.mongodb.MongoDataStoreManager;
 import org.opencb.opencga.storage.core.StudyConfiguration;
 import org.opencb.opencga.storage.mongodb.utils.MongoCredentials;
+import org.opencb.opencga.storage.mongodb.utils.MongoDataStorePool;
 import org.opencb.opencga.storage.core.variant.adaptors.VariantSourceDBAdaptor;
 
 /**
@@ -43,16 +43,14 @@ public class VariantSourceMongoDBAdaptor implements VariantSourceDBAdaptor {
 
     private static final Map<String, List> samplesInSources = new HashMap<>();
 
-    private final MongoDataStoreManager mongoManager;
     private final MongoDataStore db;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
     private final DBObjectToVariantSourceConverter variantSourceConverter;
     private final String collectionName;
 
     public VariantSourceMongoDBAdaptor(MongoCredentials credentials, String collectionName) throws UnknownHostException {
         // Mongo configuration
-        mongoManager = new MongoDataStoreManager(credentials.getDataStoreServerAddresses());
-        MongoDBConfiguration mongoDBConfiguration = credentials.getMongoDBConfiguration();
-        db = mongoManager.get(credentials.getMongoDbName(), mongoDBConfiguration);
+        db = MongoDataStorePool.get().acquire(credentials);
         this.collectionName = collectionName;
         variantSourceConverter = new DBObjectToVariantSourceConverter();
     }
@@ -144,7 +142,10 @@ public class VariantSourceMongoDBAdaptor implements VariantSourceDBAdaptor {
 
     @Override
     public boolean close() {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        if (closed.compareAndSet(false, true)) {
+            MongoDataStorePool.get().release(db);
+        }
+        return true;
     }
 
     private void parseQueryOptions(QueryOptions options, QueryBuilder builder) {
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2015 OpenCB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opencb.opencga.storage.mongodb.alignment;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.opencb.biodata.models.alignment.AlignmentRegion;
+import org.opencb.biodata.models.alignment.stats.MeanCoverage;
+import org.opencb.biodata.models.feature.Region;
+import org.opencb.commons.test.GenericTest;
+import org.opencb.datastore.mongodb.MongoDataStore;
+import org.opencb.opencga.storage.mongodb.utils.MongoCredentials;
+import org.opencb.opencga.storage.mongodb.utils.MongoDataStorePool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class CoverageMongoDBWriterTest extends GenericTest {
+
+    private static final int REGION_SIZE = 200000;
+    private static final int WINDOW_SIZE = 200;
+    private static final int NUM_REGIONS = 20;
+
+    private MongoCredentials credentials;
+    private Logger logger = LoggerFactory.getLogger(CoverageMongoDBWriterTest.class);
+
+    @Before
+    public void before() throws Exception {
+        credentials = new MongoCredentials("localhost", 27017, "opencga-coverage-writer-test", null, null);
+        MongoDataStore db = MongoDataStorePool.get().acquire(credentials);
+        db.getDb().dropDatabase();
+        MongoDataStorePool.get().release(db);
+    }
+
+    @Test
+    public void testWrite() throws Exception {
+        List<AlignmentRegion> regions = buildRegions(1);
+        long chunks = write("file1", regions);
+        assertEquals(NUM_REGIONS * REGION_SIZE / WINDOW_SIZE, chunks);
+        checkCoverage("file1", 1);
+
+        // Overwrite the coverage of the same file, and add a second file
+        write("file1", buildRegions(2));
+        write("file2", buildRegions(3));
+        checkCoverage("file1", 2);
+        checkCoverage("file2", 3);
+    }
+
+    @Test
+    public void testConcurrentWritersSameChunks() throws Exception {
+        List<AlignmentRegion> regions = buildRegions(1);
+        CoverageMongoDBWriter.ChunkLocks chunkLocks = new CoverageMongoDBWriter.ChunkLocks();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            CoverageMongoDBWriter writer = new CoverageMongoDBWriter(credentials, "file1");
+            writer.setChunkLocks(chunkLocks);
+            threads.add(new Thread(() -> {
+                writer.open();
+                writer.pre();
+                writer.write(regions);
+                writer.post();
+                writer.close();
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        checkCoverage("file1", 1);
+    }
+
+    private long write(String fileId, List<AlignmentRegion> regions) {
+        CoverageMongoDBWriter writer = new CoverageMongoDBWriter(credentials, fileId);
+        writer.open();
+        writer.pre();
+        long start = System.currentTimeMillis();
+        for (AlignmentRegion region : regions) {
+            writer.write(region);
+        }
+        long time = Math.max(System.currentTimeMillis() - start, 1);
+        writer.post();
+        writer.close();
+        logger.info("Written {} chunks in {}ms ({} chunks/s)", writer.getWrittenChunks(), time, writer.getWrittenChunks() * 1000 / time);
+        return writer.getWrittenChunks();
+    }
+
+    private void checkCoverage(String fileId, float expected) {
+        MongoDataStore db = MongoDataStorePool.get().acquire(credentials);
+        try {
+            DBCollection collection = db.getDb().getCollection(CoverageMongoDBWriter.COVERAGE_COLLECTION_NAME);
+            assertEquals(NUM_REGIONS * REGION_SIZE / WINDOW_SIZE, collection.count());
+            for (DBObject document : collection.find()) {
+                int found = 0;
+                for (Object file : (BasicDBList) document.get(CoverageMongoDBWriter.FILES_FIELD)) {
+                    if (fileId.equals(((BasicDBObject) file).get(CoverageMongoDBWriter.FILE_ID_FIELD))) {
+                        assertEquals(expected, ((Number) ((BasicDBObject) file).get(CoverageMongoDBWriter.AVERAGE_FIELD)).floatValue(), 0.0001);
+                        found++;
+                    }
+                }
+                assertEquals(1, found);
+            }
+        } finally {
+            MongoDataStorePool.get().release(db);
+        }
+    }
+
+    private List<AlignmentRegion> buildRegions(float coverage) {
+        List<AlignmentRegion> regions = new ArrayList<>(NUM_REGIONS);
+        for (int i = 0; i < NUM_REGIONS; i++) {
+            int start = i * REGION_SIZE + 1;
+            AlignmentRegion region = new AlignmentRegion("20", start, start + REGION_SIZE - 1);
+            List<MeanCoverage> meanCoverageList = new ArrayList<>(REGION_SIZE / WINDOW_SIZE);
+            for (int windowStart = start; windowStart < start + REGION_SIZE; windowStart += WINDOW_SIZE) {
+                meanCoverageList.add(new MeanCoverage(WINDOW_SIZE, "200",
+                        new Region("20", windowStart, windowStart + WINDOW_SIZE - 1), coverage));
+            }
+            region.setMeanCoverage(meanCoverageList);
+            regions.add(region);
+        }
+        return regions;
+    }
+}
@@ -19,10 +19,12 @@ package org.opencb.opencga.storage.mongodb.alignment;
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mongodb.DBObject;
 import org.junit.Before;
 import org.junit.Test;
 import org.opencb.biodata.formats.io.FileFormatException;
 import org.opencb.biodata.models.alignment.Alignment;
+import org.opencb.biodata.models.alignment.AlignmentRegion;
 import org.opencb.biodata.models.alignment.stats.MeanCoverage;
 import org.opencb.biodata.models.alignment.stats.RegionCoverage;
 import org.opencb.biodata.models.feature.Region;
@@ -32,6 +34,7 @@ import org.opencb.datastore.core.QueryOptions;
 import org.opencb.datastore.core.QueryResult;
 import org.opencb.opencga.core.common.IOUtils;
 import org.opencb.opencga.storage.core.alignment.AlignmentStorageManager;
+import org.opencb.opencga.storage.core.alignment.coverage.CoveragePyramidBuilder;
 import org.opencb.opencga.storage.core.alignment.json.AlignmentDifferenceJsonMixin;
 import org.opencb.opencga.storage.core.config.StorageConfiguration;
 import org.opencb.opencga.storage.core.variant.VariantStorageManagerTest;
@@ -42,9 +45,14 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
 public class IndexedAlignmentDBAdaptorTest  extends GenericTest{
 
 
@@ -111,6 +119,54 @@ public class IndexedAlignmentDBAdaptorTest  extends GenericTest{
 
     }
 
+    @Test
+    public void testGetAllAlignmentsByMergedRegions() throws IOException {
+        QueryOptions qo = new QueryOptions();
+        qo.put(IndexedAlignmentDBAdaptor.QO_BAM_PATH, bamFile.toString());
+        qo.put(IndexedAlignmentDBAdaptor.QO_PROCESS_DIFFERENCES, false);
+        qo.put(IndexedAlignmentDBAdaptor.QO_INCLUDE_COVERAGE, false);
+
+        // Unsorted, overlapping and adjacent regions
+        List<Region> regions = Arrays.asList(
+                new Region("20", 29829500, 29830000),
+                new Region("20", 29829000, 29829499),
+                new Region("20", 29829400, 29829600),
+                new Region("20", 29840000, 29841000));
+        // The metrics are static. Compare with the values before the queries
+        ObjectMap latencyBefore = (ObjectMap) IndexedAlignmentDBAdaptor.getMetrics().get("latency");
+        ObjectMap readersBefore = (ObjectMap) IndexedAlignmentDBAdaptor.getMetrics().get("readers");
+        List<AlignmentRegion> merged = dbAdaptor.getAllAlignmentsByRegion(regions, qo).getResult();
+        assertEquals(regions.size(), merged.size());
+        for (int i = 0; i < regions.size(); i++) {
+            AlignmentRegion expected = (AlignmentRegion) dbAdaptor.getAllAlignmentsByRegion(Arrays.asList(regions.get(i)), qo).first();
+            assertEquals(regions.get(i).getStart(), merged.get(i).getStart());
+            assertEquals(readNames(expected), readNames(merged.get(i)));
+        }
+
+        // One merged query and one query by region. Each query uses one cached reader, released at the end
+        int queries = 1 + regions.size();
+        ObjectMap latency = (ObjectMap) IndexedAlignmentDBAdaptor.getMetrics().get("latency");
+        ObjectMap readers = (ObjectMap) IndexedAlignmentDBAdaptor.getMetrics().get("readers");
+        assertEquals(((Number) latencyBefore.get("count")).longValue() + queries, ((Number) latency.get("count")).longValue());
+        assertTrue(((Number) latency.get("p50")).longValue() <= ((Number) latency.get("p99")).longValue());
+        assertEquals(count(readersBefore) + queries, count(readers));
+        assertTrue(((Number) readers.get("hits")).longValue() >= ((Number) readersBefore.get("hits")).longValue() + queries - 1);
+        assertEquals(0, readers.getInt("inUse"));
+        assertTrue(readers.getInt("idle") > 0);
+    }
+
+    private static long count(ObjectMap readers) {
+        return ((Number) readers.get("hits")).longValue() + ((Number) readers.get("misses")).longValue();
+    }
+
+    private List<String> readNames(AlignmentRegion alignmentRegion) {
+        List<String> names = new ArrayList<>();
+        for (Alignment alignment : alignmentRegion.getAlignments()) {
+            names.add(alignment.getName() + ":" + alignment.getStart());
+        }
+        return names;
+    }
+
     @Test
     public void testGetHistogramCoverageByRegion() throws IOException {
 //29337216, 29473005
@@ -140,6 +196,36 @@ public class IndexedAlignmentDBAdaptorTest  extends GenericTest{
 
     }
 
+    @Test
+    public void testIntervalFrequenciesFromCoveragePyramid() throws Exception {
+        // The catalog indexes the BAM into a job outdir, not into the directory of the BAM
+        Path outdir = Files.createDirectories(bamFile.getParent().resolve("job_outdir"));
+        Path pyramid = Paths.get(bamFile + CoveragePyramidBuilder.EXTENSION);
+        Files.deleteIfExists(pyramid);
+        manager.transform(bamFile.toUri(), null, outdir.toUri());
+        assertTrue(Files.exists(pyramid));
+        assertFalse(Files.exists(outdir.resolve(bamFile.getFileName() + CoveragePyramidBuilder.EXTENSION)));
+
+        int size = 6400;    // Multiple of the pyramid base size and of the coverage chunk size
+        QueryOptions qo = new QueryOptions();
+        qo.put(IndexedAlignmentDBAdaptor.QO_BAM_PATH, bamFile.toString());
+        qo.put(IndexedAlignmentDBAdaptor.QO_FILE_ID, "HG00096");
+        qo.put(IndexedAlignmentDBAdaptor.QO_INTERVAL_SIZE, size);
+        Region region = new Region("20", 4656 * size, 4688 * size + 1);
+
+        List<DBObject> fromPyramid = dbAdaptor.getAllIntervalFrequencies(region, qo).getResult();
+        Files.move(pyramid, outdir.resolve(pyramid.getFileName()));
+        List<DBObject> fromAggregation = dbAdaptor.getAllIntervalFrequencies(region, qo).getResult();
+
+        assertFalse(fromAggregation.isEmpty());
+        assertEquals(fromAggregation.size(), fromPyramid.size());
+        for (int i = 0; i < fromAggregation.size(); i++) {
+            assertEquals(fromAggregation.get(i).get("start"), fromPyramid.get(i).get("start"));
+            assertEquals(fromAggregation.get(i).get("end"), fromPyramid.get(i).get("end"));
+            assertEquals(((Number) fromAggregation.get(i).get(IndexedAlignmentDBAdaptor.FEATURES_COUNT)).doubleValue(),
+                    ((Number) fromPyramid.get(i).get(IndexedAlignmentDBAdaptor.FEATURES_COUNT)).doubleValue(), 0.01);
+        }
+    }
 
     @Test
     public void testGetCoverageByRegion() throws IOException {
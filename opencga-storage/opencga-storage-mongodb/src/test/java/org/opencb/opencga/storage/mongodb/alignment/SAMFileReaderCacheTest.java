@@ -0,0 +1,123 @@
+/*
+ * Copyright 2015 OpenCB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opencb.opencga.storage.mongodb.alignment;
+
+import htsjdk.samtools.BAMIndexer;
+import htsjdk.samtools.SAMFileReader;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opencb.commons.test.GenericTest;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+import static org.junit.Assert.*;
+
+public class SAMFileReaderCacheTest extends GenericTest {
+
+    private static final String BAM_FILE_NAME = "HG00096.chrom20.small.bam";
+    private Path bamFile;
+    private Path baiFile;
+    private Path bamFile2;
+    private Path baiFile2;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Before
+    public void before() throws IOException {
+        Path rootDir = temporaryFolder.getRoot().toPath();
+        bamFile = rootDir.resolve(BAM_FILE_NAME);
+        Files.copy(SAMFileReaderCacheTest.class.getClassLoader().getResourceAsStream(BAM_FILE_NAME), bamFile, StandardCopyOption.REPLACE_EXISTING);
+        baiFile = createBai(bamFile);
+        bamFile2 = rootDir.resolve("copy." + BAM_FILE_NAME);
+        Files.copy(bamFile, bamFile2);
+        baiFile2 = createBai(bamFile2);
+    }
+
+    @Test
+    public void testReuseReader() {
+        SAMFileReaderCache cache = new SAMFileReaderCache(2, 2);
+        SAMFileReader reader = cache.acquire(bamFile, baiFile);
+        cache.release(reader);
+        assertSame(reader, cache.acquire(bamFile, baiFile));
+        cache.release(reader);
+
+        assertEquals(1L, cache.getMetrics().get("hits"));
+        assertEquals(1L, cache.getMetrics().get("misses"));
+        assertEquals(1, cache.getMetrics().getInt("idle"));
+        assertEquals(0, cache.getMetrics().getInt("inUse"));
+        cache.clear();
+    }
+
+    @Test
+    public void testConcurrentReaders() {
+        SAMFileReaderCache cache = new SAMFileReaderCache(2, 2);
+        SAMFileReader reader1 = cache.acquire(bamFile, baiFile);
+        SAMFileReader reader2 = cache.acquire(bamFile, baiFile);
+        SAMFileReader reader3 = cache.acquire(bamFile, baiFile);
+        assertNotSame(reader1, reader2);
+        assertNotSame(reader2, reader3);
+        assertEquals(3, cache.getMetrics().getInt("inUse"));
+
+        cache.release(reader1);
+        cache.release(reader2);
+        cache.release(reader3);
+        // Only 2 readers per file are kept
+        assertEquals(2, cache.getMetrics().getInt("idle"));
+        cache.clear();
+    }
+
+    @Test
+    public void testEvictLeastRecentlyUsed() {
+        SAMFileReaderCache cache = new SAMFileReaderCache(1, 2);
+        SAMFileReader reader = cache.acquire(bamFile, baiFile);
+        cache.release(reader);
+        cache.release(cache.acquire(bamFile2, baiFile2));
+
+        assertEquals(1, cache.getMetrics().getInt("files"));
+        assertEquals(1L, cache.getMetrics().get("evicted"));
+        assertNotSame(reader, cache.acquire(bamFile, baiFile));
+        cache.clear();
+    }
+
+    @Test
+    public void testModifiedFile() {
+        SAMFileReaderCache cache = new SAMFileReaderCache(2, 2);
+        SAMFileReader reader = cache.acquire(bamFile, baiFile);
+        assertTrue(bamFile.toFile().setLastModified(bamFile.toFile().lastModified() + 10000));
+        cache.release(cache.acquire(bamFile, baiFile));
+        cache.release(reader);
+
+        // The reader of the old file is closed when released
+        assertEquals(1, cache.getMetrics().getInt("idle"));
+        assertNotSame(reader, cache.acquire(bamFile, baiFile));
+        cache.clear();
+    }
+
+    private static Path createBai(Path bam) {
+        Path bai = bam.resolveSibling(bam.getFileName() + ".bai");
+        SAMFileReader reader = new SAMFileReader(bam.toFile());
+        BAMIndexer.createIndex(reader, bai.toFile());
+        reader.close();
+        return bai;
+    }
+}
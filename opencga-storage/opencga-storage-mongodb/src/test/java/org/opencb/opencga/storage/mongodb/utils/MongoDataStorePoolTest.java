@@ -0,0 +1,137 @@
+/*
+ * Copyright 2015 OpenCB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opencb.opencga.storage.mongodb.utils;
+
+import org.junit.Test;
+import org.opencb.datastore.core.ObjectMap;
+import org.opencb.opencga.core.auth.IllegalOpenCGACredentialsException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MongoDataStorePoolTest {
+
+    /**
+     * Opens plain objects instead of MongoDataStores, so the pool is tested without a Mongo server.
+     */
+    private static class TestPool extends SharedResourcePool<String, Object> {
+        private final List<Object> closedResources = new ArrayList<>();
+
+        TestPool(int maxIdle, long idleTimeoutMs) {
+            super(maxIdle, idleTimeoutMs);
+        }
+
+        @Override
+        protected String buildKey(String configuration) {
+            return configuration;
+        }
+
+        @Override
+        protected Object open(String configuration) {
+            return new Object();
+        }
+
+        @Override
+        protected void close(Object resource) {
+            closedResources.add(resource);
+        }
+    }
+
+    @Test
+    public void testAcquireRelease() {
+        TestPool pool = new TestPool(1, 60000);
+
+        Object db1 = pool.acquire("opencga_pool_test");
+        Object db2 = pool.acquire("opencga_pool_test");
+        assertSame(db1, db2);
+        ObjectMap metrics = pool.getMetrics();
+        assertEquals(1L, metrics.get("misses"));
+        assertEquals(1L, metrics.get("hits"));
+        assertEquals(1, metrics.get("active"));
+        assertEquals(2, metrics.get("references"));
+
+        pool.release(db1);
+        pool.release(db2);
+        metrics = pool.getMetrics();
+        assertEquals(0, metrics.get("active"));
+        assertEquals(1, metrics.get("idle"));
+        assertTrue(pool.closedResources.isEmpty());
+
+        // Idle resources are reused
+        assertSame(db1, pool.acquire("opencga_pool_test"));
+        pool.release(db1);
+
+        // Only one idle resource is kept open. The least recently used is closed.
+        Object other = pool.acquire("opencga_pool_test_2");
+        assertNotSame(db1, other);
+        pool.release(other);
+        metrics = pool.getMetrics();
+        assertEquals(1, metrics.get("idle"));
+        assertEquals(1L, metrics.get("closed"));
+        assertEquals(1, pool.closedResources.size());
+        assertSame(db1, pool.closedResources.get(0));
+
+        pool.closeIdle();
+        assertEquals(0, pool.getMetrics().get("idle"));
+        assertSame(other, pool.closedResources.get(1));
+    }
+
+    @Test
+    public void testExtraRelease() {
+        TestPool pool = new TestPool(1, 60000);
+        Object db = pool.acquire("opencga_pool_test");
+        Object shared = pool.acquire("opencga_pool_test");
+        pool.release(db);
+        pool.release(db);
+        pool.release(shared);
+
+        // Extra releases do not make the reference count negative
+        assertEquals(0, pool.getMetrics().get("references"));
+        assertSame(db, pool.acquire("opencga_pool_test"));
+        assertEquals(1, pool.getMetrics().get("active"));
+
+        // Releasing an unknown resource is ignored
+        pool.release(new Object());
+        assertEquals(1, pool.getMetrics().get("references"));
+    }
+
+    @Test
+    public void testIdleTimeout() throws InterruptedException {
+        TestPool pool = new TestPool(8, 10);
+        Object db = pool.acquire("opencga_pool_test");
+        pool.release(db);
+        Thread.sleep(50);
+
+        // The next acquire closes the expired idle resources
+        Object newDb = pool.acquire("opencga_pool_test");
+        assertNotSame(db, newDb);
+        assertEquals(1L, pool.getMetrics().get("closed"));
+        assertSame(db, pool.closedResources.get(0));
+        pool.release(newDb);
+    }
+
+    @Test
+    public void testKey() throws IllegalOpenCGACredentialsException {
+        String key = MongoDataStorePool.getKey(new MongoCredentials("localhost", 27017, "opencga_pool_test", null, null));
+        assertEquals(key, MongoDataStorePool.getKey(new MongoCredentials("localhost", 27017, "opencga_pool_test", null, null)));
+        assertNotEquals(key, MongoDataStorePool.getKey(new MongoCredentials("localhost", 27017, "opencga_pool_test_2", null, null)));
+        assertNotEquals(key, MongoDataStorePool.getKey(new MongoCredentials("localhost", 27018, "opencga_pool_test", null, null)));
+        assertNotEquals(key, MongoDataStorePool.getKey(new MongoCredentials("localhost", 27017, "opencga_pool_test", "user", "pass")));
+    }
+}
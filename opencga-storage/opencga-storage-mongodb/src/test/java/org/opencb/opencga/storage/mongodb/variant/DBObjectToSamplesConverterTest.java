@@ -0,0 +1,164 @@
+/*
+ * Copyright 2015 OpenCB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opencb.opencga.storage.mongodb.variant;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.opencb.opencga.storage.core.StudyConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+public class DBObjectToSamplesConverterTest {
+
+    private static final String[] GENOTYPES = {"0/0", "0/1", "1/1", "./.", "0|1", "1|0"};
+    private static final int NUM_SAMPLES = 10000;
+
+    private StudyConfiguration studyConfiguration;
+    private Logger logger = LoggerFactory.getLogger(DBObjectToSamplesConverterTest.class);
+
+    @Before
+    public void setUp() {
+        studyConfiguration = new StudyConfiguration(1, "study");
+        Set<Integer> fileSamples = new LinkedHashSet<>();
+        for (int i = 0; i < NUM_SAMPLES; i++) {
+            studyConfiguration.getSampleIds().put("S" + i, i);
+            fileSamples.add(i);
+        }
+        studyConfiguration.getFileIds().put("file1", 1);
+        studyConfiguration.getSamplesInFiles().put(1, fileSamples);
+        studyConfiguration.getIndexedFiles().add(1);
+        studyConfiguration.getAttributes().put(MongoDBVariantStorageManager.DEFAULT_GENOTYPE, new HashSet<>(Arrays.asList("0/0", "0|0")));
+    }
+
+    @Test
+    public void testConvert() {
+        DBObjectToSamplesConverter converter = new DBObjectToSamplesConverter(studyConfiguration);
+        Map<String, Map<String, String>> samplesData = randomSamplesData(new Random(1));
+
+        DBObject dbObject = converter.convertToStorageType(samplesData, 1);
+        assertFalse(dbObject.containsField("0/0"));
+        assertEquals(new HashSet<>(Arrays.asList("0/1", "1/1", "-1/-1", "0|1", "1|0")), dbObject.keySet());
+
+        // Read the document as it is returned from Mongo
+        DBObject study = new BasicDBObject(DBObjectToVariantSourceEntryConverter.GENOTYPES_FIELD, copy(dbObject));
+        Map<String, Map<String, String>> converted = converter.convertToDataModelType(study, 1);
+        assertEquals(samplesData, converted);
+    }
+
+    @Test
+    public void testConvertReturnedSamples() {
+        DBObjectToSamplesConverter converter = new DBObjectToSamplesConverter(studyConfiguration);
+        Map<String, Map<String, String>> samplesData = randomSamplesData(new Random(2));
+        DBObject study = new BasicDBObject(DBObjectToVariantSourceEntryConverter.GENOTYPES_FIELD,
+                copy(converter.convertToStorageType(samplesData, 1)));
+
+        converter.setReturnedSamples(new HashSet<>(Arrays.asList("S1", "S10", "100")));
+        Map<String, Map<String, String>> converted = converter.convertToDataModelType(study, 1);
+        assertEquals(new HashSet<>(Arrays.asList("S1", "S10", "S100")), converted.keySet());
+        for (Map.Entry<String, Map<String, String>> entry : converted.entrySet()) {
+            assertEquals(samplesData.get(entry.getKey()), entry.getValue());
+        }
+    }
+
+    @Test
+    public void testConvertUnknownSample() {
+        DBObjectToSamplesConverter converter = new DBObjectToSamplesConverter(studyConfiguration);
+        Map<String, Map<String, String>> samplesData = new LinkedHashMap<>();
+        samplesData.put("S1", Collections.singletonMap("GT", "0/1"));
+        samplesData.put("UNKNOWN", Collections.singletonMap("GT", "0/1"));
+
+        // Samples missing in the StudyConfiguration are stored as null, and skipped when read
+        DBObject dbObject = converter.convertToStorageType(samplesData, 1);
+        assertEquals(Arrays.asList(1, null), dbObject.get("0/1"));
+
+        DBObject study = new BasicDBObject(DBObjectToVariantSourceEntryConverter.GENOTYPES_FIELD, copy(dbObject));
+        Map<String, Map<String, String>> converted = converter.convertToDataModelType(study, 1);
+        assertEquals("0/1", converted.get("S1").get("GT"));
+        assertNull(converted.get("UNKNOWN"));
+    }
+
+    /**
+     * Converts synthetic variants with 10k samples. Reports the conversion time to the storage type and back.
+     */
+    @Test
+    @Ignore("Benchmark")
+    public void benchmark() {
+        Random random = new Random(0);
+        int numVariants = 500;
+        List<Map<String, Map<String, String>>> variants = new ArrayList<>(numVariants);
+        for (int i = 0; i < numVariants; i++) {
+            variants.add(randomSamplesData(random));
+        }
+        DBObjectToSamplesConverter converter = new DBObjectToSamplesConverter(studyConfiguration);
+        List<DBObject> studies = new ArrayList<>(numVariants);
+        for (int iteration = 0; iteration < 5; iteration++) {
+            studies.clear();
+            long start = System.nanoTime();
+            for (Map<String, Map<String, String>> samplesData : variants) {
+                studies.add(new BasicDBObject(DBObjectToVariantSourceEntryConverter.GENOTYPES_FIELD,
+                        copy(converter.convertToStorageType(samplesData, 1))));
+            }
+            long storage = System.nanoTime();
+            for (DBObject study : studies) {
+                converter.convertToDataModelType(study, 1);
+            }
+            long dataModel = System.nanoTime();
+            converter.setReturnedSamples(Collections.singleton("S" + iteration));
+            for (DBObject study : studies) {
+                converter.convertToDataModelType(study, 1);
+            }
+            long returnedSamples = System.nanoTime();
+            converter.setReturnedSamples(Collections.emptySet());
+            logger.info("{} variants with {} samples. convertToStorageType: {}ms, convertToDataModelType: {}ms, "
+                            + "convertToDataModelType with 1 returned sample: {}ms",
+                    numVariants, NUM_SAMPLES, (storage - start) / 1000000, (dataModel - storage) / 1000000,
+                    (returnedSamples - dataModel) / 1000000);
+        }
+    }
+
+    private Map<String, Map<String, String>> randomSamplesData(Random random) {
+        Map<String, Map<String, String>> samplesData = new LinkedHashMap<>();
+        for (int i = 0; i < NUM_SAMPLES; i++) {
+            // 95% of samples with the default genotype
+            String gt = random.nextInt(100) < 95 ? GENOTYPES[0] : GENOTYPES[1 + random.nextInt(GENOTYPES.length - 1)];
+            Map<String, String> sampleData = new HashMap<>();
+            sampleData.put("GT", gt);
+            samplesData.put("S" + i, sampleData);
+        }
+        return samplesData;
+    }
+
+    /**
+     * Copy the genotypes as they would be read from Mongo, with lists of Integer.
+     */
+    private BasicDBObject copy(DBObject genotypes) {
+        BasicDBObject copy = new BasicDBObject();
+        for (String genotype : genotypes.keySet()) {
+            copy.put(genotype, new ArrayList<>((List) genotypes.get(genotype)));
+        }
+        return copy;
+    }
+}
@@ -16,7 +16,25 @@
 
 package org.opencb.opencga.storage.mongodb.variant;
 
+import com.mongodb.WriteResult;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.opencb.biodata.models.variant.VariantStudy;
+import org.opencb.datastore.core.ObjectMap;
+import org.opencb.datastore.core.Query;
+import org.opencb.datastore.core.QueryResult;
+import org.opencb.opencga.storage.core.StudyConfiguration;
+import org.opencb.opencga.storage.core.variant.VariantStorageManager;
 import org.opencb.opencga.storage.core.variant.VariantStorageManagerTest;
+import org.opencb.opencga.storage.core.variant.adaptors.VariantDBAdaptor;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
 
 
 /**
@@ -34,4 +52,98 @@ public class MongoVariantStorageManagerTest extends VariantStorageManagerTest {
         MongoVariantStorageManagerTestUtils.clearDB(dbName);
     }
 
+    /**
+     * Load the same files with the two steps insertion, checking the existing variants before writing,
+     * and with asynchronous bulk writes.
+     * Reports the loaded variants per second for the first and for the following files.
+     */
+    @Test
+    @Ignore("Benchmark")
+    public void loadBenchmark() throws Exception {
+        List<String> files = Arrays.asList(
+                "1-500.filtered.10k.chr22.phase3_shapeit2_mvncall_integrated_v5.20130502.genotypes.vcf.gz",
+                "501-1000.filtered.10k.chr22.phase3_shapeit2_mvncall_integrated_v5.20130502.genotypes.vcf.gz",
+                "1001-1500.filtered.10k.chr22.phase3_shapeit2_mvncall_integrated_v5.20130502.genotypes.vcf.gz");
+        long numVariants = -1;
+        List<ObjectMap> loadModes = Arrays.asList(
+                new ObjectMap(MongoDBVariantStorageManager.CHECK_EXISTING_VARIANTS, false),
+                new ObjectMap(MongoDBVariantStorageManager.CHECK_EXISTING_VARIANTS, true),
+                new ObjectMap(MongoDBVariantStorageManager.CHECK_EXISTING_VARIANTS, true)
+                        .append(MongoDBVariantStorageManager.WRITE_MONGO_THREADS, 2)
+                        .append(MongoDBVariantStorageManager.BULK_SIZE, 1000));
+        for (ObjectMap loadMode : loadModes) {
+            clearDB(DB_NAME);
+            StudyConfiguration studyConfiguration = new StudyConfiguration(1, "multi");
+            int fileId = 5;
+            for (String file : files) {
+                ObjectMap params = new ObjectMap()
+                        .append(VariantStorageManager.Options.STUDY_CONFIGURATION.key(), studyConfiguration)
+                        .append(VariantStorageManager.Options.STUDY_TYPE.key(), VariantStudy.StudyType.CONTROL)
+                        .append(VariantStorageManager.Options.FILE_ID.key(), fileId)
+                        .append(VariantStorageManager.Options.INCLUDE_GENOTYPES.key(), true)
+                        .append(VariantStorageManager.Options.DB_NAME.key(), DB_NAME)
+                        .append(VariantStorageManager.Options.CALCULATE_STATS.key(), false)
+                        .append(VariantStorageManager.Options.ANNOTATE.key(), false)
+                        .append(VariantStorageManager.Options.LOAD_THREADS.key(), 4);
+                params.putAll(loadMode);
+                URI transformed = runETL(variantStorageManager, getResourceUri(file), outputUri,
+                        params, params, params, params, params, params, params, true, true, false).transformResult;
+
+                long start = System.currentTimeMillis();
+                runETL(variantStorageManager, transformed, outputUri, params, params, params, params, params, params, params, false, false, true);
+                long time = System.currentTimeMillis() - start;
+
+                VariantDBAdaptor dbAdaptor = variantStorageManager.getDBAdaptor(DB_NAME);
+                try {
+                    long fileVariants = dbAdaptor.count(new Query(VariantDBAdaptor.VariantQueryParams.FILES.key(), fileId)).first();
+                    logger.info("{} file {} ({}) : {} variants loaded in {}s. {} variants/s",
+                            loadMode, fileId, file, fileVariants, time / 1000.0, fileVariants * 1000 / Math.max(time, 1));
+                } finally {
+                    dbAdaptor.close();
+                }
+                fileId++;
+            }
+            long loadedVariants;
+            VariantDBAdaptor dbAdaptor = variantStorageManager.getDBAdaptor(DB_NAME);
+            try {
+                loadedVariants = dbAdaptor.count(new Query()).first();
+            } finally {
+                dbAdaptor.close();
+            }
+            if (numVariants < 0) {
+                numVariants = loadedVariants;
+            } else {
+                assertEquals(numVariants, loadedVariants);
+            }
+        }
+    }
+
+    /**
+     * Fill the gaps of the last loaded file again. Already filled chunks must not be updated twice.
+     */
+    @Test
+    public void fillGapsResume() throws Exception {
+        clearDB(DB_NAME);
+        StudyConfiguration studyConfiguration = new StudyConfiguration(1, "multi");
+        ObjectMap params = new ObjectMap()
+                .append(VariantStorageManager.Options.STUDY_CONFIGURATION.key(), studyConfiguration)
+                .append(VariantStorageManager.Options.STUDY_TYPE.key(), VariantStudy.StudyType.CONTROL)
+                .append(VariantStorageManager.Options.INCLUDE_GENOTYPES.key(), true)
+                .append(VariantStorageManager.Options.DB_NAME.key(), DB_NAME)
+                .append(MongoDBVariantStorageManager.FILL_GAPS_CHUNKS, 2);
+        runDefaultETL(getResourceUri("1-500.filtered.10k.chr22.phase3_shapeit2_mvncall_integrated_v5.20130502.genotypes.vcf.gz"),
+                variantStorageManager, studyConfiguration, params.append(VariantStorageManager.Options.FILE_ID.key(), 5));
+        runDefaultETL(getResourceUri("501-1000.filtered.10k.chr22.phase3_shapeit2_mvncall_integrated_v5.20130502.genotypes.vcf.gz"),
+                variantStorageManager, studyConfiguration, params.append(VariantStorageManager.Options.FILE_ID.key(), 6));
+
+        VariantMongoDBAdaptor dbAdaptor = (VariantMongoDBAdaptor) variantStorageManager.getDBAdaptor(DB_NAME);
+        try {
+            List<Integer> fileSampleIds = new ArrayList<>(studyConfiguration.getSamplesInFiles().get(6));
+            QueryResult<WriteResult> result = dbAdaptor.fillFileGaps(6, Collections.singletonList("22"), fileSampleIds, studyConfiguration, 4, 2);
+            assertEquals(0, result.getNumResults());
+        } finally {
+            dbAdaptor.close();
+        }
+    }
+
 }
@@ -0,0 +1,18 @@
+package org.opencb.opencga.storage.mongodb.variant.annotator;
+
+import org.opencb.opencga.storage.core.variant.annotation.VariantAnnotationManagerTest;
+import org.opencb.opencga.storage.mongodb.variant.MongoDBVariantStorageManager;
+import org.opencb.opencga.storage.mongodb.variant.MongoVariantStorageManagerTestUtils;
+
+public class MongoVariantAnnotationManagerTest extends VariantAnnotationManagerTest {
+
+    @Override
+    protected MongoDBVariantStorageManager getVariantStorageManager() throws Exception {
+        return MongoVariantStorageManagerTestUtils.getVariantStorageManager();
+    }
+
+    @Override
+    protected void clearDB(String dbName) throws Exception {
+        MongoVariantStorageManagerTestUtils.clearDB(dbName);
+    }
+}